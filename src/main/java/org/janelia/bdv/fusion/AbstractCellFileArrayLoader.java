@@ -28,70 +28,76 @@
  */
 package org.janelia.bdv.fusion;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Array;
 
 import bdv.img.cache.CacheArrayLoader;
-import ij.IJ;
-import ij.ImagePlus;
-import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
-import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Pair;
-import net.imglib2.view.Views;
 
 abstract public class AbstractCellFileArrayLoader< T extends NativeType< T > & RealType< T >, A extends AbstractVolatileArray< A > > implements CacheArrayLoader< A >
 {
 	public interface ArrayFactory< T, A >
 	{
 		public A createInvalidVolatileArray( final int numEntities );
-		public RandomAccessibleInterval< T > wrapArray( final A data, final long[] dimensions );
+		public A createValidVolatileArray( final Object data );
 	}
 	
 	private final ArrayFactory< T, A > arrayFactory;
-	private final String cellFormat;
+	private final CellFileReader reader;
 	private final int[][] cellSizes;
 	
 	private A emptyArray;
 
+	/* valid all-zero array shared by all cells that do not exist */
+	private A zeroArray;
+
+	private volatile CellFilePresenceIndex presenceIndex = null;
+
+	private volatile AdaptiveConcurrencyLimit concurrencyLimit = null;
+
+	private final CellFileLoaderStats stats;
+
+	private volatile CellFileTracer tracer = null;
+
 	/**
-	 * <p>Create a {@link CacheArrayLoader} for a file per cell source.
-	 * Cells are addressed, in this order, by their</p>
-	 * <ol>
-	 * <li>scale level,</li>
-	 * <li>column (cell grid coordinates),</li>
-	 * <li>row (cell grid coordinates),</li>
-	 * <li>slice (cell grid coordinates),</li>
-	 * <li>x (left pixel coordinates of the cell),</li>
-	 * <li>y (top pixel coordinates of the cell),</li>
-	 * <li>z (front pixel coordinates of the cell)</li>
-	 * </ol>
-	 * <p><code>urlFormat</code> specifies how these parameters are used
-	 * to generate a URL referencing the tile.  Examples:</p>
+	 * Create a {@link CacheArrayLoader} for a cell source that is read by
+	 * a {@link CellFileReader}.
 	 *
-	 * <dl>
-	 * <dd>Stitching export version 0</dd>
-	 * <dt>"/home/saalfeld/test/channel1/%1$d/%7$d/%6$d/%5$d.tif"</dt>
-     * <dd>Stitching export version 1</dd>
-	 * <dt>"/home/saalfeld/test/channel1/%1$d/%4$d/%3$d/%2$d.tif"</dt>
-     * </dl>
-	 *
-	 * @param cellFormat
+	 * @param reader
+	 * @param cellSizes
+	 * @param arrayFactory
 	 */
 	public AbstractCellFileArrayLoader( 
-			final String cellFormat, 
+			final CellFileReader reader, 
 			final int[][] cellSizes,
 			final ArrayFactory< T, A > arrayFactory )
 	{
 		this.arrayFactory = arrayFactory;
-		this.cellFormat = cellFormat;
+		this.reader = reader;
 		this.cellSizes = cellSizes;
+		stats = new CellFileLoaderStats( cellSizes.length );
 		
 		emptyArray = arrayFactory.createInvalidVolatileArray( 1 );
+		zeroArray = emptyArray.createArray( 1 );
+	}
+
+	/**
+	 * Create a {@link CacheArrayLoader} for a file per cell source stored
+	 * as TIFF files.
+	 *
+	 * @param cellFormat see {@link CellFileTiffReader#CellFileTiffReader(String)}
+	 * @param cellSizes
+	 * @param arrayFactory
+	 */
+	public AbstractCellFileArrayLoader( 
+			final String cellFormat, 
+			final int[][] cellSizes,
+			final ArrayFactory< T, A > arrayFactory )
+	{
+		this( new CellFileTiffReader( cellFormat ), cellSizes, arrayFactory );
 	}
 
 	@Override
@@ -103,60 +109,180 @@ abstract public class AbstractCellFileArrayLoader< T extends NativeType< T > & R
 			final long[] min ) throws InterruptedException
 	{
 		final int[] cellSize = cellSizes[ level ];
-		
-		final String cellString =
-				String.format(
-						cellFormat,
-						level,
-						min[ 0 ] / cellSize[ 0 ],
-						min[ 1 ] / cellSize[ 1 ],
-						min[ 2 ] / cellSize[ 2 ],
-						min[ 0 ],
-						min[ 1 ],
-						min[ 2 ] );
+		final long[] gridPosition = new long[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			gridPosition[ d ] = min[ d ] / cellSize[ d ];
 		
 		int numEntities = 1;
 		for ( int i = 0; i < dimensions.length; ++i )
 			numEntities *= dimensions[ i ];
+
+		stats.request( level );
+		final CellFileTracer t = tracer;
+		final CellFileTracer.Span span = t == null ? null : t.begin( setup, level, gridPosition );
+		if ( span != null )
+			span.resolved( reader.getCellPath( level, gridPosition, min ) );
+
+		/* virtual cells have no files, they exist if one of their finer cells does */
+		final boolean virtual = isVirtual( level );
+		final CellFilePresenceIndex index = presenceIndex;
+		if ( index != null && !virtual && !index.contains( level, gridPosition ) )
+		{
+			stats.skip();
+			if ( span != null )
+				span.end( "skipped" );
+			return zeroArray( numEntities );
+		}
+
 		final A data = emptyArray.createArray( numEntities );
-		
+
+		/* virtual cells load their finer cells through the cache, which take permits of their own */
+		final AdaptiveConcurrencyLimit limit = virtual ? null : concurrencyLimit;
+		if ( virtual && concurrencyLimit != null && concurrencyLimit.isHeldByCurrentThread() )
+			concurrencyLimit.release();
+		/* fetchers that took a permit before dequeuing keep it */
+		final boolean acquire = limit != null && !limit.isHeldByCurrentThread();
+		if ( acquire )
+			limit.acquire();
+		if ( span != null )
+			span.acquired();
+		final long start = System.nanoTime();
+		boolean loaded = false;
+		stats.begin();
+
 		try
 		{
-			final File file = new File( cellString );
-			if ( !file.exists() )
-				throw new IOException( "file does not exist" );
-			
-			final ImagePlus imp = IJ.openImage( cellString );
-			
-			if ( imp == null )
-				throw new IOException( "imp == null" );
-			
-			//if ( imp.getType() != ImagePlus.GRAY16 )
-			//	new ImageConverter( imp ).convertToGray16();
-			
-			final long[] longDimensions = new long[]{
-					dimensions[ 0 ],
-					dimensions[ 1 ],
-					dimensions[ 2 ] };
-			
-			final RandomAccessibleInterval< T > target = arrayFactory.wrapArray( data, longDimensions );
-			final RandomAccessibleInterval< T > impSource = ImagePlusImgs.from( imp );
-			final RandomAccessibleInterval< T > source =
-					Views.interval(
-							Views.extendZero( impSource ),
-							new FinalInterval( longDimensions ) );
-			
-			for ( final Pair< T, T > pair : Views.interval( Views.pair( source, target ), target ) )
-				pair.getB().set( pair.getA() );
+			/* the cell may have become unwanted while waiting for a permit */
+			CellFileCancellation.check();
+			final Object storage = reader.read( level, gridPosition, min, dimensions, data.getCurrentStorageArray() );
+			loaded = true;
+			final A array;
+			if ( storage == null )
+				array = zeroArray( numEntities );
+			else if ( storage != data.getCurrentStorageArray() )
+				array = arrayFactory.createValidVolatileArray( storage );
+			else
+				array = data;
+			if ( span != null )
+			{
+				span.opened( CellFileLoaderStats.openedAt() );
+				span.decoded( CellFileLoaderStats.decodedAt() );
+			}
+			stats.end( level, storage != null );
+			if ( span != null )
+				span.end( storage == null ? "missing" : "loaded" );
+			return array;
+		}
+		catch ( final InterruptedIOException e )
+		{
+			stats.cancel();
+			if ( span != null )
+				span.end( "cancelled" );
+			throw new InterruptedException( e.getMessage() );
 		}
 		catch ( final IOException e ) 
 		{
-			//System.out.println( "failed loading tile " + cellString + ": " + e.getMessage() );
+			stats.fail( reader.getCellPath( level, gridPosition, min ), e );
+			if ( span != null )
+				span.end( "failed" );
+		}
+		finally
+		{
+			if ( acquire )
+			{
+				if ( loaded )
+					limit.release( System.nanoTime() - start );
+				else
+					limit.release();
+			}
+			else if ( limit != null && loaded )
+				limit.sample( System.nanoTime() - start );
 		}
 		
 		return data;
 	}
 
+	private boolean isVirtual( final int level )
+	{
+		return reader instanceof CellFileVirtualLevels && ( ( CellFileVirtualLevels )reader ).isVirtual( level );
+	}
+
+	/**
+	 * Reuses the existing valid all-zero array if it is large enough.
+	 * Cells that use it must never be written to.
+	 */
+	private synchronized A zeroArray( final int numEntities )
+	{
+		if ( Array.getLength( zeroArray.getCurrentStorageArray() ) < numEntities )
+			zeroArray = emptyArray.createArray( numEntities );
+
+		return zeroArray;
+	}
+
+	public CellFileReader getReader()
+	{
+		return reader;
+	}
+
+	public CellFilePresenceIndex getPresenceIndex()
+	{
+		return presenceIndex;
+	}
+
+	/**
+	 * Set an index of existing cells.  Cells that are not in the index are
+	 * not looked up in the file system but share one valid all-zero array.
+	 *
+	 * @param presenceIndex or null to look up every cell
+	 */
+	public void setPresenceIndex( final CellFilePresenceIndex presenceIndex )
+	{
+		this.presenceIndex = presenceIndex;
+	}
+
+	/**
+	 * @return counters and latencies of the cells loaded by this loader
+	 */
+	public CellFileLoaderStats getStats()
+	{
+		return stats;
+	}
+
+	public CellFileTracer getTracer()
+	{
+		return tracer;
+	}
+
+	/**
+	 * Record a span for every cell load.
+	 *
+	 * @param tracer or null to not trace
+	 */
+	public void setTracer( final CellFileTracer tracer )
+	{
+		this.tracer = tracer;
+	}
+
+	public AdaptiveConcurrencyLimit getConcurrencyLimit()
+	{
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Limit the number of concurrent reads, e.g. to adapt the effective
+	 * number of fetcher threads to the storage.  A limit can be shared by
+	 * several loaders.  Loads take a permit unless their thread holds one
+	 * already, e.g. a fetcher of a {@link TwoQueueCellFileCache} with the
+	 * same limit.  Fetchers of BigDataViewer's cache dequeue a request
+	 * before the load waits for its permit.
+	 *
+	 * @param concurrencyLimit or null for no limit
+	 */
+	public void setConcurrencyLimit( final AdaptiveConcurrencyLimit concurrencyLimit )
+	{
+		this.concurrencyLimit = concurrencyLimit;
+	}
+
 	@Override
 	public A emptyArray( final int[] dimensions )
 	{
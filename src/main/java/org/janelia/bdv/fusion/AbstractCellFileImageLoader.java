@@ -28,6 +28,9 @@
  */
 package org.janelia.bdv.fusion;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
@@ -36,11 +39,12 @@ import bdv.cache.CacheHints;
 import bdv.cache.LoadingStrategy;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.CachedCellImg;
-import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.cache.VolatileCell;
 import bdv.img.cache.VolatileImgCells;
 import bdv.img.cache.VolatileImgCells.CellCache;
 import net.imglib2.Volatile;
 import net.imglib2.img.NativeImg;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
@@ -58,7 +62,17 @@ abstract public class AbstractCellFileImageLoader< T extends NativeType< T >, V
 
 	protected final int[][] cellDimensions;
 
-	protected VolatileGlobalCellCache cache;
+	protected final int setupId;
+
+	protected CellFileCache cache;
+
+	private volatile CellFileHotCells hotCells = null;
+
+	/* low priority cell caches for prefetching, by level */
+	private final CellCache< ? >[] prefetchCellCaches;
+
+	/* blocking cell caches for prefetching, by level */
+	private final CellCache< ? >[] blockingPrefetchCellCaches;
 
 	public AbstractCellFileImageLoader(
 			final long[][] dimensions,
@@ -66,13 +80,62 @@ abstract public class AbstractCellFileImageLoader< T extends NativeType< T >, V
 			final int[][] downsampleFactors,
 			final T t,
 			final V v )
+	{
+		this( dimensions, cellDimensions, downsampleFactors, 10, t, v );
+	}
+
+	/**
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param downsampleFactors
+	 * @param numFetcherThreads number of threads that load cells into the cache
+	 * @param t
+	 * @param v
+	 */
+	public AbstractCellFileImageLoader(
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int numFetcherThreads,
+			final T t,
+			final V v )
+	{
+		this( dimensions, cellDimensions, downsampleFactors, 0, new SoftReferenceCellFileCache( dimensions.length, numFetcherThreads ), t, v );
+	}
+
+	/**
+	 * Create a loader that registers its cells in an existing cache,
+	 * typically shared by all channels such that they share one fetcher
+	 * pool, one prioritized queue and one memory limit.
+	 *
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param downsampleFactors
+	 * @param setupId setup id of the cells in <code>cache</code>, must be
+	 *   unique among all loaders sharing the cache
+	 * @param cache a cache for at least <code>dimensions.length</code> levels
+	 * @param t
+	 * @param v
+	 */
+	public AbstractCellFileImageLoader(
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int setupId,
+			final CellFileCache cache,
+			final T t,
+			final V v )
 	{
 		super( t, v );
 
 		this.dimensions = dimensions;
 		this.cellDimensions = cellDimensions;
+		this.setupId = setupId;
+		this.cache = cache;
 
 		final int numScales = dimensions.length;
+		prefetchCellCaches = new CellCache< ? >[ numScales ];
+		blockingPrefetchCellCaches = new CellCache< ? >[ numScales ];
 		mipmapTransforms = new AffineTransform3D[ numScales ];
 		mipmapResolutions = new double[ numScales ][];
 		for ( int i = 0; i < numScales; ++i )
@@ -88,8 +151,252 @@ abstract public class AbstractCellFileImageLoader< T extends NativeType< T >, V
 				mipmapTransforms[ i ].set( 0.5 * ( mipmapResolutions[ i ][ d ] - 1 ), d, 3 );
 			}
 		}
+	}
+
+	/**
+	 * @return the {@link CacheArrayLoader} that loads the cells of this source
+	 */
+	abstract public AbstractCellFileArrayLoader< ?, ? > getArrayLoader();
+
+	public int getSetupId()
+	{
+		return setupId;
+	}
+
+	public CellFileHotCells getHotCells()
+	{
+		return hotCells;
+	}
+
+	/**
+	 * Record the cells of all images created from now on.
+	 *
+	 * @param hotCells or null to record nothing
+	 */
+	public void setHotCells( final CellFileHotCells hotCells )
+	{
+		this.hotCells = hotCells;
+	}
+
+	public long[][] getDimensions()
+	{
+		return dimensions;
+	}
+
+	public int[][] getCellDimensions()
+	{
+		return cellDimensions;
+	}
+
+	/**
+	 * Create a reader for the cells of this loader that loads them through
+	 * the cache on the calling thread, e.g. to compute the cells of
+	 * {@link CellFileVirtualLevels virtual levels} from cached finer cells.
+	 * Cells are handed out as the storage arrays of the cache and must not
+	 * be modified.
+	 *
+	 * @return
+	 */
+	public CellFileReader createCachedCellReader()
+	{
+		return new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return getArrayLoader().getReader().getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read(
+					final int level,
+					final long[] gridPosition,
+					final long[] min,
+					final int[] dims,
+					final Object storage ) throws IOException
+			{
+				long index = 0;
+				for ( int d = 2; d >= 0; --d )
+					index = index * ( ( dimensions[ level ][ d ] + cellDimensions[ level ][ d ] - 1 ) / cellDimensions[ level ][ d ] ) + gridPosition[ d ];
 
-		cache = new VolatileGlobalCellCache( numScales, 10 );
+				/* blocking loads are not cancelled, check before asking the cache */
+				CellFileCancellation.check();
+				final CellCache< ? > c = getPrefetchCellCache( 0, level, true );
+				VolatileCell< ? > cell = c.get( index );
+				if ( cell == null || !( ( VolatileAccess )cell.getData() ).isValid() )
+					cell = loadBlocking( c, index, dims, min );
+
+				/* an interrupted load leaves the thread interrupted */
+				if ( Thread.interrupted() )
+					throw new InterruptedIOException( "interrupted while loading a cell" );
+
+				if ( !( ( VolatileAccess )cell.getData() ).isValid() )
+					throw new IOException( "could not load cell " + getCellPath( level, gridPosition, min ) );
+				return ( ( AbstractVolatileArray< ? > )cell.getData() ).getCurrentStorageArray();
+			}
+		};
+	}
+
+	/**
+	 * Create a reader for the cells of this loader that reads them without
+	 * going through (and flushing) the cache, e.g. for exports.  Cells
+	 * that are not in the {@link AbstractCellFileArrayLoader#getPresenceIndex()
+	 * presence index} are missing without a file system lookup, and the
+	 * cells of {@link CellFileVirtualLevels virtual levels} are computed
+	 * from finer cells that are read the same way.
+	 *
+	 * @return
+	 */
+	public CellFileReader createUncachedCellReader()
+	{
+		final AbstractCellFileArrayLoader< ?, ? > arrayLoader = getArrayLoader();
+		final CellFileReader reader = arrayLoader.getReader();
+		final CellFileVirtualLevels levels = reader instanceof CellFileVirtualLevels ? ( ( CellFileVirtualLevels )reader ).copy() : null;
+		final CellFileReader uncachedReader = new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return reader.getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read(
+					final int level,
+					final long[] gridPosition,
+					final long[] min,
+					final int[] dims,
+					final Object storage ) throws IOException
+			{
+				/* virtual cells have no files, they exist if one of their finer cells does */
+				final boolean virtual = levels != null && levels.isVirtual( level );
+				final CellFilePresenceIndex index = arrayLoader.getPresenceIndex();
+				if ( index != null && !virtual && !index.contains( level, gridPosition ) )
+					return null;
+
+				return ( levels == null ? reader : levels ).read( level, gridPosition, min, dims, storage );
+			}
+		};
+		if ( levels != null )
+			levels.setSource( uncachedReader );
+		return uncachedReader;
+	}
+
+	/**
+	 * @param level
+	 * @param index
+	 * @return number of bytes of the cell with the given index or 0 if
+	 *   there is no such cell
+	 */
+	public long getCellBytes( final int level, final long index )
+	{
+		final long[] min = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+		if ( !cellMinAndDimensions( level, index, min, cellDims ) )
+			return 0;
+		return ( long )cellDims[ 0 ] * cellDims[ 1 ] * cellDims[ 2 ] * getArrayLoader().getBytesPerElement();
+	}
+
+	/**
+	 * Enqueue a cell at the lowest priority unless it is valid already.
+	 *
+	 * @param timepointId
+	 * @param level
+	 * @param index
+	 * @return true if the cell is valid or does not exist
+	 */
+	public boolean prefetch( final int timepointId, final int level, final long index )
+	{
+		return prefetch( timepointId, level, index, false );
+	}
+
+	/**
+	 * Load a cell into the cache on the calling thread unless it is valid
+	 * already.
+	 *
+	 * @param timepointId
+	 * @param level
+	 * @param index
+	 * @return true if the cell was loaded, false if it was valid already or
+	 *   does not exist
+	 */
+	public boolean load( final int timepointId, final int level, final long index )
+	{
+		return !prefetch( timepointId, level, index, true );
+	}
+
+	private boolean prefetch( final int timepointId, final int level, final long index, final boolean blocking )
+	{
+		final long[] min = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+		if ( !cellMinAndDimensions( level, index, min, cellDims ) )
+			return true;
+
+		final CellCache< ? > c = getPrefetchCellCache( timepointId, level, blocking );
+		final VolatileCell< ? > cell = c.get( index );
+		if ( cell != null && ( ( VolatileAccess )cell.getData() ).isValid() )
+			return true;
+
+		if ( blocking )
+			loadBlocking( c, index, cellDims, min );
+		else
+			c.load( index, cellDims, min );
+		return false;
+	}
+
+	/**
+	 * Load a cell with a blocking {@link CellCache} without the
+	 * cancellation token of the current thread, BigDataViewer's cache
+	 * would retry a cancelled load forever.
+	 */
+	static private VolatileCell< ? > loadBlocking( final CellCache< ? > c, final long index, final int[] cellDims, final long[] min )
+	{
+		final CellFileCancellation.Token token = CellFileCancellation.get();
+		CellFileCancellation.set( null );
+		try
+		{
+			return c.load( index, cellDims, min );
+		}
+		finally
+		{
+			CellFileCancellation.set( token );
+		}
+	}
+
+	private synchronized CellCache< ? > getPrefetchCellCache( final int timepointId, final int level, final boolean blocking )
+	{
+		final CellCache< ? >[] cellCaches = blocking ? blockingPrefetchCellCaches : prefetchCellCaches;
+		if ( cellCaches[ level ] == null )
+		{
+			final CacheHints cacheHints = new CacheHints( blocking ? LoadingStrategy.BLOCKING : LoadingStrategy.VOLATILE, dimensions.length - 1, false );
+			cellCaches[ level ] = cache.createCellCache( timepointId, setupId, level, cacheHints, getArrayLoader() );
+		}
+		return cellCaches[ level ];
+	}
+
+	/**
+	 * Grid position of a cell index in x, y, z order as in
+	 * {@link VolatileImgCells}.
+	 *
+	 * @return false if there is no cell with the given index
+	 */
+	private boolean cellMinAndDimensions( final int level, final long index, final long[] min, final int[] cellDims )
+	{
+		if ( level < 0 || level >= dimensions.length || index < 0 )
+			return false;
+
+		long i = index;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long n = ( dimensions[ level ][ d ] + cellDimensions[ level ][ d ] - 1 ) / cellDimensions[ level ][ d ];
+			final long g = d < 2 ? i % n : i;
+			if ( g >= n )
+				return false;
+			i /= n;
+			min[ d ] = g * cellDimensions[ level ][ d ];
+			cellDims[ d ] = ( int )Math.min( cellDimensions[ level ][ d ], dimensions[ level ][ d ] - min[ d ] );
+		}
+		return true;
 	}
 
 	@Override
@@ -120,7 +427,10 @@ abstract public class AbstractCellFileImageLoader< T extends NativeType< T >, V
 
 		final int priority = dimensions.length - 1 - level;
 		final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
-		final CellCache< A > c = cache.new VolatileCellCache< >( timepointId, setupId, level, cacheHints, loader );
+		CellCache< A > c = cache.createCellCache( timepointId, setupId, level, cacheHints, loader );
+		final CellFileHotCells h = hotCells;
+		if ( h != null )
+			c = h.wrap( c, setupId, level );
 		final VolatileImgCells< A > cells = new VolatileImgCells<>( c, new Fraction(), levelDimensions, cellDimensions[ level ] );
 		final CachedCellImg< N, A > img = new CachedCellImg<>( cells );
 		return img;
@@ -0,0 +1,198 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+/**
+ * Limits the number of concurrent cell loads and adapts the limit to the
+ * measured load latency, similar to TCP Vegas congestion control.
+ *
+ * The ratio of the lowest smoothed latency seen recently (the baseline)
+ * and the current smoothed latency estimates how many of the loads in
+ * flight are queued in the storage rather than being served.  While this
+ * queue is short and loads are waiting for a permit, the limit grows by
+ * one, when it is too long, the limit shrinks by a factor.  The baseline
+ * slowly drifts towards the smoothed latency such that it recovers from
+ * changed storage conditions.
+ *
+ * Fetcher threads should take a permit before they dequeue a request, see
+ * {@link TwoQueueCellFileCache#setConcurrencyLimit(AdaptiveConcurrencyLimit)},
+ * such that requests that wait for a permit can still be reordered or
+ * dropped.  A load on a thread that holds a permit already reports its
+ * latency with {@link #sample(long)} instead of taking another one.
+ */
+public class AdaptiveConcurrencyLimit implements AdaptiveConcurrencyLimitMBean
+{
+	final static private double smoothing = 0.1;
+
+	final static private double baselineDrift = 0.0005;
+
+	final static private double minQueue = 2;
+
+	final static private double maxQueue = 6;
+
+	final static private double backoff = 0.9;
+
+	final private int minLimit;
+
+	final private int maxLimit;
+
+	private int limit;
+
+	private int inFlight = 0;
+
+	private int waiting = 0;
+
+	private double smoothedLatency = Double.NaN;
+
+	private double baselineLatency = Double.NaN;
+
+	/* set while the current thread holds a permit */
+	final private ThreadLocal< Boolean > held = new ThreadLocal<>();
+
+	/**
+	 * @param minLimit
+	 * @param maxLimit
+	 * @param initialLimit
+	 */
+	public AdaptiveConcurrencyLimit( final int minLimit, final int maxLimit, final int initialLimit )
+	{
+		this.minLimit = Math.max( 1, minLimit );
+		this.maxLimit = Math.max( this.minLimit, maxLimit );
+		limit = Math.max( this.minLimit, Math.min( this.maxLimit, initialLimit ) );
+	}
+
+	/**
+	 * Block until fewer than {@link #getLimit()} loads are in flight.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		++waiting;
+		try
+		{
+			while ( inFlight >= limit )
+				wait();
+		}
+		finally
+		{
+			--waiting;
+		}
+		++inFlight;
+		held.set( Boolean.TRUE );
+	}
+
+	/**
+	 * @return whether the current thread took a permit with
+	 *   {@link #acquire()} and did not release it yet
+	 */
+	public boolean isHeldByCurrentThread()
+	{
+		return held.get() != null;
+	}
+
+	/**
+	 * Finish a load that was started after {@link #acquire()}.
+	 *
+	 * @param latencyNanos duration of the load
+	 */
+	public synchronized void release( final long latencyNanos )
+	{
+		--inFlight;
+		held.remove();
+		adapt( latencyNanos, inFlight + 1 );
+		notifyAll();
+	}
+
+	/**
+	 * Release a permit without a meaningful latency, e.g. after a load
+	 * failed or was skipped, or after its latency was reported by
+	 * {@link #sample(long)}.
+	 */
+	public synchronized void release()
+	{
+		--inFlight;
+		held.remove();
+		notifyAll();
+	}
+
+	/**
+	 * Adapt the limit to the latency of a load made under a permit that
+	 * the current thread keeps, e.g. that a fetcher took before it
+	 * dequeued the request.
+	 *
+	 * @param latencyNanos duration of the load
+	 */
+	public synchronized void sample( final long latencyNanos )
+	{
+		adapt( latencyNanos, inFlight );
+		notifyAll();
+	}
+
+	/**
+	 * @param busy number of permits in use including the one of the load
+	 *   that took <code>latencyNanos</code>
+	 */
+	private void adapt( final long latencyNanos, final int busy )
+	{
+		final double latency = latencyNanos;
+		if ( Double.isNaN( smoothedLatency ) )
+		{
+			smoothedLatency = latency;
+			baselineLatency = latency;
+		}
+		else
+		{
+			smoothedLatency += smoothing * ( latency - smoothedLatency );
+			baselineLatency = Math.min( smoothedLatency, baselineLatency + baselineDrift * ( smoothedLatency - baselineLatency ) );
+		}
+
+		final double queue = limit * ( 1.0 - baselineLatency / smoothedLatency );
+		if ( queue > maxQueue )
+			limit = Math.max( minLimit, Math.min( limit - 1, ( int )( limit * backoff ) ) );
+		else if ( queue < minQueue && waiting > 0 && busy >= limit )
+			limit = Math.min( maxLimit, limit + 1 );
+	}
+
+	@Override
+	public synchronized int getLimit()
+	{
+		return limit;
+	}
+
+	@Override
+	public synchronized int getInFlight()
+	{
+		return inFlight;
+	}
+
+	@Override
+	public synchronized int getWaiting()
+	{
+		return waiting;
+	}
+
+	/**
+	 * @return smoothed load latency in nanoseconds or NaN if nothing has
+	 *   been loaded yet
+	 */
+	@Override
+	public synchronized double getSmoothedLatency()
+	{
+		return smoothedLatency;
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+/**
+ * Orders the cell requests within one priority of a
+ * {@link TwoQueueCellFileCache}.
+ */
+public interface CellFetchPrioritizer
+{
+	/**
+	 * @param setup
+	 * @param level
+	 * @param cellMin pixel coordinates of the top left front corner of the cell
+	 * @param cellDims dimensions of the cell
+	 * @return distance of the cell from where the user looks, smaller is
+	 *   fetched first, {@link Double#POSITIVE_INFINITY} for cells that are
+	 *   not visible and should be fetched after all others
+	 */
+	public double distance( final int setup, final int level, final long[] cellMin, final int[] cellDims );
+}
@@ -0,0 +1,59 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import bdv.cache.CacheControl;
+import bdv.cache.CacheHints;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+/**
+ * A cache for the cells of all scale levels of all channels that
+ * {@link AbstractCellFileImageLoader}s register into.
+ */
+public interface CellFileCache extends CacheControl
+{
+	/**
+	 * Create a {@link CellCache} for the cells of one scale level of one
+	 * setup.
+	 *
+	 * @param timepoint
+	 * @param setup
+	 * @param level
+	 * @param cacheHints
+	 * @param loader
+	 * @return
+	 */
+	public < A extends VolatileAccess > CellCache< A > createCellCache(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final CacheHints cacheHints,
+			final CacheArrayLoader< A > loader );
+
+	/**
+	 * Remove all cells from the cache.
+	 */
+	public void clearCache();
+
+	/**
+	 * Stop the threads that load cells, e.g. when the viewer is closed.
+	 * The cache must not be used afterwards.
+	 */
+	public void close();
+}
@@ -0,0 +1,98 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Cooperative cancellation of the cell load running on the current
+ * thread.  A cache that decides that a cell is no longer wanted while it
+ * is being loaded {@link Token#cancel() cancels} the token it
+ * {@link #set(Token) set} for the load, and {@link CellFileReader
+ * CellFileReaders} {@link #check() check} for cancellation between strips
+ * or slices such that the fetcher thread is free for the next cell.
+ *
+ * Threads are not interrupted because interrupting a thread that is
+ * blocked in a {@link java.nio.channels.FileChannel} closes the channel,
+ * which may be shared by several loads.
+ *
+ * Only loads by the fetcher threads of {@link TwoQueueCellFileCache} are
+ * cancelled while they run, BigDataViewer's own cache never cancels a
+ * load.  Loads with the BLOCKING strategy are never cancelled because
+ * BigDataViewer's cache retries a blocking load that throws
+ * InterruptedException.  Code that loads cells blocking on a thread with a
+ * token, e.g. {@link AbstractCellFileImageLoader#createCachedCellReader()},
+ * unsets the token while the cache loads and checks it between cells.
+ */
+public class CellFileCancellation
+{
+	public static class Token
+	{
+		private volatile boolean cancelled = false;
+
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+
+	final static private ThreadLocal< Token > token = new ThreadLocal<>();
+
+	/**
+	 * Set the token of the load that is about to run on the current
+	 * thread.
+	 *
+	 * @param t or null if the load cannot be cancelled
+	 */
+	public static void set( final Token t )
+	{
+		token.set( t );
+	}
+
+	/**
+	 * @return the token of the load running on the current thread or null
+	 */
+	public static Token get()
+	{
+		return token.get();
+	}
+
+	/**
+	 * @return true if the load running on the current thread was cancelled
+	 */
+	public static boolean isCancelled()
+	{
+		final Token t = token.get();
+		return t != null && t.isCancelled();
+	}
+
+	/**
+	 * Abort the load running on the current thread if it was cancelled.
+	 *
+	 * @throws InterruptedIOException
+	 */
+	public static void check() throws InterruptedIOException
+	{
+		if ( isCancelled() )
+			throw new InterruptedIOException( "cell load cancelled" );
+	}
+}
@@ -0,0 +1,449 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent second level cache for decoded cells in a local directory,
+ * typically on an SSD, in front of slow (network) storage.
+ *
+ * {@link #wrap(CellFileReader, String)} decorates the {@link CellFileReader}
+ * of a source such that cells are read from the local directory if present
+ * and otherwise read from the source and written to the local directory.
+ * Cells are stored raw or LZ4 compressed with a small header in
+ * <code>directory/hash(sourceKey)/level/x.y.z.cell</code>, cells that the
+ * source reported missing are remembered by a header without data that
+ * expires after a while, such that cells written later are found.  The
+ * header records the modification time and size of the source file of the
+ * cell (the shard file for sharded sources), a cell whose source file
+ * changed since, e.g. by a re-export or a pyramid rebuilt in place, is
+ * read from the source again.  Failed reads are not remembered.  All sources wrapped by one instance share its
+ * size cap and are evicted least recently used first.  Last access is
+ * persisted as the modification time of the files, such that the eviction
+ * order survives restarts.  The files of earlier sessions are indexed in
+ * the background.
+ */
+public class CellFileDiskCache implements CellFileDiskCacheMBean
+{
+	final static private int MAGIC = 0x43464432; // "CFD2"
+
+	/* magic, flags, length, compressed length or seconds, source modification time, source size */
+	final static private int HEADER_LENGTH = 32;
+
+	final static private int FLAG_LZ4 = 1;
+
+	final static private int MISSING = -1;
+
+	final static public long DEFAULT_MISSING_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis( 1 );
+
+	final private File directory;
+
+	final private long maxBytes;
+
+	final private boolean compress;
+
+	final private long missingExpiryMillis;
+
+	/* all cache files in access order, with their sizes */
+	final private LinkedHashMap< Path, Long > files = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long bytes = 0;
+
+	/* files evicted while the files of earlier sessions are indexed, null after */
+	private HashSet< Path > evictedWhileIndexing = new HashSet<>();
+
+	final private Thread indexer;
+
+	/**
+	 * Open a cache directory and index the cells that are already there
+	 * in the background.
+	 *
+	 * @param directory
+	 * @param maxBytes size cap for all files in the cache
+	 * @param compress LZ4 compress new cells
+	 * @param missingExpiryMillis how long a cell that the source reported
+	 *   missing is not looked up again
+	 * @throws IOException
+	 */
+	public CellFileDiskCache( final File directory, final long maxBytes, final boolean compress, final long missingExpiryMillis ) throws IOException
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.compress = compress;
+		this.missingExpiryMillis = missingExpiryMillis;
+
+		Files.createDirectories( directory.toPath() );
+
+		indexer = new Thread( this::index, "disk-cache-index" );
+		indexer.setDaemon( true );
+		indexer.start();
+	}
+
+	/**
+	 * Open a cache directory and index the cells that are already there
+	 * in the background.  Missing cells expire after
+	 * {@link #DEFAULT_MISSING_EXPIRY_MILLIS}.
+	 *
+	 * @param directory
+	 * @param maxBytes size cap for all files in the cache
+	 * @param compress LZ4 compress new cells
+	 * @throws IOException
+	 */
+	public CellFileDiskCache( final File directory, final long maxBytes, final boolean compress ) throws IOException
+	{
+		this( directory, maxBytes, compress, DEFAULT_MISSING_EXPIRY_MILLIS );
+	}
+
+	/**
+	 * Add the files of earlier sessions to the index, as less recently
+	 * used than all files used in this session.
+	 */
+	private void index()
+	{
+		final ArrayList< Path > existing = new ArrayList<>();
+		final HashMap< Path, Long > lastModified = new HashMap<>();
+		final HashMap< Path, Long > sizes = new HashMap<>();
+		try
+		{
+			/* files may be evicted while the directory is walked */
+			Files.walkFileTree( directory.toPath(), new SimpleFileVisitor< Path >()
+			{
+				@Override
+				public FileVisitResult visitFile( final Path path, final BasicFileAttributes attributes )
+				{
+					if ( path.toString().endsWith( ".cell" ) )
+					{
+						existing.add( path );
+						lastModified.put( path, attributes.lastModifiedTime().toMillis() );
+						sizes.put( path, attributes.size() );
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed( final Path path, final IOException e )
+				{
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory( final Path path, final IOException e )
+				{
+					return FileVisitResult.CONTINUE;
+				}
+			} );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not index disk cache " + directory + ": " + e.getMessage() );
+		}
+		existing.sort( Comparator.comparing( lastModified::get ) );
+
+		synchronized ( files )
+		{
+			final LinkedHashMap< Path, Long > session = new LinkedHashMap<>( files );
+			files.clear();
+			bytes = 0;
+			for ( final Path path : existing )
+			{
+				if ( !session.containsKey( path ) && !evictedWhileIndexing.contains( path ) )
+				{
+					files.put( path, sizes.get( path ) );
+					bytes += sizes.get( path );
+				}
+			}
+			for ( final Map.Entry< Path, Long > entry : session.entrySet() )
+			{
+				files.put( entry.getKey(), entry.getValue() );
+				bytes += entry.getValue();
+			}
+			evictedWhileIndexing = null;
+			evict();
+		}
+	}
+
+	/**
+	 * Wait until the files of earlier sessions are indexed, before that,
+	 * only files used in this session count towards the size cap.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitIndex() throws InterruptedException
+	{
+		indexer.join();
+	}
+
+	/**
+	 * Decorate <code>source</code> with this cache.
+	 *
+	 * @param source
+	 * @param sourceKey identifies the source across sessions, e.g. its
+	 *   urlFormat
+	 * @return
+	 */
+	public CellFileReader wrap( final CellFileReader source, final String sourceKey )
+	{
+		return new CachingReader( source, new File( directory, hash( sourceKey ) ) );
+	}
+
+	@Override
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	@Override
+	public long getCurrentBytes()
+	{
+		synchronized ( files )
+		{
+			return bytes;
+		}
+	}
+
+	@Override
+	public int getNumFiles()
+	{
+		synchronized ( files )
+		{
+			return files.size();
+		}
+	}
+
+	private class CachingReader implements CellFileReader
+	{
+		final private CellFileReader source;
+
+		final private File sourceDirectory;
+
+		CachingReader( final CellFileReader source, final File sourceDirectory )
+		{
+			this.source = source;
+			this.sourceDirectory = sourceDirectory;
+		}
+
+		@Override
+		public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+		{
+			return source.getCellPath( level, gridPosition, min );
+		}
+
+		@Override
+		public Object read(
+				final int level,
+				final long[] gridPosition,
+				final long[] min,
+				final int[] dimensions,
+				final Object storage ) throws IOException
+		{
+			final Path path = new File( sourceDirectory, level + "/" + gridPosition[ 0 ] + "." + gridPosition[ 1 ] + "." + gridPosition[ 2 ] + ".cell" ).toPath();
+			final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+			final int numBytes = numEntities * CellFileRawReader.bytesPerElement( storage );
+			final File sourceFile = CellFileShardReader.getFile( source.getCellPath( level, gridPosition, min ) );
+			final long sourceLastModified = sourceFile.lastModified();
+			final long sourceLength = sourceFile.length();
+
+			final byte[] blob = readBlob( path );
+			if ( blob != null )
+			{
+				CellFileLoaderStats.opened();
+				CellFileLoaderStats.bytesRead( blob.length );
+				final ByteBuffer header = ByteBuffer.wrap( blob ).order( ByteOrder.BIG_ENDIAN );
+				final int flags = header.getInt( 4 );
+				final int length = header.getInt( 8 );
+				final boolean valid =
+						header.getInt( 0 ) == MAGIC &&
+						header.getLong( 16 ) == sourceLastModified &&
+						header.getLong( 24 ) == sourceLength;
+				if ( valid && length == MISSING && !isExpired( header.getInt( 12 ) ) )
+				{
+					touch( path );
+					return null;
+				}
+				if ( valid && length == numBytes )
+				{
+					try
+					{
+						final ByteBuffer data;
+						if ( ( flags & FLAG_LZ4 ) != 0 )
+						{
+							final byte[] decompressed = new byte[ numBytes ];
+							Lz4Codec.decompress( blob, HEADER_LENGTH, header.getInt( 12 ), decompressed, 0, numBytes );
+							data = ByteBuffer.wrap( decompressed );
+						}
+						else
+							data = ByteBuffer.wrap( blob, HEADER_LENGTH, numBytes ).slice();
+						CellFileLoaderStats.decoded();
+						CellFileRawReader.get( data.order( ByteOrder.BIG_ENDIAN ), storage, 0, numEntities );
+						touch( path );
+						return storage;
+					}
+					catch ( final IOException | IndexOutOfBoundsException e ) {}
+				}
+				/* stale or corrupt, read from the source again */
+			}
+
+			CellFileCancellation.check();
+			/* remember what the source returned, a failed read throws and is not remembered */
+			final Object data = source.read( level, gridPosition, min, dimensions, storage );
+			writeBlob( path, data, numEntities, numBytes, sourceLastModified, sourceLength );
+			return data;
+		}
+	}
+
+	/**
+	 * @param seconds when the missing cell was remembered, unsigned seconds
+	 *   since the epoch
+	 */
+	private boolean isExpired( final int seconds )
+	{
+		return System.currentTimeMillis() - TimeUnit.SECONDS.toMillis( Integer.toUnsignedLong( seconds ) ) >= missingExpiryMillis;
+	}
+
+	static private byte[] readBlob( final Path path )
+	{
+		try
+		{
+			final byte[] blob = Files.readAllBytes( path );
+			return blob.length >= HEADER_LENGTH ? blob : null;
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+	}
+
+	private void writeBlob(
+			final Path path,
+			final Object data,
+			final int numEntities,
+			final int numBytes,
+			final long sourceLastModified,
+			final long sourceLength )
+	{
+		try
+		{
+			final byte[] blob;
+			if ( data == null )
+			{
+				blob = new byte[ HEADER_LENGTH ];
+				final int seconds = ( int )TimeUnit.MILLISECONDS.toSeconds( System.currentTimeMillis() );
+				ByteBuffer.wrap( blob ).putInt( MAGIC ).putInt( 0 ).putInt( MISSING ).putInt( seconds ).putLong( sourceLastModified ).putLong( sourceLength );
+			}
+			else
+			{
+				final ByteBuffer raw = ByteBuffer.allocate( numBytes ).order( ByteOrder.BIG_ENDIAN );
+				CellFileRawReader.put( data, 0, numEntities, raw );
+				if ( compress )
+				{
+					final byte[] compressed = new byte[ HEADER_LENGTH + Lz4Codec.maxCompressedLength( numBytes ) ];
+					final int length = Lz4Codec.compress( raw.array(), 0, numBytes, compressed, HEADER_LENGTH );
+					ByteBuffer.wrap( compressed ).putInt( MAGIC ).putInt( FLAG_LZ4 ).putInt( numBytes ).putInt( length ).putLong( sourceLastModified ).putLong( sourceLength );
+					blob = Arrays.copyOf( compressed, HEADER_LENGTH + length );
+				}
+				else
+				{
+					blob = new byte[ HEADER_LENGTH + numBytes ];
+					ByteBuffer.wrap( blob ).putInt( MAGIC ).putInt( 0 ).putInt( numBytes ).putInt( numBytes ).putLong( sourceLastModified ).putLong( sourceLength ).put( raw.array() );
+				}
+			}
+
+			Files.createDirectories( path.getParent() );
+			final Path tmp = Files.createTempFile( path.getParent(), ".", ".tmp" );
+			Files.write( tmp, blob );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+			synchronized ( files )
+			{
+				final Long previous = files.put( path, ( long )blob.length );
+				bytes += blob.length - ( previous == null ? 0 : previous );
+				evict();
+			}
+		}
+		catch ( final IOException e )
+		{
+			/* the cache is an optimization, failing to write it is not an error */
+		}
+	}
+
+	private void touch( final Path path )
+	{
+		synchronized ( files )
+		{
+			if ( files.get( path ) == null )
+			{
+				final long size = path.toFile().length();
+				files.put( path, size );
+				bytes += size;
+				evict();
+			}
+		}
+		path.toFile().setLastModified( System.currentTimeMillis() );
+	}
+
+	/* callers synchronize on files */
+	private void evict()
+	{
+		for ( final Iterator< Map.Entry< Path, Long > > eldest = files.entrySet().iterator(); bytes > maxBytes && eldest.hasNext(); )
+		{
+			final Map.Entry< Path, Long > entry = eldest.next();
+			eldest.remove();
+			bytes -= entry.getValue();
+			entry.getKey().toFile().delete();
+			if ( evictedWhileIndexing != null )
+				evictedWhileIndexing.add( entry.getKey() );
+		}
+	}
+
+	static private String hash( final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( int i = 0; i < 8; ++i )
+				hex.append( String.format( "%02x", digest[ i ] ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			return Integer.toHexString( key.hashCode() );
+		}
+	}
+}
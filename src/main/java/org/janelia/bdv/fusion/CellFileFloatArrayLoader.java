@@ -28,8 +28,6 @@
  */
 package org.janelia.bdv.fusion;
 
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
 import net.imglib2.type.numeric.real.FloatType;
 
@@ -37,7 +35,12 @@ public class CellFileFloatArrayLoader extends AbstractCellFileArrayLoader< Float
 {	
 	public CellFileFloatArrayLoader( final String cellFormat, final int[][] cellSizes ) 
 	{
-		super( cellFormat, cellSizes, new ArrayFactory< FloatType, VolatileFloatArray >() 
+		this( new CellFileTiffReader( cellFormat ), cellSizes );
+	}
+
+	public CellFileFloatArrayLoader( final CellFileReader reader, final int[][] cellSizes ) 
+	{
+		super( reader, cellSizes, new ArrayFactory< FloatType, VolatileFloatArray >() 
 			{
 				@Override
 				public VolatileFloatArray createInvalidVolatileArray( final int numEntities )
@@ -46,9 +49,9 @@ public class CellFileFloatArrayLoader extends AbstractCellFileArrayLoader< Float
 				}
 
 				@Override
-				public RandomAccessibleInterval< FloatType > wrapArray( final VolatileFloatArray data, final long[] dimensions )
+				public VolatileFloatArray createValidVolatileArray( final Object data )
 				{
-					return ArrayImgs.floats( data.getCurrentStorageArray(), dimensions );
+					return new VolatileFloatArray( ( float[] )data, true );
 				}
 			} 
 		);
@@ -46,15 +46,53 @@ public class CellFileFloatImageLoader extends AbstractCellFileImageLoader< Float
 			final int[][] cellDimensions,
 			final int[][] downsampleFactors )
 	{
-		super( dimensions, cellDimensions, downsampleFactors, new FloatType(), new VolatileFloatType() );
+		this( new CellFileTiffReader( cellFormat ), dimensions, cellDimensions, downsampleFactors );
+	}
+
+	public CellFileFloatImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors )
+	{
+		this( reader, dimensions, cellDimensions, downsampleFactors, 10 );
+	}
+
+	public CellFileFloatImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int numFetcherThreads )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, numFetcherThreads, new FloatType(), new VolatileFloatType() );
+
+		loader = new CellFileFloatArrayLoader( reader, cellDimensions );
+	}
+
+	public CellFileFloatImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int setupId,
+			final CellFileCache cache )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, setupId, cache, new FloatType(), new VolatileFloatType() );
+
+		loader = new CellFileFloatArrayLoader( reader, cellDimensions );
+	}
 
-		loader = new CellFileFloatArrayLoader( cellFormat, cellDimensions );
+	@Override
+	public CellFileFloatArrayLoader getArrayLoader()
+	{
+		return loader;
 	}
 
 	@Override
 	public RandomAccessibleInterval< FloatType > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< FloatType, VolatileFloatArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.BLOCKING );
+		final CachedCellImg< FloatType, VolatileFloatArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.BLOCKING );
 		final FloatType linkedType = new FloatType( img );
 		img.setLinkedType( linkedType );
 		return img;
@@ -63,7 +101,7 @@ public class CellFileFloatImageLoader extends AbstractCellFileImageLoader< Float
 	@Override
 	public RandomAccessibleInterval< VolatileFloatType > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< VolatileFloatType, VolatileFloatArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.VOLATILE );
+		final CachedCellImg< VolatileFloatType, VolatileFloatArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.VOLATILE );
 		final VolatileFloatType linkedType = new VolatileFloatType( img );
 		img.setLinkedType( linkedType );
 		return img;
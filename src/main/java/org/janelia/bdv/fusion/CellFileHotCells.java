@@ -0,0 +1,419 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import bdv.cache.CacheHints;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+/**
+ * The set of cells (setup, level, cell index) that the viewer touched in a
+ * session.  It is saved when the viewer is closed and the cells of the
+ * last session are prefetched at low priority when the dataset is opened
+ * again, such that the initial view and the usual navigation paths are
+ * resident before they are needed.
+ *
+ * Cells are recorded by wrapping the {@link CellCache CellCaches} of the
+ * viewer's images, cells that are only prefetched are therefore not
+ * recorded and drop out of the list if they are not looked at.  Every
+ * request counts, the counts are halved now and then such that cells used
+ * long ago cool down.  When more cells than fit are recorded, the coldest
+ * are forgotten, and the hottest are saved.
+ */
+public class CellFileHotCells
+{
+	final static private int MAGIC = 0x43464843; // "CFHC"
+
+	final static private int batchSize = 256;
+
+	final static private int maxRoundsPerBatch = 50;
+
+	final static private long roundMillis = 100;
+
+	final static private int numStripes = 16;
+
+	final private int maxCells;
+
+	/* counts by key, striped such that render threads rarely contend */
+	final private Counts[] stripes = new Counts[ numStripes ];
+
+	private volatile Thread prefetcher = null;
+
+	/**
+	 * @param maxCells maximum number of cells saved, about twice as many
+	 *   are recorded
+	 */
+	public CellFileHotCells( final int maxCells )
+	{
+		this.maxCells = maxCells;
+		/* record twice as many cells as are saved such that new cells can become hot */
+		final int maxStripeSize = Math.max( 16, 2 * maxCells / numStripes );
+		for ( int i = 0; i < numStripes; ++i )
+			stripes[ i ] = new Counts( maxStripeSize );
+	}
+
+	public CellFileHotCells()
+	{
+		this( 1 << 16 );
+	}
+
+	/**
+	 * Open addressing hash table of keys and their counts.
+	 */
+	final static private class Counts
+	{
+		final static private long EMPTY = -1;
+
+		/* requests after which all counts are halved */
+		final static private int decayInterval = 10;
+
+		final private int maxSize;
+
+		private long[] keys;
+
+		private int[] counts;
+
+		private int size = 0;
+
+		private long requests = 0;
+
+		Counts( final int maxSize )
+		{
+			this.maxSize = maxSize;
+			allocate();
+		}
+
+		private void allocate()
+		{
+			keys = new long[ Integer.highestOneBit( maxSize ) << 2 ];
+			counts = new int[ keys.length ];
+			Arrays.fill( keys, EMPTY );
+			size = 0;
+		}
+
+		private int slot( final long key )
+		{
+			final int mask = keys.length - 1;
+			int i = hash( key ) & mask;
+			while ( keys[ i ] != EMPTY && keys[ i ] != key )
+				i = ( i + 1 ) & mask;
+			return i;
+		}
+
+		synchronized void add( final long key )
+		{
+			final int i = slot( key );
+			if ( keys[ i ] == key )
+			{
+				if ( counts[ i ] < Integer.MAX_VALUE )
+					++counts[ i ];
+			}
+			else
+			{
+				keys[ i ] = key;
+				counts[ i ] = 1;
+				++size;
+			}
+
+			if ( ++requests >= ( long )decayInterval * maxSize )
+			{
+				requests = 0;
+				rebuild( 0, true );
+			}
+			/* forget the coldest cells until a quarter is free */
+			if ( size > maxSize )
+				for ( int threshold = 1; size > maxSize * 3 / 4; ++threshold )
+					rebuild( threshold, false );
+		}
+
+		/**
+		 * Drop all cells with a count of at most <code>threshold</code>,
+		 * and halve the remaining counts if <code>halve</code>.
+		 */
+		private void rebuild( final int threshold, final boolean halve )
+		{
+			final long[] oldKeys = keys;
+			final int[] oldCounts = counts;
+			allocate();
+			for ( int j = 0; j < oldKeys.length; ++j )
+			{
+				final int count = halve ? oldCounts[ j ] >> 1 : oldCounts[ j ];
+				if ( oldKeys[ j ] != EMPTY && count > threshold )
+				{
+					final int i = slot( oldKeys[ j ] );
+					keys[ i ] = oldKeys[ j ];
+					counts[ i ] = count;
+					++size;
+				}
+			}
+		}
+
+		synchronized int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Append keys and counts to <code>keysAndCounts</code>.
+		 */
+		synchronized void get( final ArrayList< long[] > keysAndCounts )
+		{
+			for ( int i = 0; i < keys.length; ++i )
+				if ( keys[ i ] != EMPTY )
+					keysAndCounts.add( new long[] { keys[ i ], counts[ i ] } );
+		}
+	}
+
+	static private int hash( final long key )
+	{
+		final long h = key * 0x9e3779b97f4a7c15L;
+		return ( int )( h ^ ( h >>> 32 ) );
+	}
+
+	static private long key( final int setup, final int level, final long index )
+	{
+		return ( ( long )setup << 48 ) | ( ( long )level << 40 ) | index;
+	}
+
+	static private int setup( final long key )
+	{
+		return ( int )( key >>> 48 );
+	}
+
+	static private int level( final long key )
+	{
+		return ( int )( key >>> 40 ) & 0xff;
+	}
+
+	static private long index( final long key )
+	{
+		return key & 0xffffffffffL;
+	}
+
+	public void record( final int setup, final int level, final long index )
+	{
+		if ( setup >>> 16 == 0 && level >>> 8 == 0 && index >>> 40 == 0 )
+		{
+			final long key = key( setup, level, index );
+			stripes[ ( hash( key ) >>> 28 ) & ( numStripes - 1 ) ].add( key );
+		}
+	}
+
+	/**
+	 * @return number of cells recorded, up to twice the number of cells
+	 *   that are saved
+	 */
+	public int size()
+	{
+		int size = 0;
+		for ( final Counts stripe : stripes )
+			size += stripe.size();
+		return size;
+	}
+
+	/**
+	 * Decorate a {@link CellCache} such that all cells requested from it
+	 * are recorded.
+	 *
+	 * @param cellCache
+	 * @param setup
+	 * @param level
+	 * @return
+	 */
+	public < A extends VolatileAccess > CellCache< A > wrap( final CellCache< A > cellCache, final int setup, final int level )
+	{
+		return new CellCache< A >()
+		{
+			@Override
+			public VolatileCell< A > get( final long index )
+			{
+				record( setup, level, index );
+				return cellCache.get( index );
+			}
+
+			@Override
+			public VolatileCell< A > load( final long index, final int[] cellDims, final long[] cellMin )
+			{
+				record( setup, level, index );
+				return cellCache.load( index, cellDims, cellMin );
+			}
+
+			@Override
+			public void setCacheHints( final CacheHints cacheHints )
+			{
+				cellCache.setCacheHints( cacheHints );
+			}
+		};
+	}
+
+	/**
+	 * @return the hottest recorded cells ordered by descending level, such
+	 *   that the few coarse cells that make up the initial view come first
+	 */
+	private long[] sortedKeys()
+	{
+		final ArrayList< long[] > keysAndCounts = new ArrayList<>();
+		for ( final Counts stripe : stripes )
+			stripe.get( keysAndCounts );
+		keysAndCounts.sort( ( a, b ) -> Long.compare( b[ 1 ], a[ 1 ] ) );
+
+		final List< long[] > hottest = new ArrayList<>( keysAndCounts.subList( 0, Math.min( keysAndCounts.size(), maxCells ) ) );
+		hottest.sort( ( a, b ) -> {
+			final int l = Integer.compare( level( b[ 0 ] ), level( a[ 0 ] ) );
+			return l == 0 ? Long.compare( a[ 0 ], b[ 0 ] ) : l;
+		} );
+		final long[] sorted = new long[ hottest.size() ];
+		for ( int i = 0; i < sorted.length; ++i )
+			sorted[ i ] = hottest.get( i )[ 0 ];
+		return sorted;
+	}
+
+	/**
+	 * Save as a gzipped binary sidecar file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save( final File file ) throws IOException
+	{
+		final long[] keys = sortedKeys();
+		try ( final DataOutputStream out = new DataOutputStream( new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( keys.length );
+			for ( final long key : keys )
+				out.writeLong( key );
+		}
+	}
+
+	/**
+	 * Load from a sidecar file written by {@link #save(File)}.
+	 *
+	 * @param file
+	 * @return the cells in the order in which they should be prefetched
+	 * @throws IOException
+	 */
+	public static long[] load( final File file ) throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new GZIPInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "not a hot cell list: " + file );
+
+			final long[] keys = new long[ in.readInt() ];
+			for ( int i = 0; i < keys.length; ++i )
+				keys[ i ] = in.readLong();
+			return keys;
+		}
+	}
+
+	/**
+	 * Sidecar file next to <code>path</code> (the JSON export description or
+	 * N5 group) if its directory is writable, otherwise in ~/.bdv.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static File sidecarFile( final String path )
+	{
+		final File file = new File( path ).getAbsoluteFile();
+		final File parent = file.getParentFile();
+		if ( parent != null && parent.canWrite() )
+			return new File( file.getPath() + ".hotcells" );
+
+		final File dir = new File( System.getProperty( "user.home" ), ".bdv/hotcells" );
+		dir.mkdirs();
+		return new File( dir, Integer.toHexString( file.getPath().hashCode() ) + ".hotcells" );
+	}
+
+	/**
+	 * Prefetch the cells of a list loaded by {@link #load(File)} in a
+	 * daemon thread.  Cells are enqueued in batches at the lowest priority
+	 * through the cache of the loaders, a batch is re-enqueued until its
+	 * cells are valid or a few seconds have passed because the viewer drops
+	 * all queued requests with every frame.  Prefetching stops when the
+	 * cells would use more than <code>maxBytes</code>.
+	 *
+	 * @param keys
+	 * @param imgLoaders indexed by setup id
+	 * @param maxBytes
+	 */
+	public void prefetch( final long[] keys, final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders, final long maxBytes )
+	{
+		stop();
+
+		final Thread thread = new Thread( () -> {
+			try
+			{
+				long bytes = 0;
+				for ( int i = 0; i < keys.length && bytes < maxBytes; i += batchSize )
+				{
+					final ArrayList< Long > batch = new ArrayList<>();
+					for ( int j = i; j < keys.length && j < i + batchSize && bytes < maxBytes; ++j )
+					{
+						final int setup = setup( keys[ j ] );
+						if ( setup >= imgLoaders.size() )
+							continue;
+						final long cellBytes = imgLoaders.get( setup ).getCellBytes( level( keys[ j ] ), index( keys[ j ] ) );
+						if ( cellBytes > 0 )
+						{
+							bytes += cellBytes;
+							batch.add( keys[ j ] );
+						}
+					}
+
+					for ( int round = 0; round < maxRoundsPerBatch && !batch.isEmpty(); ++round )
+					{
+						batch.removeIf( key -> imgLoaders.get( setup( key ) ).prefetch( 0, level( key ), index( key ) ) );
+						Thread.sleep( roundMillis );
+					}
+				}
+			}
+			catch ( final InterruptedException e ) {}
+		}, "hot-cell-prefetcher" );
+		thread.setDaemon( true );
+		thread.setPriority( Thread.MIN_PRIORITY );
+		prefetcher = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stop prefetching.
+	 */
+	public void stop()
+	{
+		final Thread thread = prefetcher;
+		if ( thread != null )
+			thread.interrupt();
+		prefetcher = null;
+	}
+}
@@ -1,35 +1,318 @@
 package org.janelia.bdv.fusion;
 
+import java.util.Arrays;
+
 import net.imglib2.Volatile;
 import net.imglib2.type.NativeType;
 
 public class CellFileImageLoaderFactory
 {
+	public static CellFileReader createCellFileReader( final CellFileImageMetaData metaData )
+	{
+		switch ( metaData.getCellFileFormat() )
+		{
+		case "raw":
+			return new CellFileRawReader(
+					metaData.getUrlFormat(),
+					CellFileRawReader.parseByteOrder( metaData.getByteOrder() ),
+					metaData.getHeaderLength() );
+
+		case "shard":
+			return new CellFileShardReader(
+					metaData.getUrlFormat(),
+					metaData.getShardSize(),
+					metaData.getCellDimensions() );
+
+		case "n5":
+			return new CellFileN5Reader(
+					metaData.getUrlFormat(),
+					metaData.getCompression() );
+
+		case "tiff":
+		default:
+			return new CellFileTiffReader( metaData.getUrlFormat() );
+		}
+	}
+
+	/**
+	 * Identity of the reader that {@link #createCellFileReader} creates for
+	 * <code>metaData</code>.  Readers of equal identity decode a cell file
+	 * the same way, so their reads may be coalesced by a
+	 * {@link CellFileReadCoalescer}.
+	 *
+	 * @param metaData
+	 * @return
+	 */
+	public static String getReaderIdentity( final CellFileImageMetaData metaData )
+	{
+		final StringBuilder identity = new StringBuilder( metaData.getCellFileFormat() );
+		identity.append( '|' ).append( metaData.getImageType() );
+		switch ( metaData.getCellFileFormat() )
+		{
+		case "raw":
+			identity.append( '|' ).append( CellFileRawReader.parseByteOrder( metaData.getByteOrder() ) );
+			identity.append( '|' ).append( metaData.getHeaderLength() );
+			break;
+
+		case "shard":
+			identity.append( '|' ).append( metaData.getShardSize() );
+			for ( final int[] cellDimensions : metaData.getCellDimensions() )
+				identity.append( '|' ).append( Arrays.toString( cellDimensions ) );
+			break;
+
+		case "n5":
+			identity.append( '|' ).append( metaData.getCompression() );
+			break;
+		}
+		return identity.toString();
+	}
+
+	/**
+	 * Create a writer for cells in the layout of <code>metaData</code>.
+	 * Only file per cell TIFF and raw exports can be written.
+	 *
+	 * @param metaData
+	 * @return
+	 * @throws IllegalArgumentException for other cell file formats
+	 */
+	public static CellFileWriter createCellFileWriter( final CellFileImageMetaData metaData )
+	{
+		switch ( metaData.getCellFileFormat() )
+		{
+		case "raw":
+			return new CellFileRawWriter(
+					metaData.getUrlFormat(),
+					CellFileRawReader.parseByteOrder( metaData.getByteOrder() ),
+					metaData.getHeaderLength() );
+
+		case "tiff":
+			return new CellFileTiffWriter( metaData.getUrlFormat() );
+
+		default:
+			throw new IllegalArgumentException( "cannot write cells of format " + metaData.getCellFileFormat() );
+		}
+	}
+
 	public static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader( final CellFileImageMetaData metaData )
 	{
-		switch ( metaData.getImageType() )
+		return createImageLoader( metaData, metaData.getNumFetcherThreads(), metaData.isAdaptiveFetching() );
+	}
+
+	/**
+	 * Create a loader with a cache of its own.
+	 *
+	 * @param metaData
+	 * @param numFetcherThreads number of threads that load cells
+	 * @param adaptiveFetching adapt the number of concurrent loads to the
+	 *   measured load latency, up to <code>numFetcherThreads</code>
+	 * @return
+	 */
+	public static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader(
+			final CellFileImageMetaData metaData,
+			final int numFetcherThreads,
+			final boolean adaptiveFetching )
+	{
+		final AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > imgLoader =
+				createImageLoader( metaData, 0, new SoftReferenceCellFileCache( metaData.getNumScales(), numFetcherThreads ) );
+		if ( adaptiveFetching )
+			imgLoader.getArrayLoader().setConcurrencyLimit( createConcurrencyLimit( numFetcherThreads ) );
+		return imgLoader;
+	}
+
+	/**
+	 * Create a loader that registers its cells in a shared cache.
+	 *
+	 * @param metaData
+	 * @param setupId unique among all loaders sharing <code>cache</code>
+	 * @param cache
+	 * @return
+	 */
+	public static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader(
+			final CellFileImageMetaData metaData,
+			final int setupId,
+			final CellFileCache cache )
+	{
+		return createImageLoader( metaData, setupId, cache, createCellFileReader( metaData ) );
+	}
+
+	/**
+	 * Create a loader that reads cells through <code>reader</code>, e.g.
+	 * a reader decorated by a {@link CellFileDiskCache}, and registers them
+	 * in a shared cache.
+	 *
+	 * @param metaData
+	 * @param setupId unique among all loaders sharing <code>cache</code>
+	 * @param cache
+	 * @param reader
+	 * @return
+	 */
+	public static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader(
+			final CellFileImageMetaData metaData,
+			final int setupId,
+			final CellFileCache cache,
+			final CellFileReader reader )
+	{
+		return createImageLoader(
+				metaData.getImageType(),
+				reader,
+				metaData.getImageDimensions(),
+				metaData.getCellDimensions(),
+				metaData.getDownsampleFactors(),
+				setupId,
+				cache );
+	}
+
+	/**
+	 * Create a loader for all levels of <code>levels</code>, including the
+	 * virtual ones, that registers its cells in a shared cache.  Virtual
+	 * cells are computed from finer cells loaded through the cache.
+	 *
+	 * @param metaData
+	 * @param setupId unique among all loaders sharing <code>cache</code>
+	 * @param cache a cache for at least {@link CellFileVirtualLevels#getNumLevels()} levels
+	 * @param levels
+	 * @return
+	 */
+	public static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader(
+			final CellFileImageMetaData metaData,
+			final int setupId,
+			final CellFileCache cache,
+			final CellFileVirtualLevels levels )
+	{
+		final AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > imgLoader = createImageLoader(
+				metaData.getImageType(),
+				levels,
+				levels.getDimensions(),
+				levels.getCellDimensions(),
+				levels.getDownsampleFactors(),
+				setupId,
+				cache );
+		levels.setSource( imgLoader.createCachedCellReader() );
+		return imgLoader;
+	}
+
+	private static AbstractCellFileImageLoader< ? extends NativeType< ? >, ? extends Volatile< ? > > createImageLoader(
+			final String imageType,
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int setupId,
+			final CellFileCache cache )
+	{
+		switch ( imageType )
 		{
 		case "GRAY8":
 			return new CellFileUnsignedByteImageLoader(
-					metaData.getUrlFormat(),
-					metaData.getImageDimensions(),
-					metaData.getCellDimensions(),
-					metaData.getDownsampleFactors() );
+					reader,
+					dimensions,
+					cellDimensions,
+					downsampleFactors,
+					setupId,
+					cache );
 
 		case "GRAY16":
 			return new CellFileUnsignedShortImageLoader(
-					metaData.getUrlFormat(),
-					metaData.getImageDimensions(),
-					metaData.getCellDimensions(),
-					metaData.getDownsampleFactors() );
+					reader,
+					dimensions,
+					cellDimensions,
+					downsampleFactors,
+					setupId,
+					cache );
 
 		case "GRAY32":
 		default:
 			return new CellFileFloatImageLoader(
-					metaData.getUrlFormat(),
-					metaData.getImageDimensions(),
-					metaData.getCellDimensions(),
-					metaData.getDownsampleFactors() );
+					reader,
+					dimensions,
+					cellDimensions,
+					downsampleFactors,
+					setupId,
+					cache );
+		}
+	}
+
+	/**
+	 * Create a shared cache for all channels of an export.  The number of
+	 * fetcher threads is the largest requested by any channel.
+	 *
+	 * @param metaDatas
+	 * @param numFetcherThreads overrides the channels' settings if &gt; 0
+	 * @param cacheMemoryMB byte budget of a {@link TwoQueueCellFileCache}
+	 *   in MiB, or 0 for a {@link SoftReferenceCellFileCache}
+	 * @return
+	 */
+	public static CellFileCache createSharedCache(
+			final CellFileImageMetaData[] metaDatas,
+			final int numFetcherThreads,
+			final long cacheMemoryMB )
+	{
+		return createSharedCache( getMaxNumScales( metaDatas ), getNumFetcherThreads( metaDatas, numFetcherThreads ), cacheMemoryMB );
+	}
+
+	/**
+	 * Create a shared cache.
+	 *
+	 * @param maxNumScales largest number of levels of all channels
+	 * @param numFetcherThreads
+	 * @param cacheMemoryMB byte budget of a {@link TwoQueueCellFileCache}
+	 *   in MiB, or 0 for a {@link SoftReferenceCellFileCache}
+	 * @return
+	 */
+	public static CellFileCache createSharedCache(
+			final int maxNumScales,
+			final int numFetcherThreads,
+			final long cacheMemoryMB )
+	{
+		if ( cacheMemoryMB > 0 )
+			return new TwoQueueCellFileCache( cacheMemoryMB << 20, maxNumScales, numFetcherThreads );
+		else
+			return new SoftReferenceCellFileCache( maxNumScales, numFetcherThreads );
+	}
+
+	public static int getMaxNumScales( final CellFileImageMetaData[] metaDatas )
+	{
+		int maxNumScales = 1;
+		for ( final CellFileImageMetaData metaData : metaDatas )
+			maxNumScales = Math.max( maxNumScales, metaData.getNumScales() );
+		return maxNumScales;
+	}
+
+	public static int getNumFetcherThreads( final CellFileImageMetaData[] metaDatas, final int numFetcherThreads )
+	{
+		if ( numFetcherThreads > 0 )
+			return numFetcherThreads;
+
+		int n = 1;
+		for ( final CellFileImageMetaData metaData : metaDatas )
+			n = Math.max( n, metaData.getNumFetcherThreads() );
+		return n;
+	}
+
+	public static AdaptiveConcurrencyLimit createConcurrencyLimit( final int numFetcherThreads )
+	{
+		return new AdaptiveConcurrencyLimit( 1, numFetcherThreads, Math.min( 10, numFetcherThreads ) );
+	}
+
+	/**
+	 * Create a storage array of the type used for cells of the given image
+	 * type.
+	 *
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param numEntities
+	 * @return
+	 */
+	public static Object createStorageArray( final String imageType, final int numEntities )
+	{
+		switch ( imageType )
+		{
+		case "GRAY8":
+			return new byte[ numEntities ];
+		case "GRAY16":
+			return new short[ numEntities ];
+		case "GRAY32":
+		default:
+			return new float[ numEntities ];
 		}
 	}
 }
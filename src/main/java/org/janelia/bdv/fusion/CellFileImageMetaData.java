@@ -33,6 +33,13 @@ public class CellFileImageMetaData
 {
 	private String urlFormat = "";
 	private String imageType = "";
+	private String cellFileFormat = null;
+	private String byteOrder = null;
+	private int headerLength = 0;
+	private int shardSize = 8;
+	private String compression = "raw";
+	private int numFetcherThreads = 10;
+	private boolean adaptiveFetching = false;
 	private long[] imageDimensions = new long[ 3 ];
 	private Map< Integer, int[] > downsampleFactors = new TreeMap<>();
 	private Map< Integer, int[] > cellDimensions = new TreeMap<>();
@@ -82,6 +89,87 @@ public class CellFileImageMetaData
 		return imageType;
 	}
 
+	/**
+	 * Storage format of the cells, "tiff", "raw", "shard" or "n5".  If not specified, raw
+	 * is assumed for urlFormats ending with ".raw" or ".bin" and TIFF for
+	 * everything else.
+	 */
+	public String getCellFileFormat()
+	{
+		if ( cellFileFormat != null && !cellFileFormat.isEmpty() )
+			return cellFileFormat.toLowerCase();
+		else if ( urlFormat.endsWith( ".raw" ) || urlFormat.endsWith( ".bin" ) )
+			return "raw";
+		else
+			return "tiff";
+	}
+
+	/**
+	 * Byte order of raw cell files, "BIG_ENDIAN", "LITTLE_ENDIAN" or null
+	 * for native byte order.
+	 */
+	public String getByteOrder()
+	{
+		return byteOrder;
+	}
+
+	/**
+	 * Number of header bytes to skip in raw cell files.
+	 */
+	public int getHeaderLength()
+	{
+		return headerLength;
+	}
+
+	/**
+	 * Number of cells per shard in each dimension for sharded cell
+	 * containers.
+	 */
+	public int getShardSize()
+	{
+		return shardSize;
+	}
+
+	/**
+	 * Block compression of N5 datasets, "raw", "gzip", "zlib" or "lz4".
+	 */
+	public String getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Number of threads that load cells into the cache, the upper bound
+	 * of concurrent loads if {@link #isAdaptiveFetching() adaptive}.
+	 */
+	public int getNumFetcherThreads()
+	{
+		return numFetcherThreads;
+	}
+
+	/**
+	 * Whether the number of concurrent loads adapts to the measured load
+	 * latency.
+	 */
+	public boolean isAdaptiveFetching()
+	{
+		return adaptiveFetching;
+	}
+
+	void setCellFileFormat( final String cellFileFormat, final String compression )
+	{
+		this.cellFileFormat = cellFileFormat;
+		this.compression = compression;
+	}
+
+	/**
+	 * @return true if every cell is stored in a file of its own
+	 */
+	public boolean isFilePerCell()
+	{
+		return !getCellFileFormat().equals( "shard" );
+	}
+
 	public double getDisplayRangeMin()
 	{
 		return displayRangeMin;
@@ -0,0 +1,617 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimum, maximum and a histogram of every cell of one coarse scale
+ * level of a channel, computed by a parallel pass over the cells or
+ * loaded from a sidecar file written by {@link #save(File)}.  The sidecar
+ * records the modification times and sizes of the cell files, such that
+ * it is rebuilt when cells are rewritten.
+ *
+ * Each cell histogram has {@value #numCellBins} bins between the minimum
+ * and maximum of the cell.  Histograms of the whole image or of a region
+ * are merged from the cell histograms, assuming that values are evenly
+ * distributed within a bin, and cells that are only partially inside a
+ * region are weighted by the fraction of their volume inside it.  No
+ * cell has to be decoded to answer such a query.
+ */
+public class CellFileIntensityStats
+{
+	final static private int MAGIC = 0x43464932; // "CFI2"
+
+	final static public int numCellBins = 64;
+
+	final static public int numBins = 4096;
+
+	final static public int defaultMaxCells = 4096;
+
+	/**
+	 * Histogram with equally sized bins between {@link #getMin()} and
+	 * {@link #getMax()}.  Counts are fractional for regions that cut
+	 * through cells.
+	 */
+	public static class Histogram
+	{
+		final private double min;
+
+		final private double max;
+
+		final private double[] counts;
+
+		Histogram( final double min, final double max, final double[] counts )
+		{
+			this.min = min;
+			this.max = max;
+			this.counts = counts;
+		}
+
+		public double getMin()
+		{
+			return min;
+		}
+
+		public double getMax()
+		{
+			return max;
+		}
+
+		public double[] getCounts()
+		{
+			return counts;
+		}
+
+		public double getBinWidth()
+		{
+			return ( max - min ) / counts.length;
+		}
+
+		public double getTotal()
+		{
+			double total = 0;
+			for ( final double c : counts )
+				total += c;
+			return total;
+		}
+
+		/**
+		 * @param percent in [0, 100]
+		 * @return the value below which <code>percent</code> of the counts
+		 *   are, interpolated linearly within its bin, NaN if the
+		 *   histogram is empty
+		 */
+		public double percentile( final double percent )
+		{
+			final double total = getTotal();
+			if ( total == 0 )
+				return Double.NaN;
+
+			final double target = total * Math.max( 0, Math.min( 100, percent ) ) / 100;
+			final double width = getBinWidth();
+			double sum = 0;
+			for ( int i = 0; i < counts.length; ++i )
+			{
+				if ( counts[ i ] > 0 && sum + counts[ i ] >= target )
+					return min + width * ( i + ( target - sum ) / counts[ i ] );
+				sum += counts[ i ];
+			}
+			return max;
+		}
+	}
+
+	final private int level;
+
+	final private double[] resolution;
+
+	final private long[] dimensions;
+
+	final private int[] cellDimensions;
+
+	final private boolean integer;
+
+	/* of the modification times and sizes of all cell files */
+	final private long fingerprint;
+
+	/* per existing cell: grid index, value range [lo, hi) and histogram */
+	final private int[] indices;
+
+	final private double[] lo;
+
+	final private double[] hi;
+
+	final private int[][] bins;
+
+	private CellFileIntensityStats(
+			final int level,
+			final double[] resolution,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final boolean integer,
+			final long fingerprint,
+			final int[] indices,
+			final double[] lo,
+			final double[] hi,
+			final int[][] bins )
+	{
+		this.level = level;
+		this.resolution = resolution;
+		this.dimensions = dimensions;
+		this.cellDimensions = cellDimensions;
+		this.integer = integer;
+		this.fingerprint = fingerprint;
+		this.indices = indices;
+		this.lo = lo;
+		this.hi = hi;
+		this.bins = bins;
+	}
+
+	/**
+	 * @return the scale level the statistics were computed at
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @return number of existing cells
+	 */
+	public int getNumCells()
+	{
+		return indices.length;
+	}
+
+	/**
+	 * @param level
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @return true if these statistics were computed at the given level of
+	 *   a dataset with the given dimensions and cell dimensions
+	 */
+	public boolean matches( final int level, final long[] dimensions, final int[] cellDimensions )
+	{
+		return this.level == level && Arrays.equals( this.dimensions, dimensions ) && Arrays.equals( this.cellDimensions, cellDimensions );
+	}
+
+	/**
+	 * Hash of the modification times and sizes of the files that store the
+	 * cells of a level, each shard file of sharded containers once, 0 for
+	 * files that do not exist or are not local files.
+	 *
+	 * @param reader
+	 * @param level
+	 * @param dimensions dimensions of <code>level</code>
+	 * @param cellDimensions cell dimensions of <code>level</code>
+	 * @return
+	 */
+	public static long fingerprint(
+			final CellFileReader reader,
+			final int level,
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final long[] g = CellFilePresenceIndex.createGridDimensions( new long[][] { dimensions }, new int[][] { cellDimensions } )[ 0 ];
+		final long[] gridPosition = new long[ 3 ];
+		final long[] min = new long[ 3 ];
+		final LinkedHashSet< File > files = new LinkedHashSet<>();
+		for ( gridPosition[ 2 ] = 0; gridPosition[ 2 ] < g[ 2 ]; ++gridPosition[ 2 ] )
+			for ( gridPosition[ 1 ] = 0; gridPosition[ 1 ] < g[ 1 ]; ++gridPosition[ 1 ] )
+				for ( gridPosition[ 0 ] = 0; gridPosition[ 0 ] < g[ 0 ]; ++gridPosition[ 0 ] )
+				{
+					for ( int d = 0; d < 3; ++d )
+						min[ d ] = gridPosition[ d ] * cellDimensions[ d ];
+					files.add( CellFileShardReader.getFile( reader.getCellPath( level, gridPosition, min ) ) );
+				}
+
+		long hash = 17;
+		for ( final File file : files )
+			hash = 31 * ( 31 * hash + file.lastModified() ) + file.length();
+		return hash;
+	}
+
+	/**
+	 * @param dimensions of all levels
+	 * @param cellDimensions of all levels
+	 * @param maxCells
+	 * @return the finest level with at most <code>maxCells</code> cells or
+	 *   the coarsest level if all have more
+	 */
+	public static int chooseLevel( final long[][] dimensions, final int[][] cellDimensions, final int maxCells )
+	{
+		final long[][] gridDimensions = CellFilePresenceIndex.createGridDimensions( dimensions, cellDimensions );
+		for ( int level = 0; level < gridDimensions.length; ++level )
+			if ( gridDimensions[ level ][ 0 ] * gridDimensions[ level ][ 1 ] * gridDimensions[ level ][ 2 ] <= maxCells )
+				return level;
+		return gridDimensions.length - 1;
+	}
+
+	/**
+	 * Compute the statistics of all cells of one level, one cell per task.
+	 * Missing cells are skipped.
+	 *
+	 * @param reader
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param level
+	 * @param resolution voxel size of <code>level</code> in level 0 voxels
+	 * @param dimensions dimensions of <code>level</code>
+	 * @param cellDimensions cell dimensions of <code>level</code>
+	 * @param numThreads
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static CellFileIntensityStats build(
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final double[] resolution,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final int numThreads ) throws IOException, InterruptedException
+	{
+		final boolean integer = !"GRAY32".equals( imageType );
+		final long fingerprint = fingerprint( reader, level, dimensions, cellDimensions );
+		final long[] g = CellFilePresenceIndex.createGridDimensions( new long[][] { dimensions }, new int[][] { cellDimensions } )[ 0 ];
+		final int numCells = ( int )( g[ 0 ] * g[ 1 ] * g[ 2 ] );
+
+		final ArrayList< Integer > indices = new ArrayList<>();
+		final ArrayList< double[] > ranges = new ArrayList<>();
+		final ArrayList< int[] > bins = new ArrayList<>();
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final ArrayList< Future< Object[] > > futures = new ArrayList<>();
+			for ( int i = 0; i < numCells; ++i )
+			{
+				final long[] gridPosition = new long[] { i % g[ 0 ], i / g[ 0 ] % g[ 1 ], i / g[ 0 ] / g[ 1 ] };
+				futures.add( exec.submit( () -> {
+					final long[] min = new long[ 3 ];
+					final int[] cellSize = new int[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+					{
+						min[ d ] = gridPosition[ d ] * cellDimensions[ d ];
+						cellSize[ d ] = ( int )Math.min( cellDimensions[ d ], dimensions[ d ] - min[ d ] );
+					}
+					final int n = cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ];
+					final Object data = reader.read( level, gridPosition, min, cellSize, CellFileImageLoaderFactory.createStorageArray( imageType, n ) );
+					return data == null ? null : histogram( data, n, integer );
+				} ) );
+			}
+
+			for ( int i = 0; i < numCells; ++i )
+			{
+				final Object[] cell = futures.get( i ).get();
+				if ( cell != null )
+				{
+					indices.add( i );
+					ranges.add( ( double[] )cell[ 0 ] );
+					bins.add( ( int[] )cell[ 1 ] );
+				}
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+
+		final int n = indices.size();
+		final int[] cellIndices = new int[ n ];
+		final double[] lo = new double[ n ];
+		final double[] hi = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			cellIndices[ i ] = indices.get( i );
+			lo[ i ] = ranges.get( i )[ 0 ];
+			hi[ i ] = ranges.get( i )[ 1 ];
+		}
+		return new CellFileIntensityStats(
+				level,
+				resolution.clone(),
+				dimensions.clone(),
+				cellDimensions.clone(),
+				integer,
+				fingerprint,
+				cellIndices,
+				lo,
+				hi,
+				bins.toArray( new int[ n ][] ) );
+	}
+
+	/**
+	 * @return {range {lo, hi}, bins} of the first n values of data, integer
+	 *   values v covering [v, v + 1), null if there are only NaNs
+	 */
+	static private Object[] histogram( final Object data, final int n, final boolean integer )
+	{
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for ( int i = 0; i < n; ++i )
+		{
+			final double v = CellFilePyramidBuilder.getReal( data, i );
+			if ( Double.isNaN( v ) )
+				continue;
+			if ( v < min )
+				min = v;
+			if ( v > max )
+				max = v;
+		}
+		if ( min > max )
+			return null;
+
+		final double lo = min;
+		final double hi = integer ? max + 1 : max > min ? max : Math.nextUp( max );
+
+		final int[] bins = new int[ numCellBins ];
+		final double scale = numCellBins / ( hi - lo );
+		for ( int i = 0; i < n; ++i )
+		{
+			final double v = CellFilePyramidBuilder.getReal( data, i );
+			if ( !Double.isNaN( v ) )
+				++bins[ Math.min( numCellBins - 1, ( int )( ( v - lo ) * scale ) ) ];
+		}
+
+		return new Object[] { new double[] { lo, hi }, bins };
+	}
+
+	/**
+	 * @return histogram of all existing cells
+	 */
+	public Histogram getHistogram()
+	{
+		final double[] weights = new double[ indices.length ];
+		Arrays.fill( weights, 1 );
+		return merge( weights );
+	}
+
+	/**
+	 * Histogram of a box in level 0 voxel coordinates.
+	 *
+	 * @param min inclusive
+	 * @param max inclusive
+	 * @return
+	 */
+	public Histogram getHistogram( final long[] min, final long[] max )
+	{
+		final double[] boxMin = new double[ 3 ];
+		final double[] boxMax = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			boxMin[ d ] = min[ d ] / resolution[ d ];
+			boxMax[ d ] = ( max[ d ] + 1 ) / resolution[ d ];
+		}
+
+		final long[] g = CellFilePresenceIndex.createGridDimensions( new long[][] { dimensions }, new int[][] { cellDimensions } )[ 0 ];
+		final double[] weights = new double[ indices.length ];
+		for ( int i = 0; i < indices.length; ++i )
+		{
+			final long[] gridPosition = new long[] { indices[ i ] % g[ 0 ], indices[ i ] / g[ 0 ] % g[ 1 ], indices[ i ] / g[ 0 ] / g[ 1 ] };
+			double weight = 1;
+			for ( int d = 0; d < 3 && weight > 0; ++d )
+			{
+				final long cellMin = gridPosition[ d ] * cellDimensions[ d ];
+				final long cellMax = Math.min( cellMin + cellDimensions[ d ], dimensions[ d ] );
+				weight *= Math.max( 0, Math.min( cellMax, boxMax[ d ] ) - Math.max( cellMin, boxMin[ d ] ) ) / ( cellMax - cellMin );
+			}
+			weights[ i ] = weight;
+		}
+		return merge( weights );
+	}
+
+	private Histogram merge( final double[] weights )
+	{
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for ( int i = 0; i < indices.length; ++i )
+		{
+			if ( weights[ i ] > 0 )
+			{
+				min = Math.min( min, lo[ i ] );
+				max = Math.max( max, hi[ i ] );
+			}
+		}
+		if ( min > max )
+			return new Histogram( 0, 0, new double[ numBins ] );
+
+		/* integer ranges keep a bin width of at least 1 */
+		final int n = integer ? ( int )Math.max( 1, Math.min( numBins, max - min ) ) : numBins;
+		final double[] counts = new double[ n ];
+		final double width = ( max - min ) / n;
+		for ( int i = 0; i < indices.length; ++i )
+		{
+			if ( weights[ i ] == 0 )
+				continue;
+			final double cellWidth = ( hi[ i ] - lo[ i ] ) / numCellBins;
+			for ( int b = 0; b < numCellBins; ++b )
+			{
+				if ( bins[ i ][ b ] == 0 )
+					continue;
+
+				/* spread the bin over the merged bins it overlaps */
+				final double a = lo[ i ] + b * cellWidth;
+				final double c = a + cellWidth;
+				final double count = bins[ i ][ b ] * weights[ i ];
+				final int first = Math.min( n - 1, ( int )( ( a - min ) / width ) );
+				final int last = Math.min( n - 1, ( int )( ( c - min ) / width ) );
+				if ( first == last )
+					counts[ first ] += count;
+				else
+					for ( int j = first; j <= last; ++j )
+					{
+						final double overlap = Math.min( c, min + ( j + 1 ) * width ) - Math.max( a, min + j * width );
+						counts[ j ] += count * Math.max( 0, overlap ) / cellWidth;
+					}
+			}
+		}
+		return new Histogram( min, max, counts );
+	}
+
+	/**
+	 * Save as a gzipped binary sidecar file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save( final File file ) throws IOException
+	{
+		try ( final DataOutputStream out = new DataOutputStream( new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( level );
+			out.writeBoolean( integer );
+			out.writeLong( fingerprint );
+			for ( int d = 0; d < 3; ++d )
+			{
+				out.writeDouble( resolution[ d ] );
+				out.writeLong( dimensions[ d ] );
+				out.writeInt( cellDimensions[ d ] );
+			}
+			out.writeInt( indices.length );
+			for ( int i = 0; i < indices.length; ++i )
+			{
+				out.writeInt( indices[ i ] );
+				out.writeDouble( lo[ i ] );
+				out.writeDouble( hi[ i ] );
+				for ( final int count : bins[ i ] )
+					out.writeInt( count );
+			}
+		}
+	}
+
+	/**
+	 * Load from a sidecar file written by {@link #save(File)}.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static CellFileIntensityStats load( final File file ) throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new GZIPInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "not a cell statistics file: " + file );
+
+			final int level = in.readInt();
+			final boolean integer = in.readBoolean();
+			final long fingerprint = in.readLong();
+			final double[] resolution = new double[ 3 ];
+			final long[] dimensions = new long[ 3 ];
+			final int[] cellDimensions = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				resolution[ d ] = in.readDouble();
+				dimensions[ d ] = in.readLong();
+				cellDimensions[ d ] = in.readInt();
+			}
+			final int n = in.readInt();
+			final int[] indices = new int[ n ];
+			final double[] lo = new double[ n ];
+			final double[] hi = new double[ n ];
+			final int[][] bins = new int[ n ][ numCellBins ];
+			for ( int i = 0; i < n; ++i )
+			{
+				indices[ i ] = in.readInt();
+				lo[ i ] = in.readDouble();
+				hi[ i ] = in.readDouble();
+				for ( int b = 0; b < numCellBins; ++b )
+					bins[ i ][ b ] = in.readInt();
+			}
+			return new CellFileIntensityStats( level, resolution, dimensions, cellDimensions, integer, fingerprint, indices, lo, hi, bins );
+		}
+	}
+
+	/**
+	 * Load the statistics from <code>sidecar</code> if it exists, is not
+	 * older than <code>reference</code> (typically the JSON export
+	 * description), matches the dataset and no cell file was written,
+	 * added or removed since.  Otherwise, compute them at
+	 * the finest level with at most {@value #defaultMaxCells} cells and
+	 * try to save them as <code>sidecar</code> for the next time.
+	 *
+	 * @param sidecar
+	 * @param reference
+	 * @param reader
+	 * @param imageType
+	 * @param resolutions voxel size of all levels in level 0 voxels
+	 * @param dimensions of all levels
+	 * @param cellDimensions of all levels
+	 * @param numThreads
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static CellFileIntensityStats loadOrBuild(
+			final File sidecar,
+			final File reference,
+			final CellFileReader reader,
+			final String imageType,
+			final double[][] resolutions,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int numThreads ) throws IOException, InterruptedException
+	{
+		final int level = chooseLevel( dimensions, cellDimensions, defaultMaxCells );
+		if ( sidecar.isFile() && sidecar.lastModified() >= reference.lastModified() )
+		{
+			try
+			{
+				final CellFileIntensityStats stats = load( sidecar );
+				if ( stats.matches( level, dimensions[ level ], cellDimensions[ level ] ) &&
+						stats.fingerprint == fingerprint( reader, level, dimensions[ level ], cellDimensions[ level ] ) )
+					return stats;
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "Could not read cell statistics " + sidecar + ": " + e.getMessage() );
+			}
+		}
+
+		final CellFileIntensityStats stats = build( reader, imageType, level, resolutions[ level ], dimensions[ level ], cellDimensions[ level ], numThreads );
+		try
+		{
+			stats.save( sidecar );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not write cell statistics " + sidecar + ": " + e.getMessage() );
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,443 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one {@link AbstractCellFileArrayLoader}
+ * that can be watched in JConsole or VisualVM after
+ * {@link #register(Object, String, String) registering} them as an MBean.
+ *
+ * The latency of a load is split into opening the file and reading its
+ * bytes, decoding (decompressing) them, and copying the pixels into the
+ * cell.  {@link CellFileReader CellFileReaders} mark the end of the first
+ * two phases of the load running on the current thread with
+ * {@link #opened()} and {@link #decoded()}, time after the last mark is
+ * attributed to the next phase.
+ *
+ * Only requests that reach the loader are counted, i.e. cache misses, the
+ * hit rate is reported by the cache, see {@link TwoQueueCellFileCacheMBean}.
+ */
+public class CellFileLoaderStats implements CellFileLoaderStatsMBean
+{
+	final static private String DOMAIN = "org.janelia.bdv.fusion";
+
+	final static private int numBuckets = 32;
+
+	static private class Histogram
+	{
+		final AtomicLongArray counts = new AtomicLongArray( numBuckets );
+
+		final LongAdder sumNanos = new LongAdder();
+
+		final LongAdder n = new LongAdder();
+
+		void record( final long nanos )
+		{
+			final long micros = Math.max( 0, nanos / 1000 );
+			counts.incrementAndGet( Math.min( numBuckets - 1, 64 - Long.numberOfLeadingZeros( micros ) ) );
+			sumNanos.add( nanos );
+			n.increment();
+		}
+
+		long[] getCounts()
+		{
+			final long[] c = new long[ numBuckets ];
+			for ( int i = 0; i < numBuckets; ++i )
+				c[ i ] = counts.get( i );
+			return c;
+		}
+
+		double getMeanMicros()
+		{
+			final long count = n.sum();
+			return count == 0 ? 0 : sumNanos.sum() / 1000.0 / count;
+		}
+
+		void reset()
+		{
+			for ( int i = 0; i < numBuckets; ++i )
+				counts.set( i, 0 );
+			sumNanos.reset();
+			n.reset();
+		}
+	}
+
+	/* phases of the load running on a thread */
+	static private class Phases
+	{
+		boolean active = false;
+		int phase;
+		long start;
+		long last;
+		final long[] marks = new long[ 2 ];
+		final long[] nanos = new long[ 3 ];
+		long bytes;
+	}
+
+	final static private ThreadLocal< Phases > phases = ThreadLocal.withInitial( Phases::new );
+
+	final static private int OPEN = 0, DECODE = 1, COPY = 2;
+
+	final private LongAdder[] requested;
+
+	final private LongAdder[] loaded;
+
+	final private LongAdder missing = new LongAdder();
+
+	final private LongAdder failed = new LongAdder();
+
+	final private LongAdder cancelled = new LongAdder();
+
+	final private LongAdder bytesRead = new LongAdder();
+
+	private volatile String lastError = "";
+
+	final private Histogram[] phaseLatencies = new Histogram[] { new Histogram(), new Histogram(), new Histogram() };
+
+	final private Histogram loadLatency = new Histogram();
+
+	/**
+	 * @param numLevels
+	 */
+	public CellFileLoaderStats( final int numLevels )
+	{
+		requested = new LongAdder[ numLevels ];
+		loaded = new LongAdder[ numLevels ];
+		for ( int i = 0; i < numLevels; ++i )
+		{
+			requested[ i ] = new LongAdder();
+			loaded[ i ] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Mark the end of opening a file and reading its bytes in the load
+	 * running on the current thread.
+	 */
+	public static void opened()
+	{
+		mark( OPEN, DECODE );
+	}
+
+	/**
+	 * Mark the end of decoding in the load running on the current thread.
+	 */
+	public static void decoded()
+	{
+		mark( DECODE, COPY );
+	}
+
+	/**
+	 * Count bytes read from storage by the load running on the current
+	 * thread.
+	 *
+	 * @param bytes
+	 */
+	public static void bytesRead( final long bytes )
+	{
+		final Phases p = phases.get();
+		if ( p.active )
+			p.bytes += bytes;
+	}
+
+	static private void mark( final int phase, final int next )
+	{
+		final Phases p = phases.get();
+		if ( !p.active )
+			return;
+		final long t = System.nanoTime();
+		p.nanos[ phase ] += t - p.last;
+		p.marks[ phase ] = t;
+		p.last = t;
+		p.phase = next;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} at which the reader of the current
+	 *   thread's load marked {@link #opened()} or -1
+	 */
+	static long openedAt()
+	{
+		return phases.get().marks[ OPEN ];
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} at which the reader of the current
+	 *   thread's load marked {@link #decoded()} or -1
+	 */
+	static long decodedAt()
+	{
+		return phases.get().marks[ DECODE ];
+	}
+
+	/**
+	 * Count a request for a cell of <code>level</code> that the cache
+	 * passed on to the loader.
+	 *
+	 * @param level
+	 */
+	void request( final int level )
+	{
+		requested[ level ].increment();
+	}
+
+	/**
+	 * Start timing a load on the current thread.
+	 */
+	void begin()
+	{
+		final Phases p = phases.get();
+		p.active = true;
+		p.phase = DECODE;
+		p.start = p.last = System.nanoTime();
+		p.marks[ OPEN ] = p.marks[ DECODE ] = -1;
+		p.nanos[ OPEN ] = p.nanos[ DECODE ] = p.nanos[ COPY ] = 0;
+		p.bytes = 0;
+	}
+
+	/**
+	 * Finish the load on the current thread that was started with
+	 * {@link #begin()}.  Time after the last mark is attributed to the
+	 * next phase, time of readers that do not mark phases to decoding.
+	 *
+	 * @param level
+	 * @param found false if the cell does not exist
+	 */
+	void end( final int level, final boolean found )
+	{
+		final Phases p = phases.get();
+		final long t = System.nanoTime();
+		p.nanos[ p.phase ] += t - p.last;
+		p.active = false;
+
+		if ( found )
+		{
+			loaded[ level ].increment();
+			for ( int i = 0; i < 3; ++i )
+				phaseLatencies[ i ].record( p.nanos[ i ] );
+		}
+		else
+			missing.increment();
+		loadLatency.record( t - p.start );
+		bytesRead.add( p.bytes );
+	}
+
+	/**
+	 * Finish a failed load on the current thread.
+	 *
+	 * @param cellPath
+	 * @param e
+	 */
+	void fail( final String cellPath, final Exception e )
+	{
+		phases.get().active = false;
+		failed.increment();
+		lastError = cellPath + ": " + e;
+	}
+
+	/**
+	 * Finish a load on the current thread that was cancelled.
+	 */
+	void cancel()
+	{
+		phases.get().active = false;
+		cancelled.increment();
+	}
+
+	/**
+	 * Count a cell that is known to be missing without looking it up.
+	 */
+	void skip()
+	{
+		missing.increment();
+	}
+
+	static private long[] sums( final LongAdder[] adders )
+	{
+		final long[] sums = new long[ adders.length ];
+		for ( int i = 0; i < adders.length; ++i )
+			sums[ i ] = adders[ i ].sum();
+		return sums;
+	}
+
+	@Override
+	public long[] getCellsRequestedPerLevel()
+	{
+		return sums( requested );
+	}
+
+	@Override
+	public long[] getCellsLoadedPerLevel()
+	{
+		return sums( loaded );
+	}
+
+	@Override
+	public long getCellsLoaded()
+	{
+		long sum = 0;
+		for ( final LongAdder l : loaded )
+			sum += l.sum();
+		return sum;
+	}
+
+	@Override
+	public long getMissingCells()
+	{
+		return missing.sum();
+	}
+
+	@Override
+	public long getFailedCells()
+	{
+		return failed.sum();
+	}
+
+	@Override
+	public long getCancelledCells()
+	{
+		return cancelled.sum();
+	}
+
+	@Override
+	public long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+
+	@Override
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	@Override
+	public long[] getOpenLatencyHistogram()
+	{
+		return phaseLatencies[ OPEN ].getCounts();
+	}
+
+	@Override
+	public long[] getDecodeLatencyHistogram()
+	{
+		return phaseLatencies[ DECODE ].getCounts();
+	}
+
+	@Override
+	public long[] getCopyLatencyHistogram()
+	{
+		return phaseLatencies[ COPY ].getCounts();
+	}
+
+	@Override
+	public long[] getLoadLatencyHistogram()
+	{
+		return loadLatency.getCounts();
+	}
+
+	@Override
+	public double getMeanOpenMicros()
+	{
+		return phaseLatencies[ OPEN ].getMeanMicros();
+	}
+
+	@Override
+	public double getMeanDecodeMicros()
+	{
+		return phaseLatencies[ DECODE ].getMeanMicros();
+	}
+
+	@Override
+	public double getMeanCopyMicros()
+	{
+		return phaseLatencies[ COPY ].getMeanMicros();
+	}
+
+	@Override
+	public double getMeanLoadMicros()
+	{
+		return loadLatency.getMeanMicros();
+	}
+
+	@Override
+	public void reset()
+	{
+		for ( int i = 0; i < loaded.length; ++i )
+		{
+			requested[ i ].reset();
+			loaded[ i ].reset();
+		}
+		missing.reset();
+		failed.reset();
+		cancelled.reset();
+		bytesRead.reset();
+		lastError = "";
+		for ( final Histogram h : phaseLatencies )
+			h.reset();
+		loadLatency.reset();
+	}
+
+	/**
+	 * Register an MBean with the platform MBean server, replacing an
+	 * MBean of the same name.
+	 *
+	 * @param mbean
+	 * @param type
+	 * @param name
+	 * @return the name of the registered MBean or null if it could not be
+	 *   registered
+	 */
+	public static ObjectName register( final Object mbean, final String type, final String name )
+	{
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName( DOMAIN + ":type=" + type + ",name=" + ObjectName.quote( name ) );
+			if ( server.isRegistered( objectName ) )
+				server.unregisterMBean( objectName );
+			server.registerMBean( mbean, objectName );
+			return objectName;
+		}
+		catch ( final JMException e )
+		{
+			System.err.println( "Could not register MBean " + name + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * @param objectName may be null
+	 */
+	public static void unregister( final ObjectName objectName )
+	{
+		if ( objectName == null )
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+		}
+		catch ( final JMException e ) {}
+	}
+}
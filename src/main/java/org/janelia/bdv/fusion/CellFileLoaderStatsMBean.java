@@ -0,0 +1,60 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+/**
+ * JMX view of {@link CellFileLoaderStats}.  Arrays named per level are
+ * indexed by scale level, latency histograms have one bucket per power of
+ * two, bucket i counting latencies in [2<sup>i-1</sup>, 2<sup>i</sup>)
+ * microseconds.
+ */
+public interface CellFileLoaderStatsMBean
+{
+	public long[] getCellsRequestedPerLevel();
+
+	public long[] getCellsLoadedPerLevel();
+
+	public long getCellsLoaded();
+
+	public long getMissingCells();
+
+	public long getFailedCells();
+
+	public long getCancelledCells();
+
+	public long getBytesRead();
+
+	public String getLastError();
+
+	public long[] getOpenLatencyHistogram();
+
+	public long[] getDecodeLatencyHistogram();
+
+	public long[] getCopyLatencyHistogram();
+
+	public long[] getLoadLatencyHistogram();
+
+	public double getMeanOpenMicros();
+
+	public double getMeanDecodeMicros();
+
+	public double getMeanCopyMicros();
+
+	public double getMeanLoadMicros();
+
+	public void reset();
+}
@@ -0,0 +1,410 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+
+/**
+ * {@link CellFileReader} for N5 datasets on the local file system.  Every
+ * N5 block is one cell, blocks are stored big endian behind a small header
+ * and compressed with raw, gzip (or zlib) or lz4 compression.  Scale levels
+ * follow the N5 multiscale convention of datasets <code>s0, s1, ...</code>
+ * in a common group, such that the cell path format is
+ * <code>group/s%1$d/%2$d/%3$d/%4$d</code>.
+ *
+ * {@link #readMetaData(String)} creates {@link CellFileImageMetaData} for
+ * such a multiscale group, or for every channel group <code>c0, c1, ...</code>
+ * containing one.
+ */
+public class CellFileN5Reader implements CellFileReader
+{
+	final private String cellFormat;
+
+	final private String compression;
+
+	/**
+	 * @param cellFormat format string for block paths, see
+	 *   {@link CellFileTiffReader#CellFileTiffReader(String)}
+	 * @param compression "raw", "gzip", "zlib" or "lz4"
+	 */
+	public CellFileN5Reader( final String cellFormat, final String compression )
+	{
+		this.cellFormat = cellFormat;
+		this.compression = compression;
+	}
+
+	@Override
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+	{
+		return String.format(
+				cellFormat,
+				level,
+				gridPosition[ 0 ],
+				gridPosition[ 1 ],
+				gridPosition[ 2 ],
+				min[ 0 ],
+				min[ 1 ],
+				min[ 2 ] );
+	}
+
+	@Override
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		final byte[] bytes;
+		try
+		{
+			bytes = Files.readAllBytes( Paths.get( getCellPath( level, gridPosition, min ) ) );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+		CellFileLoaderStats.opened();
+		CellFileLoaderStats.bytesRead( bytes.length );
+		CellFileCancellation.check();
+
+		final ByteBuffer header = ByteBuffer.wrap( bytes ).order( ByteOrder.BIG_ENDIAN );
+		final short mode = header.getShort();
+		final int numDimensions = header.getShort();
+		final int[] blockDimensions = new int[] { 1, 1, 1 };
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int n = header.getInt();
+			if ( d < 3 )
+				blockDimensions[ d ] = n;
+		}
+		if ( mode == 1 )
+			header.getInt(); // number of elements of varlength blocks
+		else if ( mode != 0 )
+			throw new IOException( "unsupported N5 block mode " + mode );
+
+		final int bytesPerElement = CellFileRawReader.bytesPerElement( storage );
+		final int numBytes = blockDimensions[ 0 ] * blockDimensions[ 1 ] * blockDimensions[ 2 ] * bytesPerElement;
+		final ByteBuffer data = ByteBuffer.wrap( decompress( bytes, header.position(), numBytes ) ).order( ByteOrder.BIG_ENDIAN );
+		CellFileLoaderStats.decoded();
+
+		if ( Arrays.equals( blockDimensions, dimensions ) )
+		{
+			CellFileRawReader.get( data, storage, 0, dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+			return storage;
+		}
+
+		/* block and cell disagree at the border of the dataset, copy the overlap */
+		final int w = Math.min( blockDimensions[ 0 ], dimensions[ 0 ] );
+		final int h = Math.min( blockDimensions[ 1 ], dimensions[ 1 ] );
+		final int depth = Math.min( blockDimensions[ 2 ], dimensions[ 2 ] );
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < h; ++y )
+			{
+				data.position( ( ( z * blockDimensions[ 1 ] + y ) * blockDimensions[ 0 ] ) * bytesPerElement );
+				CellFileRawReader.get( data, storage, ( z * dimensions[ 1 ] + y ) * dimensions[ 0 ], w );
+			}
+
+		return storage;
+	}
+
+	private byte[] decompress( final byte[] bytes, final int offset, final int numBytes ) throws IOException
+	{
+		switch ( compression )
+		{
+		case "raw":
+			if ( bytes.length - offset < numBytes )
+				throw new EOFException( "N5 block is too short, expected " + numBytes + " bytes" );
+			return Arrays.copyOfRange( bytes, offset, offset + numBytes );
+
+		case "gzip":
+			return readFully( new GZIPInputStream( new ByteArrayInputStream( bytes, offset, bytes.length - offset ) ), numBytes );
+
+		case "zlib":
+			return readFully( new InflaterInputStream( new ByteArrayInputStream( bytes, offset, bytes.length - offset ), new Inflater() ), numBytes );
+
+		case "lz4":
+			return decompressLz4Blocks( bytes, offset, numBytes );
+
+		default:
+			throw new IOException( "unsupported N5 compression " + compression );
+		}
+	}
+
+	static private byte[] readFully( final InputStream in, final int numBytes ) throws IOException
+	{
+		try ( final InputStream is = in )
+		{
+			final byte[] data = new byte[ numBytes ];
+			for ( int i = 0; i < numBytes; )
+			{
+				final int n = is.read( data, i, numBytes - i );
+				if ( n < 0 )
+					throw new EOFException( "N5 block is too short, expected " + numBytes + " bytes" );
+				i += n;
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Decompress the stream format written by lz4-java's
+	 * LZ4BlockOutputStream that N5 uses for lz4 compression: a sequence of
+	 * blocks each starting with the magic "LZ4Block", a token, compressed
+	 * and decompressed length and a checksum (all little endian).
+	 * Checksums are not verified.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param numBytes
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] decompressLz4Blocks( final byte[] bytes, final int offset, final int numBytes ) throws IOException
+	{
+		final byte[] data = new byte[ numBytes ];
+		final ByteBuffer in = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+		in.position( offset );
+		int o = 0;
+		while ( o < numBytes )
+		{
+			if ( in.remaining() < 21 )
+				throw new EOFException( "truncated LZ4 block stream" );
+			for ( int i = 0; i < 8; ++i )
+				if ( in.get() != "LZ4Block".charAt( i ) )
+					throw new IOException( "not an LZ4 block stream" );
+			final int method = in.get() & 0xf0;
+			final int compressedLength = in.getInt();
+			final int decompressedLength = in.getInt();
+			in.getInt(); // checksum
+			if ( decompressedLength == 0 )
+				break;
+			if ( o + decompressedLength > numBytes || compressedLength > in.remaining() )
+				throw new IOException( "corrupt LZ4 block stream" );
+
+			if ( method == 0x10 )
+				System.arraycopy( bytes, in.position(), data, o, decompressedLength );
+			else if ( method == 0x20 )
+				Lz4Codec.decompress( bytes, in.position(), compressedLength, data, o, decompressedLength );
+			else
+				throw new IOException( "unsupported LZ4 block method " + method );
+
+			in.position( in.position() + compressedLength );
+			o += decompressedLength;
+		}
+		if ( o < numBytes )
+			throw new EOFException( "N5 block is too short, expected " + numBytes + " bytes" );
+		return data;
+	}
+
+	/**
+	 * Create {@link CellFileImageMetaData} for an N5 multiscale group
+	 * (a group with datasets <code>s0, s1, ...</code>) or for all channel
+	 * groups of an N5 container that contain such a multiscale group.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static CellFileImageMetaData[] readMetaData( final String path ) throws IOException
+	{
+		final File group = new File( path );
+		if ( new File( group, "s0" ).isDirectory() )
+			return new CellFileImageMetaData[] { readMultiscaleMetaData( group ) };
+
+		final String[] names = group.list();
+		if ( names == null )
+			throw new IOException( "not an N5 group: " + path );
+		Arrays.sort( names );
+
+		final ArrayList< CellFileImageMetaData > metaDatas = new ArrayList<>();
+		for ( final String name : names )
+			if ( new File( new File( group, name ), "s0" ).isDirectory() )
+				metaDatas.add( readMultiscaleMetaData( new File( group, name ) ) );
+
+		if ( metaDatas.isEmpty() )
+			throw new IOException( "no N5 multiscale group in " + path );
+
+		return metaDatas.toArray( new CellFileImageMetaData[ 0 ] );
+	}
+
+	static private CellFileImageMetaData readMultiscaleMetaData( final File group ) throws IOException
+	{
+		final JsonObject groupAttributes = readAttributes( group );
+
+		final TreeMap< Integer, int[] > downsampleFactors = new TreeMap<>();
+		final TreeMap< Integer, int[] > cellDimensions = new TreeMap<>();
+		long[] imageDimensions = null;
+		String dataType = null;
+		String compression = null;
+		for ( int level = 0; new File( group, "s" + level ).isDirectory(); ++level )
+		{
+			final JsonObject attributes = readAttributes( new File( group, "s" + level ) );
+			final long[] dimensions = getLongArray( attributes.getAsJsonArray( "dimensions" ) );
+			if ( dimensions.length != 3 )
+				throw new IOException( "only 3D N5 datasets are supported: " + group );
+
+			cellDimensions.put( level, toIntArray( getLongArray( attributes.getAsJsonArray( "blockSize" ) ) ) );
+
+			/* one image type and one codec serve all levels */
+			final String levelDataType = attributes.get( "dataType" ).getAsString();
+			final String levelCompression = getCompression( attributes );
+			if ( level == 0 )
+			{
+				imageDimensions = dimensions;
+				dataType = levelDataType;
+				compression = levelCompression;
+			}
+			else if ( !levelDataType.equals( dataType ) )
+				throw new IOException( "N5 data type " + levelDataType + " of s" + level + " differs from " + dataType + " of s0: " + group );
+			else if ( !levelCompression.equals( compression ) )
+				throw new IOException( "N5 compression " + levelCompression + " of s" + level + " differs from " + compression + " of s0: " + group );
+
+			final int[] factors;
+			if ( attributes.has( "downsamplingFactors" ) )
+				factors = toIntArray( getLongArray( attributes.getAsJsonArray( "downsamplingFactors" ) ) );
+			else if ( groupAttributes.has( "scales" ) && groupAttributes.getAsJsonArray( "scales" ).size() > level )
+				factors = toIntArray( getLongArray( groupAttributes.getAsJsonArray( "scales" ).get( level ).getAsJsonArray() ) );
+			else
+			{
+				factors = new int[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					factors[ d ] = ( int )Math.max( 1, Math.round( ( double )imageDimensions[ d ] / dimensions[ d ] ) );
+			}
+			downsampleFactors.put( level, factors );
+		}
+
+		final double[] resolution = new double[] { 1, 1, 1 };
+		String unit = "um";
+		final JsonElement pixelResolution = groupAttributes.has( "pixelResolution" ) ?
+				groupAttributes.get( "pixelResolution" ) :
+				readAttributes( new File( group, "s0" ) ).get( "pixelResolution" );
+		if ( pixelResolution != null && pixelResolution.isJsonObject() )
+		{
+			final JsonArray r = pixelResolution.getAsJsonObject().getAsJsonArray( "dimensions" );
+			for ( int d = 0; d < 3; ++d )
+				resolution[ d ] = r.get( d ).getAsDouble();
+			if ( pixelResolution.getAsJsonObject().has( "unit" ) )
+				unit = pixelResolution.getAsJsonObject().get( "unit" ).getAsString();
+		}
+		else if ( pixelResolution != null && pixelResolution.isJsonArray() )
+		{
+			for ( int d = 0; d < 3; ++d )
+				resolution[ d ] = pixelResolution.getAsJsonArray().get( d ).getAsDouble();
+		}
+
+		final CellFileImageMetaData metaData = new CellFileImageMetaData(
+				group.getAbsolutePath() + "/s%1$d/%2$d/%3$d/%4$d",
+				getImageType( dataType ),
+				imageDimensions,
+				downsampleFactors,
+				cellDimensions,
+				new double[][] {
+					new double[] { 1, 0, 0, 0 },
+					new double[] { 0, 1, 0, 0 },
+					new double[] { 0, 0, 1, 0 } },
+				new FinalVoxelDimensions( unit, resolution ) );
+		metaData.setCellFileFormat( "n5", compression );
+		return metaData;
+	}
+
+	static private String getImageType( final String dataType ) throws IOException
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+			return "GRAY8";
+		case "uint16":
+			return "GRAY16";
+		case "float32":
+			return "GRAY32";
+		default:
+			throw new IOException( "unsupported N5 data type " + dataType );
+		}
+	}
+
+	/**
+	 * Supports both the current <code>"compression": { "type": ... }</code>
+	 * and the legacy <code>"compressionType"</code> attribute.
+	 */
+	static private String getCompression( final JsonObject attributes )
+	{
+		if ( attributes.has( "compression" ) )
+		{
+			final JsonObject compression = attributes.getAsJsonObject( "compression" );
+			final String type = compression.get( "type" ).getAsString();
+			if ( type.equals( "gzip" ) && compression.has( "useZlib" ) && compression.get( "useZlib" ).getAsBoolean() )
+				return "zlib";
+			return type;
+		}
+		else if ( attributes.has( "compressionType" ) )
+			return attributes.get( "compressionType" ).getAsString();
+		else
+			return "raw";
+	}
+
+	static private JsonObject readAttributes( final File group ) throws IOException
+	{
+		final File file = new File( group, "attributes.json" );
+		if ( !file.isFile() )
+			return new JsonObject();
+		try ( final Reader reader = new FileReader( file ) )
+		{
+			return new JsonParser().parse( reader ).getAsJsonObject();
+		}
+	}
+
+	static private long[] getLongArray( final JsonArray array )
+	{
+		final long[] values = new long[ array.size() ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = array.get( i ).getAsLong();
+		return values;
+	}
+
+	static private int[] toIntArray( final long[] values )
+	{
+		final int[] ints = new int[ values.length ];
+		for ( int i = 0; i < ints.length; ++i )
+			ints[ i ] = ( int )values[ i ];
+		return ints;
+	}
+}
@@ -0,0 +1,384 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Per scale level bitmap of the cells that exist in a cell file export.
+ * Cells that are not in the index do not need to be looked up in the
+ * file system at all.
+ *
+ * The index is either built by a parallel scan that lists every directory
+ * containing cell files once, or loaded from a sidecar file written by
+ * {@link #save(File)}.  A sidecar is stale if any directory that contains
+ * (or would contain) cell files was modified after it was written, i.e.
+ * if cells were added to or removed from the export since.
+ */
+public class CellFilePresenceIndex
+{
+	final static private int MAGIC = 0x43465049; // "CFPI"
+
+	final private long[][] gridDimensions;
+
+	final private BitSet[] cells;
+
+	private CellFilePresenceIndex( final long[][] gridDimensions, final BitSet[] cells )
+	{
+		this.gridDimensions = gridDimensions;
+		this.cells = cells;
+	}
+
+	/**
+	 * @param level
+	 * @param gridPosition
+	 * @return true if the cell at the given grid position exists
+	 */
+	public boolean contains( final int level, final long[] gridPosition )
+	{
+		if ( level >= cells.length )
+			return true;
+
+		final long[] g = gridDimensions[ level ];
+		return cells[ level ].get( ( int )( gridPosition[ 0 ] + g[ 0 ] * ( gridPosition[ 1 ] + g[ 1 ] * gridPosition[ 2 ] ) ) );
+	}
+
+	/**
+	 * @param level
+	 * @return number of existing cells at the given level
+	 */
+	public int numCells( final int level )
+	{
+		return cells[ level ].cardinality();
+	}
+
+	/**
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @return true if this index was built for a dataset of the given
+	 *   dimensions and cell dimensions
+	 */
+	public boolean matches( final long[][] dimensions, final int[][] cellDimensions )
+	{
+		return Arrays.deepEquals( gridDimensions, createGridDimensions( dimensions, cellDimensions ) );
+	}
+
+	public static long[][] createGridDimensions( final long[][] dimensions, final int[][] cellDimensions )
+	{
+		final long[][] gridDimensions = new long[ dimensions.length ][ 3 ];
+		for ( int level = 0; level < dimensions.length; ++level )
+			for ( int d = 0; d < 3; ++d )
+				gridDimensions[ level ][ d ] = ( dimensions[ level ][ d ] + cellDimensions[ level ][ d ] - 1 ) / cellDimensions[ level ][ d ];
+		return gridDimensions;
+	}
+
+	/**
+	 * Build an index by listing all directories that contain cell files.
+	 * Levels are scanned one after the other, the rows of cells of a level
+	 * in parallel, every directory is listed only once.  Listings are kept
+	 * only while their level is scanned.  Virtual levels of a
+	 * {@link CellFileVirtualLevels} reader have no files and stay empty.
+	 *
+	 * @param reader
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param numThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public static CellFilePresenceIndex build(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int numThreads ) throws InterruptedException
+	{
+		final long[][] gridDimensions = createGridDimensions( dimensions, cellDimensions );
+		final BitSet[] cells = new BitSet[ gridDimensions.length ];
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			for ( int level = 0; level < gridDimensions.length; ++level )
+			{
+				cells[ level ] = new BitSet();
+				if ( isVirtual( reader, level ) )
+					continue;
+
+				final ConcurrentHashMap< String, Set< String > > listings = new ConcurrentHashMap<>();
+				final ArrayList< Future< List< Integer > > > futures = new ArrayList<>();
+				final int l = level;
+				final long[] g = gridDimensions[ level ];
+				final int[] cellSize = cellDimensions[ level ];
+				for ( long z = 0; z < g[ 2 ]; ++z )
+				{
+					for ( long y = 0; y < g[ 1 ]; ++y )
+					{
+						final long gy = y, gz = z;
+						futures.add( exec.submit( () -> {
+							final ArrayList< Integer > existing = new ArrayList<>();
+							final long[] gridPosition = new long[]{ 0, gy, gz };
+							final long[] min = new long[]{ 0, gy * cellSize[ 1 ], gz * cellSize[ 2 ] };
+							for ( long x = 0; x < g[ 0 ]; ++x )
+							{
+								gridPosition[ 0 ] = x;
+								min[ 0 ] = x * cellSize[ 0 ];
+								final File file = new File( reader.getCellPath( l, gridPosition, min ) );
+								final String parent = file.getParent() == null ? "." : file.getParent();
+								final Set< String > names = listings.computeIfAbsent( parent, CellFilePresenceIndex::list );
+								if ( names.contains( file.getName() ) )
+									existing.add( ( int )( x + g[ 0 ] * ( gy + g[ 1 ] * gz ) ) );
+							}
+							return existing;
+						} ) );
+					}
+				}
+
+				for ( final Future< List< Integer > > future : futures )
+					for ( final int index : future.get() )
+						cells[ level ].set( index );
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+
+		return new CellFilePresenceIndex( gridDimensions, cells );
+	}
+
+	static private boolean isVirtual( final CellFileReader reader, final int level )
+	{
+		return reader instanceof CellFileVirtualLevels && ( ( CellFileVirtualLevels )reader ).isVirtual( level );
+	}
+
+	static private Set< String > list( final String directory )
+	{
+		final String[] names = new File( directory ).list();
+		if ( names == null )
+			return Collections.emptySet();
+		else
+			return new HashSet<>( Arrays.asList( names ) );
+	}
+
+	/**
+	 * Latest modification time of the directories that contain the cell
+	 * files of all levels that are on disk.  Adding or removing a cell file
+	 * touches its directory, creating a directory makes it appear.  Each
+	 * row of cells collects its distinct directories, every directory is
+	 * checked once.
+	 *
+	 * @param reader
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param numThreads
+	 * @return milliseconds since the epoch, 0 if no directory exists
+	 * @throws InterruptedException
+	 */
+	public static long lastModified(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int numThreads ) throws InterruptedException
+	{
+		final long[][] gridDimensions = createGridDimensions( dimensions, cellDimensions );
+		final ConcurrentHashMap< String, Long > directories = new ConcurrentHashMap<>();
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final ArrayList< Future< ? > > futures = new ArrayList<>();
+			for ( int level = 0; level < gridDimensions.length; ++level )
+			{
+				if ( isVirtual( reader, level ) )
+					continue;
+
+				final int l = level;
+				final long[] g = gridDimensions[ level ];
+				final int[] cellSize = cellDimensions[ level ];
+				for ( long z = 0; z < g[ 2 ]; ++z )
+				{
+					for ( long y = 0; y < g[ 1 ]; ++y )
+					{
+						final long gy = y, gz = z;
+						futures.add( exec.submit( () -> {
+							final HashSet< String > rowDirectories = new HashSet<>();
+							final long[] gridPosition = new long[]{ 0, gy, gz };
+							final long[] min = new long[]{ 0, gy * cellSize[ 1 ], gz * cellSize[ 2 ] };
+							for ( long x = 0; x < g[ 0 ]; ++x )
+							{
+								gridPosition[ 0 ] = x;
+								min[ 0 ] = x * cellSize[ 0 ];
+								final String parent = new File( reader.getCellPath( l, gridPosition, min ) ).getParent();
+								rowDirectories.add( parent == null ? "." : parent );
+							}
+							for ( final String directory : rowDirectories )
+								directories.computeIfAbsent( directory, d -> new File( d ).lastModified() );
+						} ) );
+					}
+				}
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+
+		long lastModified = 0;
+		for ( final long t : directories.values() )
+			lastModified = Math.max( lastModified, t );
+		return lastModified;
+	}
+
+	/**
+	 * Save as a gzipped binary sidecar file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save( final File file ) throws IOException
+	{
+		try ( final DataOutputStream out = new DataOutputStream( new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( cells.length );
+			for ( int level = 0; level < cells.length; ++level )
+			{
+				for ( int d = 0; d < 3; ++d )
+					out.writeLong( gridDimensions[ level ][ d ] );
+				final long[] words = cells[ level ].toLongArray();
+				out.writeInt( words.length );
+				for ( final long word : words )
+					out.writeLong( word );
+			}
+		}
+	}
+
+	/**
+	 * Load from a sidecar file written by {@link #save(File)}.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static CellFilePresenceIndex load( final File file ) throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new GZIPInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) )
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "not a cell presence index: " + file );
+
+			final int numLevels = in.readInt();
+			final long[][] gridDimensions = new long[ numLevels ][ 3 ];
+			final BitSet[] cells = new BitSet[ numLevels ];
+			for ( int level = 0; level < numLevels; ++level )
+			{
+				for ( int d = 0; d < 3; ++d )
+					gridDimensions[ level ][ d ] = in.readLong();
+				final long[] words = new long[ in.readInt() ];
+				for ( int i = 0; i < words.length; ++i )
+					words[ i ] = in.readLong();
+				cells[ level ] = BitSet.valueOf( words );
+			}
+			return new CellFilePresenceIndex( gridDimensions, cells );
+		}
+	}
+
+	/**
+	 * Load the index from <code>sidecar</code> if it exists, is not older
+	 * than <code>reference</code> (typically the JSON export description)
+	 * and than any directory of cell files (see
+	 * {@link #lastModified(CellFileReader, long[][], int[][], int)}), and
+	 * matches the dataset.  Otherwise, build it and try to save it as
+	 * <code>sidecar</code> for the next time.
+	 *
+	 * @param sidecar
+	 * @param reference
+	 * @param reader
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param numThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public static CellFilePresenceIndex loadOrBuild(
+			final File sidecar,
+			final File reference,
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int numThreads ) throws InterruptedException
+	{
+		if (
+				sidecar.isFile() &&
+				sidecar.lastModified() >= reference.lastModified() &&
+				sidecar.lastModified() >= lastModified( reader, dimensions, cellDimensions, numThreads ) )
+		{
+			try
+			{
+				final CellFilePresenceIndex index = load( sidecar );
+				if ( index.matches( dimensions, cellDimensions ) )
+					return index;
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "Could not read cell index " + sidecar + ": " + e.getMessage() );
+			}
+		}
+
+		final CellFilePresenceIndex index = build( reader, dimensions, cellDimensions, numThreads );
+		try
+		{
+			index.save( sidecar );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not write cell index " + sidecar + ": " + e.getMessage() );
+		}
+		return index;
+	}
+}
@@ -0,0 +1,641 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Generates the coarser scale levels of a file per cell export from its
+ * level 0 cells, in the same cellFormat layout.  Every level is computed
+ * from the previous one.  The output cells of a level are split
+ * recursively over a {@link ForkJoinPool}, each output cell streams
+ * through the source cells it covers one at a time, such that memory is
+ * bounded by one source and one output cell per thread.  Output cells
+ * without any existing source cell are not written, and deleted if an
+ * earlier build wrote them, such that rebuilding a level leaves no stale
+ * cells behind.
+ *
+ * Intensities are averaged, labels are downsampled to the most frequent
+ * label (mode) of each block such that no new labels are invented.
+ *
+ * Usage:
+ * <pre>
+ * CellFilePyramidBuilder &lt;input.json&gt; &lt;output.json&gt; [average|mode] [maxNumLevels] [numThreads]
+ * </pre>
+ * rebuilds all levels above 0 of all channels of <code>input.json</code>
+ * and writes the JSON export description with the new downsampleFactors
+ * and cellDimensions to <code>output.json</code>, which may be
+ * <code>input.json</code>.
+ */
+public class CellFilePyramidBuilder
+{
+	public enum Downsampling
+	{
+		/** mean of each block, for intensities */
+		AVERAGE,
+
+		/** most frequent value of each block, for labels */
+		MODE
+	}
+
+	/**
+	 * Propose downsampling factors relative to level 0.  Every level
+	 * halves the resolution of the dimensions whose voxels are less than
+	 * twice as large as the smallest voxel extent of the previous level,
+	 * such that anisotropic data becomes more isotropic first.  Dimensions
+	 * that are a single pixel at the previous level are not halved and
+	 * ignored for the smallest voxel extent.  Levels are added until the
+	 * whole image fits into one cell.
+	 *
+	 * @param imageDimensions level 0 dimensions
+	 * @param cellDimensions
+	 * @param voxelDimensions level 0 voxel size
+	 * @param maxNumLevels
+	 * @return factors for each level, level 0 is {1, 1, 1}
+	 */
+	public static int[][] proposeDownsampleFactors(
+			final long[] imageDimensions,
+			final int[] cellDimensions,
+			final double[] voxelDimensions,
+			final int maxNumLevels )
+	{
+		final ArrayList< int[] > factors = new ArrayList<>();
+		factors.add( new int[] { 1, 1, 1 } );
+		while ( factors.size() < maxNumLevels )
+		{
+			final int[] last = factors.get( factors.size() - 1 );
+			boolean fits = true;
+			double minVoxelSize = Double.MAX_VALUE;
+			for ( int d = 0; d < 3; ++d )
+			{
+				fits &= imageDimensions[ d ] / last[ d ] <= cellDimensions[ d ];
+				/* dimensions that cannot be halved anymore, e.g. of a single section, do not hold back the others */
+				if ( imageDimensions[ d ] / ( 2L * last[ d ] ) > 0 )
+					minVoxelSize = Math.min( minVoxelSize, voxelDimensions[ d ] * last[ d ] );
+			}
+			if ( fits )
+				break;
+
+			final int[] next = last.clone();
+			boolean halved = false;
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( voxelDimensions[ d ] * last[ d ] < 2 * minVoxelSize && imageDimensions[ d ] / ( 2L * last[ d ] ) > 0 )
+				{
+					next[ d ] *= 2;
+					halved = true;
+				}
+			}
+			if ( !halved )
+				break;
+			factors.add( next );
+		}
+		return factors.toArray( new int[ factors.size() ][] );
+	}
+
+	/**
+	 * Build levels 1 to <code>downsampleFactors.length - 1</code>.
+	 *
+	 * @param reader reads the cells of all levels
+	 * @param writer writes cells where <code>reader</code> reads them
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param imageDimensions level 0 dimensions
+	 * @param cellDimensions cell dimensions of all levels
+	 * @param downsampleFactors factors of all levels relative to level 0,
+	 *   each a multiple of the previous one
+	 * @param downsampling
+	 * @param numThreads
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void build(
+			final CellFileReader reader,
+			final CellFileWriter writer,
+			final String imageType,
+			final long[] imageDimensions,
+			final int[] cellDimensions,
+			final int[][] downsampleFactors,
+			final Downsampling downsampling,
+			final int numThreads ) throws IOException, InterruptedException
+	{
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			for ( int level = 1; level < downsampleFactors.length; ++level )
+			{
+				final Level l = new Level( reader, writer, imageType, imageDimensions, cellDimensions, downsampleFactors, level, downsampling );
+				pool.submit( new DownsampleCells( l, new long[ 3 ], l.gridDimensions ) ).get();
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof UncheckedIOException )
+				throw ( ( UncheckedIOException )e.getCause() ).getCause();
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/* everything the output cells of one level share */
+	static private class Level
+	{
+		final CellFileReader reader;
+		final CellFileWriter writer;
+		final String imageType;
+		final int level;
+		final long[] sourceDimensions = new long[ 3 ];
+		final long[] dimensions = new long[ 3 ];
+		final long[] gridDimensions = new long[ 3 ];
+		final int[] cellDimensions;
+		final int[] factors = new int[ 3 ];
+		final Downsampling downsampling;
+
+		Level(
+				final CellFileReader reader,
+				final CellFileWriter writer,
+				final String imageType,
+				final long[] imageDimensions,
+				final int[] cellDimensions,
+				final int[][] downsampleFactors,
+				final int level,
+				final Downsampling downsampling )
+		{
+			this.reader = reader;
+			this.writer = writer;
+			this.imageType = imageType;
+			this.level = level;
+			this.cellDimensions = cellDimensions;
+			this.downsampling = downsampling;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( downsampleFactors[ level ][ d ] % downsampleFactors[ level - 1 ][ d ] != 0 )
+					throw new IllegalArgumentException( "downsampling factors of level " + level + " are not a multiple of those of level " + ( level - 1 ) );
+				factors[ d ] = downsampleFactors[ level ][ d ] / downsampleFactors[ level - 1 ][ d ];
+				sourceDimensions[ d ] = imageDimensions[ d ] / downsampleFactors[ level - 1 ][ d ];
+				dimensions[ d ] = imageDimensions[ d ] / downsampleFactors[ level ][ d ];
+				gridDimensions[ d ] = ( dimensions[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+			}
+		}
+	}
+
+	/* output cells in [gridMin, gridMax) */
+	static private class DownsampleCells extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final Level level;
+		final long[] gridMin;
+		final long[] gridMax;
+
+		DownsampleCells( final Level level, final long[] gridMin, final long[] gridMax )
+		{
+			this.level = level;
+			this.gridMin = gridMin;
+			this.gridMax = gridMax;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int longest = 0;
+			for ( int d = 1; d < 3; ++d )
+				if ( gridMax[ d ] - gridMin[ d ] > gridMax[ longest ] - gridMin[ longest ] )
+					longest = d;
+
+			final long n = gridMax[ longest ] - gridMin[ longest ];
+			if ( n <= 0 )
+				return;
+			if ( n == 1 && gridMax[ 0 ] - gridMin[ 0 ] == 1 && gridMax[ 1 ] - gridMin[ 1 ] == 1 && gridMax[ 2 ] - gridMin[ 2 ] == 1 )
+			{
+				try
+				{
+					downsampleCell( level, gridMin );
+				}
+				catch ( final IOException e )
+				{
+					throw new UncheckedIOException( e );
+				}
+				return;
+			}
+
+			final long[] splitMax = gridMax.clone();
+			final long[] splitMin = gridMin.clone();
+			splitMax[ longest ] = splitMin[ longest ] = gridMin[ longest ] + n / 2;
+			invokeAll( new DownsampleCells( level, gridMin, splitMax ), new DownsampleCells( level, splitMin, gridMax ) );
+		}
+	}
+
+	static private void downsampleCell( final Level l, final long[] gridPosition ) throws IOException
+	{
+		final long[] min = new long[ 3 ];
+		final int[] dimensions = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = gridPosition[ d ] * l.cellDimensions[ d ];
+			dimensions[ d ] = ( int )Math.min( l.cellDimensions[ d ], l.dimensions[ d ] - min[ d ] );
+		}
+
+		final Object output = downsample(
+				l.reader,
+				l.imageType,
+				l.level - 1,
+				l.sourceDimensions,
+				l.cellDimensions,
+				l.factors,
+				l.downsampling,
+				min,
+				dimensions );
+		if ( output != null )
+			l.writer.write( l.level, gridPosition, min, dimensions, output );
+		else
+			l.writer.delete( l.level, gridPosition, min );
+	}
+
+	/**
+	 * Downsample the block of a coarser level at <code>min</code> from the
+	 * cells of <code>sourceLevel</code>.  Averages stream through the
+	 * covered source cells one at a time, modes are computed one output
+	 * z-slice at a time from the rows of source cells that it covers.
+	 *
+	 * @param source
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param sourceLevel
+	 * @param sourceDimensions dimensions of <code>sourceLevel</code>
+	 * @param sourceCellDimensions cell dimensions of <code>sourceLevel</code>
+	 * @param factors downsampling factors relative to <code>sourceLevel</code>
+	 * @param downsampling
+	 * @param min of the block in the coarser level
+	 * @param dimensions of the block
+	 * @return the block or null if none of the source cells exists
+	 * @throws IOException
+	 */
+	static Object downsample(
+			final CellFileReader source,
+			final String imageType,
+			final int sourceLevel,
+			final long[] sourceDimensions,
+			final int[] sourceCellDimensions,
+			final int[] factors,
+			final Downsampling downsampling,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		if ( downsampling == Downsampling.MODE )
+			return downsampleMode( source, imageType, sourceLevel, sourceDimensions, sourceCellDimensions, factors, min, dimensions );
+
+		final int[] cellSize = sourceCellDimensions;
+		final int[] f = factors;
+		final int blockSize = f[ 0 ] * f[ 1 ] * f[ 2 ];
+
+		final long[] sourceMin = new long[ 3 ];
+		final long[] sourceMax = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			sourceMin[ d ] = min[ d ] * f[ d ];
+			sourceMax[ d ] = ( min[ d ] + dimensions[ d ] ) * f[ d ];
+		}
+		final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+
+		final double[] sums = new double[ numEntities ];
+
+		/* stream through the source cells covered by the block */
+		boolean found = false;
+		final long[] sourceGridPosition = new long[ 3 ];
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDimensions = new int[ 3 ];
+		for ( long gz = sourceMin[ 2 ] / cellSize[ 2 ]; gz * cellSize[ 2 ] < sourceMax[ 2 ]; ++gz )
+			for ( long gy = sourceMin[ 1 ] / cellSize[ 1 ]; gy * cellSize[ 1 ] < sourceMax[ 1 ]; ++gy )
+				for ( long gx = sourceMin[ 0 ] / cellSize[ 0 ]; gx * cellSize[ 0 ] < sourceMax[ 0 ]; ++gx )
+				{
+					sourceGridPosition[ 0 ] = gx;
+					sourceGridPosition[ 1 ] = gy;
+					sourceGridPosition[ 2 ] = gz;
+					for ( int d = 0; d < 3; ++d )
+					{
+						cellMin[ d ] = sourceGridPosition[ d ] * cellSize[ d ];
+						cellDimensions[ d ] = ( int )Math.min( cellSize[ d ], sourceDimensions[ d ] - cellMin[ d ] );
+					}
+					final Object data = source.read(
+							sourceLevel,
+							sourceGridPosition,
+							cellMin,
+							cellDimensions,
+							CellFileImageLoaderFactory.createStorageArray( imageType, cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ) );
+					if ( data == null )
+						continue;
+					found = true;
+
+					final long x0 = Math.max( sourceMin[ 0 ], cellMin[ 0 ] ), x1 = Math.min( sourceMax[ 0 ], cellMin[ 0 ] + cellDimensions[ 0 ] );
+					final long y0 = Math.max( sourceMin[ 1 ], cellMin[ 1 ] ), y1 = Math.min( sourceMax[ 1 ], cellMin[ 1 ] + cellDimensions[ 1 ] );
+					final long z0 = Math.max( sourceMin[ 2 ], cellMin[ 2 ] ), z1 = Math.min( sourceMax[ 2 ], cellMin[ 2 ] + cellDimensions[ 2 ] );
+					for ( long z = z0; z < z1; ++z )
+					{
+						final int oz = ( int )( z / f[ 2 ] - min[ 2 ] );
+						for ( long y = y0; y < y1; ++y )
+						{
+							final int oy = ( int )( y / f[ 1 ] - min[ 1 ] );
+							int i = ( int )( ( ( z - cellMin[ 2 ] ) * cellDimensions[ 1 ] + y - cellMin[ 1 ] ) * cellDimensions[ 0 ] + x0 - cellMin[ 0 ] );
+							for ( long x = x0; x < x1; ++x, ++i )
+							{
+								sums[ ( oz * dimensions[ 1 ] + oy ) * dimensions[ 0 ] + ( int )( x / f[ 0 ] - min[ 0 ] ) ] += getReal( data, i );
+							}
+						}
+					}
+				}
+
+		if ( !found )
+			return null;
+
+		final Object output = CellFileImageLoaderFactory.createStorageArray( imageType, numEntities );
+		for ( int o = 0; o < numEntities; ++o )
+			setReal( output, o, sums[ o ] / blockSize );
+		return output;
+	}
+
+	/**
+	 * {@link Downsampling#MODE} for
+	 * {@link #downsample(CellFileReader, String, int, long[], int[], int[], Downsampling, long[], int[])}.
+	 * Only the rows of source cells that cover the current output z-slice
+	 * are kept, the values of one output voxel are collected in a scratch
+	 * array of one block.  Voxels outside of the source or in missing cells
+	 * count as 0.
+	 */
+	static private Object downsampleMode(
+			final CellFileReader source,
+			final String imageType,
+			final int sourceLevel,
+			final long[] sourceDimensions,
+			final int[] sourceCellDimensions,
+			final int[] factors,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		final int[] cellSize = sourceCellDimensions;
+		final int[] f = factors;
+		final int[] values = new int[ f[ 0 ] * f[ 1 ] * f[ 2 ] ];
+
+		/* source cells of the block in x and y, rows are added and dropped along z */
+		final long gx0 = min[ 0 ] * f[ 0 ] / cellSize[ 0 ];
+		final long gy0 = min[ 1 ] * f[ 1 ] / cellSize[ 1 ];
+		final int numX = ( int )( ( ( min[ 0 ] + dimensions[ 0 ] ) * f[ 0 ] - 1 ) / cellSize[ 0 ] - gx0 + 1 );
+		final int numY = ( int )( ( ( min[ 1 ] + dimensions[ 1 ] ) * f[ 1 ] - 1 ) / cellSize[ 1 ] - gy0 + 1 );
+		final TreeMap< Long, Object[] > rows = new TreeMap<>();
+
+		boolean found = false;
+		final Object output = CellFileImageLoaderFactory.createStorageArray( imageType, dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+		final long[] sourceGridPosition = new long[ 3 ];
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDimensions = new int[ 3 ];
+		for ( int oz = 0, o = 0; oz < dimensions[ 2 ]; ++oz )
+		{
+			final long z0 = ( min[ 2 ] + oz ) * f[ 2 ];
+			final long z1 = Math.min( z0 + f[ 2 ], sourceDimensions[ 2 ] );
+			rows.headMap( z0 / cellSize[ 2 ] ).clear();
+			for ( long gz = z0 / cellSize[ 2 ]; gz * cellSize[ 2 ] < z1; ++gz )
+			{
+				if ( rows.containsKey( gz ) )
+					continue;
+				final Object[] row = new Object[ numX * numY ];
+				for ( int j = 0; j < numY; ++j )
+					for ( int i = 0; i < numX; ++i )
+					{
+						sourceGridPosition[ 0 ] = gx0 + i;
+						sourceGridPosition[ 1 ] = gy0 + j;
+						sourceGridPosition[ 2 ] = gz;
+						for ( int d = 0; d < 3; ++d )
+						{
+							cellMin[ d ] = sourceGridPosition[ d ] * cellSize[ d ];
+							cellDimensions[ d ] = ( int )Math.min( cellSize[ d ], sourceDimensions[ d ] - cellMin[ d ] );
+						}
+						if ( cellDimensions[ 0 ] <= 0 || cellDimensions[ 1 ] <= 0 )
+							continue;
+						row[ j * numX + i ] = source.read(
+								sourceLevel,
+								sourceGridPosition,
+								cellMin,
+								cellDimensions,
+								CellFileImageLoaderFactory.createStorageArray( imageType, cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ) );
+						found |= row[ j * numX + i ] != null;
+					}
+				rows.put( gz, row );
+			}
+
+			for ( int oy = 0; oy < dimensions[ 1 ]; ++oy )
+			{
+				final long y0 = ( min[ 1 ] + oy ) * f[ 1 ];
+				final long y1 = Math.min( y0 + f[ 1 ], sourceDimensions[ 1 ] );
+				for ( int ox = 0; ox < dimensions[ 0 ]; ++ox, ++o )
+				{
+					final long x0 = ( min[ 0 ] + ox ) * f[ 0 ];
+					final long x1 = Math.min( x0 + f[ 0 ], sourceDimensions[ 0 ] );
+					Arrays.fill( values, 0 );
+					int k = 0;
+					for ( long z = z0; z < z1; ++z )
+					{
+						final long gz = z / cellSize[ 2 ];
+						final Object[] row = rows.get( gz );
+						for ( long y = y0; y < y1; ++y )
+						{
+							final long gy = y / cellSize[ 1 ];
+							for ( long x = x0; x < x1; ++x )
+							{
+								final long gx = x / cellSize[ 0 ];
+								final Object data = row[ ( int )( ( gy - gy0 ) * numX + gx - gx0 ) ];
+								if ( data != null )
+								{
+									final long cellWidth = Math.min( cellSize[ 0 ], sourceDimensions[ 0 ] - gx * cellSize[ 0 ] );
+									final long cellHeight = Math.min( cellSize[ 1 ], sourceDimensions[ 1 ] - gy * cellSize[ 1 ] );
+									values[ k ] = getBits( data, ( int )( ( ( z - gz * cellSize[ 2 ] ) * cellHeight + y - gy * cellSize[ 1 ] ) * cellWidth + x - gx * cellSize[ 0 ] ) );
+								}
+								++k;
+							}
+						}
+					}
+					setBits( output, o, mode( values, 0, values.length ) );
+				}
+			}
+		}
+		return found ? output : null;
+	}
+
+	/**
+	 * Most frequent value in <code>values[offset, offset + length)</code>,
+	 * the smallest of equally frequent values.  Sorts the range.
+	 */
+	static private int mode( final int[] values, final int offset, final int length )
+	{
+		Arrays.sort( values, offset, offset + length );
+		int mode = values[ offset ];
+		int maxCount = 0;
+		for ( int i = offset, end = offset + length; i < end; )
+		{
+			int j = i + 1;
+			while ( j < end && values[ j ] == values[ i ] )
+				++j;
+			if ( j - i > maxCount )
+			{
+				maxCount = j - i;
+				mode = values[ i ];
+			}
+			i = j;
+		}
+		return mode;
+	}
+
+	static double getReal( final Object data, final int i )
+	{
+		if ( data instanceof byte[] )
+			return ( ( byte[] )data )[ i ] & 0xff;
+		else if ( data instanceof short[] )
+			return ( ( short[] )data )[ i ] & 0xffff;
+		else
+			return ( ( float[] )data )[ i ];
+	}
+
+	static private void setReal( final Object data, final int i, final double value )
+	{
+		if ( data instanceof byte[] )
+			( ( byte[] )data )[ i ] = ( byte )Math.round( value );
+		else if ( data instanceof short[] )
+			( ( short[] )data )[ i ] = ( short )Math.round( value );
+		else
+			( ( float[] )data )[ i ] = ( float )value;
+	}
+
+	static private int getBits( final Object data, final int i )
+	{
+		if ( data instanceof byte[] )
+			return ( ( byte[] )data )[ i ];
+		else if ( data instanceof short[] )
+			return ( ( short[] )data )[ i ];
+		else
+			return Float.floatToIntBits( ( ( float[] )data )[ i ] );
+	}
+
+	static private void setBits( final Object data, final int i, final int bits )
+	{
+		if ( data instanceof byte[] )
+			( ( byte[] )data )[ i ] = ( byte )bits;
+		else if ( data instanceof short[] )
+			( ( short[] )data )[ i ] = ( short )bits;
+		else
+			( ( float[] )data )[ i ] = Float.intBitsToFloat( bits );
+	}
+
+	public static void main( final String... args ) throws IOException, InterruptedException
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println( "usage: CellFilePyramidBuilder <input.json> <output.json> [average|mode] [maxNumLevels] [numThreads]" );
+			System.exit( 1 );
+		}
+
+		final String jsonPath = args[ 0 ];
+		final File outputFile = new File( args[ 1 ] );
+		final Downsampling downsampling = args.length > 2 ? Downsampling.valueOf( args[ 2 ].toUpperCase() ) : Downsampling.AVERAGE;
+		final int maxNumLevels = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 16;
+		final int numThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : Runtime.getRuntime().availableProcessors();
+
+		final Gson gson = new Gson();
+		final JsonArray json;
+		try ( final Reader reader = new FileReader( jsonPath ) )
+		{
+			json = new JsonParser().parse( reader ).getAsJsonArray();
+		}
+		final CellFileImageMetaData[] metaDatas = gson.fromJson( json, CellFileImageMetaData[].class );
+
+		/* fail before writing anything if a channel cannot be written */
+		final CellFileWriter[] writers = new CellFileWriter[ metaDatas.length ];
+		for ( int c = 0; c < metaDatas.length; ++c )
+			writers[ c ] = CellFileImageLoaderFactory.createCellFileWriter( metaDatas[ c ] );
+
+		for ( int c = 0; c < metaDatas.length; ++c )
+		{
+			final CellFileImageMetaData metaData = metaDatas[ c ];
+			final long[] dimensions = metaData.getImageDimensions()[ 0 ];
+			final int[] cellDimensions = metaData.getCellDimensions()[ 0 ];
+			final int[] baseFactors = metaData.getDownsampleFactors()[ 0 ];
+			final double[] voxelDimensions = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				voxelDimensions[ d ] = metaData.getVoxelDimensions().dimension( d ) * baseFactors[ d ];
+
+			final int[][] factors = proposeDownsampleFactors( dimensions, cellDimensions, voxelDimensions, maxNumLevels );
+
+			System.out.println( "building " + ( factors.length - 1 ) + " levels of channel " + c );
+			final long t = System.currentTimeMillis();
+			build(
+					CellFileImageLoaderFactory.createCellFileReader( metaData ),
+					writers[ c ],
+					metaData.getImageType(),
+					dimensions,
+					cellDimensions,
+					factors,
+					downsampling,
+					numThreads );
+			System.out.println( "built channel " + c + " in " + ( System.currentTimeMillis() - t ) + "ms" );
+
+			/* factors in the export description are relative to the full resolution */
+			final JsonObject downsampleFactorsJson = new JsonObject();
+			final JsonObject cellDimensionsJson = new JsonObject();
+			for ( int level = 0; level < factors.length; ++level )
+			{
+				final int[] absoluteFactors = new int[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					absoluteFactors[ d ] = factors[ level ][ d ] * baseFactors[ d ];
+				downsampleFactorsJson.add( Integer.toString( level ), gson.toJsonTree( absoluteFactors ) );
+				cellDimensionsJson.add( Integer.toString( level ), gson.toJsonTree( cellDimensions ) );
+			}
+			final JsonObject channel = json.get( c ).getAsJsonObject();
+			channel.add( "downsampleFactors", downsampleFactorsJson );
+			channel.add( "cellDimensions", cellDimensionsJson );
+		}
+
+		final File tmpFile = new File( outputFile.getAbsolutePath() + ".tmp" );
+		try ( final Writer writer = new FileWriter( tmpFile ) )
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( ( JsonElement )json, writer );
+		}
+		Files.move( tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link CellFileReader} for one raw file per cell.  A raw cell file
+ * contains an optional header of fixed length followed by the samples of
+ * the cell in x, y, z order and the given byte order, i.e. exactly
+ * width &times; height &times; depth samples of the (possibly truncated)
+ * cell.  Files are read with one positional read into a heap buffer and
+ * bulk copied into the cell, mapping every cell would hold address space
+ * and file handles until the mappings are garbage collected.
+ */
+public class CellFileRawReader implements CellFileReader
+{
+	final private String cellFormat;
+
+	final private ByteOrder byteOrder;
+
+	final private int headerLength;
+
+	/**
+	 * @param cellFormat format string for cell paths, see
+	 *   {@link CellFileTiffReader#CellFileTiffReader(String)}
+	 * @param byteOrder
+	 * @param headerLength number of bytes to skip at the beginning of the file
+	 */
+	public CellFileRawReader(
+			final String cellFormat,
+			final ByteOrder byteOrder,
+			final int headerLength )
+	{
+		this.cellFormat = cellFormat;
+		this.byteOrder = byteOrder;
+		this.headerLength = headerLength;
+	}
+
+	public CellFileRawReader( final String cellFormat )
+	{
+		this( cellFormat, ByteOrder.nativeOrder(), 0 );
+	}
+
+	@Override
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+	{
+		return String.format(
+				cellFormat,
+				level,
+				gridPosition[ 0 ],
+				gridPosition[ 1 ],
+				gridPosition[ 2 ],
+				min[ 0 ],
+				min[ 1 ],
+				min[ 2 ] );
+	}
+
+	@Override
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final long numBytes = ( long )numEntities * bytesPerElement( storage );
+
+		try ( final FileChannel channel = FileChannel.open( Paths.get( getCellPath( level, gridPosition, min ) ), StandardOpenOption.READ ) )
+		{
+			if ( channel.size() < headerLength + numBytes )
+				throw new EOFException( "raw cell file is too short, expected " + ( headerLength + numBytes ) + " bytes" );
+
+			final ByteBuffer buffer = ByteBuffer.allocate( ( int )numBytes ).order( byteOrder );
+			readFully( channel, buffer, headerLength );
+			buffer.flip();
+			CellFileLoaderStats.opened();
+			CellFileLoaderStats.decoded();
+			CellFileLoaderStats.bytesRead( numBytes );
+			get( buffer, storage, 0, numEntities );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+
+		return storage;
+	}
+
+	static private void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, p );
+			if ( n < 0 )
+				throw new EOFException( "raw cell file is too short" );
+			p += n;
+		}
+	}
+
+	/**
+	 * Bytes per sample of a byte[], short[], float[] (or int[], long[],
+	 * double[]) storage array.
+	 *
+	 * @param storage
+	 * @return
+	 * @throws IOException for other storage types
+	 */
+	public static int bytesPerElement( final Object storage ) throws IOException
+	{
+		if ( storage instanceof byte[] )
+			return 1;
+		else if ( storage instanceof short[] )
+			return 2;
+		else if ( storage instanceof int[] || storage instanceof float[] )
+			return 4;
+		else if ( storage instanceof long[] || storage instanceof double[] )
+			return 8;
+		else
+			throw new IOException( "unsupported cell type " + storage.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Bulk copy <code>length</code> samples from the current position of
+	 * <code>buffer</code> into <code>storage</code> starting at
+	 * <code>offset</code>, respecting the byte order of <code>buffer</code>,
+	 * and advance the position of <code>buffer</code>.
+	 *
+	 * @param buffer
+	 * @param storage
+	 * @param offset
+	 * @param length
+	 * @throws IOException for unsupported storage types
+	 */
+	public static void get( final ByteBuffer buffer, final Object storage, final int offset, final int length ) throws IOException
+	{
+		final int position = buffer.position();
+		if ( storage instanceof byte[] )
+			buffer.get( ( byte[] )storage, offset, length );
+		else if ( storage instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] )storage, offset, length );
+		else if ( storage instanceof int[] )
+			buffer.asIntBuffer().get( ( int[] )storage, offset, length );
+		else if ( storage instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] )storage, offset, length );
+		else if ( storage instanceof long[] )
+			buffer.asLongBuffer().get( ( long[] )storage, offset, length );
+		else if ( storage instanceof double[] )
+			buffer.asDoubleBuffer().get( ( double[] )storage, offset, length );
+		else
+			throw new IOException( "unsupported cell type " + storage.getClass().getSimpleName() );
+
+		buffer.position( position + length * bytesPerElement( storage ) );
+	}
+
+	/**
+	 * Bulk copy <code>length</code> samples from <code>storage</code>
+	 * starting at <code>offset</code> to the current position of
+	 * <code>buffer</code>, respecting the byte order of <code>buffer</code>,
+	 * and advance the position of <code>buffer</code>.
+	 *
+	 * @param storage
+	 * @param offset
+	 * @param length
+	 * @param buffer
+	 * @throws IOException for unsupported storage types
+	 */
+	public static void put( final Object storage, final int offset, final int length, final ByteBuffer buffer ) throws IOException
+	{
+		final int position = buffer.position();
+		if ( storage instanceof byte[] )
+			buffer.put( ( byte[] )storage, offset, length );
+		else if ( storage instanceof short[] )
+			buffer.asShortBuffer().put( ( short[] )storage, offset, length );
+		else if ( storage instanceof int[] )
+			buffer.asIntBuffer().put( ( int[] )storage, offset, length );
+		else if ( storage instanceof float[] )
+			buffer.asFloatBuffer().put( ( float[] )storage, offset, length );
+		else if ( storage instanceof long[] )
+			buffer.asLongBuffer().put( ( long[] )storage, offset, length );
+		else if ( storage instanceof double[] )
+			buffer.asDoubleBuffer().put( ( double[] )storage, offset, length );
+		else
+			throw new IOException( "unsupported cell type " + storage.getClass().getSimpleName() );
+
+		buffer.position( position + length * bytesPerElement( storage ) );
+	}
+
+	/**
+	 * Parse "BIG_ENDIAN", "LITTLE_ENDIAN" or anything else as native byte
+	 * order.
+	 *
+	 * @param byteOrder
+	 * @return
+	 */
+	public static ByteOrder parseByteOrder( final String byteOrder )
+	{
+		if ( ByteOrder.BIG_ENDIAN.toString().equalsIgnoreCase( byteOrder ) )
+			return ByteOrder.BIG_ENDIAN;
+		else if ( ByteOrder.LITTLE_ENDIAN.toString().equalsIgnoreCase( byteOrder ) )
+			return ByteOrder.LITTLE_ENDIAN;
+		else
+			return ByteOrder.nativeOrder();
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes cells as raw files in the layout read by a
+ * {@link CellFileRawReader} of the same cellFormat, byte order and header
+ * length.  Headers are written as zeros.
+ */
+public class CellFileRawWriter implements CellFileWriter
+{
+	final private CellFileRawReader reader;
+
+	final private ByteOrder byteOrder;
+
+	final private int headerLength;
+
+	/**
+	 * @param cellFormat see {@link CellFileTiffReader#CellFileTiffReader(String)}
+	 * @param byteOrder
+	 * @param headerLength
+	 */
+	public CellFileRawWriter(
+			final String cellFormat,
+			final ByteOrder byteOrder,
+			final int headerLength )
+	{
+		reader = new CellFileRawReader( cellFormat, byteOrder, headerLength );
+		this.byteOrder = byteOrder;
+		this.headerLength = headerLength;
+	}
+
+	@Override
+	public void write(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object data ) throws IOException
+	{
+		final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final ByteBuffer buffer = ByteBuffer.allocate( headerLength + numEntities * CellFileRawReader.bytesPerElement( data ) ).order( byteOrder );
+		buffer.position( headerLength );
+		CellFileRawReader.put( data, 0, numEntities, buffer );
+		buffer.flip();
+
+		final Path path = Paths.get( reader.getCellPath( level, gridPosition, min ) );
+		final Path tmpPath = Paths.get( path.toString() + ".tmp" );
+		if ( path.getParent() != null )
+			Files.createDirectories( path.getParent() );
+
+		try ( final FileChannel channel = FileChannel.open(
+				tmpPath,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE ) )
+		{
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		Files.move( tmpPath, path, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	@Override
+	public void delete(
+			final int level,
+			final long[] gridPosition,
+			final long[] min ) throws IOException
+	{
+		Files.deleteIfExists( Paths.get( reader.getCellPath( level, gridPosition, min ) ) );
+	}
+}
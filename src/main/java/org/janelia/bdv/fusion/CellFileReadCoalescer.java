@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent reads of the same cell file by several
+ * {@link CellFileReader CellFileReaders}, e.g. of two channels that show
+ * the same export with different display settings.
+ *
+ * {@link #wrap(CellFileReader, Object)} decorates a reader such that a
+ * read of a cell whose
+ * {@link CellFileReader#getCellPath(int, long[], long[]) path} is already
+ * being read by a reader of the same identity waits for that read and
+ * copies its result instead of decoding the file again.  Readers share an
+ * identity only if they decode a file the same way, e.g. the readers of
+ * two channels created from equal storage parameters, see
+ * {@link CellFileImageLoaderFactory#getReaderIdentity(CellFileImageMetaData)}.
+ * If the first read fails or is cancelled, or its result does not fit
+ * (other pixel type or cell dimensions), the waiting reads read the file
+ * themselves.
+ */
+public class CellFileReadCoalescer implements CellFileReadCoalescerMBean
+{
+	final static private class Read
+	{
+		final CountDownLatch done = new CountDownLatch( 1 );
+		final int[] dimensions;
+		volatile Object result = null;
+		volatile boolean failed = true;
+
+		Read( final int[] dimensions )
+		{
+			this.dimensions = dimensions;
+		}
+	}
+
+	final static private class Key
+	{
+		final Object identity;
+		final String path;
+
+		Key( final Object identity, final String path )
+		{
+			this.identity = identity;
+			this.path = path;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key other = ( Key )o;
+			return identity.equals( other.identity ) && path.equals( other.path );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * identity.hashCode() + path.hashCode();
+		}
+	}
+
+	final private ConcurrentHashMap< Key, Read > reads = new ConcurrentHashMap<>();
+
+	final private LongAdder numReads = new LongAdder();
+
+	final private LongAdder numCoalesced = new LongAdder();
+
+	/**
+	 * Decorate <code>reader</code> such that concurrent reads of the same
+	 * cell through it are coalesced.
+	 *
+	 * @param reader
+	 * @return
+	 */
+	public CellFileReader wrap( final CellFileReader reader )
+	{
+		return wrap( reader, reader );
+	}
+
+	/**
+	 * Decorate <code>reader</code> such that its reads are coalesced with
+	 * those of all other readers wrapped by this instance with an equal
+	 * <code>identity</code>.
+	 *
+	 * @param reader
+	 * @param identity equal for readers that decode a file the same way
+	 * @return
+	 */
+	public CellFileReader wrap( final CellFileReader reader, final Object identity )
+	{
+		return new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return reader.getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read(
+					final int level,
+					final long[] gridPosition,
+					final long[] min,
+					final int[] dimensions,
+					final Object storage ) throws IOException
+			{
+				return CellFileReadCoalescer.this.read( reader, identity, level, gridPosition, min, dimensions, storage );
+			}
+		};
+	}
+
+	private Object read(
+			final CellFileReader reader,
+			final Object identity,
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		numReads.increment();
+
+		final Key key = new Key( identity, reader.getCellPath( level, gridPosition, min ) );
+		final Read read = new Read( dimensions );
+		final Read first = reads.putIfAbsent( key, read );
+		if ( first == null )
+		{
+			try
+			{
+				read.result = reader.read( level, gridPosition, min, dimensions, storage );
+				read.failed = false;
+				return read.result;
+			}
+			finally
+			{
+				reads.remove( key, read );
+				read.done.countDown();
+			}
+		}
+
+		await( first );
+		if ( !first.failed && Arrays.equals( first.dimensions, dimensions ) )
+		{
+			final Object result = first.result;
+			if ( result == null )
+			{
+				numCoalesced.increment();
+				return null;
+			}
+			final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+			if ( result.getClass() == storage.getClass() && Array.getLength( result ) >= numEntities && Array.getLength( storage ) >= numEntities )
+			{
+				System.arraycopy( result, 0, storage, 0, numEntities );
+				numCoalesced.increment();
+				return storage;
+			}
+		}
+
+		return reader.read( level, gridPosition, min, dimensions, storage );
+	}
+
+	/**
+	 * Wait for the first read of a cell, which takes no longer than
+	 * reading it again, and give up if the load on the current thread was
+	 * cancelled meanwhile.
+	 */
+	static private void await( final Read read ) throws InterruptedIOException
+	{
+		try
+		{
+			read.done.await();
+			CellFileCancellation.check();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted while waiting for a coalesced read" );
+		}
+	}
+
+	@Override
+	public long getReads()
+	{
+		return numReads.sum();
+	}
+
+	@Override
+	public long getCoalescedReads()
+	{
+		return numCoalesced.sum();
+	}
+
+	@Override
+	public int getReadsInFlight()
+	{
+		return reads.size();
+	}
+}
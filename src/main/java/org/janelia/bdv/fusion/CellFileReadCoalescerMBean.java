@@ -0,0 +1,36 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+/**
+ * JMX view of {@link CellFileReadCoalescer}.
+ */
+public interface CellFileReadCoalescerMBean
+{
+	/**
+	 * @return number of reads through all wrapped readers
+	 */
+	public long getReads();
+
+	/**
+	 * @return number of reads that were served by copying the result of a
+	 *   concurrent read of the same cell file
+	 */
+	public long getCoalescedReads();
+
+	public int getReadsInFlight();
+}
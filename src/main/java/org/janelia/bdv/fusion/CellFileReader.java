@@ -0,0 +1,61 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+
+/**
+ * Reads the cells of a cell file export from one particular storage format
+ * into the flat storage arrays (byte[], short[], float[]) that back the
+ * volatile cells of {@link AbstractCellFileArrayLoader}.
+ *
+ * Implementations must be thread-safe, they are called concurrently by all
+ * fetcher threads.
+ */
+public interface CellFileReader
+{
+	/**
+	 * Path (or other unique identifier) of the file that stores a cell.
+	 *
+	 * @param level scale level
+	 * @param gridPosition cell grid coordinates
+	 * @param min pixel coordinates of the top left front corner of the cell
+	 * @return
+	 */
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min );
+
+	/**
+	 * Read a cell of the given dimensions into <code>storage</code>.  Parts
+	 * of the cell that are not covered by the file remain untouched.
+	 *
+	 * @param level scale level
+	 * @param gridPosition cell grid coordinates
+	 * @param min pixel coordinates of the top left front corner of the cell
+	 * @param dimensions dimensions of the cell
+	 * @param storage flat storage array of the cell in x, y, z order
+	 * @return the array that holds the cell, usually <code>storage</code>,
+	 *   but readers may hand out an equivalent array that they created
+	 *   anyway, or null if the cell does not exist
+	 * @throws IOException
+	 */
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException;
+}
@@ -0,0 +1,270 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Converts a file per cell export into sharded cell containers readable by
+ * {@link CellFileShardReader}.  Shards are written in parallel, each into
+ * a temporary file that is moved into place when complete.  Shards without
+ * any existing cell are not written.
+ *
+ * Usage:
+ * <pre>
+ * CellFileShardConverter &lt;input.json&gt; &lt;output-directory&gt; [shardSize] [numThreads]
+ * </pre>
+ * writes the shards of channel c to
+ * <code>output-directory/c/level/z/y/x.shard</code> and a JSON export
+ * description pointing to them as <code>output-directory/input.json</code>.
+ */
+public class CellFileShardConverter
+{
+	/**
+	 * Convert all levels of one channel.
+	 *
+	 * @param source reader for the existing cells
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param dimensions image dimensions per level
+	 * @param cellDimensions cell dimensions per level
+	 * @param shardFormat format string for shard paths, see {@link CellFileShardReader}
+	 * @param shardSize number of cells per shard in each dimension
+	 * @param numThreads
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void convert(
+			final CellFileReader source,
+			final String imageType,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final String shardFormat,
+			final int shardSize,
+			final int numThreads ) throws IOException, InterruptedException
+	{
+		final CellFileShardReader target = new CellFileShardReader( shardFormat, shardSize, cellDimensions );
+		final long[][] gridDimensions = CellFilePresenceIndex.createGridDimensions( dimensions, cellDimensions );
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final ArrayList< Future< Void > > futures = new ArrayList<>();
+			for ( int level = 0; level < gridDimensions.length; ++level )
+			{
+				final int l = level;
+				final long[] g = gridDimensions[ level ];
+				for ( long z = 0; z < g[ 2 ]; z += shardSize )
+					for ( long y = 0; y < g[ 1 ]; y += shardSize )
+						for ( long x = 0; x < g[ 0 ]; x += shardSize )
+						{
+							final long[] shardGridMin = new long[]{ x, y, z };
+							futures.add( exec.submit( () -> {
+								writeShard( source, target, imageType, l, dimensions[ l ], cellDimensions[ l ], g, shardGridMin, shardSize );
+								return null;
+							} ) );
+						}
+			}
+
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+	}
+
+	static private void writeShard(
+			final CellFileReader source,
+			final CellFileShardReader target,
+			final String imageType,
+			final int level,
+			final long[] dimensions,
+			final int[] cellSize,
+			final long[] gridDimensions,
+			final long[] shardGridMin,
+			final int shardSize ) throws IOException
+	{
+		final int numCells = shardSize * shardSize * shardSize;
+		final long[] offsets = new long[ numCells ];
+		final int[] lengths = new int[ numCells ];
+
+		final Path path = Paths.get( target.getShardPath( level, shardGridMin ) );
+		final Path tmpPath = Paths.get( path.toString() + ".tmp" );
+		if ( path.getParent() != null )
+			Files.createDirectories( path.getParent() );
+
+		boolean empty = true;
+		try ( final FileChannel channel = FileChannel.open(
+				tmpPath,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE ) )
+		{
+			final int indexEnd = CellFileShardReader.HEADER_LENGTH + numCells * CellFileShardReader.INDEX_ENTRY_LENGTH;
+			long position = indexEnd;
+
+			final long[] gridPosition = new long[ 3 ];
+			final long[] min = new long[ 3 ];
+			final int[] cellDimensions = new int[ 3 ];
+			for ( int z = 0; z < shardSize; ++z )
+			{
+				for ( int y = 0; y < shardSize; ++y )
+				{
+					for ( int x = 0; x < shardSize; ++x )
+					{
+						gridPosition[ 0 ] = shardGridMin[ 0 ] + x;
+						gridPosition[ 1 ] = shardGridMin[ 1 ] + y;
+						gridPosition[ 2 ] = shardGridMin[ 2 ] + z;
+						if ( gridPosition[ 0 ] >= gridDimensions[ 0 ] || gridPosition[ 1 ] >= gridDimensions[ 1 ] || gridPosition[ 2 ] >= gridDimensions[ 2 ] )
+							continue;
+
+						for ( int d = 0; d < 3; ++d )
+						{
+							min[ d ] = gridPosition[ d ] * cellSize[ d ];
+							cellDimensions[ d ] = ( int )Math.min( cellSize[ d ], dimensions[ d ] - min[ d ] );
+						}
+						final int numEntities = cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ];
+
+						final Object data = source.read(
+								level,
+								gridPosition,
+								min,
+								cellDimensions,
+								CellFileImageLoaderFactory.createStorageArray( imageType, numEntities ) );
+						if ( data == null )
+							continue;
+
+						final ByteBuffer buffer = ByteBuffer
+								.allocate( numEntities * CellFileRawReader.bytesPerElement( data ) )
+								.order( CellFileShardReader.BYTE_ORDER );
+						CellFileRawReader.put( data, 0, numEntities, buffer );
+						buffer.flip();
+
+						final int i = x + shardSize * ( y + shardSize * z );
+						offsets[ i ] = position;
+						lengths[ i ] = buffer.remaining();
+						while ( buffer.hasRemaining() )
+							position += channel.write( buffer, position );
+
+						empty = false;
+					}
+				}
+			}
+
+			final ByteBuffer header = ByteBuffer.allocate( indexEnd ).order( CellFileShardReader.BYTE_ORDER );
+			header.putInt( CellFileShardReader.MAGIC );
+			header.putInt( CellFileShardReader.VERSION );
+			header.putInt( shardSize );
+			header.putInt( 0 );
+			for ( int i = 0; i < numCells; ++i )
+			{
+				header.putLong( offsets[ i ] );
+				header.putInt( lengths[ i ] );
+			}
+			header.flip();
+			for ( long p = 0; header.hasRemaining(); )
+				p += channel.write( header, p );
+		}
+
+		if ( empty )
+			Files.delete( tmpPath );
+		else
+			Files.move( tmpPath, path, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	public static void main( final String... args ) throws IOException, InterruptedException
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println( "usage: CellFileShardConverter <input.json> <output-directory> [shardSize] [numThreads]" );
+			System.exit( 1 );
+		}
+
+		final String jsonPath = args[ 0 ];
+		final File outputDirectory = new File( args[ 1 ] );
+		final int shardSize = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 8;
+		final int numThreads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Runtime.getRuntime().availableProcessors();
+
+		final Gson gson = new Gson();
+		final CellFileImageMetaData[] metaDatas;
+		final JsonArray json;
+		try ( final Reader reader = new FileReader( jsonPath ) )
+		{
+			json = new JsonParser().parse( reader ).getAsJsonArray();
+		}
+		metaDatas = gson.fromJson( json, CellFileImageMetaData[].class );
+
+		for ( int c = 0; c < metaDatas.length; ++c )
+		{
+			final CellFileImageMetaData metaData = metaDatas[ c ];
+			final String shardFormat = new File( outputDirectory, Integer.toString( c ) ).getAbsolutePath() + "/%1$d/%4$d/%3$d/%2$d.shard";
+
+			System.out.println( "converting channel " + c );
+			final long t = System.currentTimeMillis();
+			convert(
+					CellFileImageLoaderFactory.createCellFileReader( metaData ),
+					metaData.getImageType(),
+					metaData.getImageDimensions(),
+					metaData.getCellDimensions(),
+					shardFormat,
+					shardSize,
+					numThreads );
+			System.out.println( "converted channel " + c + " in " + ( System.currentTimeMillis() - t ) + "ms" );
+
+			final JsonObject channel = json.get( c ).getAsJsonObject();
+			channel.addProperty( "urlFormat", shardFormat );
+			channel.addProperty( "cellFileFormat", "shard" );
+			channel.addProperty( "shardSize", shardSize );
+		}
+
+		try ( final Writer writer = new FileWriter( new File( outputDirectory, new File( jsonPath ).getName() ) ) )
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( ( JsonElement )json, writer );
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link CellFileReader} for sharded cell containers.  Every shard file
+ * holds a block of shardSize&times;shardSize&times;shardSize cells and
+ * starts with a header and an offset/length index:
+ *
+ * <pre>
+ * int    magic "CSHD"
+ * int    version (1)
+ * int    shardSize
+ * int    reserved (0)
+ * shardSize^3 &times; { long offset, int length }, x fastest
+ * cell payloads
+ * </pre>
+ *
+ * Everything is big endian.  A payload contains exactly the samples of the
+ * (possibly truncated) cell in x, y, z order, a length of 0 marks a missing
+ * cell.  Open shards and their indices are kept in a small LRU so that one
+ * open file serves many cell loads via positional reads.  Shards are
+ * reference counted, an evicted shard is closed when its last read is
+ * done.  A read of a shard that was closed underneath it, e.g. because
+ * another thread reading it was interrupted, is retried with the shard
+ * reopened.
+ *
+ * <code>shardFormat</code> has the same parameters as the format of file
+ * per cell exports (see {@link CellFileTiffReader#CellFileTiffReader(String)})
+ * but grid and pixel coordinates refer to shards instead of cells.
+ */
+public class CellFileShardReader implements CellFileReader
+{
+	final static public int MAGIC = 0x43534844; // "CSHD"
+
+	final static public int VERSION = 1;
+
+	final static public int HEADER_LENGTH = 16;
+
+	final static public int INDEX_ENTRY_LENGTH = 12;
+
+	final static public ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+
+	final static private int maxRetries = 3;
+
+	/**
+	 * An open shard file and its index.  Missing shard files are
+	 * represented by a shard without channel.  References and eviction
+	 * are guarded by the LRU.
+	 */
+	static private class Shard
+	{
+		final FileChannel channel;
+		final long[] offsets;
+		final int[] lengths;
+		int references = 0;
+		boolean evicted = false;
+
+		Shard( final FileChannel channel, final long[] offsets, final int[] lengths )
+		{
+			this.channel = channel;
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+	}
+
+	final private String shardFormat;
+
+	final private int shardSize;
+
+	final private int[][] cellSizes;
+
+	final private Map< String, Shard > shards;
+
+	/**
+	 * @param shardFormat format string for shard paths
+	 * @param shardSize number of cells per shard in each dimension
+	 * @param cellSizes cell dimensions per scale level
+	 * @param maxOpenShards maximum number of shard files kept open
+	 */
+	public CellFileShardReader(
+			final String shardFormat,
+			final int shardSize,
+			final int[][] cellSizes,
+			final int maxOpenShards )
+	{
+		this.shardFormat = shardFormat;
+		this.shardSize = shardSize;
+		this.cellSizes = cellSizes;
+
+		shards = new LinkedHashMap< String, Shard >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, Shard > eldest )
+			{
+				if ( size() > maxOpenShards )
+				{
+					evict( eldest.getValue() );
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public CellFileShardReader(
+			final String shardFormat,
+			final int shardSize,
+			final int[][] cellSizes )
+	{
+		this( shardFormat, shardSize, cellSizes, 256 );
+	}
+
+	public String getShardPath( final int level, final long[] gridPosition )
+	{
+		final int[] cellSize = cellSizes[ level ];
+		final long[] shardPosition = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			shardPosition[ d ] = gridPosition[ d ] / shardSize;
+
+		return String.format(
+				shardFormat,
+				level,
+				shardPosition[ 0 ],
+				shardPosition[ 1 ],
+				shardPosition[ 2 ],
+				shardPosition[ 0 ] * shardSize * cellSize[ 0 ],
+				shardPosition[ 1 ] * shardSize * cellSize[ 1 ],
+				shardPosition[ 2 ] * shardSize * cellSize[ 2 ] );
+	}
+
+	/**
+	 * @param gridPosition
+	 * @return index of the cell within its shard
+	 */
+	public int getIndexInShard( final long[] gridPosition )
+	{
+		return ( int )(
+				gridPosition[ 0 ] % shardSize +
+				shardSize * ( gridPosition[ 1 ] % shardSize +
+				shardSize * ( gridPosition[ 2 ] % shardSize ) ) );
+	}
+
+	@Override
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+	{
+		return getShardPath( level, gridPosition ) + "#" + getIndexInShard( gridPosition );
+	}
+
+	/**
+	 * @param cellPath path of a cell as returned by
+	 *   {@link CellFileReader#getCellPath(int, long[], long[])} of any reader
+	 * @return the file that stores the cell, i.e. the shard file for cells
+	 *   of shards
+	 */
+	public static File getFile( final String cellPath )
+	{
+		final int i = cellPath.lastIndexOf( '#' );
+		if ( i < 0 || i == cellPath.length() - 1 )
+			return new File( cellPath );
+		for ( int j = i + 1; j < cellPath.length(); ++j )
+			if ( !Character.isDigit( cellPath.charAt( j ) ) )
+				return new File( cellPath );
+		return new File( cellPath.substring( 0, i ) );
+	}
+
+	@Override
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		final String shardPath = getShardPath( level, gridPosition );
+		for ( int attempt = 0;; ++attempt )
+		{
+			final Shard shard = getShard( shardPath );
+			try
+			{
+				return read( shard, gridPosition, dimensions, storage );
+			}
+			catch ( final ClosedChannelException e )
+			{
+				/* closed by an interrupt of this or another reader, never by eviction */
+				remove( shardPath, shard );
+				if ( e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted() )
+					throw new InterruptedIOException( "interrupted while reading " + shardPath );
+				if ( attempt == maxRetries )
+					throw e;
+			}
+			finally
+			{
+				release( shard );
+			}
+		}
+	}
+
+	private Object read(
+			final Shard shard,
+			final long[] gridPosition,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		if ( shard.channel == null )
+			return null;
+
+		final int i = getIndexInShard( gridPosition );
+		final int length = shard.lengths[ i ];
+		if ( length == 0 )
+			return null;
+
+		final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		if ( length != numEntities * CellFileRawReader.bytesPerElement( storage ) )
+			throw new IOException( "cell " + i + " in shard has " + length + " bytes, expected " + numEntities * CellFileRawReader.bytesPerElement( storage ) );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( length ).order( BYTE_ORDER );
+		readFully( shard.channel, buffer, shard.offsets[ i ] );
+		buffer.flip();
+		CellFileLoaderStats.opened();
+		CellFileLoaderStats.decoded();
+		CellFileLoaderStats.bytesRead( length );
+		CellFileRawReader.get( buffer, storage, 0, numEntities );
+
+		return storage;
+	}
+
+	/**
+	 * @return the shard with one more reference, to be released with
+	 *   {@link #release(Shard)}
+	 */
+	private Shard getShard( final String shardPath ) throws IOException
+	{
+		synchronized ( shards )
+		{
+			final Shard shard = shards.get( shardPath );
+			if ( shard != null )
+			{
+				++shard.references;
+				return shard;
+			}
+		}
+
+		/* open outside of the lock, concurrent opens of the same shard are harmless */
+		final Shard shard = openShard( shardPath );
+		synchronized ( shards )
+		{
+			final Shard other = shards.get( shardPath );
+			if ( other != null )
+			{
+				close( shard );
+				++other.references;
+				return other;
+			}
+			++shard.references;
+			shards.put( shardPath, shard );
+			return shard;
+		}
+	}
+
+	private void release( final Shard shard )
+	{
+		synchronized ( shards )
+		{
+			if ( --shard.references == 0 && shard.evicted )
+				close( shard );
+		}
+	}
+
+	/**
+	 * Drop a shard from the LRU, it is closed when its last read is done.
+	 * Called with the lock held.
+	 */
+	private void evict( final Shard shard )
+	{
+		shard.evicted = true;
+		if ( shard.references == 0 )
+			close( shard );
+	}
+
+	private void remove( final String shardPath, final Shard shard )
+	{
+		synchronized ( shards )
+		{
+			if ( shards.get( shardPath ) == shard )
+			{
+				shards.remove( shardPath );
+				evict( shard );
+			}
+		}
+	}
+
+	private Shard openShard( final String shardPath ) throws IOException
+	{
+		final FileChannel channel;
+		try
+		{
+			channel = FileChannel.open( Paths.get( shardPath ), StandardOpenOption.READ );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return new Shard( null, null, null );
+		}
+		catch ( final ClosedByInterruptException e )
+		{
+			throw new InterruptedIOException( "interrupted while opening " + shardPath );
+		}
+
+		try
+		{
+			final int numCells = shardSize * shardSize * shardSize;
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH + numCells * INDEX_ENTRY_LENGTH ).order( BYTE_ORDER );
+			readFully( channel, header, 0 );
+			if ( header.getInt( 0 ) != MAGIC )
+				throw new IOException( "not a cell shard: " + shardPath );
+			if ( header.getInt( 8 ) != shardSize )
+				throw new IOException( "shard " + shardPath + " has size " + header.getInt( 8 ) + ", expected " + shardSize );
+
+			final long[] offsets = new long[ numCells ];
+			final int[] lengths = new int[ numCells ];
+			header.position( HEADER_LENGTH );
+			for ( int i = 0; i < numCells; ++i )
+			{
+				offsets[ i ] = header.getLong();
+				lengths[ i ] = header.getInt();
+			}
+			return new Shard( channel, offsets, lengths );
+		}
+		catch ( final ClosedByInterruptException e )
+		{
+			throw new InterruptedIOException( "interrupted while opening " + shardPath );
+		}
+		catch ( final IOException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	static private void close( final Shard shard )
+	{
+		if ( shard.channel != null )
+		{
+			try
+			{
+				shard.channel.close();
+			}
+			catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * Close all open shard files once the reads in progress are done.  The
+	 * reader remains usable.
+	 */
+	public void close()
+	{
+		synchronized ( shards )
+		{
+			for ( final Shard shard : shards.values() )
+				evict( shard );
+			shards.clear();
+		}
+	}
+
+	static private void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, p );
+			if ( n < 0 )
+				throw new EOFException();
+			p += n;
+		}
+	}
+}
@@ -0,0 +1,716 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * {@link CellFileReader} for one TIFF file per cell.  Cells are decoded by a
+ * thread-safe TIFF decoder that writes the pixels of a (multi-page) TIFF
+ * straight into the flat storage array of a cell.
+ *
+ * Supported are single channel, strip organized 8-bit, 16-bit and 32-bit
+ * floating point images that are either uncompressed or compressed with LZW
+ * or Deflate (8-bit and 16-bit optionally with horizontal differencing).
+ * Everything else, e.g. tiles or the floating point predictor, is opened
+ * with ImageJ and copied row by row.
+ *
+ * Pages are mapped to slices, columns and rows that are outside of the cell
+ * are ignored, and the part of the cell that is not covered by the file
+ * remains untouched (zero for a freshly created cell array).
+ */
+public class CellFileTiffReader implements CellFileReader
+{
+	final static private int TAG_IMAGE_WIDTH = 256;
+	final static private int TAG_IMAGE_LENGTH = 257;
+	final static private int TAG_BITS_PER_SAMPLE = 258;
+	final static private int TAG_COMPRESSION = 259;
+	final static private int TAG_FILL_ORDER = 266;
+	final static private int TAG_STRIP_OFFSETS = 273;
+	final static private int TAG_SAMPLES_PER_PIXEL = 277;
+	final static private int TAG_ROWS_PER_STRIP = 278;
+	final static private int TAG_STRIP_BYTE_COUNTS = 279;
+	final static private int TAG_PLANAR_CONFIGURATION = 284;
+	final static private int TAG_PREDICTOR = 317;
+	final static private int TAG_TILE_WIDTH = 322;
+	final static private int TAG_SAMPLE_FORMAT = 339;
+
+	final static private int COMPRESSION_NONE = 1;
+	final static private int COMPRESSION_LZW = 5;
+	final static private int COMPRESSION_DEFLATE = 8;
+	final static private int COMPRESSION_DEFLATE_OLD = 32946;
+
+	final static private int SAMPLE_FORMAT_FLOAT = 3;
+
+	/**
+	 * Scratch buffers for encoded and decoded strips, reused by every cell
+	 * that is loaded by the same (fetcher) thread.
+	 */
+	final static private ThreadLocal< byte[][] > buffers = new ThreadLocal< byte[][] >()
+	{
+		@Override
+		protected byte[][] initialValue()
+		{
+			return new byte[][]{ new byte[ 0 ], new byte[ 0 ] };
+		}
+	};
+
+	static private class Ifd
+	{
+		int width = -1;
+		int height = -1;
+		int bitsPerSample = 1;
+		int sampleFormat = 1;
+		int compression = COMPRESSION_NONE;
+		int predictor = 1;
+		int samplesPerPixel = 1;
+		int planarConfiguration = 1;
+		int fillOrder = 1;
+		int rowsPerStrip = Integer.MAX_VALUE;
+		boolean tiled = false;
+		long[] stripOffsets = null;
+		long[] stripByteCounts = null;
+		long next = 0;
+	}
+
+	final private String cellFormat;
+
+	/**
+	 * <p>Create a {@link CellFileReader} for a file per cell source.
+	 * Cells are addressed, in this order, by their</p>
+	 * <ol>
+	 * <li>scale level,</li>
+	 * <li>column (cell grid coordinates),</li>
+	 * <li>row (cell grid coordinates),</li>
+	 * <li>slice (cell grid coordinates),</li>
+	 * <li>x (left pixel coordinates of the cell),</li>
+	 * <li>y (top pixel coordinates of the cell),</li>
+	 * <li>z (front pixel coordinates of the cell)</li>
+	 * </ol>
+	 * <p><code>cellFormat</code> specifies how these parameters are used
+	 * to generate a URL referencing the tile.  Examples:</p>
+	 *
+	 * <dl>
+	 * <dd>Stitching export version 0</dd>
+	 * <dt>"/home/saalfeld/test/channel1/%1$d/%7$d/%6$d/%5$d.tif"</dt>
+	 * <dd>Stitching export version 1</dd>
+	 * <dt>"/home/saalfeld/test/channel1/%1$d/%4$d/%3$d/%2$d.tif"</dt>
+	 * </dl>
+	 *
+	 * @param cellFormat
+	 */
+	public CellFileTiffReader( final String cellFormat )
+	{
+		this.cellFormat = cellFormat;
+	}
+
+	@Override
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+	{
+		return String.format(
+				cellFormat,
+				level,
+				gridPosition[ 0 ],
+				gridPosition[ 1 ],
+				gridPosition[ 2 ],
+				min[ 0 ],
+				min[ 1 ],
+				min[ 2 ] );
+	}
+
+	@Override
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		final String cellPath = getCellPath( level, gridPosition, min );
+		/* only a cell that is known not to exist is missing, other errors surface when it is read */
+		if ( Files.notExists( Paths.get( cellPath ) ) )
+			return null;
+
+		/* decode straight into the cell if possible, use ImageJ for everything else */
+		if ( decode( cellPath, storage, dimensions ) )
+		{
+			CellFileLoaderStats.decoded();
+			return storage;
+		}
+
+		final ImagePlus imp = IJ.openImage( cellPath );
+		CellFileLoaderStats.bytesRead( new File( cellPath ).length() );
+		CellFileLoaderStats.decoded();
+
+		if ( imp == null )
+			throw new IOException( "imp == null" );
+
+		final ImageStack stack = imp.getStack();
+
+		/* a single plane of exactly the cell's size can be used as is */
+		if (
+				dimensions[ 2 ] == 1 &&
+				stack.getSize() == 1 &&
+				stack.getWidth() == dimensions[ 0 ] &&
+				stack.getHeight() == dimensions[ 1 ] &&
+				stack.getPixels( 1 ).getClass() == storage.getClass() )
+			return stack.getPixels( 1 );
+
+		copyStack( stack, storage, dimensions );
+
+		return storage;
+	}
+
+	/**
+	 * Decode the TIFF file at <code>path</code> into <code>storage</code>,
+	 * a byte[], short[] or float[] holding a cell of the given dimensions
+	 * in x, y, z order.
+	 *
+	 * @param path
+	 * @param storage
+	 * @param dimensions
+	 * @return false if the file cannot be decoded by this reader, true if
+	 *   it was decoded
+	 * @throws IOException
+	 */
+	public static boolean decode(
+			final String path,
+			final Object storage,
+			final int[] dimensions ) throws IOException
+	{
+		final int bytesPerSample;
+		if ( storage instanceof byte[] )
+			bytesPerSample = 1;
+		else if ( storage instanceof short[] )
+			bytesPerSample = 2;
+		else if ( storage instanceof float[] )
+			bytesPerSample = 4;
+		else
+			return false;
+
+		try ( final FileChannel channel = FileChannel.open( Paths.get( path ), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer header = ByteBuffer.allocate( 8 );
+			readFully( channel, header, 0 );
+			final ByteOrder order;
+			if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' )
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' )
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException( "not a TIFF file: " + path );
+			header.order( order );
+
+			/* BigTIFF (43) is left to ImageJ */
+			if ( header.getShort( 2 ) != 42 )
+				return false;
+
+			CellFileLoaderStats.opened();
+
+			long ifdOffset = header.getInt( 4 ) & 0xffffffffL;
+			for ( int z = 0; z < dimensions[ 2 ] && ifdOffset != 0; ++z )
+			{
+				final Ifd ifd = readIfd( channel, ifdOffset, order );
+				if ( !isSupported( ifd, bytesPerSample, storage ) )
+					return false;
+
+				decodePage( channel, ifd, order, storage, bytesPerSample, dimensions, z );
+				ifdOffset = ifd.next;
+			}
+		}
+		return true;
+	}
+
+	static private boolean isSupported( final Ifd ifd, final int bytesPerSample, final Object storage )
+	{
+		if ( ifd.width < 0 || ifd.height < 0 || ifd.tiled || ifd.stripOffsets == null || ifd.stripByteCounts == null )
+			return false;
+		if ( ifd.samplesPerPixel != 1 || ifd.planarConfiguration != 1 || ifd.fillOrder != 1 )
+			return false;
+		if ( ifd.bitsPerSample != bytesPerSample * 8 )
+			return false;
+		if ( ( storage instanceof float[] ) != ( ifd.sampleFormat == SAMPLE_FORMAT_FLOAT ) )
+			return false;
+		switch ( ifd.compression )
+		{
+		case COMPRESSION_NONE:
+			/* a predictor is only defined for compressed strips */
+			return ifd.predictor == 1;
+		case COMPRESSION_LZW:
+		case COMPRESSION_DEFLATE:
+		case COMPRESSION_DEFLATE_OLD:
+			/* horizontal differencing of 8 and 16 bit integers, floating point prediction (3) is left to ImageJ */
+			return ifd.predictor == 1 ||
+					( ifd.predictor == 2 && bytesPerSample <= 2 && ifd.sampleFormat != SAMPLE_FORMAT_FLOAT );
+		default:
+			return false;
+		}
+	}
+
+	static private void decodePage(
+			final FileChannel channel,
+			final Ifd ifd,
+			final ByteOrder order,
+			final Object storage,
+			final int bytesPerSample,
+			final int[] dimensions,
+			final int z ) throws IOException
+	{
+		final byte[][] scratch = buffers.get();
+		final int rowBytes = ifd.width * bytesPerSample;
+		final int rowsPerStrip = Math.min( ifd.rowsPerStrip, ifd.height );
+		final int copyWidth = Math.min( ifd.width, dimensions[ 0 ] );
+		final int maxRow = Math.min( ifd.height, dimensions[ 1 ] );
+		final int sliceOffset = z * dimensions[ 0 ] * dimensions[ 1 ];
+
+		for ( int s = 0, y = 0; s < ifd.stripOffsets.length && y < maxRow; ++s, y += rowsPerStrip )
+		{
+			CellFileCancellation.check();
+
+			final int stripRows = Math.min( rowsPerStrip, ifd.height - y );
+			final int stripBytes = stripRows * rowBytes;
+			final int encodedBytes = ( int )ifd.stripByteCounts[ s ];
+
+			if ( scratch[ 0 ].length < encodedBytes )
+				scratch[ 0 ] = new byte[ encodedBytes ];
+			final byte[] encoded = scratch[ 0 ];
+			readFully( channel, ByteBuffer.wrap( encoded, 0, encodedBytes ), ifd.stripOffsets[ s ] );
+			CellFileLoaderStats.bytesRead( encodedBytes );
+
+			final byte[] decoded;
+			switch ( ifd.compression )
+			{
+			case COMPRESSION_LZW:
+				if ( scratch[ 1 ].length < stripBytes )
+					scratch[ 1 ] = new byte[ stripBytes ];
+				decoded = scratch[ 1 ];
+				decodeLzw( encoded, encodedBytes, decoded, stripBytes );
+				break;
+			case COMPRESSION_DEFLATE:
+			case COMPRESSION_DEFLATE_OLD:
+				if ( scratch[ 1 ].length < stripBytes )
+					scratch[ 1 ] = new byte[ stripBytes ];
+				decoded = scratch[ 1 ];
+				inflate( encoded, encodedBytes, decoded, stripBytes );
+				break;
+			default:
+				if ( encodedBytes < stripBytes )
+					throw new EOFException( "strip " + s + " is truncated" );
+				decoded = encoded;
+			}
+
+			if ( ifd.predictor == 2 )
+				undoHorizontalDifferencing( decoded, stripRows, ifd.width, bytesPerSample, order );
+
+			final ByteBuffer buffer = ByteBuffer.wrap( decoded ).order( order );
+			for ( int r = 0; r < stripRows && y + r < maxRow; ++r )
+			{
+				final int sourceOffset = r * rowBytes;
+				final int targetOffset = sliceOffset + ( y + r ) * dimensions[ 0 ];
+				buffer.position( sourceOffset );
+				switch ( bytesPerSample )
+				{
+				case 1:
+					System.arraycopy( decoded, sourceOffset, storage, targetOffset, copyWidth );
+					break;
+				case 2:
+					buffer.asShortBuffer().get( ( short[] )storage, targetOffset, copyWidth );
+					break;
+				default:
+					buffer.asFloatBuffer().get( ( float[] )storage, targetOffset, copyWidth );
+				}
+			}
+		}
+	}
+
+	static private Ifd readIfd( final FileChannel channel, final long offset, final ByteOrder order ) throws IOException
+	{
+		final ByteBuffer countBuffer = ByteBuffer.allocate( 2 ).order( order );
+		readFully( channel, countBuffer, offset );
+		final int numEntries = countBuffer.getShort( 0 ) & 0xffff;
+
+		final ByteBuffer entries = ByteBuffer.allocate( numEntries * 12 + 4 ).order( order );
+		readFully( channel, entries, offset + 2 );
+
+		final Ifd ifd = new Ifd();
+		for ( int i = 0; i < numEntries; ++i )
+		{
+			final int entry = i * 12;
+			final int tag = entries.getShort( entry ) & 0xffff;
+			final int type = entries.getShort( entry + 2 ) & 0xffff;
+			final int count = entries.getInt( entry + 4 );
+			switch ( tag )
+			{
+			case TAG_IMAGE_WIDTH:
+				ifd.width = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_IMAGE_LENGTH:
+				ifd.height = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_BITS_PER_SAMPLE:
+				ifd.bitsPerSample = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_COMPRESSION:
+				ifd.compression = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_FILL_ORDER:
+				ifd.fillOrder = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_SAMPLES_PER_PIXEL:
+				ifd.samplesPerPixel = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_ROWS_PER_STRIP:
+				ifd.rowsPerStrip = ( int )Math.min( Integer.MAX_VALUE, readValue( entries, entry, type ) );
+				break;
+			case TAG_PLANAR_CONFIGURATION:
+				ifd.planarConfiguration = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_PREDICTOR:
+				ifd.predictor = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_SAMPLE_FORMAT:
+				ifd.sampleFormat = ( int )readValue( entries, entry, type );
+				break;
+			case TAG_TILE_WIDTH:
+				ifd.tiled = true;
+				break;
+			case TAG_STRIP_OFFSETS:
+				ifd.stripOffsets = readValues( channel, entries, entry, type, count, order );
+				break;
+			case TAG_STRIP_BYTE_COUNTS:
+				ifd.stripByteCounts = readValues( channel, entries, entry, type, count, order );
+				break;
+			default:
+			}
+		}
+		ifd.next = entries.getInt( numEntries * 12 ) & 0xffffffffL;
+
+		return ifd;
+	}
+
+	static private int typeSize( final int type ) throws IOException
+	{
+		switch ( type )
+		{
+		case 1: // BYTE
+		case 2: // ASCII
+		case 6: // SBYTE
+		case 7: // UNDEFINED
+			return 1;
+		case 3: // SHORT
+		case 8: // SSHORT
+			return 2;
+		case 4: // LONG
+		case 9: // SLONG
+		case 11: // FLOAT
+			return 4;
+		case 5: // RATIONAL
+		case 10: // SRATIONAL
+		case 12: // DOUBLE
+			return 8;
+		default:
+			throw new IOException( "unknown TIFF field type " + type );
+		}
+	}
+
+	static private long readValue( final ByteBuffer entries, final int entry, final int type )
+	{
+		switch ( type )
+		{
+		case 1:
+			return entries.get( entry + 8 ) & 0xff;
+		case 3:
+			return entries.getShort( entry + 8 ) & 0xffff;
+		default:
+			return entries.getInt( entry + 8 ) & 0xffffffffL;
+		}
+	}
+
+	static private long[] readValues(
+			final FileChannel channel,
+			final ByteBuffer entries,
+			final int entry,
+			final int type,
+			final int count,
+			final ByteOrder order ) throws IOException
+	{
+		final int size = typeSize( type );
+		final ByteBuffer values;
+		final int offset;
+		if ( size * count <= 4 )
+		{
+			values = entries;
+			offset = entry + 8;
+		}
+		else
+		{
+			values = ByteBuffer.allocate( size * count ).order( order );
+			readFully( channel, values, entries.getInt( entry + 8 ) & 0xffffffffL );
+			offset = 0;
+		}
+
+		final long[] data = new long[ count ];
+		for ( int i = 0; i < count; ++i )
+		{
+			switch ( size )
+			{
+			case 1:
+				data[ i ] = values.get( offset + i ) & 0xff;
+				break;
+			case 2:
+				data[ i ] = values.getShort( offset + 2 * i ) & 0xffff;
+				break;
+			default:
+				data[ i ] = values.getInt( offset + 4 * i ) & 0xffffffffL;
+			}
+		}
+		return data;
+	}
+
+	static private void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, p );
+			if ( n < 0 )
+				throw new EOFException();
+			p += n;
+		}
+	}
+
+	static private void inflate( final byte[] encoded, final int encodedBytes, final byte[] decoded, final int decodedBytes ) throws IOException
+	{
+		final Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput( encoded, 0, encodedBytes );
+			int n = 0;
+			while ( n < decodedBytes && !inflater.finished() )
+			{
+				final int m = inflater.inflate( decoded, n, decodedBytes - n );
+				if ( m == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					break;
+				n += m;
+			}
+		}
+		catch ( final DataFormatException e )
+		{
+			throw new IOException( e );
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	/**
+	 * TIFF flavored LZW (MSB first, early change).  Table entries are kept
+	 * as offset and length into the output because every entry is the
+	 * previously emitted string plus one byte.
+	 */
+	static void decodeLzw( final byte[] encoded, final int encodedBytes, final byte[] decoded, final int decodedBytes )
+	{
+		final int[] entryOffsets = new int[ 4096 ];
+		final int[] entryLengths = new int[ 4096 ];
+
+		int bitBuffer = 0;
+		int bitCount = 0;
+		int inPos = 0;
+		int outPos = 0;
+		int codeLength = 9;
+		int nextCode = 258;
+		int previousOffset = -1;
+		int previousLength = 0;
+
+		while ( outPos < decodedBytes )
+		{
+			while ( bitCount < codeLength && inPos < encodedBytes )
+			{
+				bitBuffer = ( bitBuffer << 8 ) | ( encoded[ inPos++ ] & 0xff );
+				bitCount += 8;
+			}
+			if ( bitCount < codeLength )
+				break;
+			final int code = ( bitBuffer >>> ( bitCount - codeLength ) ) & ( ( 1 << codeLength ) - 1 );
+			bitCount -= codeLength;
+
+			if ( code == 257 )
+				break;
+			if ( code == 256 )
+			{
+				codeLength = 9;
+				nextCode = 258;
+				previousOffset = -1;
+				continue;
+			}
+
+			final int length;
+			if ( code < 256 )
+			{
+				decoded[ outPos ] = ( byte )code;
+				length = 1;
+			}
+			else if ( code < nextCode )
+			{
+				length = Math.min( entryLengths[ code ], decodedBytes - outPos );
+				System.arraycopy( decoded, entryOffsets[ code ], decoded, outPos, length );
+			}
+			else if ( code == nextCode && previousOffset >= 0 )
+			{
+				length = Math.min( previousLength + 1, decodedBytes - outPos );
+				for ( int i = 0; i < length; ++i )
+					decoded[ outPos + i ] = decoded[ previousOffset + ( i < previousLength ? i : 0 ) ];
+			}
+			else
+				break;
+
+			if ( previousOffset >= 0 && nextCode < 4096 )
+			{
+				entryOffsets[ nextCode ] = previousOffset;
+				entryLengths[ nextCode ] = previousLength + 1;
+				++nextCode;
+				if ( nextCode >= 2047 )
+					codeLength = 12;
+				else if ( nextCode >= 1023 )
+					codeLength = 11;
+				else if ( nextCode >= 511 )
+					codeLength = 10;
+			}
+
+			previousOffset = outPos;
+			previousLength = length;
+			outPos += length;
+		}
+	}
+
+	static private void undoHorizontalDifferencing(
+			final byte[] decoded,
+			final int rows,
+			final int width,
+			final int bytesPerSample,
+			final ByteOrder order )
+	{
+		final int rowBytes = width * bytesPerSample;
+		if ( bytesPerSample == 1 )
+		{
+			for ( int r = 0; r < rows; ++r )
+				for ( int i = r * rowBytes + 1, end = ( r + 1 ) * rowBytes; i < end; ++i )
+					decoded[ i ] += decoded[ i - 1 ];
+		}
+		else
+		{
+			final ByteBuffer buffer = ByteBuffer.wrap( decoded ).order( order );
+			for ( int r = 0; r < rows; ++r )
+			{
+				short previous = buffer.getShort( r * rowBytes );
+				for ( int i = r * rowBytes + 2, end = ( r + 1 ) * rowBytes; i < end; i += 2 )
+				{
+					previous += buffer.getShort( i );
+					buffer.putShort( i, previous );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the overlap of an {@link ImageStack} and a cell of the given
+	 * dimensions row by row into the flat storage array of the cell.  The
+	 * remainder of the cell is not touched, i.e. it remains zero for a
+	 * freshly created cell array.
+	 *
+	 * @param stack
+	 * @param storage
+	 * @param dimensions
+	 * @throws IOException if the pixel type of the stack cannot be converted
+	 */
+	public static void copyStack( final ImageStack stack, final Object storage, final int[] dimensions ) throws IOException
+	{
+		final int width = Math.min( stack.getWidth(), dimensions[ 0 ] );
+		final int height = Math.min( stack.getHeight(), dimensions[ 1 ] );
+		final int depth = Math.min( stack.getSize(), dimensions[ 2 ] );
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			final Object pixels = stack.getPixels( z + 1 );
+			if ( pixels.getClass() == storage.getClass() )
+			{
+				for ( int y = 0; y < height; ++y )
+					System.arraycopy(
+							pixels,
+							y * stack.getWidth(),
+							storage,
+							( z * dimensions[ 1 ] + y ) * dimensions[ 0 ],
+							width );
+			}
+			else
+			{
+				for ( int y = 0; y < height; ++y )
+					convertRow(
+							pixels,
+							y * stack.getWidth(),
+							storage,
+							( z * dimensions[ 1 ] + y ) * dimensions[ 0 ],
+							width );
+			}
+		}
+	}
+
+	private static void convertRow(
+			final Object source,
+			final int sourceOffset,
+			final Object target,
+			final int targetOffset,
+			final int n ) throws IOException
+	{
+		for ( int i = 0; i < n; ++i )
+		{
+			final float value;
+			if ( source instanceof byte[] )
+				value = ( ( byte[] )source )[ sourceOffset + i ] & 0xff;
+			else if ( source instanceof short[] )
+				value = ( ( short[] )source )[ sourceOffset + i ] & 0xffff;
+			else if ( source instanceof float[] )
+				value = ( ( float[] )source )[ sourceOffset + i ];
+			else
+				throw new IOException( "unsupported pixel type " + source.getClass().getSimpleName() );
+
+			if ( target instanceof byte[] )
+				( ( byte[] )target )[ targetOffset + i ] = ( byte )Math.max( 0, Math.min( 255, ( int )value ) );
+			else if ( target instanceof short[] )
+				( ( short[] )target )[ targetOffset + i ] = ( short )Math.max( 0, Math.min( 65535, ( int )value ) );
+			else if ( target instanceof float[] )
+				( ( float[] )target )[ targetOffset + i ] = value;
+			else
+				throw new IOException( "unsupported cell type " + target.getClass().getSimpleName() );
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+/**
+ * Writes cells as uncompressed TIFF files (single images or stacks) with
+ * ImageJ, at the paths of a {@link CellFileTiffReader} of the same
+ * cellFormat.
+ */
+public class CellFileTiffWriter implements CellFileWriter
+{
+	final private CellFileTiffReader reader;
+
+	/**
+	 * @param cellFormat see {@link CellFileTiffReader#CellFileTiffReader(String)}
+	 */
+	public CellFileTiffWriter( final String cellFormat )
+	{
+		reader = new CellFileTiffReader( cellFormat );
+	}
+
+	@Override
+	public void write(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object data ) throws IOException
+	{
+		final int sliceSize = dimensions[ 0 ] * dimensions[ 1 ];
+		final ImageStack stack = new ImageStack( dimensions[ 0 ], dimensions[ 1 ] );
+		for ( int z = 0; z < dimensions[ 2 ]; ++z )
+		{
+			final Object slice;
+			if ( data instanceof byte[] )
+				slice = new byte[ sliceSize ];
+			else if ( data instanceof short[] )
+				slice = new short[ sliceSize ];
+			else if ( data instanceof float[] )
+				slice = new float[ sliceSize ];
+			else
+				throw new IOException( "unsupported cell type " + data.getClass().getSimpleName() );
+			System.arraycopy( data, z * sliceSize, slice, 0, sliceSize );
+			stack.addSlice( "", slice );
+		}
+
+		final File file = new File( reader.getCellPath( level, gridPosition, min ) );
+		final File tmpFile = new File( file.getPath() + ".tmp" );
+		if ( file.getParentFile() != null )
+			Files.createDirectories( file.getParentFile().toPath() );
+
+		final FileSaver saver = new FileSaver( new ImagePlus( file.getName(), stack ) );
+		final boolean saved = stack.getSize() == 1 ? saver.saveAsTiff( tmpFile.getPath() ) : saver.saveAsTiffStack( tmpFile.getPath() );
+		if ( !saved )
+			throw new IOException( "could not write " + tmpFile );
+
+		Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	@Override
+	public void delete(
+			final int level,
+			final long[] gridPosition,
+			final long[] min ) throws IOException
+	{
+		Files.deleteIfExists( new File( reader.getCellPath( level, gridPosition, min ) ).toPath() );
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records one span per cell load and writes them in the Chrome trace event
+ * format, to be opened in chrome://tracing or
+ * <a href="https://ui.perfetto.dev">Perfetto</a>.
+ *
+ * Every load is a complete event on the track of the fetcher thread that
+ * ran it, with nested events for path resolution, waiting for a
+ * concurrency limit permit, opening the file, decoding and copying.  If
+ * the cache reports when the cell was enqueued (see
+ * {@link #setEnqueueTime(long)}), the time the cell waited in the queue is
+ * an async event, such that cells stuck behind others show up as long
+ * queue spans.
+ *
+ * Tracing is opt-in: loaders only trace when a tracer is set.
+ */
+public class CellFileTracer
+{
+	final static private ThreadLocal< long[] > enqueueTime = ThreadLocal.withInitial( () -> new long[] { -1 } );
+
+	/**
+	 * One cell load.  Times are {@link System#nanoTime()}, -1 if unknown.
+	 */
+	public class Span
+	{
+		final int setup;
+		final int level;
+		final long[] gridPosition;
+		final Thread thread = Thread.currentThread();
+		final long enqueued;
+		final long start = System.nanoTime();
+		long resolved = -1;
+		long acquired = -1;
+		long opened = -1;
+		long decoded = -1;
+		long end = -1;
+		String path = null;
+		String outcome = "loaded";
+
+		Span( final int setup, final int level, final long[] gridPosition )
+		{
+			this.setup = setup;
+			this.level = level;
+			this.gridPosition = gridPosition.clone();
+			final long[] e = enqueueTime.get();
+			enqueued = e[ 0 ];
+			e[ 0 ] = -1;
+		}
+
+		/**
+		 * @param path resolved path of the cell
+		 */
+		public void resolved( final String path )
+		{
+			this.path = path;
+			resolved = System.nanoTime();
+		}
+
+		/**
+		 * Mark the end of waiting for a concurrency limit permit.
+		 */
+		public void acquired()
+		{
+			acquired = System.nanoTime();
+		}
+
+		public void opened( final long time )
+		{
+			opened = time;
+		}
+
+		public void decoded( final long time )
+		{
+			decoded = time;
+		}
+
+		/**
+		 * @param outcome e.g. "loaded", "missing" or "failed"
+		 */
+		public void end( final String outcome )
+		{
+			this.outcome = outcome;
+			end = System.nanoTime();
+			if ( numSpans.getAndIncrement() < maxSpans )
+				spans.add( this );
+			else
+				numSpans.decrementAndGet();
+		}
+	}
+
+	final private int maxSpans;
+
+	final private long origin = System.nanoTime();
+
+	final private ConcurrentLinkedQueue< Span > spans = new ConcurrentLinkedQueue<>();
+
+	final private AtomicInteger numSpans = new AtomicInteger();
+
+	/**
+	 * @param maxSpans spans that end after this many are dropped
+	 */
+	public CellFileTracer( final int maxSpans )
+	{
+		this.maxSpans = maxSpans;
+	}
+
+	public CellFileTracer()
+	{
+		this( 1000000 );
+	}
+
+	/**
+	 * Called by a cache on the fetcher thread right before it loads a cell
+	 * to report when the cell was enqueued.
+	 *
+	 * @param time {@link System#nanoTime()} of the enqueue or -1
+	 */
+	public static void setEnqueueTime( final long time )
+	{
+		enqueueTime.get()[ 0 ] = time;
+	}
+
+	/**
+	 * Start a span for a cell load on the current thread.
+	 *
+	 * @param setup
+	 * @param level
+	 * @param gridPosition
+	 * @return
+	 */
+	public Span begin( final int setup, final int level, final long[] gridPosition )
+	{
+		return new Span( setup, level, gridPosition );
+	}
+
+	public int getNumSpans()
+	{
+		return numSpans.get();
+	}
+
+	public void clear()
+	{
+		spans.clear();
+		numSpans.set( 0 );
+	}
+
+	private String micros( final long time )
+	{
+		return String.format( Locale.ROOT, "%.3f", ( time - origin ) / 1000.0 );
+	}
+
+	static private String quote( final String s )
+	{
+		final StringBuilder b = new StringBuilder( "\"" );
+		for ( final char c : s.toCharArray() )
+		{
+			if ( c == '"' || c == '\\' )
+				b.append( '\\' ).append( c );
+			else if ( c < 0x20 )
+				b.append( String.format( "\\u%04x", ( int )c ) );
+			else
+				b.append( c );
+		}
+		return b.append( '"' ).toString();
+	}
+
+	private void complete( final Writer out, final String name, final long tid, final long from, final long to, final String args ) throws IOException
+	{
+		out.write( ",\n{\"ph\":\"X\",\"cat\":\"cell\",\"name\":" + quote( name ) + ",\"pid\":1,\"tid\":" + tid + ",\"ts\":" + micros( from ) + ",\"dur\":" + String.format( Locale.ROOT, "%.3f", ( to - from ) / 1000.0 ) + ( args == null ? "" : ",\"args\":" + args ) + "}" );
+	}
+
+	/**
+	 * Write all recorded spans as a Chrome trace event JSON file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write( final File file ) throws IOException
+	{
+		try ( final Writer out = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) )
+		{
+			out.write( "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n" );
+			out.write( "{\"ph\":\"M\",\"name\":\"process_name\",\"pid\":1,\"args\":{\"name\":\"cell loads\"}}" );
+
+			final Map< Long, String > threads = new HashMap<>();
+			long id = 0;
+			for ( final Span span : spans )
+			{
+				final long tid = span.thread.getId();
+				threads.put( tid, span.thread.getName() );
+
+				final String grid = span.gridPosition[ 0 ] + "," + span.gridPosition[ 1 ] + "," + span.gridPosition[ 2 ];
+				final String name = "s" + span.setup + " l" + span.level + " (" + grid + ")";
+
+				final StringBuilder args = new StringBuilder( "{" );
+				args.append( "\"setup\":" ).append( span.setup );
+				args.append( ",\"level\":" ).append( span.level );
+				args.append( ",\"grid\":[" ).append( grid ).append( "]" );
+				args.append( ",\"outcome\":" ).append( quote( span.outcome ) );
+				if ( span.path != null )
+					args.append( ",\"path\":" ).append( quote( span.path ) );
+				if ( span.enqueued >= 0 )
+					args.append( ",\"queuedMicros\":" ).append( String.format( Locale.ROOT, "%.3f", ( span.start - span.enqueued ) / 1000.0 ) );
+				args.append( "}" );
+
+				if ( span.enqueued >= 0 )
+				{
+					++id;
+					out.write( ",\n{\"ph\":\"b\",\"cat\":\"queue\",\"name\":" + quote( "queued l" + span.level ) + ",\"id\":" + id + ",\"pid\":1,\"tid\":" + tid + ",\"ts\":" + micros( span.enqueued ) + ",\"args\":" + args + "}" );
+					out.write( ",\n{\"ph\":\"e\",\"cat\":\"queue\",\"name\":" + quote( "queued l" + span.level ) + ",\"id\":" + id + ",\"pid\":1,\"tid\":" + tid + ",\"ts\":" + micros( span.start ) + "}" );
+				}
+
+				complete( out, name, tid, span.start, span.end, args.toString() );
+
+				/* phases in order, each from the end of the previous one */
+				long t = span.start;
+				if ( span.resolved >= 0 )
+				{
+					complete( out, "resolve", tid, t, span.resolved, null );
+					t = span.resolved;
+				}
+				if ( span.acquired >= t )
+				{
+					complete( out, "wait", tid, t, span.acquired, null );
+					t = span.acquired;
+				}
+				if ( span.opened >= t )
+				{
+					complete( out, "open", tid, t, span.opened, null );
+					t = span.opened;
+				}
+				if ( span.decoded >= t )
+				{
+					complete( out, "decode", tid, t, span.decoded, null );
+					t = span.decoded;
+				}
+				complete( out, span.decoded >= 0 ? "copy" : "read", tid, t, span.end, null );
+			}
+
+			for ( final Map.Entry< Long, String > thread : threads.entrySet() )
+				out.write( ",\n{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":" + thread.getKey() + ",\"args\":{\"name\":" + quote( thread.getValue() ) + "}}" );
+
+			out.write( "\n]}\n" );
+		}
+	}
+}
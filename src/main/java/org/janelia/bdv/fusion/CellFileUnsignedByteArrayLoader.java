@@ -28,8 +28,6 @@
  */
 package org.janelia.bdv.fusion;
 
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 
@@ -37,7 +35,12 @@ public class CellFileUnsignedByteArrayLoader extends AbstractCellFileArrayLoader
 {
 	public CellFileUnsignedByteArrayLoader( final String cellFormat, final int[][] cellSizes ) 
 	{
-		super( cellFormat, cellSizes, new ArrayFactory< UnsignedByteType, VolatileByteArray >() 
+		this( new CellFileTiffReader( cellFormat ), cellSizes );
+	}
+
+	public CellFileUnsignedByteArrayLoader( final CellFileReader reader, final int[][] cellSizes ) 
+	{
+		super( reader, cellSizes, new ArrayFactory< UnsignedByteType, VolatileByteArray >() 
 			{
 				@Override
 				public VolatileByteArray createInvalidVolatileArray( final int numEntities )
@@ -46,9 +49,9 @@ public class CellFileUnsignedByteArrayLoader extends AbstractCellFileArrayLoader
 				}
 
 				@Override
-				public RandomAccessibleInterval< UnsignedByteType > wrapArray( final VolatileByteArray data, final long[] dimensions )
+				public VolatileByteArray createValidVolatileArray( final Object data )
 				{
-					return ArrayImgs.unsignedBytes( data.getCurrentStorageArray(), dimensions );
+					return new VolatileByteArray( ( byte[] )data, true );
 				}
 			} 
 		);
@@ -46,15 +46,53 @@ public class CellFileUnsignedByteImageLoader extends AbstractCellFileImageLoader
 			final int[][] cellDimensions,
 			final int[][] downsampleFactors )
 	{
-		super( dimensions, cellDimensions, downsampleFactors, new UnsignedByteType(), new VolatileUnsignedByteType() );
+		this( new CellFileTiffReader( cellFormat ), dimensions, cellDimensions, downsampleFactors );
+	}
+
+	public CellFileUnsignedByteImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors )
+	{
+		this( reader, dimensions, cellDimensions, downsampleFactors, 10 );
+	}
+
+	public CellFileUnsignedByteImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int numFetcherThreads )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, numFetcherThreads, new UnsignedByteType(), new VolatileUnsignedByteType() );
+
+		loader = new CellFileUnsignedByteArrayLoader( reader, cellDimensions );
+	}
+
+	public CellFileUnsignedByteImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int setupId,
+			final CellFileCache cache )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, setupId, cache, new UnsignedByteType(), new VolatileUnsignedByteType() );
+
+		loader = new CellFileUnsignedByteArrayLoader( reader, cellDimensions );
+	}
 
-		loader = new CellFileUnsignedByteArrayLoader( cellFormat, cellDimensions );
+	@Override
+	public CellFileUnsignedByteArrayLoader getArrayLoader()
+	{
+		return loader;
 	}
 
 	@Override
 	public RandomAccessibleInterval< UnsignedByteType > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< UnsignedByteType, VolatileByteArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.BLOCKING );
+		final CachedCellImg< UnsignedByteType, VolatileByteArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.BLOCKING );
 		final UnsignedByteType linkedType = new UnsignedByteType( img );
 		img.setLinkedType( linkedType );
 		return img;
@@ -63,7 +101,7 @@ public class CellFileUnsignedByteImageLoader extends AbstractCellFileImageLoader
 	@Override
 	public RandomAccessibleInterval< VolatileUnsignedByteType > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< VolatileUnsignedByteType, VolatileByteArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.VOLATILE );
+		final CachedCellImg< VolatileUnsignedByteType, VolatileByteArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.VOLATILE );
 		final VolatileUnsignedByteType linkedType = new VolatileUnsignedByteType( img );
 		img.setLinkedType( linkedType );
 		return img;
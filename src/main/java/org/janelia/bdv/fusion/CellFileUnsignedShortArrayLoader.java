@@ -28,8 +28,6 @@
  */
 package org.janelia.bdv.fusion;
 
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
@@ -37,7 +35,12 @@ public class CellFileUnsignedShortArrayLoader extends AbstractCellFileArrayLoade
 {	
 	public CellFileUnsignedShortArrayLoader( final String cellFormat, final int[][] cellSizes ) 
 	{
-		super( cellFormat, cellSizes, new ArrayFactory< UnsignedShortType, VolatileShortArray >() 
+		this( new CellFileTiffReader( cellFormat ), cellSizes );
+	}
+
+	public CellFileUnsignedShortArrayLoader( final CellFileReader reader, final int[][] cellSizes ) 
+	{
+		super( reader, cellSizes, new ArrayFactory< UnsignedShortType, VolatileShortArray >() 
 			{
 				@Override
 				public VolatileShortArray createInvalidVolatileArray( final int numEntities )
@@ -46,9 +49,9 @@ public class CellFileUnsignedShortArrayLoader extends AbstractCellFileArrayLoade
 				}
 
 				@Override
-				public RandomAccessibleInterval< UnsignedShortType > wrapArray( final VolatileShortArray data, final long[] dimensions )
+				public VolatileShortArray createValidVolatileArray( final Object data )
 				{
-					return ArrayImgs.unsignedShorts( data.getCurrentStorageArray(), dimensions );
+					return new VolatileShortArray( ( short[] )data, true );
 				}
 			} 
 		);
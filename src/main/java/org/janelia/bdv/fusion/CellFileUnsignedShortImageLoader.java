@@ -46,15 +46,53 @@ public class CellFileUnsignedShortImageLoader extends AbstractCellFileImageLoade
 			final int[][] cellDimensions,
 			final int[][] downsampleFactors )
 	{
-		super( dimensions, cellDimensions, downsampleFactors, new UnsignedShortType(), new VolatileUnsignedShortType() );
+		this( new CellFileTiffReader( cellFormat ), dimensions, cellDimensions, downsampleFactors );
+	}
+
+	public CellFileUnsignedShortImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors )
+	{
+		this( reader, dimensions, cellDimensions, downsampleFactors, 10 );
+	}
+
+	public CellFileUnsignedShortImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int numFetcherThreads )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, numFetcherThreads, new UnsignedShortType(), new VolatileUnsignedShortType() );
+
+		loader = new CellFileUnsignedShortArrayLoader( reader, cellDimensions );
+	}
+
+	public CellFileUnsignedShortImageLoader(
+			final CellFileReader reader,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final int[][] downsampleFactors,
+			final int setupId,
+			final CellFileCache cache )
+	{
+		super( dimensions, cellDimensions, downsampleFactors, setupId, cache, new UnsignedShortType(), new VolatileUnsignedShortType() );
+
+		loader = new CellFileUnsignedShortArrayLoader( reader, cellDimensions );
+	}
 
-		loader = new CellFileUnsignedShortArrayLoader( cellFormat, cellDimensions );
+	@Override
+	public CellFileUnsignedShortArrayLoader getArrayLoader()
+	{
+		return loader;
 	}
 
 	@Override
 	public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< UnsignedShortType, VolatileShortArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.BLOCKING );
+		final CachedCellImg< UnsignedShortType, VolatileShortArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.BLOCKING );
 		final UnsignedShortType linkedType = new UnsignedShortType( img );
 		img.setLinkedType( linkedType );
 		return img;
@@ -63,7 +101,7 @@ public class CellFileUnsignedShortImageLoader extends AbstractCellFileImageLoade
 	@Override
 	public RandomAccessibleInterval< VolatileUnsignedShortType > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
-		final CachedCellImg< VolatileUnsignedShortType, VolatileShortArray > img = prepareCachedImage( loader, timepointId, 0, level, LoadingStrategy.VOLATILE );
+		final CachedCellImg< VolatileUnsignedShortType, VolatileShortArray > img = prepareCachedImage( loader, timepointId, setupId, level, LoadingStrategy.VOLATILE );
 		final VolatileUnsignedShortType linkedType = new VolatileUnsignedShortType( img );
 		img.setLinkedType( linkedType );
 		return img;
@@ -2,8 +2,9 @@ package org.janelia.bdv.fusion;
 
 import static bdv.bigcat.CombinedImgLoader.SetupIdAndLoader.setupIdAndLoader;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Paths;
@@ -13,6 +14,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
+import javax.swing.SwingUtilities;
+
+import javax.management.ObjectName;
+
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.io.InputTriggerDescription;
 import org.scijava.ui.behaviour.io.yaml.YamlConfigIO;
@@ -45,8 +50,8 @@ import net.imglib2.type.numeric.ARGBType;
 
 /**
  * {@link BigDataViewer}-based application for exploring large datasets that are cut into tiles.
- * Takes a path to a fusion export configuration file as a command line argument
- * or via Fiji's Plugins &gt; BigDataViewer &gt; Cell File Viewer.
+ * Takes a path to a fusion export configuration file or an N5 multiscale group
+ * as a command line argument or via Fiji's Plugins &gt; BigDataViewer &gt; Cell File Viewer.
  *
  * Blending is supported for multiple channels defined in the configuration file.
  *
@@ -56,6 +61,26 @@ import net.imglib2.type.numeric.ARGBType;
 public class CellFileViewer implements PlugIn
 {
 	protected static String jsonPath = "";
+	protected static boolean indexCellFiles = true;
+	protected static int numFetcherThreads = 0;
+	protected static boolean adaptiveFetching = false;
+	protected static int cacheMemoryMB = 0;
+	protected static String diskCachePath = "";
+	protected static int diskCacheGB = 100;
+	protected static boolean warmStart = true;
+	protected static String tracePath = "";
+	protected static boolean viewportPriorities = false;
+	protected static boolean predictivePrefetching = true;
+	protected static boolean virtualLevels = true;
+	protected static boolean autoDisplayRange = true;
+
+	final static private int numIndexingThreads = 32;
+
+	final static private int numMotionPrefetcherThreads = 2;
+
+	final static private int maxNumLevels = 16;
+
+	final static private double[] displayRangePercentiles = new double[] { 0.1, 99.9 };
 
 	final public static void main( final String... args )
 	{
@@ -69,11 +94,35 @@ public class CellFileViewer implements PlugIn
 	{
 		final GenericDialogPlus gd = new GenericDialogPlus( "Cell File Viewer" );
 		gd.addFileField( "JSON_File: ", jsonPath);
+		gd.addCheckbox( "Index_cell_files", indexCellFiles );
+		gd.addNumericField( "Fetcher_threads (0 = from JSON)", numFetcherThreads, 0 );
+		gd.addCheckbox( "Adaptive_fetching", adaptiveFetching );
+		gd.addNumericField( "Cache_memory (0 = soft references)", cacheMemoryMB, 0, 6, "MB" );
+		gd.addDirectoryField( "Disk_cache (empty = none)", diskCachePath );
+		gd.addNumericField( "Disk_cache_size", diskCacheGB, 0, 6, "GB" );
+		gd.addCheckbox( "Prefetch_cells_of_last_session", warmStart );
+		gd.addCheckbox( "Fetch_cells_near_screen_centre_first", viewportPriorities );
+		gd.addCheckbox( "Prefetch_ahead_while_scrolling", predictivePrefetching );
+		gd.addCheckbox( "Compute_missing_scale_levels", virtualLevels );
+		gd.addCheckbox( "Display_range_from_cell_statistics", autoDisplayRange );
+		gd.addFileField( "Trace_file (empty = none)", tracePath );
 		gd.showDialog();
 		if ( gd.wasCanceled() )
 			return;
 
 		jsonPath = gd.getNextString();
+		indexCellFiles = gd.getNextBoolean();
+		numFetcherThreads = ( int )gd.getNextNumber();
+		adaptiveFetching = gd.getNextBoolean();
+		cacheMemoryMB = ( int )gd.getNextNumber();
+		diskCachePath = gd.getNextString();
+		diskCacheGB = ( int )gd.getNextNumber();
+		warmStart = gd.getNextBoolean();
+		viewportPriorities = gd.getNextBoolean();
+		predictivePrefetching = gd.getNextBoolean();
+		virtualLevels = gd.getNextBoolean();
+		autoDisplayRange = gd.getNextBoolean();
+		tracePath = gd.getNextString();
 
 		exec( jsonPath );
 	}
@@ -85,15 +134,19 @@ public class CellFileViewer implements PlugIn
 		final CellFileImageMetaData[] metaDatas;
 		try
 		{
-			metaDatas = gson.fromJson( new FileReader( jsonPath ), CellFileImageMetaData[].class );
+			if ( new File( jsonPath ).isDirectory() )
+				metaDatas = CellFileN5Reader.readMetaData( jsonPath );
+			else
+				metaDatas = gson.fromJson( new FileReader( jsonPath ), CellFileImageMetaData[].class );
 		}
-		catch ( JsonSyntaxException | JsonIOException | FileNotFoundException e )
+		catch ( JsonSyntaxException | JsonIOException | IOException e )
 		{
 			e.printStackTrace();
 			return;
 		}
 
-		final BigDataViewer bdv = createViewer( Paths.get( jsonPath ).getFileName() + " - Cell File Viewer", metaDatas );
+		final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders = new ArrayList<>();
+		final BigDataViewer bdv = createViewer( Paths.get( jsonPath ).getFileName() + " - Cell File Viewer", jsonPath, metaDatas, imgLoaders );
 		bdv.getViewerFrame().setVisible( true );
 		
 		final TriggerBehaviourBindings bindings = bdv.getViewerFrame().getTriggerbindings();
@@ -102,6 +155,7 @@ public class CellFileViewer implements PlugIn
 		final CropController cropController = new CropController(
 					bdv.getViewer(),
 					metaDatas,
+					imgLoaders,
 					config,
 					bdv.getViewerFrame().getKeybindings(),
 					config );
@@ -110,13 +164,71 @@ public class CellFileViewer implements PlugIn
 		bindings.addInputTriggerMap( "crop", cropController.getInputTriggerMap() );
 	}
 
+	/**
+	 * @param imgLoaders receives the loaders of all channels, to be shared
+	 *   with other users of the viewer's cache
+	 */
 	private static BigDataViewer createViewer(
 			final String windowTitle,
-			final CellFileImageMetaData[] metaDatas )
+			final String jsonPath,
+			final CellFileImageMetaData[] metaDatas,
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders )
 	{
-		final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders = new ArrayList<>();
+		final CellFileDiskCache diskCache = createDiskCache();
+
+		/* channels that show the same cell files decode each cell once */
+		final CellFileReadCoalescer coalescer = new CellFileReadCoalescer();
+
+		final CellFileReader[] readers = new CellFileReader[ metaDatas.length ];
+		int maxNumScales = CellFileImageLoaderFactory.getMaxNumScales( metaDatas );
+		for ( int i = 0; i < metaDatas.length; ++i )
+		{
+			CellFileReader reader = CellFileImageLoaderFactory.createCellFileReader( metaDatas[ i ] );
+			if ( diskCache != null )
+				reader = diskCache.wrap( reader, metaDatas[ i ].getUrlFormat() );
+			reader = coalescer.wrap( reader, CellFileImageLoaderFactory.getReaderIdentity( metaDatas[ i ] ) );
+			if ( virtualLevels )
+			{
+				final CellFileVirtualLevels levels = new CellFileVirtualLevels( reader, metaDatas[ i ], maxNumLevels, CellFilePyramidBuilder.Downsampling.AVERAGE );
+				maxNumScales = Math.max( maxNumScales, levels.getNumLevels() );
+				reader = levels;
+			}
+			readers[ i ] = reader;
+		}
+
+		/* one cache, fetcher pool and concurrency limit shared by all channels */
+		final CellFileCache cache = CellFileImageLoaderFactory.createSharedCache(
+				maxNumScales,
+				CellFileImageLoaderFactory.getNumFetcherThreads( metaDatas, numFetcherThreads ),
+				cacheMemoryMB );
+		boolean adaptive = adaptiveFetching;
 		for ( final CellFileImageMetaData metaData : metaDatas )
-			imgLoaders.add( CellFileImageLoaderFactory.createImageLoader( metaData ) );
+			adaptive |= metaData.isAdaptiveFetching();
+		final AdaptiveConcurrencyLimit concurrencyLimit = adaptive ?
+				CellFileImageLoaderFactory.createConcurrencyLimit( CellFileImageLoaderFactory.getNumFetcherThreads( metaDatas, numFetcherThreads ) ) :
+				null;
+		if ( cache instanceof TwoQueueCellFileCache )
+			( ( TwoQueueCellFileCache )cache ).setConcurrencyLimit( concurrencyLimit );
+
+		final CellFileHotCells hotCells = warmStart ? new CellFileHotCells() : null;
+
+		final CellFileTracer tracer = tracePath == null || tracePath.trim().isEmpty() ? null : new CellFileTracer();
+
+		for ( int i = 0; i < metaDatas.length; ++i )
+		{
+			final AbstractCellFileImageLoader< ?, ? > imgLoader = readers[ i ] instanceof CellFileVirtualLevels ?
+					CellFileImageLoaderFactory.createImageLoader( metaDatas[ i ], i, cache, ( CellFileVirtualLevels )readers[ i ] ) :
+					CellFileImageLoaderFactory.createImageLoader( metaDatas[ i ], i, cache, readers[ i ] );
+			imgLoader.getArrayLoader().setConcurrencyLimit( concurrencyLimit );
+			imgLoader.setHotCells( hotCells );
+			imgLoader.getArrayLoader().setTracer( tracer );
+			imgLoaders.add( imgLoader );
+		}
+
+		if ( indexCellFiles )
+			for ( int i = 0; i < imgLoaders.size(); ++i )
+				if ( metaDatas[ i ].isFilePerCell() )
+					indexCellFiles( imgLoaders.get( i ), jsonPath, i );
 
 		final ArrayList< CombinedImgLoader.SetupIdAndLoader > loaders = new ArrayList<>();
 		for ( int i = 0; i < imgLoaders.size(); i++ )
@@ -186,13 +298,14 @@ public class CellFileViewer implements PlugIn
 				sources,
 				null,
 				timepoints.size(),
-				combinedImgLoader.getCacheControl(),
+				cache,
 				windowTitle,
 				null,
 				options );
 
 		// FIXME: Create separate min-max group for every channel after BDV initialization
 		// If specified before calling BDV constructor, it ignores this and uses display range of the first setup
+		final ArrayList< ConverterSetup > autoRangeSetups = new ArrayList<>();
 		for ( final ConverterSetup converterSetup : converterSetups )
 		{
 			final int i = converterSetup.getSetupId();
@@ -200,6 +313,8 @@ public class CellFileViewer implements PlugIn
 			{
 				final boolean isDeconExport = metaDatas[ i ].getUrlFormat().indexOf( "decon" ) != -1;
 				converterSetup.setDisplayRange( 0, isDeconExport ? 3000 : 300 );
+				if ( autoDisplayRange )
+					autoRangeSetups.add( converterSetup );
 			}
 			else
 			{
@@ -208,6 +323,12 @@ public class CellFileViewer implements PlugIn
 			bdv.getSetupAssignments().removeSetupFromGroup( converterSetup, bdv.getSetupAssignments().getMinMaxGroups().get( 0 ) );
 		}
 
+		final AffineTransform3D[][] sourceTransforms = createSourceTransforms( imgLoaders, metaDatas );
+		if ( viewportPriorities )
+			prioritizeByViewport( bdv, cache, sourceTransforms );
+		if ( predictivePrefetching )
+			prefetchAhead( bdv, imgLoaders, sourceTransforms );
+
 		// put the camera in the middle of the sample at a scale that captures the entire volume
 		final long[] imageSize = metaDatas[ 0 ].getImageDimensions()[ 0 ];
 		final int[] viewerFrameSize = new int[] { bdv.getViewer().getWidth(), bdv.getViewer().getHeight() };
@@ -235,9 +356,357 @@ public class CellFileViewer implements PlugIn
 
 		bdv.getViewer().setDisplayMode( DisplayMode.FUSED );
 
+		if ( hotCells != null )
+			warmStart( bdv, hotCells, imgLoaders, jsonPath );
+
+		if ( !autoRangeSetups.isEmpty() )
+			setDisplayRangesInBackground( bdv, autoRangeSetups, imgLoaders, metaDatas, jsonPath );
+
+		registerMBeans( bdv, windowTitle, imgLoaders, cache, concurrencyLimit, diskCache, coalescer );
+
+		if ( tracer != null )
+			writeTraceOnClose( bdv, tracer, new File( tracePath.trim() ) );
+
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				cache.close();
+			}
+		} );
+
 		return bdv;
 	}
+
+	/**
+	 * Fetch cells close to the centre of the screen and the visible plane
+	 * first and demote queued cells that left the screen.  This needs a
+	 * cache with an explicit memory budget, BigDataViewer's own cache does
+	 * not expose its queue.
+	 */
+	private static void prioritizeByViewport(
+			final BigDataViewer bdv,
+			final CellFileCache cache,
+			final AffineTransform3D[][] sourceTransforms )
+	{
+		if ( !( cache instanceof TwoQueueCellFileCache ) )
+		{
+			System.out.println( "viewport priorities need a cache memory budget, fetching by level only" );
+			return;
+		}
+
+		final TwoQueueCellFileCache twoQueueCache = ( TwoQueueCellFileCache )cache;
+		final ViewportCellPrioritizer prioritizer = new ViewportCellPrioritizer( sourceTransforms, bdv.getViewer().getDisplay() );
+		prioritizer.setListener( twoQueueCache::reprioritize );
+		twoQueueCache.setPrioritizer( prioritizer );
+		bdv.getViewer().addTransformListener( prioritizer );
+	}
+
+	/**
+	 * Load the cells ahead of the visible plane while the user scrolls
+	 * or pans.
+	 */
+	private static void prefetchAhead(
+			final BigDataViewer bdv,
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final AffineTransform3D[][] sourceTransforms )
+	{
+		final MotionPrefetcher prefetcher = new MotionPrefetcher( imgLoaders, sourceTransforms, bdv.getViewer().getDisplay(), numMotionPrefetcherThreads );
+		bdv.getViewer().addTransformListener( prefetcher );
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				prefetcher.stop();
+			}
+		} );
+	}
+
+	/**
+	 * @return pixel to global coordinates of all levels of all setups,
+	 *   indexed by setup and level
+	 */
+	private static AffineTransform3D[][] createSourceTransforms(
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileImageMetaData[] metaDatas )
+	{
+		final AffineTransform3D[][] sourceTransforms = new AffineTransform3D[ imgLoaders.size() ][];
+		for ( int i = 0; i < imgLoaders.size(); ++i )
+		{
+			final AffineTransform3D[] mipmapTransforms = imgLoaders.get( i ).getMipmapTransforms();
+			sourceTransforms[ i ] = new AffineTransform3D[ mipmapTransforms.length ];
+			for ( int level = 0; level < mipmapTransforms.length; ++level )
+				sourceTransforms[ i ][ level ] = metaDatas[ i ].getTransform().copy().concatenate( mipmapTransforms[ level ] );
+		}
+		return sourceTransforms;
+	}
+
+	/**
+	 * Write the spans of all cell loads as a Chrome trace when the viewer
+	 * is closed.
+	 */
+	private static void writeTraceOnClose( final BigDataViewer bdv, final CellFileTracer tracer, final File file )
+	{
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				try
+				{
+					tracer.write( file );
+					System.out.println( "wrote " + tracer.getNumSpans() + " cell load spans to " + file );
+				}
+				catch ( final IOException ex )
+				{
+					System.err.println( "Could not write trace " + file + ": " + ex.getMessage() );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Expose the statistics of loaders and caches via JMX while the viewer
+	 * is open.
+	 */
+	private static void registerMBeans(
+			final BigDataViewer bdv,
+			final String windowTitle,
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileCache cache,
+			final AdaptiveConcurrencyLimit concurrencyLimit,
+			final CellFileDiskCache diskCache,
+			final CellFileReadCoalescer coalescer )
+	{
+		final ArrayList< ObjectName > names = new ArrayList<>();
+		for ( int i = 0; i < imgLoaders.size(); ++i )
+			names.add( CellFileLoaderStats.register( imgLoaders.get( i ).getArrayLoader().getStats(), "Loader", windowTitle + " channel " + i ) );
+		if ( cache instanceof TwoQueueCellFileCacheMBean )
+			names.add( CellFileLoaderStats.register( cache, "Cache", windowTitle ) );
+		if ( concurrencyLimit != null )
+			names.add( CellFileLoaderStats.register( concurrencyLimit, "ConcurrencyLimit", windowTitle ) );
+		if ( diskCache != null )
+			names.add( CellFileLoaderStats.register( diskCache, "DiskCache", windowTitle ) );
+		names.add( CellFileLoaderStats.register( coalescer, "ReadCoalescer", windowTitle ) );
+
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				names.forEach( CellFileLoaderStats::unregister );
+			}
+		} );
+	}
+
+	/**
+	 * Prefetch the cells that were used in the last session and save the
+	 * cells used in this session when the viewer is closed.
+	 */
+	private static void warmStart(
+			final BigDataViewer bdv,
+			final CellFileHotCells hotCells,
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final String jsonPath )
+	{
+		final File sidecar = CellFileHotCells.sidecarFile( jsonPath );
+		if ( sidecar.isFile() && sidecar.lastModified() >= new File( jsonPath ).lastModified() )
+		{
+			try
+			{
+				/* stay within the part of the cache that new cells may use */
+				final long maxBytes = cacheMemoryMB > 0 ? ( ( long )cacheMemoryMB << 20 ) / 4 : Runtime.getRuntime().maxMemory() / 4;
+				hotCells.prefetch( CellFileHotCells.load( sidecar ), imgLoaders, maxBytes );
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "Could not read hot cells " + sidecar + ": " + e.getMessage() );
+			}
+		}
+
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				hotCells.stop();
+				try
+				{
+					hotCells.save( sidecar );
+				}
+				catch ( final IOException ex )
+				{
+					System.err.println( "Could not write hot cells " + sidecar + ": " + ex.getMessage() );
+				}
+			}
+		} );
+	}
 	
+	/**
+	 * Open the local disk cache for cells read from slow storage, or
+	 * return null if none is configured or it cannot be opened.
+	 */
+	private static CellFileDiskCache createDiskCache()
+	{
+		if ( diskCachePath == null || diskCachePath.trim().isEmpty() )
+			return null;
+
+		try
+		{
+			return new CellFileDiskCache( new File( diskCachePath.trim() ), ( long )diskCacheGB << 30, true );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not open disk cache " + diskCachePath + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Attach an index of existing cells to the loader such that missing
+	 * cells of sparse exports do not cost a file system lookup.  The index
+	 * is cached in a sidecar file next to the JSON file.
+	 */
+	private static void indexCellFiles(
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final String jsonPath,
+			final int channel )
+	{
+		final File sidecar = new File( jsonPath + "." + channel + ".cellindex" );
+		try
+		{
+			System.out.println( "indexing cells of channel " + channel );
+			imgLoader.getArrayLoader().setPresenceIndex(
+					CellFilePresenceIndex.loadOrBuild(
+							sidecar,
+							new File( jsonPath ),
+							imgLoader.getArrayLoader().getReader(),
+							imgLoader.getDimensions(),
+							imgLoader.getCellDimensions(),
+							numIndexingThreads ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Compute the display ranges of <code>converterSetups</code> from the
+	 * intensity statistics of their channels on a background thread, such
+	 * that the viewer opens right away.  A display range that was changed
+	 * meanwhile is kept.
+	 */
+	private static void setDisplayRangesInBackground(
+			final BigDataViewer bdv,
+			final ArrayList< ConverterSetup > converterSetups,
+			final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileImageMetaData[] metaDatas,
+			final String jsonPath )
+	{
+		final double[][] initialRanges = new double[ converterSetups.size() ][];
+		for ( int j = 0; j < initialRanges.length; ++j )
+			initialRanges[ j ] = new double[] { converterSetups.get( j ).getDisplayRangeMin(), converterSetups.get( j ).getDisplayRangeMax() };
+
+		final Thread thread = new Thread( () -> {
+			for ( int j = 0; j < converterSetups.size() && !Thread.currentThread().isInterrupted(); ++j )
+			{
+				final ConverterSetup converterSetup = converterSetups.get( j );
+				final int i = converterSetup.getSetupId();
+				final CellFileIntensityStats stats = computeIntensityStats( imgLoaders.get( i ), metaDatas[ i ], jsonPath, i );
+				final double[] displayRange = stats == null ? null : getDisplayRange( stats );
+				if ( displayRange == null )
+					continue;
+
+				final double[] initialRange = initialRanges[ j ];
+				SwingUtilities.invokeLater( () -> {
+					if ( converterSetup.getDisplayRangeMin() == initialRange[ 0 ] && converterSetup.getDisplayRangeMax() == initialRange[ 1 ] )
+					{
+						converterSetup.setDisplayRange( displayRange[ 0 ], displayRange[ 1 ] );
+						bdv.getViewer().requestRepaint();
+					}
+				} );
+			}
+		}, "intensity-stats" );
+		thread.setDaemon( true );
+
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent e )
+			{
+				thread.interrupt();
+			}
+		} );
+		thread.start();
+	}
+
+	/**
+	 * Load or compute the per-cell intensity statistics of a coarse level
+	 * on disk of the channel, virtual levels would be computed from all
+	 * finer cells.  They are cached in a sidecar file next to the JSON
+	 * file.
+	 *
+	 * @return the statistics or null if they could not be computed
+	 */
+	private static CellFileIntensityStats computeIntensityStats(
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final CellFileImageMetaData metaData,
+			final String jsonPath,
+			final int channel )
+	{
+		CellFileReader reader = imgLoader.getArrayLoader().getReader();
+		if ( reader instanceof CellFileVirtualLevels )
+			reader = ( ( CellFileVirtualLevels )reader ).getReader();
+
+		final int[][] factors = metaData.getDownsampleFactors();
+		final double[][] resolutions = new double[ factors.length ][ 3 ];
+		for ( int level = 0; level < factors.length; ++level )
+			for ( int d = 0; d < 3; ++d )
+				resolutions[ level ][ d ] = factors[ level ][ d ];
+
+		final File sidecar = new File( jsonPath + "." + channel + ".stats" );
+		try
+		{
+			System.out.println( "computing intensity statistics of channel " + channel );
+			return CellFileIntensityStats.loadOrBuild(
+					sidecar,
+					new File( jsonPath ),
+					reader,
+					metaData.getImageType(),
+					resolutions,
+					metaData.getImageDimensions(),
+					metaData.getCellDimensions(),
+					numIndexingThreads );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not compute intensity statistics of channel " + channel + ": " + e.getMessage() );
+			return null;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * @return display range between the {@link #displayRangePercentiles} of
+	 *   the intensities or null if the channel is empty or flat
+	 */
+	private static double[] getDisplayRange( final CellFileIntensityStats stats )
+	{
+		final CellFileIntensityStats.Histogram histogram = stats.getHistogram();
+		final double min = histogram.percentile( displayRangePercentiles[ 0 ] );
+		final double max = histogram.percentile( displayRangePercentiles[ 1 ] );
+		if ( Double.isNaN( min ) || Double.isNaN( max ) || max <= min )
+			return null;
+		return new double[] { Math.floor( min ), Math.ceil( max ) };
+	}
+
 	static protected InputTriggerConfig getInputTriggerConfig() throws IllegalArgumentException
 	{
 		final String[] filenames = { "bigcatkeyconfig.yaml", System.getProperty( "user.home" ) + "/.bdv/bigcatkeyconfig.yaml" };
@@ -0,0 +1,428 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Completes the scale pyramid of an export whose coarser levels are
+ * missing on disk, e.g. a raw export with level 0 only, or that skips
+ * levels.  Missing levels are inserted between levels on disk whose
+ * downsampling factors differ by more than 2, and appended until the
+ * whole image fits into one cell.  A virtual level is only added if its
+ * cells cover at most {@link #maxSourceCells} cells of the next finer
+ * level on disk, such that computing a virtual cell never reads more than
+ * that many cells from disk.
+ *
+ * This is a {@link CellFileReader} for the levels of the completed
+ * pyramid.  Cells of levels on disk are read by the decorated reader, the
+ * cells of virtual levels are {@link CellFilePyramidBuilder#downsample
+ * downsampled} from the next finer level when they are first read.  The
+ * finer cells are read in parallel through the
+ * {@link #setSource(CellFileReader) source}, typically the cache of the
+ * image loader such that they, as the virtual cells themselves, are
+ * cached like any other cell and loaded under its concurrency limit.
+ */
+public class CellFileVirtualLevels implements CellFileReader
+{
+	/**
+	 * Maximum number of cells of the next finer level on disk that a cell
+	 * of a virtual level may cover.
+	 */
+	final static public int maxSourceCells = 64;
+
+	/* reads the finer cells of virtual cells, they wait for permits of the concurrency limit, not for threads */
+	final static private ExecutorService exec = Executors.newCachedThreadPool( r -> {
+		final Thread thread = new Thread( r, "virtual-level-reader" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	final private CellFileReader reader;
+
+	final private String imageType;
+
+	final private CellFilePyramidBuilder.Downsampling downsampling;
+
+	final private long[][] dimensions;
+
+	final private int[][] cellDimensions;
+
+	final private int[][] downsampleFactors;
+
+	/* level on disk or -1 */
+	final private int[] diskLevels;
+
+	private volatile CellFileReader source = this;
+
+	/**
+	 * @param reader reads the levels on disk
+	 * @param metaData
+	 * @param maxNumLevels maximum number of levels of the completed pyramid
+	 * @param downsampling
+	 */
+	public CellFileVirtualLevels(
+			final CellFileReader reader,
+			final CellFileImageMetaData metaData,
+			final int maxNumLevels,
+			final CellFilePyramidBuilder.Downsampling downsampling )
+	{
+		this.reader = reader;
+		this.imageType = metaData.getImageType();
+		this.downsampling = downsampling;
+
+		final long[][] diskDimensions = metaData.getImageDimensions();
+		final int[][] diskCellDimensions = metaData.getCellDimensions();
+		final int[][] diskFactors = metaData.getDownsampleFactors();
+
+		final ArrayList< long[] > dims = new ArrayList<>();
+		final ArrayList< int[] > cells = new ArrayList<>();
+		final ArrayList< int[] > factors = new ArrayList<>();
+		final ArrayList< Integer > levels = new ArrayList<>();
+		for ( int diskLevel = 0; diskLevel < diskFactors.length; ++diskLevel )
+		{
+			/* fill a gap by halving until the next level on disk */
+			if ( diskLevel > 0 )
+			{
+				while ( factors.size() < maxNumLevels )
+				{
+					final int last = factors.size() - 1;
+					final int[] next = factors.get( last ).clone();
+					boolean halved = false;
+					for ( int d = 0; d < 3; ++d )
+					{
+						if ( 2 * next[ d ] < diskFactors[ diskLevel ][ d ] && diskFactors[ diskLevel ][ d ] % ( 2 * next[ d ] ) == 0 )
+						{
+							next[ d ] *= 2;
+							halved = true;
+						}
+					}
+					if ( !halved || numSourceCells( dims, cells, factors, levels, next ) > maxSourceCells )
+						break;
+					addVirtual( dims, cells, factors, levels, next );
+				}
+			}
+			if ( factors.size() == maxNumLevels )
+				break;
+			dims.add( diskDimensions[ diskLevel ] );
+			cells.add( diskCellDimensions[ diskLevel ] );
+			factors.add( diskFactors[ diskLevel ] );
+			levels.add( diskLevel );
+		}
+
+		/* append coarser levels */
+		final int last = factors.size() - 1;
+		final double[] voxelDimensions = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			voxelDimensions[ d ] = metaData.getVoxelDimensions().dimension( d ) * factors.get( last )[ d ];
+		final int[][] coarser = CellFilePyramidBuilder.proposeDownsampleFactors(
+				dims.get( last ),
+				cells.get( last ),
+				voxelDimensions,
+				maxNumLevels - last );
+		for ( int i = 1; i < coarser.length; ++i )
+		{
+			final int[] next = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				next[ d ] = factors.get( last )[ d ] * coarser[ i ][ d ];
+			if ( numSourceCells( dims, cells, factors, levels, next ) > maxSourceCells )
+				break;
+			addVirtual( dims, cells, factors, levels, next );
+		}
+
+		dimensions = dims.toArray( new long[ dims.size() ][] );
+		cellDimensions = cells.toArray( new int[ cells.size() ][] );
+		downsampleFactors = factors.toArray( new int[ factors.size() ][] );
+		diskLevels = new int[ levels.size() ];
+		for ( int i = 0; i < diskLevels.length; ++i )
+			diskLevels[ i ] = levels.get( i );
+	}
+
+	private CellFileVirtualLevels( final CellFileVirtualLevels levels )
+	{
+		reader = levels.reader;
+		imageType = levels.imageType;
+		downsampling = levels.downsampling;
+		dimensions = levels.dimensions;
+		cellDimensions = levels.cellDimensions;
+		downsampleFactors = levels.downsampleFactors;
+		diskLevels = levels.diskLevels;
+	}
+
+	/**
+	 * Create a reader for the same levels whose
+	 * {@link #setSource(CellFileReader) source} is independent of this
+	 * reader's, e.g. to compute virtual cells without the cache of the
+	 * image loader.  By default, it reads finer cells through itself.
+	 *
+	 * @return
+	 */
+	public CellFileVirtualLevels copy()
+	{
+		return new CellFileVirtualLevels( this );
+	}
+
+	/* number of cells of the last level on disk that a cell of a virtual level with factors next covers */
+	static private long numSourceCells(
+			final ArrayList< long[] > dims,
+			final ArrayList< int[] > cells,
+			final ArrayList< int[] > factors,
+			final ArrayList< Integer > levels,
+			final int[] next )
+	{
+		int disk = levels.size() - 1;
+		while ( levels.get( disk ) < 0 )
+			--disk;
+		final int last = factors.size() - 1;
+		long n = 1;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long extent = ( long )cells.get( last )[ d ] * next[ d ] / factors.get( disk )[ d ];
+			final long gridSize = ( dims.get( disk )[ d ] + cells.get( disk )[ d ] - 1 ) / cells.get( disk )[ d ];
+			n *= Math.min( gridSize, ( extent + cells.get( disk )[ d ] - 1 ) / cells.get( disk )[ d ] );
+		}
+		return n;
+	}
+
+	/* a virtual level computed from the last level */
+	static private void addVirtual(
+			final ArrayList< long[] > dims,
+			final ArrayList< int[] > cells,
+			final ArrayList< int[] > factors,
+			final ArrayList< Integer > levels,
+			final int[] next )
+	{
+		final int last = factors.size() - 1;
+		final long[] d = new long[ 3 ];
+		for ( int i = 0; i < 3; ++i )
+			d[ i ] = dims.get( last )[ i ] / ( next[ i ] / factors.get( last )[ i ] );
+		dims.add( d );
+		cells.add( cells.get( last ) );
+		factors.add( next );
+		levels.add( -1 );
+	}
+
+	/**
+	 * Read the finer cells that virtual cells are computed from through
+	 * <code>source</code>, e.g. the cache of the image loader of this
+	 * reader's levels.  By default, they are read through this reader.
+	 *
+	 * @param source reader for the levels of this reader
+	 */
+	public void setSource( final CellFileReader source )
+	{
+		this.source = source;
+	}
+
+	/**
+	 * @return the reader of the levels on disk, numbered as in the
+	 *   metadata
+	 */
+	public CellFileReader getReader()
+	{
+		return reader;
+	}
+
+	public int getNumLevels()
+	{
+		return diskLevels.length;
+	}
+
+	/**
+	 * @param level
+	 * @return true if <code>level</code> is computed, false if it is on disk
+	 */
+	public boolean isVirtual( final int level )
+	{
+		return diskLevels[ level ] < 0;
+	}
+
+	public long[][] getDimensions()
+	{
+		return dimensions;
+	}
+
+	public int[][] getCellDimensions()
+	{
+		return cellDimensions;
+	}
+
+	public int[][] getDownsampleFactors()
+	{
+		return downsampleFactors;
+	}
+
+	@Override
+	public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+	{
+		if ( isVirtual( level ) )
+			return "virtual:" + reader.getCellPath( level, gridPosition, min );
+		else
+			return reader.getCellPath( diskLevels[ level ], gridPosition, min );
+	}
+
+	@Override
+	public Object read(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object storage ) throws IOException
+	{
+		if ( !isVirtual( level ) )
+			return reader.read( diskLevels[ level ], gridPosition, min, dimensions, storage );
+
+		final int[] factors = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			factors[ d ] = downsampleFactors[ level ][ d ] / downsampleFactors[ level - 1 ][ d ];
+
+		return CellFilePyramidBuilder.downsample(
+				readFinerCells( level - 1, factors, min, dimensions ),
+				imageType,
+				level - 1,
+				this.dimensions[ level - 1 ],
+				cellDimensions[ level - 1 ],
+				factors,
+				downsampling,
+				min,
+				dimensions );
+	}
+
+	/**
+	 * Read the cells of <code>sourceLevel</code> that a virtual cell at
+	 * <code>min</code> covers in parallel, each load on a thread of its
+	 * own with the cancellation token of the current thread.
+	 *
+	 * @return a reader for the cells that were read
+	 */
+	private CellFileReader readFinerCells(
+			final int sourceLevel,
+			final int[] factors,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		final long[] sourceDimensions = this.dimensions[ sourceLevel ];
+		final int[] cellSize = cellDimensions[ sourceLevel ];
+		final long[] gridMin = new long[ 3 ];
+		final int[] gridSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			gridMin[ d ] = min[ d ] * factors[ d ] / cellSize[ d ];
+			gridSize[ d ] = ( int )( ( ( min[ d ] + dimensions[ d ] ) * factors[ d ] + cellSize[ d ] - 1 ) / cellSize[ d ] - gridMin[ d ] );
+		}
+
+		final CellFileReader source = this.source;
+		final CellFileCancellation.Token token = CellFileCancellation.get();
+		final ArrayList< Future< Object > > futures = new ArrayList<>();
+		for ( int z = 0; z < gridSize[ 2 ]; ++z )
+			for ( int y = 0; y < gridSize[ 1 ]; ++y )
+				for ( int x = 0; x < gridSize[ 0 ]; ++x )
+				{
+					final long[] gridPosition = new long[] { gridMin[ 0 ] + x, gridMin[ 1 ] + y, gridMin[ 2 ] + z };
+					final long[] cellMin = new long[ 3 ];
+					final int[] cellDims = new int[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+					{
+						cellMin[ d ] = gridPosition[ d ] * cellSize[ d ];
+						cellDims[ d ] = ( int )Math.min( cellSize[ d ], sourceDimensions[ d ] - cellMin[ d ] );
+					}
+					futures.add( exec.submit( () -> {
+						CellFileCancellation.set( token );
+						try
+						{
+							return source.read(
+									sourceLevel,
+									gridPosition,
+									cellMin,
+									cellDims,
+									CellFileImageLoaderFactory.createStorageArray( imageType, cellDims[ 0 ] * cellDims[ 1 ] * cellDims[ 2 ] ) );
+						}
+						catch ( final IOException e )
+						{
+							throw new UncheckedIOException( e );
+						}
+						finally
+						{
+							CellFileCancellation.set( null );
+						}
+					} ) );
+				}
+
+		/* wait for all loads, also after one failed, such that none outlives this read */
+		final Object[] data = new Object[ futures.size() ];
+		IOException failure = null;
+		boolean interrupted = false;
+		for ( int i = 0; i < data.length; ++i )
+		{
+			while ( true )
+			{
+				try
+				{
+					data[ i ] = futures.get( i ).get();
+					break;
+				}
+				catch ( final InterruptedException e )
+				{
+					interrupted = true;
+				}
+				catch ( final ExecutionException e )
+				{
+					if ( failure == null )
+						failure = e.getCause() instanceof UncheckedIOException ?
+								( ( UncheckedIOException )e.getCause() ).getCause() :
+								new IOException( e.getCause() );
+					break;
+				}
+			}
+		}
+		if ( interrupted )
+		{
+			Thread.currentThread().interrupt();
+			if ( failure == null )
+				failure = new InterruptedIOException( "interrupted while reading the cells of a virtual cell" );
+		}
+		if ( failure != null )
+			throw failure;
+
+		return new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return source.getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read(
+					final int level,
+					final long[] gridPosition,
+					final long[] min,
+					final int[] dimensions,
+					final Object storage )
+			{
+				return data[ ( int )( ( ( gridPosition[ 2 ] - gridMin[ 2 ] ) * gridSize[ 1 ] + gridPosition[ 1 ] - gridMin[ 1 ] ) * gridSize[ 0 ] + gridPosition[ 0 ] - gridMin[ 0 ] ) ];
+			}
+		};
+	}
+}
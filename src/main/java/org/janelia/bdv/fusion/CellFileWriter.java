@@ -0,0 +1,64 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+
+/**
+ * Writes cells into the file per cell layout that the matching
+ * {@link CellFileReader} reads, e.g. the coarser scale levels generated
+ * by {@link CellFilePyramidBuilder}.
+ *
+ * Implementations must be thread-safe, cells are written concurrently.
+ * Writers into a single container file, e.g. {@link TiffStackWriter} and
+ * {@link H5CellWriter}, write blocks of an image instead, the container
+ * is complete once all blocks are written.
+ */
+public interface CellFileWriter
+{
+	/**
+	 * Write a cell.  The file is written completely or not at all, such
+	 * that concurrent readers never see a partial cell.
+	 *
+	 * @param level scale level
+	 * @param gridPosition cell grid coordinates
+	 * @param min pixel coordinates of the top left front corner of the cell
+	 * @param dimensions dimensions of the cell
+	 * @param data flat storage array of the cell in x, y, z order
+	 * @throws IOException
+	 */
+	public void write(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object data ) throws IOException;
+
+	/**
+	 * Delete a cell, if it exists, e.g. a cell of an earlier build that
+	 * has no data anymore.
+	 *
+	 * @param level scale level
+	 * @param gridPosition cell grid coordinates
+	 * @param min pixel coordinates of the top left front corner of the cell
+	 * @throws IOException
+	 */
+	public void delete(
+			final int level,
+			final long[] gridPosition,
+			final long[] min ) throws IOException;
+}
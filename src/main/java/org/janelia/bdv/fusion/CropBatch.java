@@ -0,0 +1,528 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.Gson;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Headless extraction of many crops from the same dataset, e.g. around a
+ * list of detections.  Takes the export description (or N5 group) and a
+ * CSV file with one crop per line
+ *
+ * <pre>x,y,z,width,height,depth,level</pre>
+ *
+ * where (x, y, z) is the centre in voxel coordinates of the first channel
+ * at full resolution and the size is in voxels of the given level.  Lines
+ * that do not start with a number are skipped.
+ *
+ * All crops share one cell cache.  Crops that touch a common cell are
+ * scheduled one after another, such that their cells are loaded once and
+ * are still cached when the next crop needs them.  Crops run concurrently
+ * and stream their blocks through one shared pool.
+ *
+ * Does not use ImageJ or Swing, except for decoding and writing TIFF cells
+ * which does not need a display.
+ */
+public class CropBatch
+{
+	final static private int maxNumLevels = 16;
+
+	final static private long reportMillis = 5000;
+
+	/**
+	 * One line of the crop list.
+	 */
+	static class Crop
+	{
+		final int line;
+		final double[] center;
+		final int[] size;
+		final int level;
+		long[][] mins;
+		long morton;
+
+		Crop( final int line, final double[] center, final int[] size, final int level )
+		{
+			this.line = line;
+			this.center = center;
+			this.size = size;
+			this.level = level;
+		}
+	}
+
+	/**
+	 * @param args &lt;export.json|N5 group&gt; &lt;crops.csv&gt; &lt;output directory&gt;
+	 *   [tiff|hdf5|cells] [threads] [cache memory in MiB, 0 = soft references]
+	 */
+	final public static void main( final String... args ) throws IOException, InterruptedException
+	{
+		if ( args.length < 3 )
+		{
+			System.err.println( "Usage: CropBatch <export.json|N5 group> <crops.csv> <output directory> [tiff|hdf5|cells] [threads] [cache memory in MiB]" );
+			System.exit( 1 );
+		}
+
+		final CropExporter.Format format = args.length > 3 ? CropExporter.Format.valueOf( args[ 3 ].toUpperCase( Locale.ROOT ) ) : CropExporter.Format.TIFF;
+		final int numThreads = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : Runtime.getRuntime().availableProcessors();
+		final long cacheMemoryMB = args.length > 5 ? Long.parseLong( args[ 5 ] ) : 0;
+
+		final CellFileImageMetaData[] metaDatas;
+		if ( new File( args[ 0 ] ).isDirectory() )
+			metaDatas = CellFileN5Reader.readMetaData( args[ 0 ] );
+		else
+			try ( final FileReader reader = new FileReader( args[ 0 ] ) )
+			{
+				metaDatas = new Gson().fromJson( reader, CellFileImageMetaData[].class );
+			}
+
+		final int failed = run( metaDatas, readCrops( args[ 1 ] ), new File( args[ 2 ] ), format, numThreads, cacheMemoryMB );
+		System.exit( failed == 0 ? 0 : 2 );
+	}
+
+	/**
+	 * @param path
+	 * @return the crops listed in a CSV file
+	 * @throws IOException
+	 */
+	public static List< Crop > readCrops( final String path ) throws IOException
+	{
+		final ArrayList< Crop > crops = new ArrayList<>();
+		try ( final BufferedReader reader = new BufferedReader( new FileReader( path ) ) )
+		{
+			int line = 0;
+			for ( String s = reader.readLine(); s != null; s = reader.readLine() )
+			{
+				++line;
+				final String[] fields = s.trim().split( "\\s*[,;\\t]\\s*" );
+				if ( fields.length < 7 || !fields[ 0 ].matches( "[-+.0-9].*" ) )
+					continue;
+				try
+				{
+					crops.add( new Crop(
+							line,
+							new double[] { Double.parseDouble( fields[ 0 ] ), Double.parseDouble( fields[ 1 ] ), Double.parseDouble( fields[ 2 ] ) },
+							new int[] { Integer.parseInt( fields[ 3 ] ), Integer.parseInt( fields[ 4 ] ), Integer.parseInt( fields[ 5 ] ) },
+							Integer.parseInt( fields[ 6 ] ) ) );
+				}
+				catch ( final NumberFormatException e )
+				{
+					throw new IOException( path + ":" + line + ": " + e.getMessage() );
+				}
+			}
+		}
+		return crops;
+	}
+
+	/**
+	 * Extract all crops.
+	 *
+	 * @param metaDatas
+	 * @param crops
+	 * @param outputDir
+	 * @param format
+	 * @param numThreads number of crops extracted at the same time and of
+	 *   threads that read and write their blocks
+	 * @param cacheMemoryMB
+	 * @return number of crops that failed
+	 * @throws InterruptedException if interrupted, crops that are running
+	 *   stop once the cells they are loading are done
+	 */
+	public static int run(
+			final CellFileImageMetaData[] metaDatas,
+			final List< Crop > crops,
+			final File outputDir,
+			final CropExporter.Format format,
+			final int numThreads,
+			final long cacheMemoryMB ) throws InterruptedException
+	{
+		outputDir.mkdirs();
+
+		/* channels that show the same cell files decode each cell once */
+		final CellFileReadCoalescer coalescer = new CellFileReadCoalescer();
+		final CellFileReader[] fileReaders = new CellFileReader[ metaDatas.length ];
+		int maxNumScales = CellFileImageLoaderFactory.getMaxNumScales( metaDatas );
+		for ( int i = 0; i < metaDatas.length; ++i )
+		{
+			final CellFileVirtualLevels levels = new CellFileVirtualLevels(
+					coalescer.wrap(
+							CellFileImageLoaderFactory.createCellFileReader( metaDatas[ i ] ),
+							CellFileImageLoaderFactory.getReaderIdentity( metaDatas[ i ] ) ),
+					metaDatas[ i ],
+					maxNumLevels,
+					CellFilePyramidBuilder.Downsampling.AVERAGE );
+			maxNumScales = Math.max( maxNumScales, levels.getNumLevels() );
+			fileReaders[ i ] = levels;
+		}
+
+		/* cells are loaded on the threads that need them, not by fetchers */
+		final CellFileCache cache = CellFileImageLoaderFactory.createSharedCache( maxNumScales, 1, cacheMemoryMB );
+
+		final ArrayList< AbstractCellFileImageLoader< ?, ? > > imgLoaders = new ArrayList<>();
+		final CellFileReader[] readers = new CellFileReader[ metaDatas.length ];
+		final LongAdder cellRequests = new LongAdder();
+		for ( int i = 0; i < metaDatas.length; ++i )
+		{
+			final AbstractCellFileImageLoader< ?, ? > imgLoader = CellFileImageLoaderFactory.createImageLoader( metaDatas[ i ], i, cache, ( CellFileVirtualLevels )fileReaders[ i ] );
+			imgLoaders.add( imgLoader );
+			readers[ i ] = countRequests( imgLoader.createCachedCellReader(), cellRequests );
+		}
+
+		final ArrayList< Crop > valid = new ArrayList<>();
+		for ( final Crop crop : crops )
+		{
+			if ( crop.level < 0 || crop.level >= imgLoaders.get( 0 ).numMipmapLevels() )
+				System.err.println( "line " + crop.line + ": no scale level " + crop.level );
+			else
+			{
+				crop.mins = cropMins( crop, metaDatas, imgLoaders );
+				valid.add( crop );
+			}
+		}
+		final List< Crop > ordered = schedule( valid, imgLoaders );
+
+		final ExecutorService cropExec = Executors.newFixedThreadPool( numThreads );
+		final ExecutorService blockExec = Executors.newFixedThreadPool( numThreads );
+		final ExecutorCompletionService< Boolean > completion = new ExecutorCompletionService<>( cropExec );
+		final ArrayList< Future< Boolean > > futures = new ArrayList<>();
+		final long t0 = System.currentTimeMillis();
+		int numFailed = crops.size() - valid.size();
+
+		/* all crops are cancelled if the batch is aborted */
+		final CellFileCancellation.Token[] tokens = new CellFileCancellation.Token[ ordered.size() ];
+		for ( int i = 0; i < tokens.length; ++i )
+			tokens[ i ] = new CellFileCancellation.Token();
+		boolean complete = false;
+		try
+		{
+			for ( int i = 0; i < tokens.length; ++i )
+			{
+				final Crop crop = ordered.get( i );
+				final CellFileCancellation.Token token = tokens[ i ];
+				futures.add( completion.submit( () -> extract( crop, imgLoaders, readers, metaDatas, outputDir, format, blockExec, numThreads, token ) ) );
+			}
+
+			long lastReport = t0;
+			for ( int done = 0; done < futures.size(); )
+			{
+				final Future< Boolean > future = completion.poll( reportMillis, TimeUnit.MILLISECONDS );
+				if ( future != null )
+				{
+					++done;
+					if ( !getResult( future ) )
+						++numFailed;
+				}
+				final long t = System.currentTimeMillis();
+				if ( t - lastReport >= reportMillis || done == futures.size() )
+				{
+					System.out.println( report( done, futures.size(), imgLoaders, cellRequests, t - t0 ) );
+					lastReport = t;
+				}
+			}
+			complete = true;
+		}
+		finally
+		{
+			/* blocking loads of the cache must not be interrupted, cancelled crops stop between cells */
+			if ( !complete )
+				for ( final CellFileCancellation.Token token : tokens )
+					token.cancel();
+			CropMaterializer.shutdown( cropExec );
+			CropMaterializer.shutdown( blockExec );
+			cache.close();
+		}
+
+		System.out.println( String.format( "%d of %d crops failed, read %d cells (%d bytes), %d decoded reads coalesced",
+				numFailed,
+				crops.size(),
+				cellsLoaded( imgLoaders ),
+				bytesRead( imgLoaders ),
+				coalescer.getCoalescedReads() ) );
+		return numFailed;
+	}
+
+	static private boolean getResult( final Future< Boolean > future ) throws InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			e.getCause().printStackTrace();
+			return false;
+		}
+	}
+
+	static private boolean extract(
+			final Crop crop,
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileReader[] readers,
+			final CellFileImageMetaData[] metaDatas,
+			final File outputDir,
+			final CropExporter.Format format,
+			final ExecutorService blockExec,
+			final int maxBlocksInFlight,
+			final CellFileCancellation.Token token )
+	{
+		if ( token.isCancelled() )
+			return false;
+
+		final String name = "crop" + crop.line;
+		final String path;
+		switch ( format )
+		{
+		case TIFF:
+			path = new File( outputDir, name + ".tif" ).getPath();
+			break;
+		case HDF5:
+			path = new File( outputDir, name + ".h5" ).getPath();
+			break;
+		default:
+			path = new File( outputDir, name ).getPath();
+		}
+
+		try
+		{
+			CropExporter.export( imgLoaders, readers, metaDatas, crop.level, crop.mins, crop.size, format, path, blockExec, maxBlocksInFlight, token, null );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "line " + crop.line + ": " + e );
+			return false;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Min corner of a crop in every channel, as for crops picked in the
+	 * viewer.
+	 */
+	static long[][] cropMins(
+			final Crop crop,
+			final CellFileImageMetaData[] metaDatas,
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders )
+	{
+		final double[] world = new double[ 3 ];
+		metaDatas[ 0 ].getTransform().apply( crop.center, world );
+
+		final long[][] mins = new long[ metaDatas.length ][];
+		final double[] center = new double[ 3 ];
+		for ( int c = 0; c < metaDatas.length; ++c )
+		{
+			final AffineTransform3D transform = imgLoaders.get( c ).getMipmapTransforms()[ crop.level ].copy();
+			transform.preConcatenate( metaDatas[ c ].getTransform() );
+			transform.inverse().apply( world, center );
+			mins[ c ] = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				mins[ c ][ d ] = Math.round( center[ d ] - 0.5 * crop.size[ d ] );
+		}
+		return mins;
+	}
+
+	/**
+	 * Order crops such that crops that share cells (transitively) are
+	 * consecutive.  Groups and the crops within a group are ordered along a
+	 * Z-order curve of their position, such that neighbouring groups that
+	 * share coarser cells or file system locality are close as well.
+	 */
+	static List< Crop > schedule( final List< Crop > crops, final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders )
+	{
+		final int[] parent = new int[ crops.size() ];
+		for ( int i = 0; i < parent.length; ++i )
+			parent[ i ] = i;
+
+		/* channel (8 bit), level (8 bit) and cell index (48 bit) */
+		final Map< Long, Integer > cellOwners = new HashMap<>();
+		for ( int i = 0; i < crops.size(); ++i )
+		{
+			final Crop crop = crops.get( i );
+			for ( int c = 0; c < imgLoaders.size(); ++c )
+			{
+				final long[] dimensions = imgLoaders.get( c ).getDimensions()[ crop.level ];
+				final int[] cellDimensions = imgLoaders.get( c ).getCellDimensions()[ crop.level ];
+				final long[] gridMin = new long[ 3 ];
+				final long[] gridMax = new long[ 3 ];
+				final long[] gridSize = new long[ 3 ];
+				boolean empty = false;
+				for ( int d = 0; d < 3; ++d )
+				{
+					gridMin[ d ] = Math.max( 0, crop.mins[ c ][ d ] ) / cellDimensions[ d ];
+					gridMax[ d ] = Math.min( dimensions[ d ] - 1, crop.mins[ c ][ d ] + crop.size[ d ] - 1 ) / cellDimensions[ d ];
+					gridSize[ d ] = ( dimensions[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+					empty |= crop.mins[ c ][ d ] + crop.size[ d ] <= 0 || gridMin[ d ] > gridMax[ d ];
+				}
+				if ( empty )
+					continue;
+
+				if ( c == 0 )
+					crop.morton = morton( gridMin );
+
+				final long prefix = ( ( long )c << 56 ) | ( ( long )crop.level << 48 );
+				for ( long z = gridMin[ 2 ]; z <= gridMax[ 2 ]; ++z )
+					for ( long y = gridMin[ 1 ]; y <= gridMax[ 1 ]; ++y )
+						for ( long x = gridMin[ 0 ]; x <= gridMax[ 0 ]; ++x )
+						{
+							final long key = prefix | ( ( z * gridSize[ 1 ] + y ) * gridSize[ 0 ] + x );
+							final Integer owner = cellOwners.putIfAbsent( key, i );
+							if ( owner != null )
+								union( parent, owner, i );
+						}
+			}
+		}
+
+		/* a group is ordered by its first crop on the curve */
+		final long[] groupMorton = new long[ crops.size() ];
+		Arrays.fill( groupMorton, Long.MAX_VALUE );
+		for ( int i = 0; i < crops.size(); ++i )
+		{
+			final int root = find( parent, i );
+			groupMorton[ root ] = Math.min( groupMorton[ root ], crops.get( i ).morton );
+		}
+
+		final ArrayList< Integer > order = new ArrayList<>();
+		for ( int i = 0; i < crops.size(); ++i )
+			order.add( i );
+		order.sort( ( a, b ) -> {
+			final int ra = find( parent, a ), rb = find( parent, b );
+			int cmp = Long.compare( groupMorton[ ra ], groupMorton[ rb ] );
+			if ( cmp == 0 )
+				cmp = Integer.compare( ra, rb );
+			if ( cmp == 0 )
+				cmp = Long.compare( crops.get( a ).morton, crops.get( b ).morton );
+			return cmp;
+		} );
+
+		final ArrayList< Crop > ordered = new ArrayList<>();
+		for ( final int i : order )
+			ordered.add( crops.get( i ) );
+		return ordered;
+	}
+
+	static private int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	static private void union( final int[] parent, final int a, final int b )
+	{
+		final int ra = find( parent, a ), rb = find( parent, b );
+		if ( ra != rb )
+			parent[ Math.max( ra, rb ) ] = Math.min( ra, rb );
+	}
+
+	/**
+	 * Interleave the lower 21 bits of a grid position.
+	 */
+	static private long morton( final long[] position )
+	{
+		long code = 0;
+		for ( int bit = 0; bit < 21; ++bit )
+			for ( int d = 0; d < 3; ++d )
+				code |= ( ( position[ d ] >>> bit ) & 1L ) << ( 3 * bit + d );
+		return code;
+	}
+
+	static private CellFileReader countRequests( final CellFileReader reader, final LongAdder requests )
+	{
+		return new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return reader.getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read(
+					final int level,
+					final long[] gridPosition,
+					final long[] min,
+					final int[] dimensions,
+					final Object storage ) throws IOException
+			{
+				requests.increment();
+				return reader.read( level, gridPosition, min, dimensions, storage );
+			}
+		};
+	}
+
+	static private long cellsLoaded( final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders )
+	{
+		long sum = 0;
+		for ( final AbstractCellFileImageLoader< ?, ? > imgLoader : imgLoaders )
+			sum += imgLoader.getArrayLoader().getStats().getCellsLoaded();
+		return sum;
+	}
+
+	static private long bytesRead( final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders )
+	{
+		long sum = 0;
+		for ( final AbstractCellFileImageLoader< ?, ? > imgLoader : imgLoaders )
+			sum += imgLoader.getArrayLoader().getStats().getBytesRead();
+		return sum;
+	}
+
+	static private String report(
+			final int done,
+			final int numCrops,
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final LongAdder cellRequests,
+			final long millis )
+	{
+		final double seconds = Math.max( 1, millis ) / 1000.0;
+		final long loaded = cellsLoaded( imgLoaders );
+		final long requested = cellRequests.sum();
+		return String.format( Locale.ROOT, "%d/%d crops in %.1fs: %.2f crops/s, %.1f cells loaded/s, %.1f cells requested/s (%.0f%% from cache)",
+				done,
+				numCrops,
+				seconds,
+				done / seconds,
+				loaded / seconds,
+				requested / seconds,
+				requested == 0 ? 0 : 100.0 * Math.max( 0, requested - loaded ) / requested );
+	}
+}
@@ -16,12 +16,15 @@
  */
 package org.janelia.bdv.fusion;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.scijava.ui.behaviour.Behaviour;
 import org.scijava.ui.behaviour.BehaviourMap;
@@ -36,19 +39,12 @@ import org.scijava.ui.behaviour.util.InputActionBindings;
 import bdv.viewer.ViewerPanel;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import fiji.util.gui.GenericDialogPlus;
 import ij.gui.GenericDialog;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
-import net.imglib2.Volatile;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.NativeType;
-import net.imglib2.type.numeric.NumericType;
-import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
 /**
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
@@ -59,12 +55,17 @@ public class CropController
 
 	private RealPoint lastClick = new RealPoint(3);
 	private CellFileImageMetaData[] cellFileImageMetaDatas;
+	private List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders;
 
 	static private int width = 1024;
 	static private int height = 1024;
 	static private int depth = 512;
 	static private int scaleLevel = 0;
 	static private boolean single4DStack = false;
+	static private String exportFormat = CropExporter.Format.TIFF.name();
+	static private String exportPath = "";
+
+	final static private int numCropThreads = 16;
 
 	// for behavioUrs
 	private final BehaviourMap behaviourMap = new BehaviourMap();
@@ -76,20 +77,33 @@ public class CropController
 	private final InputMap ksInputMap = new InputMap();
 	private final KeyStrokeAdder ksKeyStrokeAdder;
 
+	/**
+	 * @param viewer
+	 * @param cellFileImageMetaDatas
+	 * @param imgLoaders the viewer's loaders, indexed like
+	 *   <code>cellFileImageMetaDatas</code>, such that crops are read
+	 *   through the viewer's cache
+	 * @param config
+	 * @param inputActionBindings
+	 * @param keyProperties
+	 */
 	public CropController(
 			final ViewerPanel viewer,
 			final CellFileImageMetaData[] cellFileImageMetaDatas,
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
 			final InputTriggerConfig config,
 			final InputActionBindings inputActionBindings,
 			final KeyStrokeAdder.Factory keyProperties )
 	{
 		this.viewer = viewer;
 		this.cellFileImageMetaDatas = cellFileImageMetaDatas;
+		this.imgLoaders = imgLoaders;
 
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "crop" );
 		ksKeyStrokeAdder = keyProperties.keyStrokeAdder( ksInputMap, "crop" );
 
 		new Crop( "crop", "SPACE" ).register();
+		new ExportCrop( "export crop", "shift SPACE" ).register();
 
 		inputActionBindings.addActionMap( "select", ksActionMap );
 		inputActionBindings.addInputMap( "select", ksInputMap );
@@ -145,6 +159,81 @@ public class CropController
 		}
 	}
 
+	/**
+	 * Top left front corners of a box of the given size centered at the
+	 * last click in the scale level coordinates of each channel.
+	 *
+	 * @return null if the scale level does not exist
+	 */
+	private long[][] cropMins( final int[] size, final int s )
+	{
+		final long[][] mins = new long[ cellFileImageMetaDatas.length ][];
+		for ( int channel = 0; channel < cellFileImageMetaDatas.length; ++channel )
+		{
+			final CellFileImageMetaData metaData = cellFileImageMetaDatas[ channel ];
+			final AbstractCellFileImageLoader< ?, ? > imgLoader = imgLoaders.get( channel );
+			if ( s < 0 || s >= imgLoader.numMipmapLevels() )
+			{
+				IJ.log( String.format( "Specified incorrect scale level %d. Valid range is [%d, %d]", s, 0, imgLoader.numMipmapLevels() - 1 ) );
+				scaleLevel = imgLoader.numMipmapLevels() - 1;
+				return null;
+			}
+			final AffineTransform3D transform = imgLoader.getMipmapTransforms()[ s ].copy();
+			transform.preConcatenate( metaData.getTransform() );
+			final RealPoint center = new RealPoint( 3 );
+			transform.applyInverse( center, lastClick );
+
+			mins[ channel ] = new long[] {
+					Math.round( center.getDoublePosition( 0 ) - 0.5 * size[ 0 ] ),
+					Math.round( center.getDoublePosition( 1 ) - 0.5 * size[ 1 ] ),
+					Math.round( center.getDoublePosition( 2 ) - 0.5 * size[ 2 ] ) };
+
+			IJ.log( String.format( "Cropping %s pixels at %s using scale level %d", Arrays.toString( size ), Arrays.toString( mins[ channel ] ), s ) );
+			System.out.println( metaData.getUrlFormat() + " " + Util.printCoordinates( center ) );
+		}
+		System.out.println( Util.printCoordinates( lastClick ) );
+		return mins;
+	}
+
+	/**
+	 * Progress monitor whose cancel button cancels {@link #token}.
+	 */
+	private class Progress
+	{
+		final CellFileCancellation.Token token = new CellFileCancellation.Token();
+
+		final ProgressMonitor monitor;
+
+		final Timer cancelPoll;
+
+		Progress( final String message )
+		{
+			monitor = new ProgressMonitor( viewer, message, null, 0, 1000 );
+			monitor.setMillisToDecideToPopup( 0 );
+			cancelPoll = new Timer( 100, e -> {
+				if ( monitor.isCanceled() )
+					token.cancel();
+			} );
+			cancelPoll.start();
+		}
+
+		void progress( final long done, final long total )
+		{
+			final int permille = ( int )( 1000 * done / total );
+			final String note = done + " of " + total + " blocks";
+			SwingUtilities.invokeLater( () -> {
+				monitor.setProgress( permille );
+				monitor.setNote( note );
+			} );
+		}
+
+		void close()
+		{
+			cancelPoll.stop();
+			SwingUtilities.invokeLater( monitor::close );
+		}
+	}
+
 	private class Crop extends SelfRegisteringBehaviour implements ClickBehaviour
 	{
 		public Crop( final String name, final String ... defaultTriggers )
@@ -177,81 +266,176 @@ public class CropController
 			doCrop();
 		}
 
-		private < T extends NativeType< T > & RealType< T >, V extends Volatile< T > > void doCrop()
+		private void doCrop()
 		{
-			final int w = width;
-			final int h = height;
-			final int d = depth;
+			final int[] size = new int[] { width, height, depth };
 			final int s = scaleLevel;
+			final long[][] mins = cropMins( size, s );
+			if ( mins == null )
+				return;
 
-			final List< RandomAccessibleInterval< T > > channelsImages = new ArrayList<>();
-			long[] min = null;
-
-			int channel = 0;
-			for ( final CellFileImageMetaData metaData : cellFileImageMetaDatas )
-			{
-				final AbstractCellFileImageLoader< T, V > imgLoader = ( AbstractCellFileImageLoader< T, V > ) CellFileImageLoaderFactory.createImageLoader( metaData );
-				if ( s < 0 || s >= imgLoader.numMipmapLevels() )
-				{
-					IJ.log( String.format( "Specified incorrect scale level %d. Valid range is [%d, %d]", s, 0, imgLoader.numMipmapLevels() - 1 ) );
-					scaleLevel = imgLoader.numMipmapLevels() - 1;
-					return;
-				}
-				final AffineTransform3D transform = imgLoader.getMipmapTransforms()[ s ].copy();
-				transform.preConcatenate( metaData.getTransform() );
-				final RealPoint center = new RealPoint( 3 );
-				transform.applyInverse( center, lastClick );
-
-				min = new long[] {
-						Math.round( center.getDoublePosition( 0 ) - 0.5 * w ),
-						Math.round( center.getDoublePosition( 1 ) - 0.5 * h ),
-						Math.round( center.getDoublePosition( 2 ) - 0.5 * d ) };
-				final long[] size = new long[] { w, h, d };
-
-				IJ.log( String.format( "Cropping %s pixels at %s using scale level %d", Arrays.toString( size ), Arrays.toString( min ), s ) );
-
-				final RandomAccessibleInterval< T > img = imgLoader.getImage( 0, s );
-				final RandomAccessible< T > imgExtended = Views.extendZero( img );
-				final IntervalView< T > crop = Views.offsetInterval( imgExtended, min, size );
-
-				channelsImages.add( crop );
+			/* load off the event dispatch thread, show only complete crops */
+			new Thread( () -> materialize( mins, size, s ), "crop" ).start();
+		}
 
-				if ( !single4DStack )
-					show( crop, "channel " + channel + " " + Arrays.toString( min ) );
+		private void materialize( final long[][] mins, final int[] size, final int s )
+		{
+			final int numChannels = cellFileImageMetaDatas.length;
+			final Progress progress = new Progress( "Cropping " + Arrays.toString( size ) + " pixels" );
 
-				System.out.println( metaData.getUrlFormat() + " " + Util.printCoordinates( center ) );
+			final String[] imageTypes = new String[ numChannels ];
+			for ( int channel = 0; channel < numChannels; ++channel )
+				imageTypes[ channel ] = cellFileImageMetaDatas[ channel ].getImageType();
 
-				++channel;
+			/* slices of all channels, interleaved as in a hyperstack */
+			final Object[] slices;
+			try
+			{
+				slices = CropMaterializer.materialize(
+						imgLoaders,
+						imageTypes,
+						s,
+						mins,
+						size,
+						numCropThreads,
+						progress.token,
+						progress::progress );
+			}
+			catch ( final InterruptedException e )
+			{
+				IJ.log( "Crop cancelled" );
+				return;
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Crop failed: " + e.getMessage() );
+				return;
+			}
+			finally
+			{
+				progress.close();
 			}
 
 			if ( single4DStack )
 			{
-				// FIXME: need to permute slices/channels. Swapping them in the resulting ImagePlus produces wrong output
-				ImageJFunctions.show( Views.permute( Views.stack( channelsImages ), 2, 3 ), Arrays.toString( min ) );
-			}
+				/* an ImageJ stack has one type, channels of different types are converted to one that holds them all */
+				final String imageType = CropMaterializer.commonImageType( imageTypes );
+				for ( final String channelType : imageTypes )
+				{
+					if ( !channelType.equals( imageType ) )
+					{
+						IJ.log( "Channels of different image types " + Arrays.toString( imageTypes ) + " are converted to " + imageType + " for one stack" );
+						CropMaterializer.convertSlices( slices, imageType );
+						break;
+					}
+				}
 
-			System.out.println( Util.printCoordinates( lastClick ) );
+				final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
+				for ( final Object slice : slices )
+					stack.addSlice( null, slice );
+				show( new ImagePlus( Arrays.toString( mins[ 0 ] ), stack ), numChannels, size[ 2 ] );
+			}
+			else
+			{
+				for ( int channel = 0; channel < numChannels; ++channel )
+				{
+					final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
+					for ( int z = 0; z < size[ 2 ]; ++z )
+						stack.addSlice( null, slices[ z * numChannels + channel ] );
+					show( new ImagePlus( "channel " + channel + " " + Arrays.toString( mins[ channel ] ), stack ), 1, size[ 2 ] );
+				}
+			}
 			viewer.requestRepaint();
 		}
 
-		// Taken from ImageJFunctions. Modified to swap slices/channels for 3D image (by default they mistakenly are nSlices=1 and nChannels=depth)
-		// TODO: pull request with this fix if appropriate in general case?
-		private < T extends NumericType< T > > ImagePlus show( final RandomAccessibleInterval< T > img, final String title )
+		private void show( final ImagePlus imp, final int numChannels, final int numSlices )
 		{
-			final ImagePlus imp = ImageJFunctions.wrap( img, title );
-			if ( null == imp ) { return null; }
-
-			// Make sure that nSlices>1 and nChannels=nFrames=1 for 3D image
-			final int[] possible3rdDim = new int[] { imp.getNChannels(), imp.getNSlices(), imp.getNFrames() };
-			Arrays.sort( possible3rdDim );
-			if ( possible3rdDim[ 0 ] * possible3rdDim[ 1 ] == 1 )
-				imp.setDimensions( 1, possible3rdDim[ 2 ], 1 );
-
+			imp.setDimensions( numChannels, numSlices, 1 );
+			if ( numChannels > 1 )
+				imp.setOpenAsHyperStack( true );
 			imp.show();
 			imp.getProcessor().resetMinAndMax();
 			imp.updateAndRepaintWindow();
+		}
+	}
+
+	private class ExportCrop extends SelfRegisteringBehaviour implements ClickBehaviour
+	{
+		public ExportCrop( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void click( final int x, final int y )
+		{
+			viewer.displayToGlobalCoordinates(x, y, lastClick);
+			final String[] formats = new String[ CropExporter.Format.values().length ];
+			for ( int i = 0; i < formats.length; ++i )
+				formats[ i ] = CropExporter.Format.values()[ i ].name();
+
+			final GenericDialogPlus gd = new GenericDialogPlus( "Export crop" );
+			gd.addNumericField( "width : ", width, 0, 5, "px" );
+			gd.addNumericField( "height : ", height, 0, 5, "px" );
+			gd.addNumericField( "depth : ", depth, 0, 5, "px" );
+			gd.addNumericField( "scale_level : ", scaleLevel, 0 );
+			gd.addChoice( "Format", formats, exportFormat );
+			gd.addFileField( "Output (file or cell directory)", exportPath );
+
+			gd.showDialog();
+
+			if ( gd.wasCanceled() )
+				return;
+
+			width = ( int )gd.getNextNumber();
+			height = ( int )gd.getNextNumber();
+			depth = ( int )gd.getNextNumber();
+			scaleLevel = ( int )gd.getNextNumber();
+			exportFormat = gd.getNextChoice();
+			exportPath = gd.getNextString();
+
+			final int[] size = new int[] { width, height, depth };
+			final int s = scaleLevel;
+			final CropExporter.Format format = CropExporter.Format.valueOf( exportFormat );
+			final String path = exportPath;
+			final long[][] mins = cropMins( size, s );
+			if ( mins == null )
+				return;
 
-			return imp;
+			new Thread( () -> export( mins, size, s, format, path ), "export-crop" ).start();
+		}
+
+		private void export( final long[][] mins, final int[] size, final int s, final CropExporter.Format format, final String path )
+		{
+			final Progress progress = new Progress( "Exporting " + Arrays.toString( size ) + " pixels to " + path );
+			try
+			{
+				final long t = System.currentTimeMillis();
+				CropExporter.export(
+						imgLoaders,
+						cellFileImageMetaDatas,
+						s,
+						mins,
+						size,
+						format,
+						path,
+						numCropThreads,
+						progress.token,
+						progress::progress );
+				IJ.log( "Exported crop to " + path + " in " + ( System.currentTimeMillis() - t ) + "ms" );
+			}
+			catch ( final InterruptedException e )
+			{
+				IJ.log( "Export cancelled" );
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Export failed: " + e.getMessage() );
+			}
+			finally
+			{
+				progress.close();
+			}
 		}
 	}
 }
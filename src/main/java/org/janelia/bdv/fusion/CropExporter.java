@@ -0,0 +1,497 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.GsonBuilder;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Streams a box of one scale level to disk block by block, for crops that
+ * do not fit into memory.  Blocks are assembled in parallel from the
+ * cells they intersect, read by the loader's
+ * {@link AbstractCellFileImageLoader#createUncachedCellReader() uncached
+ * reader} without going through (and flushing) the viewer's cache, and
+ * handed to a {@link CellFileWriter}.  At most two blocks per thread are in flight,
+ * such that memory use does not depend on the size of the crop.
+ *
+ * Crops can be written as
+ * <ul>
+ * <li>multi-page TIFF files, one per channel,</li>
+ * <li>one HDF5 file with a dataset per channel, chunked like the cells,
+ * or</li>
+ * <li>a cell file tree with a JSON export description that
+ * {@link CellFileViewer} opens, raw if the source is raw and TIFF
+ * otherwise.</li>
+ * </ul>
+ */
+public class CropExporter
+{
+	public enum Format
+	{
+		TIFF, HDF5, CELLS
+	}
+
+	final static private long pollMillis = 100;
+
+	final static private int blocksInFlightPerThread = 2;
+
+	private CropExporter() {}
+
+	/**
+	 * @param size
+	 * @param blockDimensions
+	 * @return number of blocks of a box
+	 */
+	public static long numBlocks( final int[] size, final int[] blockDimensions )
+	{
+		long n = 1;
+		for ( int d = 0; d < 3; ++d )
+			n *= ( size[ d ] + blockDimensions[ d ] - 1 ) / blockDimensions[ d ];
+		return n;
+	}
+
+	/**
+	 * Stream a box of one channel through <code>writer</code>.  Blocks are
+	 * written with grid positions and minimum relative to the box.
+	 *
+	 * @param imgLoader
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param level
+	 * @param min top left front corner of the box in level coordinates
+	 * @param size
+	 * @param blockDimensions
+	 * @param writer
+	 * @param numThreads
+	 * @param token cancels the export and the blocks it did not start
+	 * @param listener receives the number of blocks written, may be null
+	 * @throws IOException
+	 * @throws InterruptedException if the export was cancelled
+	 */
+	public static void export(
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final String imageType,
+			final int level,
+			final long[] min,
+			final int[] size,
+			final int[] blockDimensions,
+			final CellFileWriter writer,
+			final int numThreads,
+			final CellFileCancellation.Token token,
+			final CropMaterializer.ProgressListener listener ) throws IOException, InterruptedException
+	{
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			export(
+					imgLoader,
+					imgLoader.createUncachedCellReader(),
+					imageType,
+					level,
+					min,
+					size,
+					blockDimensions,
+					writer,
+					exec,
+					blocksInFlightPerThread * numThreads,
+					token,
+					listener );
+		}
+		finally
+		{
+			CropMaterializer.shutdown( exec );
+		}
+	}
+
+	/**
+	 * Stream a box of one channel through <code>writer</code> on a given
+	 * executor that may be shared by concurrent exports.
+	 *
+	 * @param imgLoader
+	 * @param reader reads the cells of <code>imgLoader</code>, e.g. its
+	 *   {@link AbstractCellFileImageLoader#createCachedCellReader() cached
+	 *   reader} if exports overlap
+	 * @param imageType
+	 * @param level
+	 * @param min
+	 * @param size
+	 * @param blockDimensions
+	 * @param writer
+	 * @param exec
+	 * @param maxBlocksInFlight
+	 * @param token
+	 * @param listener
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void export(
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final long[] min,
+			final int[] size,
+			final int[] blockDimensions,
+			final CellFileWriter writer,
+			final ExecutorService exec,
+			final int maxBlocksInFlight,
+			final CellFileCancellation.Token token,
+			final CropMaterializer.ProgressListener listener ) throws IOException, InterruptedException
+	{
+		final long[] dimensions = imgLoader.getDimensions()[ level ];
+		final int[] cellDimensions = imgLoader.getCellDimensions()[ level ];
+
+		final long[] gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gridDimensions[ d ] = ( size[ d ] + blockDimensions[ d ] - 1 ) / blockDimensions[ d ];
+		final int numBlocks = ( int )numBlocks( size, blockDimensions );
+
+		boolean complete = false;
+		try
+		{
+			final ExecutorCompletionService< Void > completion = new ExecutorCompletionService<>( exec );
+			int submitted = 0;
+			for ( int done = 0; done < numBlocks; )
+			{
+				if ( token.isCancelled() )
+					throw new InterruptedException( "export cancelled" );
+
+				for ( ; submitted < numBlocks && submitted - done < maxBlocksInFlight; ++submitted )
+				{
+					final long[] gridPosition = new long[] {
+							submitted % gridDimensions[ 0 ],
+							submitted / gridDimensions[ 0 ] % gridDimensions[ 1 ],
+							submitted / gridDimensions[ 0 ] / gridDimensions[ 1 ] };
+					completion.submit( () -> {
+						CellFileCancellation.set( token );
+						try
+						{
+							writeBlock( reader, imageType, level, dimensions, cellDimensions, min, size, blockDimensions, gridPosition, writer );
+						}
+						finally
+						{
+							CellFileCancellation.set( null );
+						}
+						return null;
+					} );
+				}
+
+				final Future< Void > future = completion.poll( pollMillis, TimeUnit.MILLISECONDS );
+				if ( future != null )
+				{
+					future.get();
+					++done;
+					if ( listener != null )
+						listener.progress( done, numBlocks );
+				}
+			}
+			complete = true;
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof InterruptedIOException )
+				throw new InterruptedException( "export cancelled" );
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			/* cells that did not start are not read once the token is cancelled */
+			if ( !complete )
+				token.cancel();
+		}
+	}
+
+	static private void writeBlock(
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final long[] cropMin,
+			final int[] cropSize,
+			final int[] blockDimensions,
+			final long[] gridPosition,
+			final CellFileWriter writer ) throws IOException
+	{
+		final long[] blockMin = new long[ 3 ];
+		final long[] min = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+		final long[] gridMin = new long[ 3 ];
+		final long[] gridMax = new long[ 3 ];
+		boolean inside = true;
+		for ( int d = 0; d < 3; ++d )
+		{
+			blockMin[ d ] = gridPosition[ d ] * blockDimensions[ d ];
+			min[ d ] = cropMin[ d ] + blockMin[ d ];
+			size[ d ] = ( int )Math.min( blockDimensions[ d ], cropSize[ d ] - blockMin[ d ] );
+			final long lo = Math.max( 0, min[ d ] );
+			final long hi = Math.min( dimensions[ d ], min[ d ] + size[ d ] );
+			inside &= lo < hi;
+			gridMin[ d ] = lo / cellDimensions[ d ];
+			gridMax[ d ] = ( hi - 1 ) / cellDimensions[ d ];
+		}
+
+		final Object data = CellFileImageLoaderFactory.createStorageArray( imageType, size[ 0 ] * size[ 1 ] * size[ 2 ] );
+		if ( inside )
+		{
+			final long[] cellPosition = new long[ 3 ];
+			for ( cellPosition[ 2 ] = gridMin[ 2 ]; cellPosition[ 2 ] <= gridMax[ 2 ]; ++cellPosition[ 2 ] )
+				for ( cellPosition[ 1 ] = gridMin[ 1 ]; cellPosition[ 1 ] <= gridMax[ 1 ]; ++cellPosition[ 1 ] )
+					for ( cellPosition[ 0 ] = gridMin[ 0 ]; cellPosition[ 0 ] <= gridMax[ 0 ]; ++cellPosition[ 0 ] )
+						CropMaterializer.copyCellToBlock( reader, imageType, level, cellPosition, dimensions, cellDimensions, min, size, data );
+		}
+		writer.write( 0, gridPosition, blockMin, size, data );
+	}
+
+	/**
+	 * Export a box of all channels.
+	 *
+	 * @param imgLoaders
+	 * @param metaDatas indexed like <code>imgLoaders</code>
+	 * @param level
+	 * @param mins top left front corner of the box of each channel in
+	 *   level coordinates
+	 * @param size
+	 * @param format
+	 * @param path TIFF file (channels other than the only one get a
+	 *   "-c&lt;channel&gt;" suffix), HDF5 file, or directory of the cell
+	 *   file tree
+	 * @param numThreads
+	 * @param token
+	 * @param listener receives the number of blocks of all channels
+	 *   written, may be null
+	 * @throws IOException
+	 * @throws InterruptedException if the export was cancelled
+	 */
+	public static void export(
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileImageMetaData[] metaDatas,
+			final int level,
+			final long[][] mins,
+			final int[] size,
+			final Format format,
+			final String path,
+			final int numThreads,
+			final CellFileCancellation.Token token,
+			final CropMaterializer.ProgressListener listener ) throws IOException, InterruptedException
+	{
+		final CellFileReader[] readers = new CellFileReader[ imgLoaders.size() ];
+		for ( int c = 0; c < readers.length; ++c )
+			readers[ c ] = imgLoaders.get( c ).createUncachedCellReader();
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			export( imgLoaders, readers, metaDatas, level, mins, size, format, path, exec, blocksInFlightPerThread * numThreads, token, listener );
+		}
+		finally
+		{
+			CropMaterializer.shutdown( exec );
+		}
+	}
+
+	/**
+	 * Export a box of all channels on a given executor that may be shared
+	 * by concurrent exports.
+	 *
+	 * @param imgLoaders
+	 * @param readers read the cells of <code>imgLoaders</code>
+	 * @param metaDatas
+	 * @param level
+	 * @param mins
+	 * @param size
+	 * @param format
+	 * @param path
+	 * @param exec
+	 * @param maxBlocksInFlight
+	 * @param token
+	 * @param listener
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void export(
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final CellFileReader[] readers,
+			final CellFileImageMetaData[] metaDatas,
+			final int level,
+			final long[][] mins,
+			final int[] size,
+			final Format format,
+			final String path,
+			final ExecutorService exec,
+			final int maxBlocksInFlight,
+			final CellFileCancellation.Token token,
+			final CropMaterializer.ProgressListener listener ) throws IOException, InterruptedException
+	{
+		final int numChannels = metaDatas.length;
+		final int[][] blockDimensions = new int[ numChannels ][];
+		long totalBlocks = 0;
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			final int[] cellDimensions = imgLoaders.get( c ).getCellDimensions()[ level ];
+			blockDimensions[ c ] = cellDimensions.clone();
+			totalBlocks += numBlocks( size, blockDimensions[ c ] );
+		}
+		final long total = totalBlocks;
+
+		final File file = new File( path );
+		final File tmpFile = new File( path + ".tmp" );
+		final IHDF5Writer h5Writer = format == Format.HDF5 ? HDF5Factory.open( tmpFile ) : null;
+		final CellFileImageMetaData[] exportMetaDatas = new CellFileImageMetaData[ numChannels ];
+		boolean complete = false;
+		try
+		{
+			long offset = 0;
+			for ( int c = 0; c < numChannels; ++c )
+			{
+				final String imageType = metaDatas[ c ].getImageType();
+				final long channelOffset = offset;
+				final CropMaterializer.ProgressListener channelListener = listener == null ? null :
+					( blocksDone, numBlocks ) -> listener.progress( ( int )( channelOffset + blocksDone ), ( int )total );
+
+				switch ( format )
+				{
+				case TIFF:
+					try ( final TiffStackWriter writer = new TiffStackWriter( tiffPath( path, c, numChannels ), imageType, size[ 0 ], size[ 1 ], size[ 2 ] ) )
+					{
+						export( imgLoaders.get( c ), readers[ c ], imageType, level, mins[ c ], size, blockDimensions[ c ], writer, exec, maxBlocksInFlight, token, channelListener );
+						writer.finish();
+					}
+					break;
+
+				case HDF5:
+					final long[] dimensions = new long[] { size[ 0 ], size[ 1 ], size[ 2 ] };
+					final H5CellWriter h5CellWriter = new H5CellWriter( h5Writer, "/channel" + c, imageType, dimensions, blockDimensions[ c ] );
+					export( imgLoaders.get( c ), readers[ c ], imageType, level, mins[ c ], size, blockDimensions[ c ], h5CellWriter, exec, maxBlocksInFlight, token, channelListener );
+					break;
+
+				case CELLS:
+					exportMetaDatas[ c ] = createCropMetaData(
+							metaDatas[ c ],
+							imgLoaders.get( c ),
+							new File( file, "channel" + c ).getAbsolutePath() + "/%1$d/%4$d/%3$d/%2$d" + ( metaDatas[ c ].getCellFileFormat().equals( "raw" ) ? ".raw" : ".tif" ),
+							level,
+							mins[ c ],
+							size,
+							blockDimensions[ c ] );
+					final CellFileWriter cellWriter = CellFileImageLoaderFactory.createCellFileWriter( exportMetaDatas[ c ] );
+					export( imgLoaders.get( c ), readers[ c ], imageType, level, mins[ c ], size, blockDimensions[ c ], cellWriter, exec, maxBlocksInFlight, token, channelListener );
+					break;
+				}
+				offset += numBlocks( size, blockDimensions[ c ] );
+			}
+			complete = true;
+		}
+		finally
+		{
+			if ( h5Writer != null )
+			{
+				h5Writer.close();
+				if ( !complete )
+					tmpFile.delete();
+			}
+		}
+
+		if ( format == Format.HDF5 )
+			Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		else if ( format == Format.CELLS )
+		{
+			/* the description is written last such that only complete exports can be opened */
+			final File jsonFile = new File( file, "export.json" );
+			final File tmpJsonFile = new File( file, "export.json.tmp" );
+			try ( final Writer writer = new FileWriter( tmpJsonFile ) )
+			{
+				new GsonBuilder().setPrettyPrinting().create().toJson( exportMetaDatas, writer );
+			}
+			Files.move( tmpJsonFile.toPath(), jsonFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	static String tiffPath( final String path, final int channel, final int numChannels )
+	{
+		if ( numChannels == 1 )
+			return path;
+		final int dot = path.lastIndexOf( '.' );
+		if ( dot <= path.lastIndexOf( File.separatorChar ) )
+			return path + "-c" + channel;
+		return path.substring( 0, dot ) + "-c" + channel + path.substring( dot );
+	}
+
+	/**
+	 * Export description of a crop with one scale level.  The crop's
+	 * transform places it where it was cut from, relative to the voxel
+	 * size of the source, which the crop keeps.
+	 */
+	static private CellFileImageMetaData createCropMetaData(
+			final CellFileImageMetaData metaData,
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final String urlFormat,
+			final int level,
+			final long[] min,
+			final int[] size,
+			final int[] cellDimensions )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( min[ 0 ], min[ 1 ], min[ 2 ] );
+		transform.preConcatenate( imgLoader.getMipmapTransforms()[ level ] );
+		transform.preConcatenate( metaData.getTransform() );
+
+		/* CellFileImageMetaData#getTransform() scales the diagonal by the normalized voxel size */
+		final double[] normalizedVoxelDimensions = CellFileImageMetaData.normalizeVoxelDimensions( metaData.getVoxelDimensions() );
+		final double[][] matrix = new double[ 3 ][ 4 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				matrix[ r ][ c ] = transform.get( r, c );
+		for ( int d = 0; d < 3; ++d )
+			matrix[ d ][ d ] /= normalizedVoxelDimensions[ d ];
+
+		final Map< Integer, int[] > downsampleFactors = new TreeMap<>();
+		downsampleFactors.put( 0, new int[] { 1, 1, 1 } );
+		final Map< Integer, int[] > cellDimensionsMap = new TreeMap<>();
+		cellDimensionsMap.put( 0, cellDimensions.clone() );
+
+		return new CellFileImageMetaData(
+				urlFormat,
+				metaData.getImageType(),
+				new long[] { size[ 0 ], size[ 1 ], size[ 2 ] },
+				downsampleFactors,
+				cellDimensionsMap,
+				matrix,
+				metaData.getVoxelDimensions() );
+	}
+}
@@ -0,0 +1,409 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a box of one scale level into pre-allocated slices.  The cells
+ * that intersect the box are loaded in parallel through the cache of the
+ * loader (cells that are in memory are not read again) and copied
+ * block-wise, one row of a cell at a time.  Voxels outside of the image
+ * and of missing cells are zero.  Multichannel boxes are copied directly
+ * into the interleaved slice order of a hyperstack.  A cancelled crop
+ * waits for the cells that are being loaded and reads no others.
+ */
+public class CropMaterializer
+{
+	final static private long pollMillis = 100;
+
+	public interface ProgressListener
+	{
+		/**
+		 * Called on the thread that runs
+		 * {@link CropMaterializer#materialize} after each cell.
+		 *
+		 * @param cellsDone
+		 * @param numCells
+		 */
+		public void progress( final int cellsDone, final int numCells );
+	}
+
+	private CropMaterializer() {}
+
+	/**
+	 * @param imgLoader
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param level
+	 * @param min top left front corner of the box in level coordinates,
+	 *   may be outside of the image
+	 * @param size
+	 * @param numThreads
+	 * @param token cancels the crop and the cells it did not start to load
+	 * @param listener may be null
+	 * @return <code>size[2]</code> slices of <code>size[0] * size[1]</code>
+	 *   byte, short or float voxels
+	 * @throws IOException if a cell could not be loaded
+	 * @throws InterruptedException if the crop was cancelled
+	 */
+	public static Object[] materialize(
+			final AbstractCellFileImageLoader< ?, ? > imgLoader,
+			final String imageType,
+			final int level,
+			final long[] min,
+			final int[] size,
+			final int numThreads,
+			final CellFileCancellation.Token token,
+			final ProgressListener listener ) throws IOException, InterruptedException
+	{
+		return materialize(
+				Collections.singletonList( imgLoader ),
+				new String[] { imageType },
+				level,
+				new long[][] { min },
+				size,
+				numThreads,
+				token,
+				listener );
+	}
+
+	/**
+	 * Copy the same box of several channels into one list of slices in
+	 * the channel-interleaved order of an ImageJ hyperstack (XYCZ).  The
+	 * cells of all channels are loaded by one pool, such that slow
+	 * channels do not hold up the others.
+	 *
+	 * @param imgLoaders
+	 * @param imageTypes of the channels
+	 * @param level
+	 * @param mins of the box in the level coordinates of each channel
+	 * @param size
+	 * @param numThreads
+	 * @param token
+	 * @param listener receives the number of cells of all channels, may be
+	 *   null
+	 * @return <code>size[2] * numChannels</code> slices, slice
+	 *   <code>z * numChannels + c</code> is slice z of channel c
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static Object[] materialize(
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final String[] imageTypes,
+			final int level,
+			final long[][] mins,
+			final int[] size,
+			final int numThreads,
+			final CellFileCancellation.Token token,
+			final ProgressListener listener ) throws IOException, InterruptedException
+	{
+		final int numChannels = imgLoaders.size();
+		final Object[] slices = new Object[ size[ 2 ] * numChannels ];
+		final Object[][] channelSlices = new Object[ numChannels ][ size[ 2 ] ];
+		for ( int z = 0; z < size[ 2 ]; ++z )
+			for ( int c = 0; c < numChannels; ++c )
+			{
+				slices[ z * numChannels + c ] = CellFileImageLoaderFactory.createStorageArray( imageTypes[ c ], size[ 0 ] * size[ 1 ] );
+				channelSlices[ c ][ z ] = slices[ z * numChannels + c ];
+			}
+
+		/* channel and grid position of the cells that intersect the box */
+		final ArrayList< long[] > cells = new ArrayList<>();
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			final long[] dimensions = imgLoaders.get( c ).getDimensions()[ level ];
+			final int[] cellDimensions = imgLoaders.get( c ).getCellDimensions()[ level ];
+			final long[] gridMin = new long[ 3 ];
+			final long[] gridMax = new long[ 3 ];
+			boolean empty = false;
+			for ( int d = 0; d < 3; ++d )
+			{
+				final long lo = Math.max( 0, mins[ c ][ d ] );
+				final long hi = Math.min( dimensions[ d ], mins[ c ][ d ] + size[ d ] );
+				empty |= lo >= hi;
+				gridMin[ d ] = lo / cellDimensions[ d ];
+				gridMax[ d ] = ( hi - 1 ) / cellDimensions[ d ];
+			}
+			if ( empty )
+				continue;
+
+			for ( long z = gridMin[ 2 ]; z <= gridMax[ 2 ]; ++z )
+				for ( long y = gridMin[ 1 ]; y <= gridMax[ 1 ]; ++y )
+					for ( long x = gridMin[ 0 ]; x <= gridMax[ 0 ]; ++x )
+						cells.add( new long[] { c, x, y, z } );
+		}
+		if ( cells.isEmpty() )
+			return slices;
+
+		final CellFileReader[] readers = new CellFileReader[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+			readers[ c ] = imgLoaders.get( c ).createCachedCellReader();
+
+		boolean complete = false;
+		final ExecutorService exec = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, cells.size() ) ) );
+		try
+		{
+			final ExecutorCompletionService< Void > completion = new ExecutorCompletionService<>( exec );
+			for ( final long[] cell : cells )
+			{
+				final int c = ( int )cell[ 0 ];
+				final long[] gridPosition = new long[] { cell[ 1 ], cell[ 2 ], cell[ 3 ] };
+				completion.submit( () -> {
+					CellFileCancellation.set( token );
+					try
+					{
+						copyCell(
+								readers[ c ],
+								null,
+								level,
+								gridPosition,
+								imgLoaders.get( c ).getDimensions()[ level ],
+								imgLoaders.get( c ).getCellDimensions()[ level ],
+								mins[ c ],
+								size,
+								channelSlices[ c ] );
+					}
+					finally
+					{
+						CellFileCancellation.set( null );
+					}
+					return null;
+				} );
+			}
+
+			for ( int i = 0; i < cells.size(); )
+			{
+				if ( token.isCancelled() )
+					throw new InterruptedException( "crop cancelled" );
+
+				final Future< Void > done = completion.poll( pollMillis, TimeUnit.MILLISECONDS );
+				if ( done != null )
+				{
+					done.get();
+					++i;
+					if ( listener != null )
+						listener.progress( i, cells.size() );
+				}
+			}
+			complete = true;
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof InterruptedIOException )
+				throw new InterruptedException( "crop cancelled" );
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			/* cells that did not start are not read once the token is cancelled */
+			if ( !complete )
+				token.cancel();
+			shutdown( exec );
+		}
+		return slices;
+	}
+
+	/**
+	 * @param imageTypes
+	 * @return the image type that holds the voxels of all
+	 *   <code>imageTypes</code>, "GRAY32" if one of them is, "GRAY16" if
+	 *   one of them is, "GRAY8" otherwise
+	 */
+	public static String commonImageType( final String... imageTypes )
+	{
+		String common = "GRAY8";
+		for ( final String imageType : imageTypes )
+		{
+			if ( !"GRAY8".equals( imageType ) && !"GRAY16".equals( imageType ) )
+				return "GRAY32";
+			if ( "GRAY16".equals( imageType ) )
+				common = imageType;
+		}
+		return common;
+	}
+
+	/**
+	 * Convert slices to an image type that holds their voxels, e.g. such
+	 * that channels of different types fit into one ImageJ stack, which
+	 * has one type only.  Unsigned integer voxels keep their values.
+	 *
+	 * @param slices byte, short or float slices, replaced by the converted
+	 *   slices
+	 * @param imageType {@link #commonImageType(String...) common type} of
+	 *   the slices
+	 */
+	public static void convertSlices( final Object[] slices, final String imageType )
+	{
+		for ( int i = 0; i < slices.length; ++i )
+		{
+			final Object slice = slices[ i ];
+			final Object converted = CellFileImageLoaderFactory.createStorageArray( imageType, Array.getLength( slice ) );
+			if ( converted.getClass() == slice.getClass() )
+				continue;
+
+			if ( slice instanceof float[] )
+				throw new IllegalArgumentException( "cannot convert float voxels to " + imageType );
+			if ( slice instanceof short[] && converted instanceof byte[] )
+				throw new IllegalArgumentException( "cannot convert 16-bit voxels to " + imageType );
+
+			for ( int j = 0; j < Array.getLength( slice ); ++j )
+			{
+				final int v = slice instanceof byte[] ? ( ( byte[] )slice )[ j ] & 0xff : ( ( short[] )slice )[ j ] & 0xffff;
+				if ( converted instanceof short[] )
+					( ( short[] )converted )[ j ] = ( short )v;
+				else
+					( ( float[] )converted )[ j ] = v;
+			}
+			slices[ i ] = converted;
+		}
+	}
+
+	/**
+	 * Shut down a pool of tasks that read through the cache of a loader
+	 * and wait until they are done.  Blocking loads of a cache must not be
+	 * interrupted, the {@link SoftReferenceCellFileCache} retries them
+	 * forever, so running loads are finished and the cancellation token
+	 * stops the others before they read.
+	 *
+	 * @param exec
+	 */
+	static void shutdown( final ExecutorService exec )
+	{
+		exec.shutdown();
+		boolean interrupted = false;
+		while ( !exec.isTerminated() )
+		{
+			try
+			{
+				exec.awaitTermination( pollMillis, TimeUnit.MILLISECONDS );
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Copy the part of a cell that is inside a box into slices of the box.
+	 *
+	 * @param reader
+	 * @param imageType to allocate storage for readers that need it, null
+	 *   for readers that hand out their own arrays
+	 * @param level
+	 * @param gridPosition of the cell
+	 * @param dimensions of the level
+	 * @param cellDimensions of the level
+	 * @param min of the box
+	 * @param size of the box
+	 * @param slices <code>size[2]</code> slices of the box
+	 * @throws IOException
+	 */
+	static void copyCell(
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final long[] gridPosition,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final long[] min,
+			final int[] size,
+			final Object[] slices ) throws IOException
+	{
+		copyCell( reader, imageType, level, gridPosition, dimensions, cellDimensions, min, size, slices, null );
+	}
+
+	/**
+	 * Copy the part of a cell that intersects a box into one flat array of
+	 * the box in x, y, z order.
+	 */
+	static void copyCellToBlock(
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final long[] gridPosition,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final long[] min,
+			final int[] size,
+			final Object block ) throws IOException
+	{
+		copyCell( reader, imageType, level, gridPosition, dimensions, cellDimensions, min, size, null, block );
+	}
+
+	/* into slices if not null, otherwise into block */
+	static private void copyCell(
+			final CellFileReader reader,
+			final String imageType,
+			final int level,
+			final long[] gridPosition,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final long[] min,
+			final int[] size,
+			final Object[] slices,
+			final Object block ) throws IOException
+	{
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellSize = new int[ 3 ];
+		final long[] from = new long[ 3 ];
+		final long[] to = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			cellMin[ d ] = gridPosition[ d ] * cellDimensions[ d ];
+			cellSize[ d ] = ( int )Math.min( cellDimensions[ d ], dimensions[ d ] - cellMin[ d ] );
+			from[ d ] = Math.max( min[ d ], cellMin[ d ] );
+			to[ d ] = Math.min( min[ d ] + size[ d ], cellMin[ d ] + cellSize[ d ] );
+		}
+
+		final Object storage = imageType == null ? null : CellFileImageLoaderFactory.createStorageArray( imageType, cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ] );
+		final Object data = reader.read( level, gridPosition, cellMin, cellSize, storage );
+		if ( data == null )
+			return;
+
+		final int rowLength = ( int )( to[ 0 ] - from[ 0 ] );
+		final int sliceEntities = size[ 0 ] * size[ 1 ];
+		for ( long z = from[ 2 ]; z < to[ 2 ]; ++z )
+		{
+			final int zi = ( int )( z - min[ 2 ] );
+			final Object target = slices == null ? block : slices[ zi ];
+			final int offset = slices == null ? zi * sliceEntities : 0;
+			for ( long y = from[ 1 ]; y < to[ 1 ]; ++y )
+				System.arraycopy(
+						data,
+						( int )( ( ( z - cellMin[ 2 ] ) * cellSize[ 1 ] + y - cellMin[ 1 ] ) * cellSize[ 0 ] + from[ 0 ] - cellMin[ 0 ] ),
+						target,
+						offset + ( int )( ( y - min[ 1 ] ) * size[ 0 ] + from[ 0 ] - min[ 0 ] ),
+						rowLength );
+		}
+	}
+}
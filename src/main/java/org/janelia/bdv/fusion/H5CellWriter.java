@@ -0,0 +1,113 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Writes blocks of a 3D image into a deflate compressed HDF5 dataset that
+ * is chunked by the block size.  Dimensions are stored in z, y, x order
+ * like in the H5 loaders.  Writes are serialized on the
+ * {@link IHDF5Writer} because HDF5 is not thread safe, several writers
+ * may share one file.
+ */
+public class H5CellWriter implements CellFileWriter
+{
+	final private IHDF5Writer writer;
+
+	final private String dataset;
+
+	/**
+	 * Create the dataset, replacing an existing one.
+	 *
+	 * @param writer
+	 * @param dataset
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param dimensions in x, y, z order
+	 * @param blockDimensions in x, y, z order
+	 */
+	public H5CellWriter(
+			final IHDF5Writer writer,
+			final String dataset,
+			final String imageType,
+			final long[] dimensions,
+			final int[] blockDimensions )
+	{
+		this.writer = writer;
+		this.dataset = dataset;
+
+		final long[] h5Dimensions = new long[] { dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] };
+		final int[] h5BlockDimensions = new int[] { blockDimensions[ 2 ], blockDimensions[ 1 ], blockDimensions[ 0 ] };
+		synchronized ( writer )
+		{
+			if ( writer.exists( dataset ) )
+				writer.delete( dataset );
+
+			switch ( imageType )
+			{
+			case "GRAY8":
+				writer.uint8().createMDArray( dataset, h5Dimensions, h5BlockDimensions, HDF5IntStorageFeatures.INT_DEFLATE );
+				break;
+			case "GRAY16":
+				writer.uint16().createMDArray( dataset, h5Dimensions, h5BlockDimensions, HDF5IntStorageFeatures.INT_DEFLATE );
+				break;
+			case "GRAY32":
+			default:
+				writer.float32().createMDArray( dataset, h5Dimensions, h5BlockDimensions, HDF5FloatStorageFeatures.FLOAT_DEFLATE );
+			}
+		}
+	}
+
+	/**
+	 * <code>level</code> and <code>gridPosition</code> are ignored.
+	 */
+	@Override
+	public void write(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object data )
+	{
+		final int[] h5Dimensions = new int[] { dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] };
+		final long[] h5Offset = new long[] { min[ 2 ], min[ 1 ], min[ 0 ] };
+		synchronized ( writer )
+		{
+			if ( data instanceof byte[] )
+				writer.uint8().writeMDArrayBlockWithOffset( dataset, new MDByteArray( ( byte[] )data, h5Dimensions ), h5Offset );
+			else if ( data instanceof short[] )
+				writer.uint16().writeMDArrayBlockWithOffset( dataset, new MDShortArray( ( short[] )data, h5Dimensions ), h5Offset );
+			else
+				writer.float32().writeMDArrayBlockWithOffset( dataset, new MDFloatArray( ( float[] )data, h5Dimensions ), h5Offset );
+		}
+	}
+
+	/**
+	 * Does nothing, blocks that are not written are zero in the new
+	 * dataset.
+	 */
+	@Override
+	public void delete(
+			final int level,
+			final long[] gridPosition,
+			final long[] min ) {}
+}
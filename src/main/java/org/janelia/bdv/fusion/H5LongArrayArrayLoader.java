@@ -24,6 +24,8 @@ public class H5LongArrayArrayLoader implements CacheArrayLoader< VolatileLongArr
 
 	final int arrayLength;
 
+	private volatile CellFileTracer tracer = null;
+
 	public H5LongArrayArrayLoader(
 			final IHDF5Reader reader,
 			final String dataset )
@@ -51,11 +53,18 @@ public class H5LongArrayArrayLoader implements CacheArrayLoader< VolatileLongArr
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException
 	{
+		final CellFileTracer t = tracer;
+		final CellFileTracer.Span span = t == null ? null : t.begin( setup, level, min );
+		if ( span != null )
+			span.resolved( dataset + Arrays.toString( min ) );
+
 		long[] data = null;
 		final MDLongArray slice = reader.readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ], arrayLength },
 				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ], 0 } );
+		if ( span != null )
+			span.decoded( System.nanoTime() );
 
 		data = slice.getAsFlatArray();
 
@@ -68,11 +77,31 @@ public class H5LongArrayArrayLoader implements CacheArrayLoader< VolatileLongArr
 					Arrays.toString( dimensions ) );
 
 			data = new long[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * arrayLength ];
+			if ( span != null )
+				span.end( "failed" );
 		}
+		else if ( span != null )
+			span.end( "loaded" );
 
 		return new VolatileLongArray( data, true );
 	}
 
+	public CellFileTracer getTracer()
+	{
+		return tracer;
+	}
+
+	/**
+	 * Record a span for every cell load, cells are identified by their
+	 * minimum rather than their grid position.
+	 *
+	 * @param tracer or null to not trace
+	 */
+	public void setTracer( final CellFileTracer tracer )
+	{
+		this.tracer = tracer;
+	}
+
 	/**
 	 * Reuses the existing empty array if it already has the desired size.
 	 */
@@ -0,0 +1,225 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compression and decompression of raw LZ4 blocks (no frame or stream
+ * header).  The compressor is a simple greedy single hash table matcher,
+ * fast rather than tight.
+ */
+public class Lz4Codec
+{
+	final static private int MIN_MATCH = 4;
+
+	final static private int LAST_LITERALS = 5;
+
+	final static private int MF_LIMIT = 12;
+
+	final static private int MAX_OFFSET = 0xffff;
+
+	final static private int HASH_BITS = 14;
+
+	final static private ThreadLocal< int[] > hashTables = ThreadLocal.withInitial( () -> new int[ 1 << HASH_BITS ] );
+
+	/**
+	 * @param length
+	 * @return the largest possible compressed size of <code>length</code>
+	 *   bytes
+	 */
+	public static int maxCompressedLength( final int length )
+	{
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress <code>srcLength</code> bytes into a raw LZ4 block.
+	 *
+	 * @param src
+	 * @param srcOffset
+	 * @param srcLength
+	 * @param dst must have at least {@link #maxCompressedLength(int)} bytes
+	 *   after <code>dstOffset</code>
+	 * @param dstOffset
+	 * @return compressed length
+	 */
+	public static int compress(
+			final byte[] src,
+			final int srcOffset,
+			final int srcLength,
+			final byte[] dst,
+			final int dstOffset )
+	{
+		final int[] table = hashTables.get();
+		Arrays.fill( table, -1 );
+
+		final int srcEnd = srcOffset + srcLength;
+		final int matchLimit = srcEnd - LAST_LITERALS;
+		final int startLimit = srcEnd - MF_LIMIT;
+
+		int s = srcOffset, anchor = srcOffset, d = dstOffset;
+		while ( s < startLimit )
+		{
+			final int sequence = readInt( src, s );
+			final int h = ( sequence * -1640531535 ) >>> ( 32 - HASH_BITS );
+			final int ref = table[ h ];
+			table[ h ] = s;
+
+			if ( ref < 0 || s - ref > MAX_OFFSET || readInt( src, ref ) != sequence )
+			{
+				++s;
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while ( s + matchLength < matchLimit && src[ ref + matchLength ] == src[ s + matchLength ] )
+				++matchLength;
+
+			final int token = d;
+			d = writeLiterals( src, anchor, s - anchor, dst, d );
+			dst[ d++ ] = ( byte )( s - ref );
+			dst[ d++ ] = ( byte )( ( s - ref ) >>> 8 );
+			final int extraMatchLength = matchLength - MIN_MATCH;
+			if ( extraMatchLength >= 15 )
+			{
+				dst[ token ] |= 15;
+				d = writeLength( dst, d, extraMatchLength - 15 );
+			}
+			else
+				dst[ token ] |= extraMatchLength;
+
+			s += matchLength;
+			anchor = s;
+		}
+
+		d = writeLiterals( src, anchor, srcEnd - anchor, dst, d );
+		return d - dstOffset;
+	}
+
+	/**
+	 * Write a token with the literal length in its high nibble, the
+	 * extended literal length and the literals.
+	 */
+	static private int writeLiterals( final byte[] src, final int srcOffset, final int length, final byte[] dst, int d )
+	{
+		final int token = d++;
+		if ( length >= 15 )
+		{
+			dst[ token ] = ( byte )( 15 << 4 );
+			d = writeLength( dst, d, length - 15 );
+		}
+		else
+			dst[ token ] = ( byte )( length << 4 );
+
+		System.arraycopy( src, srcOffset, dst, d, length );
+		return d + length;
+	}
+
+	static private int writeLength( final byte[] dst, int d, int length )
+	{
+		for ( ; length >= 255; length -= 255 )
+			dst[ d++ ] = ( byte )255;
+		dst[ d++ ] = ( byte )length;
+		return d;
+	}
+
+	static private int readInt( final byte[] src, final int i )
+	{
+		return ( src[ i ] & 0xff ) | ( ( src[ i + 1 ] & 0xff ) << 8 ) | ( ( src[ i + 2 ] & 0xff ) << 16 ) | ( ( src[ i + 3 ] & 0xff ) << 24 );
+	}
+
+	/**
+	 * Decompress one raw LZ4 block.
+	 *
+	 * @param src
+	 * @param srcOffset
+	 * @param srcLength
+	 * @param dst
+	 * @param dstOffset
+	 * @param dstLength expected number of decompressed bytes
+	 * @throws IOException if the block is corrupt or does not decompress
+	 *   to exactly <code>dstLength</code> bytes
+	 */
+	public static void decompress(
+			final byte[] src,
+			final int srcOffset,
+			final int srcLength,
+			final byte[] dst,
+			final int dstOffset,
+			final int dstLength ) throws IOException
+	{
+		final int srcEnd = srcOffset + srcLength;
+		final int dstEnd = dstOffset + dstLength;
+		int s = srcOffset, d = dstOffset;
+		try
+		{
+			while ( true )
+			{
+				final int token = src[ s++ ] & 0xff;
+
+				int literalLength = token >>> 4;
+				if ( literalLength == 15 )
+				{
+					int b;
+					do
+					{
+						b = src[ s++ ] & 0xff;
+						literalLength += b;
+					}
+					while ( b == 255 );
+				}
+				System.arraycopy( src, s, dst, d, literalLength );
+				s += literalLength;
+				d += literalLength;
+				if ( s >= srcEnd )
+					break;
+
+				final int matchOffset = ( src[ s ] & 0xff ) | ( ( src[ s + 1 ] & 0xff ) << 8 );
+				s += 2;
+				if ( matchOffset == 0 || d - matchOffset < dstOffset )
+					throw new IOException( "corrupt LZ4 block" );
+
+				int matchLength = token & 0x0f;
+				if ( matchLength == 15 )
+				{
+					int b;
+					do
+					{
+						b = src[ s++ ] & 0xff;
+						matchLength += b;
+					}
+					while ( b == 255 );
+				}
+				matchLength += 4;
+				if ( d + matchLength > dstEnd )
+					throw new IOException( "corrupt LZ4 block" );
+
+				/* matches may overlap their own output, copy byte by byte */
+				for ( int m = d - matchOffset, e = d + matchLength; d < e; )
+					dst[ d++ ] = dst[ m++ ];
+			}
+		}
+		catch ( final ArrayIndexOutOfBoundsException e )
+		{
+			throw new IOException( "corrupt LZ4 block", e );
+		}
+		if ( d != dstEnd )
+			throw new IOException( "corrupt LZ4 block, decompressed " + ( d - dstOffset ) + " of " + dstLength + " bytes" );
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+
+/**
+ * Loads the cells that the viewer is about to show while the user scrolls
+ * through slices or pans.
+ *
+ * Registered as a transform listener of the viewer, it extrapolates the
+ * last change of the viewer transform if that was a translation (scrolling
+ * along z or panning in xy): the visible plane is shifted ahead in the
+ * direction of the motion by up to two cells, in steps of half a cell, and
+ * the cells that the shifted planes intersect at the level that is
+ * rendered at full resolution are loaded nearest first.  Each change of the
+ * transform replaces the cells that are still waiting, a pause ends the
+ * prediction.
+ *
+ * Cells are loaded through the cache of the image loaders by a few
+ * dedicated threads that do not compete with the viewer's fetch queue
+ * which is cleared with every frame.
+ */
+public class MotionPrefetcher implements TransformListener< AffineTransform3D >
+{
+	/* a pause longer than this ends the motion */
+	final static private long idleMillis = 500;
+
+	final static private double lookaheadCells = 2;
+
+	final static private int maxSamplesPerPlane = 4096;
+
+	final static private int maxCellsPerUpdate = 1024;
+
+	final private List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders;
+
+	/* pixel to global coordinates, by setup and level */
+	final private AffineTransform3D[][] sourceTransforms;
+
+	final private Component display;
+
+	/* setup, level and index of the cells to load */
+	final private LinkedBlockingDeque< long[] > cells = new LinkedBlockingDeque<>();
+
+	final private Thread[] threads;
+
+	private AffineTransform3D previous = null;
+
+	private long previousTime = 0;
+
+	/**
+	 * @param imgLoaders indexed by setup id
+	 * @param sourceTransforms pixel to global coordinates of all levels of
+	 *   all setups, indexed by setup and level
+	 * @param display the component that shows the rendered plane
+	 * @param numThreads
+	 */
+	public MotionPrefetcher(
+			final List< ? extends AbstractCellFileImageLoader< ?, ? > > imgLoaders,
+			final AffineTransform3D[][] sourceTransforms,
+			final Component display,
+			final int numThreads )
+	{
+		this.imgLoaders = imgLoaders;
+		this.sourceTransforms = sourceTransforms;
+		this.display = display;
+
+		threads = new Thread[ numThreads ];
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			threads[ i ] = new Thread( this::load, "motion-prefetcher-" + i );
+			threads[ i ].setDaemon( true );
+			threads[ i ].start();
+		}
+	}
+
+	private void load()
+	{
+		try
+		{
+			while ( true )
+			{
+				final long[] cell = cells.takeFirst();
+				imgLoaders.get( ( int )cell[ 0 ] ).load( 0, ( int )cell[ 1 ], cell[ 2 ] );
+			}
+		}
+		catch ( final InterruptedException e ) {}
+	}
+
+	/**
+	 * Stop all prefetcher threads.
+	 */
+	public void stop()
+	{
+		for ( final Thread thread : threads )
+			thread.interrupt();
+	}
+
+	/**
+	 * @return number of cells waiting to be loaded
+	 */
+	public int getNumWaiting()
+	{
+		return cells.size();
+	}
+
+	@Override
+	public synchronized void transformChanged( final AffineTransform3D transform )
+	{
+		final long time = System.currentTimeMillis();
+		final AffineTransform3D current = transform.copy();
+		final AffineTransform3D last = previous;
+		final boolean moving = last != null && time - previousTime < idleMillis;
+		previous = current;
+		previousTime = time;
+
+		if ( !moving )
+		{
+			cells.clear();
+			return;
+		}
+
+		/* screen space change, extrapolated only if it is a translation */
+		final AffineTransform3D delta = current.copy().concatenate( last.inverse() );
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				if ( Math.abs( delta.get( r, c ) - ( r == c ? 1 : 0 ) ) > 1e-6 )
+				{
+					cells.clear();
+					return;
+				}
+
+		final double[] motion = new double[] { delta.get( 0, 3 ), delta.get( 1, 3 ), delta.get( 2, 3 ) };
+		final double speed = Math.sqrt( motion[ 0 ] * motion[ 0 ] + motion[ 1 ] * motion[ 1 ] + motion[ 2 ] * motion[ 2 ] );
+		if ( speed < 1e-6 )
+			return;
+		for ( int d = 0; d < 3; ++d )
+			motion[ d ] /= speed;
+
+		final ArrayList< long[] > predicted = predict( current, motion, display.getWidth(), display.getHeight() );
+		cells.clear();
+		cells.addAll( predicted );
+	}
+
+	/**
+	 * Cells intersected by the visible plane after moving it along
+	 * <code>motion</code> by up to {@link #lookaheadCells} cells, nearest
+	 * first.
+	 */
+	private ArrayList< long[] > predict( final AffineTransform3D viewerTransform, final double[] motion, final int width, final int height )
+	{
+		final LinkedHashSet< List< Long > > keys = new LinkedHashSet<>();
+		final ArrayList< long[] > predicted = new ArrayList<>();
+
+		final double[] screen = new double[ 3 ];
+		final double[] pixel = new double[ 3 ];
+		for ( int setup = 0; setup < imgLoaders.size() && setup < sourceTransforms.length; ++setup )
+		{
+			final AbstractCellFileImageLoader< ?, ? > imgLoader = imgLoaders.get( setup );
+			final int level = renderedLevel( viewerTransform, sourceTransforms[ setup ] );
+			final long[] dimensions = imgLoader.dimensions[ level ];
+			final int[] cellDimensions = imgLoader.cellDimensions[ level ];
+
+			final AffineTransform3D pixelToScreen = viewerTransform.copy().concatenate( sourceTransforms[ setup ][ level ] );
+			final AffineTransform3D screenToPixel = pixelToScreen.inverse();
+
+			/* smallest extent of a cell on screen */
+			double cellSize = Double.MAX_VALUE;
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double x = pixelToScreen.get( 0, d ), y = pixelToScreen.get( 1, d ), z = pixelToScreen.get( 2, d );
+				cellSize = Math.min( cellSize, Math.sqrt( x * x + y * y + z * z ) * cellDimensions[ d ] );
+			}
+			final double step = Math.max( 1, 0.5 * cellSize );
+			final double sampleStep = Math.max( step, Math.sqrt( ( double )width * height / maxSamplesPerPlane ) );
+
+			final long[] grid = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				grid[ d ] = ( dimensions[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+
+			for ( double distance = step; distance <= Math.max( step, lookaheadCells * cellSize ); distance += step )
+			{
+				for ( double y = 0; y <= height; y += sampleStep )
+				{
+					for ( double x = 0; x <= width; x += sampleStep )
+					{
+						/* where the point of the future screen is now */
+						screen[ 0 ] = x - motion[ 0 ] * distance;
+						screen[ 1 ] = y - motion[ 1 ] * distance;
+						screen[ 2 ] = -motion[ 2 ] * distance;
+						screenToPixel.apply( screen, pixel );
+
+						long index = 0;
+						boolean inside = true;
+						for ( int d = 2; d >= 0 && inside; --d )
+						{
+							final long g = ( long )Math.floor( pixel[ d ] / cellDimensions[ d ] );
+							inside = g >= 0 && g < grid[ d ];
+							index = index * grid[ d ] + g;
+						}
+						if ( inside && keys.add( Arrays.asList( ( long )setup, ( long )level, index ) ) )
+						{
+							predicted.add( new long[] { setup, level, index } );
+							if ( predicted.size() >= maxCellsPerUpdate )
+								return predicted;
+						}
+					}
+				}
+			}
+		}
+		return predicted;
+	}
+
+	/**
+	 * The coarsest level whose pixels are not larger than a screen pixel,
+	 * i.e. the level that BigDataViewer renders at full resolution, or 0 if
+	 * the viewer is zoomed in further than that.
+	 */
+	static private int renderedLevel( final AffineTransform3D viewerTransform, final AffineTransform3D[] levelTransforms )
+	{
+		for ( int level = levelTransforms.length - 1; level > 0; --level )
+		{
+			final AffineTransform3D t = viewerTransform.copy().concatenate( levelTransforms[ level ] );
+			final double x = t.get( 0, 0 ), y = t.get( 1, 0 ), z = t.get( 2, 0 );
+			if ( Math.sqrt( x * x + y * y + z * z ) <= 1.0 + 1e-6 )
+				return level;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import bdv.cache.CacheHints;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+/**
+ * {@link CellFileCache} backed by BigDataViewer's
+ * {@link VolatileGlobalCellCache} that keeps cells until the garbage
+ * collector clears their soft references.
+ */
+public class SoftReferenceCellFileCache implements CellFileCache
+{
+	final private VolatileGlobalCellCache cache;
+
+	public SoftReferenceCellFileCache( final VolatileGlobalCellCache cache )
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * @param maxNumLevels
+	 * @param numFetcherThreads
+	 */
+	public SoftReferenceCellFileCache( final int maxNumLevels, final int numFetcherThreads )
+	{
+		this( new VolatileGlobalCellCache( maxNumLevels, numFetcherThreads ) );
+	}
+
+	public VolatileGlobalCellCache getCache()
+	{
+		return cache;
+	}
+
+	@Override
+	public < A extends VolatileAccess > CellCache< A > createCellCache(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final CacheHints cacheHints,
+			final CacheArrayLoader< A > loader )
+	{
+		return cache.new VolatileCellCache< >( timepoint, setup, level, cacheHints, loader );
+	}
+
+	@Override
+	public void prepareNextFrame()
+	{
+		cache.prepareNextFrame();
+	}
+
+	@Override
+	public void clearCache()
+	{
+		cache.clearCache();
+	}
+
+	/**
+	 * The fetcher threads of {@link VolatileGlobalCellCache} cannot be
+	 * stopped, they are daemon threads that idle once nothing is requested.
+	 */
+	@Override
+	public void close()
+	{
+		cache.prepareNextFrame();
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams a 3D image into an uncompressed multi-page TIFF file with one
+ * strip per page.  The image file directories of all pages are written
+ * up front, such that blocks can be written in any order and from
+ * multiple threads at their final position, one positional write per
+ * row.  Files that would exceed 4GB are written as BigTIFF.
+ *
+ * The file is written next to its destination and moved there by
+ * {@link #finish()}, {@link #close()} without {@link #finish()} deletes
+ * it.
+ */
+public class TiffStackWriter implements CellFileWriter, Closeable
+{
+	final static private int numEntries = 10;
+
+	final static private short SHORT = 3, LONG = 4, LONG8 = 16;
+
+	final static private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+	final private Path path;
+
+	final private Path tmpPath;
+
+	final private FileChannel channel;
+
+	final private int width;
+
+	final private int height;
+
+	final private int depth;
+
+	final private int bytesPerElement;
+
+	final private boolean bigTiff;
+
+	final private long dataOffset;
+
+	private boolean finished = false;
+
+	/**
+	 * @param path
+	 * @param imageType "GRAY8", "GRAY16" or "GRAY32"
+	 * @param width
+	 * @param height
+	 * @param depth number of pages
+	 * @throws IOException
+	 */
+	public TiffStackWriter(
+			final String path,
+			final String imageType,
+			final int width,
+			final int height,
+			final int depth ) throws IOException
+	{
+		this.path = Paths.get( path );
+		tmpPath = Paths.get( path + ".tmp" );
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		bytesPerElement = CellFileRawReader.bytesPerElement( CellFileImageLoaderFactory.createStorageArray( imageType, 0 ) );
+
+		final long pageBytes = ( long )width * height * bytesPerElement;
+		bigTiff = 8 + depth * ( 2 + numEntries * 12 + 4L + pageBytes ) > 0xffffffffL;
+		final int headerSize = bigTiff ? 16 : 8;
+		final int ifdSize = bigTiff ? 8 + numEntries * 20 + 8 : 2 + numEntries * 12 + 4;
+		dataOffset = headerSize + ( long )depth * ifdSize;
+
+		if ( this.path.getParent() != null )
+			Files.createDirectories( this.path.getParent() );
+		channel = FileChannel.open(
+				tmpPath,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE );
+
+		try
+		{
+			final ByteBuffer header = ByteBuffer.allocate( headerSize ).order( byteOrder );
+			header.put( ( byte )'M' ).put( ( byte )'M' );
+			if ( bigTiff )
+				header.putShort( ( short )43 ).putShort( ( short )8 ).putShort( ( short )0 ).putLong( headerSize );
+			else
+				header.putShort( ( short )42 ).putInt( headerSize );
+			header.flip();
+			write( header, 0 );
+
+			final int bitsPerSample = bytesPerElement * 8;
+			final int sampleFormat = "GRAY32".equals( imageType ) ? 3 : 1;
+			for ( int z = 0; z < depth; ++z )
+			{
+				final long ifdOffset = headerSize + ( long )z * ifdSize;
+				final ByteBuffer ifd = ByteBuffer.allocate( ifdSize ).order( byteOrder );
+				if ( bigTiff )
+					ifd.putLong( numEntries );
+				else
+					ifd.putShort( ( short )numEntries );
+				entry( ifd, 256, LONG, width );
+				entry( ifd, 257, LONG, height );
+				entry( ifd, 258, SHORT, bitsPerSample );
+				entry( ifd, 259, SHORT, 1 ); // no compression
+				entry( ifd, 262, SHORT, 1 ); // black is zero
+				entry( ifd, 273, bigTiff ? LONG8 : LONG, dataOffset + z * pageBytes );
+				entry( ifd, 277, SHORT, 1 );
+				entry( ifd, 278, LONG, height );
+				entry( ifd, 279, bigTiff ? LONG8 : LONG, pageBytes );
+				entry( ifd, 339, SHORT, sampleFormat );
+				final long next = z + 1 < depth ? ifdOffset + ifdSize : 0;
+				if ( bigTiff )
+					ifd.putLong( next );
+				else
+					ifd.putInt( ( int )next );
+				ifd.flip();
+				write( ifd, ifdOffset );
+			}
+		}
+		catch ( final IOException e )
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/* a directory entry with a single value, left justified */
+	private void entry( final ByteBuffer ifd, final int tag, final short type, final long value )
+	{
+		ifd.putShort( ( short )tag );
+		ifd.putShort( type );
+		if ( bigTiff )
+			ifd.putLong( 1 );
+		else
+			ifd.putInt( 1 );
+		final int position = ifd.position();
+		if ( type == SHORT )
+			ifd.putShort( ( short )value );
+		else if ( type == LONG )
+			ifd.putInt( ( int )value );
+		else
+			ifd.putLong( value );
+		ifd.position( position + ( bigTiff ? 8 : 4 ) );
+	}
+
+	private void write( final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+			p += channel.write( buffer, p );
+	}
+
+	/**
+	 * Write a block of any size inside of the image.  Rows of full width
+	 * blocks are contiguous and written together.  <code>level</code> and
+	 * <code>gridPosition</code> are ignored.
+	 */
+	@Override
+	public void write(
+			final int level,
+			final long[] gridPosition,
+			final long[] min,
+			final int[] dimensions,
+			final Object data ) throws IOException
+	{
+		if ( min[ 0 ] < 0 || min[ 1 ] < 0 || min[ 2 ] < 0 ||
+				min[ 0 ] + dimensions[ 0 ] > width ||
+				min[ 1 ] + dimensions[ 1 ] > height ||
+				min[ 2 ] + dimensions[ 2 ] > depth )
+			throw new IllegalArgumentException( "block " + Arrays.toString( dimensions ) + " at " + Arrays.toString( min ) + " is not inside of the image" );
+
+		final int rowsPerWrite = dimensions[ 0 ] == width ? dimensions[ 1 ] : 1;
+		final int entitiesPerWrite = dimensions[ 0 ] * rowsPerWrite;
+		final ByteBuffer buffer = ByteBuffer.allocate( entitiesPerWrite * bytesPerElement ).order( byteOrder );
+		for ( int z = 0, i = 0; z < dimensions[ 2 ]; ++z )
+		{
+			for ( int y = 0; y < dimensions[ 1 ]; y += rowsPerWrite, i += entitiesPerWrite )
+			{
+				buffer.clear();
+				CellFileRawReader.put( data, i, entitiesPerWrite, buffer );
+				buffer.flip();
+				write( buffer, dataOffset + ( ( ( min[ 2 ] + z ) * height + min[ 1 ] + y ) * width + min[ 0 ] ) * bytesPerElement );
+			}
+		}
+	}
+
+	/**
+	 * Does nothing, blocks that are not written are zero in the new file.
+	 */
+	@Override
+	public void delete(
+			final int level,
+			final long[] gridPosition,
+			final long[] min ) {}
+
+	/**
+	 * Move the complete file to its destination.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		channel.close();
+		Files.move( tmpPath, path, StandardCopyOption.REPLACE_EXISTING );
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( !finished )
+		{
+			channel.close();
+			Files.deleteIfExists( tmpPath );
+		}
+	}
+}
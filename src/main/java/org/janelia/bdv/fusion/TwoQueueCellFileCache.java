@@ -0,0 +1,749 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import bdv.cache.CacheHints;
+import bdv.cache.LoadingStrategy;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+/**
+ * {@link CellFileCache} that holds cells by strong references within an
+ * explicit byte budget and evicts them with the scan resistant 2Q policy
+ * (Johnson &amp; Shasha, VLDB 1994):
+ *
+ * <ul>
+ * <li>cells loaded for the first time enter a FIFO queue (A1in) that may
+ * use a quarter of the budget,</li>
+ * <li>keys of cells evicted from A1in are remembered in a ghost queue
+ * (A1out),</li>
+ * <li>cells loaded again while their key is in A1out enter an LRU queue
+ * (Am) that holds the frequently used cells.</li>
+ * </ul>
+ *
+ * Am approximates LRU by second chances (CLOCK): a cell that was used since
+ * it reached the head of Am moves to its tail instead of being evicted.
+ * Cache hits therefore only set a flag and do not take a lock.
+ *
+ * Browsing through a dataset once therefore only cycles A1in and does not
+ * flush the cells that are used over and over again.  The size of a cell
+ * is {@link CacheArrayLoader#getBytesPerElement()} &times; the number of
+ * its pixels, cells that share their data, e.g. the all-zero array of
+ * missing cells, count it once.
+ *
+ * Cells are loaded by a pool of fetcher threads from a prioritized queue
+ * that is cleared in {@link #prepareNextFrame()} like the queue of
+ * BigDataViewer's VolatileGlobalCellCache.  Within a priority, requests
+ * are ordered by an optional {@link CellFetchPrioritizer}, e.g. by their
+ * distance from the centre of the screen.  An optional
+ * {@link AdaptiveConcurrencyLimit} limits how many fetcher threads dequeue
+ * requests at a time.
+ *
+ * A cell that is being loaded by a fetcher thread is cancelled if a whole
+ * frame went by without asking for it, e.g. after a fast flythrough, see
+ * {@link CellFileCancellation}.  {@link #close()} stops the fetcher
+ * threads.
+ */
+public class TwoQueueCellFileCache implements CellFileCache, TwoQueueCellFileCacheMBean
+{
+	final static private class Key
+	{
+		final int timepoint;
+		final int setup;
+		final int level;
+		final long index;
+		final int hashcode;
+
+		Key( final int timepoint, final int setup, final int level, final long index )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.index = index;
+
+			int h = Long.hashCode( index );
+			h = 31 * h + level;
+			h = 31 * h + setup;
+			h = 31 * h + timepoint;
+			hashcode = h;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key that = ( Key )other;
+			return index == that.index && level == that.level && setup == that.setup && timepoint == that.timepoint;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+
+	final static private class Entry
+	{
+		final VolatileCell< ? > cell;
+		/* bytes of the data unless another cell shares it already */
+		final long bytes;
+		/* used since it was put or moved to the tail of Am */
+		volatile boolean referenced = false;
+
+		Entry( final VolatileCell< ? > cell, final long bytes )
+		{
+			this.cell = cell;
+			this.bytes = bytes;
+		}
+	}
+
+	final static private class Data
+	{
+		final long bytes;
+		int references = 0;
+
+		Data( final long bytes )
+		{
+			this.bytes = bytes;
+		}
+	}
+
+	final static private class Request
+	{
+		final Key key;
+		final int[] cellDims;
+		final long[] cellMin;
+		final VolatileCellCache< ? > cellCache;
+		final long enqueued = System.nanoTime();
+		final CellFileCancellation.Token token = new CellFileCancellation.Token();
+		int priority;
+		long sequence;
+		double distance;
+		/* last frame that asked for the cell */
+		volatile long wanted;
+
+		Request( final Key key, final int[] cellDims, final long[] cellMin, final VolatileCellCache< ? > cellCache )
+		{
+			this.key = key;
+			this.cellDims = cellDims;
+			this.cellMin = cellMin;
+			this.cellCache = cellCache;
+		}
+	}
+
+	final static private Comparator< Request > requestOrder = ( a, b ) -> {
+		final int c = Double.compare( a.distance, b.distance );
+		return c == 0 ? Long.compare( a.sequence, b.sequence ) : c;
+	};
+
+	final private long maxBytes;
+
+	final private long maxInBytes;
+
+	/* cells in A1in and Am, looked up without a lock */
+	final private ConcurrentHashMap< Key, Entry > cells = new ConcurrentHashMap<>();
+
+	/* A1in, insertion order */
+	final private LinkedHashMap< Key, Entry > in = new LinkedHashMap<>();
+
+	/* A1out, insertion order */
+	final private LinkedHashMap< Key, Boolean > out = new LinkedHashMap<>();
+
+	/* Am, order of insertion or last second chance */
+	final private LinkedHashMap< Key, Entry > main = new LinkedHashMap<>();
+
+	/* data of the cached cells by identity */
+	final private IdentityHashMap< Object, Data > data = new IdentityHashMap<>();
+
+	/* invalid placeholders of cells that are queued or being loaded */
+	final private ConcurrentHashMap< Key, VolatileCell< ? > > pending = new ConcurrentHashMap<>();
+
+	/* one queue per priority and a last one for cells that are not visible */
+	final private PriorityQueue< Request >[] queues;
+
+	/* generation of the prioritizer for which each queue was last ordered */
+	final private long[] ordered;
+
+	/* incremented by reprioritize() */
+	final private AtomicLong generation = new AtomicLong();
+
+	/* requests that are being loaded by the fetcher threads */
+	final private ConcurrentHashMap< Key, Request > loading = new ConcurrentHashMap<>();
+
+	final private Thread[] fetchers;
+
+	private long sequence = 0;
+
+	private volatile long frame = 0;
+
+	private long cancelled = 0;
+
+	private volatile CellFetchPrioritizer prioritizer = null;
+
+	private volatile AdaptiveConcurrencyLimit concurrencyLimit = null;
+
+	private long inBytes = 0;
+
+	private long mainBytes = 0;
+
+	/* bytes of all distinct data */
+	private long currentBytes = 0;
+
+	final private LongAdder hits = new LongAdder();
+
+	final private LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxBytes byte budget for all cells
+	 * @param maxNumLevels number of queue priorities
+	 * @param numFetcherThreads
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public TwoQueueCellFileCache( final long maxBytes, final int maxNumLevels, final int numFetcherThreads )
+	{
+		this.maxBytes = maxBytes;
+		maxInBytes = maxBytes / 4;
+
+		queues = new PriorityQueue[ maxNumLevels + 1 ];
+		for ( int i = 0; i < queues.length; ++i )
+			queues[ i ] = new PriorityQueue<>( 16, requestOrder );
+		ordered = new long[ queues.length ];
+
+		fetchers = new Thread[ numFetcherThreads ];
+		for ( int i = 0; i < numFetcherThreads; ++i )
+		{
+			fetchers[ i ] = new Thread( this::fetch, "cell-fetcher-" + i );
+			fetchers[ i ].setDaemon( true );
+			fetchers[ i ].start();
+		}
+	}
+
+	public class VolatileCellCache< A extends VolatileAccess > implements CellCache< A >
+	{
+		final private int timepoint;
+
+		final private int setup;
+
+		final private int level;
+
+		private CacheHints cacheHints;
+
+		final private CacheArrayLoader< A > loader;
+
+		public VolatileCellCache(
+				final int timepoint,
+				final int setup,
+				final int level,
+				final CacheHints cacheHints,
+				final CacheArrayLoader< A > loader )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.cacheHints = cacheHints;
+			this.loader = loader;
+		}
+
+		@SuppressWarnings( "unchecked" )
+		@Override
+		public VolatileCell< A > get( final long index )
+		{
+			return ( VolatileCell< A > )TwoQueueCellFileCache.this.get( new Key( timepoint, setup, level, index ) );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		@Override
+		public VolatileCell< A > load( final long index, final int[] cellDims, final long[] cellMin )
+		{
+			final Key key = new Key( timepoint, setup, level, index );
+			final CacheHints hints = cacheHints;
+			final LoadingStrategy strategy = hints.getLoadingStrategy();
+
+			final VolatileCell< ? > cell = TwoQueueCellFileCache.this.get( key );
+			if ( cell != null && ( ( ( VolatileAccess )cell.getData() ).isValid() || strategy != LoadingStrategy.BLOCKING ) )
+				return ( VolatileCell< A > )cell;
+
+			if ( strategy != LoadingStrategy.BLOCKING )
+			{
+				final VolatileCell< A > placeholder = new VolatileCell<>( cellDims, cellMin, loader.emptyArray( cellDims ) );
+				if ( strategy != LoadingStrategy.DONTLOAD )
+				{
+					synchronized ( TwoQueueCellFileCache.this )
+					{
+						/* another thread may have loaded or requested the cell meanwhile */
+						final Entry entry = cells.get( key );
+						if ( entry != null )
+							return ( VolatileCell< A > )entry.cell;
+						final VolatileCell< ? > other = pending.putIfAbsent( key, placeholder );
+						if ( other != null )
+							return ( VolatileCell< A > )other;
+						enqueue( new Request( key, cellDims, cellMin, this ), hints );
+					}
+				}
+				return placeholder;
+			}
+
+			/* blocking loads run to completion, the caller checks its token between cells */
+			final CellFileCancellation.Token token = CellFileCancellation.get();
+			CellFileCancellation.set( null );
+			try
+			{
+				return loadAndPut( key, cellDims, cellMin );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return new VolatileCell<>( cellDims, cellMin, loader.emptyArray( cellDims ) );
+			}
+			finally
+			{
+				CellFileCancellation.set( token );
+			}
+		}
+
+		@Override
+		public void setCacheHints( final CacheHints cacheHints )
+		{
+			this.cacheHints = cacheHints;
+		}
+
+		private VolatileCell< A > loadAndPut( final Key key, final int[] cellDims, final long[] cellMin ) throws InterruptedException
+		{
+			final A data = loader.loadArray( timepoint, setup, level, cellDims, cellMin );
+			final VolatileCell< A > cell = new VolatileCell<>( cellDims, cellMin, data );
+
+			long numEntities = 1;
+			for ( final int d : cellDims )
+				numEntities *= d;
+			put( key, cell, numEntities * loader.getBytesPerElement() );
+
+			return cell;
+		}
+	}
+
+	@Override
+	public < A extends VolatileAccess > CellCache< A > createCellCache(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final CacheHints cacheHints,
+			final CacheArrayLoader< A > loader )
+	{
+		return new VolatileCellCache<>( timepoint, setup, level, cacheHints, loader );
+	}
+
+	private VolatileCell< ? > get( final Key key )
+	{
+		final Entry entry = cells.get( key );
+		if ( entry != null )
+		{
+			entry.referenced = true;
+			hits.increment();
+			return entry.cell;
+		}
+		misses.increment();
+		final Request request = loading.get( key );
+		if ( request != null )
+			request.wanted = frame;
+		return pending.get( key );
+	}
+
+	private synchronized void put( final Key key, final VolatileCell< ? > cell, final long bytes )
+	{
+		Data d = data.get( cell.getData() );
+		if ( d == null )
+		{
+			d = new Data( bytes );
+			data.put( cell.getData(), d );
+			currentBytes += bytes;
+		}
+		final Entry entry = new Entry( cell, d.references++ == 0 ? bytes : 0 );
+
+		final Entry previous = cells.put( key, entry );
+		pending.remove( key );
+		if ( previous != null )
+			release( previous );
+
+		if ( main.containsKey( key ) )
+		{
+			mainBytes += entry.bytes - main.put( key, entry ).bytes;
+		}
+		else if ( out.remove( key ) != null )
+		{
+			main.put( key, entry );
+			mainBytes += entry.bytes;
+		}
+		else
+		{
+			final Entry previousIn = in.put( key, entry );
+			inBytes += entry.bytes - ( previousIn == null ? 0 : previousIn.bytes );
+		}
+
+		evict();
+	}
+
+	/* callers synchronize on this */
+	private void release( final Entry entry )
+	{
+		final Data d = data.get( entry.cell.getData() );
+		if ( --d.references == 0 )
+		{
+			data.remove( entry.cell.getData() );
+			currentBytes -= d.bytes;
+		}
+	}
+
+	/* callers synchronize on this */
+	private void evict()
+	{
+		/* cells used concurrently may set their flag again, give at most one second chance per cell */
+		int secondChances = main.size();
+		while ( currentBytes > maxBytes )
+		{
+			if ( ( inBytes > maxInBytes || main.isEmpty() ) && !in.isEmpty() )
+			{
+				final Iterator< Map.Entry< Key, Entry > > eldest = in.entrySet().iterator();
+				final Map.Entry< Key, Entry > e = eldest.next();
+				eldest.remove();
+				cells.remove( e.getKey() );
+				inBytes -= e.getValue().bytes;
+				release( e.getValue() );
+
+				out.put( e.getKey(), Boolean.TRUE );
+				/* remember about as many evicted keys as cells fit into half the budget */
+				final long maxOut = Math.max( 1024, ( in.size() + main.size() ) / 2 );
+				for ( final Iterator< Key > oldest = out.keySet().iterator(); out.size() > maxOut; )
+				{
+					oldest.next();
+					oldest.remove();
+				}
+			}
+			else if ( !main.isEmpty() )
+			{
+				final Iterator< Map.Entry< Key, Entry > > eldest = main.entrySet().iterator();
+				final Map.Entry< Key, Entry > e = eldest.next();
+				eldest.remove();
+				if ( e.getValue().referenced && secondChances-- > 0 )
+				{
+					e.getValue().referenced = false;
+					main.put( e.getKey(), e.getValue() );
+				}
+				else
+				{
+					cells.remove( e.getKey() );
+					mainBytes -= e.getValue().bytes;
+					release( e.getValue() );
+				}
+			}
+			else
+				break;
+		}
+	}
+
+	private void enqueue( final Request request, final CacheHints hints )
+	{
+		request.priority = Math.max( 0, Math.min( queues.length - 2, hints.getQueuePriority() ) );
+		request.sequence = hints.isEnqueuToFront() ? -++sequence : ++sequence;
+		place( request );
+		notifyAll();
+	}
+
+	/* callers synchronize on this */
+	private void place( final Request request )
+	{
+		final CellFetchPrioritizer p = prioritizer;
+		request.distance = p == null ? 0 : p.distance( request.key.setup, request.key.level, request.cellMin, request.cellDims );
+		queues[ request.distance == Double.POSITIVE_INFINITY ? queues.length - 1 : request.priority ].add( request );
+	}
+
+	/**
+	 * Order the requests within each priority by their distance as
+	 * reported by <code>prioritizer</code>, and fetch requests for cells
+	 * that are not visible after all others.  Without a prioritizer,
+	 * requests are fetched in the order in which they were enqueued.
+	 *
+	 * @param prioritizer or null
+	 */
+	public void setPrioritizer( final CellFetchPrioritizer prioritizer )
+	{
+		this.prioritizer = prioritizer;
+		reprioritize();
+	}
+
+	public CellFetchPrioritizer getPrioritizer()
+	{
+		return prioritizer;
+	}
+
+	/**
+	 * Let at most {@link AdaptiveConcurrencyLimit#getLimit()} fetcher
+	 * threads dequeue and load requests at a time.  Set the same limit to
+	 * the {@link AbstractCellFileArrayLoader}s, whose loads on other
+	 * threads, e.g. blocking loads, then take permits of their own.
+	 *
+	 * @param concurrencyLimit or null to let all fetcher threads load
+	 */
+	public synchronized void setConcurrencyLimit( final AdaptiveConcurrencyLimit concurrencyLimit )
+	{
+		this.concurrencyLimit = concurrencyLimit;
+		notifyAll();
+	}
+
+	public AdaptiveConcurrencyLimit getConcurrencyLimit()
+	{
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Re-evaluate the distances of all queued requests, e.g. after the
+	 * viewer moved, such that requests for cells that left the view are
+	 * demoted.  This only marks the queues, each queue is reordered when a
+	 * fetcher dequeues from it next.
+	 */
+	public void reprioritize()
+	{
+		generation.incrementAndGet();
+	}
+
+	/* callers synchronize on this */
+	private void reorder( final int i )
+	{
+		ordered[ i ] = generation.get();
+		final ArrayList< Request > requests = new ArrayList<>( queues[ i ] );
+		queues[ i ].clear();
+		for ( final Request request : requests )
+			place( request );
+	}
+
+	/**
+	 * @return the next request or null if the concurrency limit changed
+	 *   while the fetcher held a permit of <code>limit</code>
+	 */
+	private synchronized Request take( final AdaptiveConcurrencyLimit limit ) throws InterruptedException
+	{
+		while ( true )
+		{
+			if ( concurrencyLimit != limit )
+				return null;
+			for ( int i = 0; i < queues.length; ++i )
+			{
+				if ( queues[ i ].isEmpty() )
+					continue;
+				if ( ordered[ i ] != generation.get() )
+				{
+					/* requests may move between this queue and the one of invisible cells, start over */
+					reorder( i );
+					i = -1;
+					continue;
+				}
+				return queues[ i ].poll();
+			}
+			wait();
+		}
+	}
+
+	private void fetch()
+	{
+		try
+		{
+			while ( true )
+			{
+				/* wait for a permit before dequeuing, such that the waiting requests can still be reordered or dropped */
+				final AdaptiveConcurrencyLimit limit = concurrencyLimit;
+				if ( limit != null )
+					limit.acquire();
+				try
+				{
+					final Request request = take( limit );
+					if ( request != null )
+						fetch( request );
+				}
+				finally
+				{
+					/* loads of virtual cells release the permit while they wait for their finer cells */
+					if ( limit != null && limit.isHeldByCurrentThread() )
+						limit.release();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{}
+	}
+
+	private void fetch( final Request request ) throws InterruptedException
+	{
+		synchronized ( this )
+		{
+			if ( cells.containsKey( request.key ) )
+			{
+				pending.remove( request.key );
+				return;
+			}
+			request.wanted = frame;
+			loading.put( request.key, request );
+		}
+
+		try
+		{
+			CellFileTracer.setEnqueueTime( request.enqueued );
+			CellFileCancellation.set( request.token );
+			request.cellCache.loadAndPut( request.key, request.cellDims, request.cellMin );
+		}
+		catch ( final InterruptedException e )
+		{
+			/* placeholder was dropped when the load was cancelled */
+			if ( !request.token.isCancelled() )
+				throw e;
+		}
+		catch ( final RuntimeException e )
+		{
+			synchronized ( this )
+			{
+				pending.remove( request.key );
+			}
+			e.printStackTrace();
+		}
+		finally
+		{
+			CellFileTracer.setEnqueueTime( -1 );
+			CellFileCancellation.set( null );
+			synchronized ( this )
+			{
+				loading.remove( request.key, request );
+			}
+		}
+	}
+
+	/**
+	 * Drop all queued requests, the cells needed for the next frame will
+	 * be requested again.  Cancel the loads of cells that were not asked
+	 * for during the last frame.
+	 */
+	@Override
+	public synchronized void prepareNextFrame()
+	{
+		++frame;
+		for ( final Request request : loading.values() )
+		{
+			if ( request.wanted < frame - 1 && !request.token.isCancelled() )
+			{
+				request.token.cancel();
+				pending.remove( request.key );
+				++cancelled;
+			}
+		}
+
+		for ( final PriorityQueue< Request > queue : queues )
+		{
+			for ( final Request request : queue )
+				pending.remove( request.key );
+			queue.clear();
+		}
+	}
+
+	@Override
+	public synchronized void clearCache()
+	{
+		prepareNextFrame();
+		cells.clear();
+		in.clear();
+		out.clear();
+		main.clear();
+		data.clear();
+		inBytes = 0;
+		mainBytes = 0;
+		currentBytes = 0;
+	}
+
+	/**
+	 * Stop the fetcher threads and drop the queued requests.  Loads that
+	 * are in flight are interrupted.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for ( final Thread fetcher : fetchers )
+			fetcher.interrupt();
+		prepareNextFrame();
+	}
+
+	@Override
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	@Override
+	public synchronized long getCurrentBytes()
+	{
+		return currentBytes;
+	}
+
+	@Override
+	public int getNumCells()
+	{
+		return cells.size();
+	}
+
+	@Override
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	@Override
+	public synchronized int getQueueLength()
+	{
+		int n = 0;
+		for ( final PriorityQueue< Request > queue : queues )
+			n += queue.size();
+		return n;
+	}
+
+	@Override
+	public int getNumLoading()
+	{
+		return loading.size();
+	}
+
+	@Override
+	public synchronized long getCancelledLoads()
+	{
+		return cancelled;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+/**
+ * JMX view of {@link TwoQueueCellFileCache}.
+ */
+public interface TwoQueueCellFileCacheMBean
+{
+	public long getMaxBytes();
+
+	public long getCurrentBytes();
+
+	public int getNumCells();
+
+	public long getHits();
+
+	public long getMisses();
+
+	/**
+	 * @return number of cells waiting in the fetcher queues
+	 */
+	public int getQueueLength();
+
+	/**
+	 * @return number of cells being loaded by the fetcher threads
+	 */
+	public int getNumLoading();
+
+	/**
+	 * @return number of loads that were cancelled because no frame asked
+	 *   for their cell anymore
+	 */
+	public long getCancelledLoads();
+}
@@ -0,0 +1,134 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.bdv.fusion;
+
+import java.awt.Component;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+
+/**
+ * {@link CellFetchPrioritizer} that fetches cells close to the centre of
+ * the screen and to the visible plane first.  Cells that do not intersect
+ * the visible part of the plane, e.g. those at the edge of BigDataViewer's
+ * prefetch region or those that left the screen while panning, are
+ * fetched after all visible cells.
+ *
+ * Register it as a transform listener of the viewer.  With every change of
+ * the viewer transform, the listener set with {@link #setListener(Runnable)}
+ * is notified, typically {@link TwoQueueCellFileCache#reprioritize()}.
+ */
+public class ViewportCellPrioritizer implements CellFetchPrioritizer, TransformListener< AffineTransform3D >
+{
+	/* distance from the visible plane costs this much more than distance within the plane */
+	final static private double planeWeight = 4;
+
+	/* pixel to global coordinates, by setup and level */
+	final private AffineTransform3D[][] sourceTransforms;
+
+	final private Component display;
+
+	/* pixel to screen coordinates as row-major 3x4 matrices, by setup and level */
+	private volatile double[][][] screenTransforms = null;
+
+	private volatile double width;
+
+	private volatile double height;
+
+	private volatile Runnable listener = null;
+
+	/**
+	 * @param sourceTransforms pixel to global coordinates of all levels of
+	 *   all setups, indexed by setup and level
+	 * @param display the component that shows the rendered plane
+	 */
+	public ViewportCellPrioritizer( final AffineTransform3D[][] sourceTransforms, final Component display )
+	{
+		this.sourceTransforms = sourceTransforms;
+		this.display = display;
+	}
+
+	/**
+	 * @param listener notified after the viewer transform changed, or null
+	 */
+	public void setListener( final Runnable listener )
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void transformChanged( final AffineTransform3D viewerTransform )
+	{
+		final double[][][] transforms = new double[ sourceTransforms.length ][][];
+		for ( int setup = 0; setup < sourceTransforms.length; ++setup )
+		{
+			transforms[ setup ] = new double[ sourceTransforms[ setup ].length ][ 12 ];
+			for ( int level = 0; level < sourceTransforms[ setup ].length; ++level )
+			{
+				final AffineTransform3D t = viewerTransform.copy().concatenate( sourceTransforms[ setup ][ level ] );
+				for ( int r = 0; r < 3; ++r )
+					for ( int c = 0; c < 4; ++c )
+						transforms[ setup ][ level ][ r * 4 + c ] = t.get( r, c );
+			}
+		}
+		width = display.getWidth();
+		height = display.getHeight();
+		screenTransforms = transforms;
+
+		final Runnable l = listener;
+		if ( l != null )
+			l.run();
+	}
+
+	@Override
+	public double distance( final int setup, final int level, final long[] cellMin, final int[] cellDims )
+	{
+		final double[][][] transforms = screenTransforms;
+		if ( transforms == null || setup >= transforms.length || level >= transforms[ setup ].length )
+			return 0;
+
+		final double[] m = transforms[ setup ][ level ];
+		final double halfWidth = 0.5 * width;
+		final double halfHeight = 0.5 * height;
+
+		/* screen coordinates of the centre of the cell and the radius of its bounding sphere */
+		final double cx = cellMin[ 0 ] + 0.5 * cellDims[ 0 ];
+		final double cy = cellMin[ 1 ] + 0.5 * cellDims[ 1 ];
+		final double cz = cellMin[ 2 ] + 0.5 * cellDims[ 2 ];
+		double r2 = 0;
+		final double[] p = new double[ 3 ];
+		for ( int i = 0; i < 3; ++i )
+		{
+			final int row = i * 4;
+			p[ i ] = m[ row ] * cx + m[ row + 1 ] * cy + m[ row + 2 ] * cz + m[ row + 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double e = m[ row + d ] * cellDims[ d ];
+				r2 += e * e;
+			}
+		}
+		final double r = 0.5 * Math.sqrt( r2 );
+
+		final double dx = Math.abs( p[ 0 ] - halfWidth );
+		final double dy = Math.abs( p[ 1 ] - halfHeight );
+		final double dz = Math.abs( p[ 2 ] );
+		if ( dx - r > halfWidth || dy - r > halfHeight || dz - r > 0 )
+			return Double.POSITIVE_INFINITY;
+
+		return Math.sqrt( dx * dx + dy * dy ) + planeWeight * dz;
+	}
+}
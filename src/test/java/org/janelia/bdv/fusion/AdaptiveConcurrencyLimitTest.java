@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.cache.CacheHints;
+import bdv.cache.LoadingStrategy;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Increase and decrease steps of {@link AdaptiveConcurrencyLimit} and
+ * fetcher threads of a {@link TwoQueueCellFileCache} that wait for a
+ * permit before they dequeue.
+ */
+public class AdaptiveConcurrencyLimitTest
+{
+	final static private long millis = 1000000;
+
+	static private void waitFor( final BooleanSupplier condition ) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + 10000;
+		while ( !condition.getAsBoolean() )
+		{
+			if ( System.currentTimeMillis() > deadline )
+				Assert.fail( "timed out" );
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Take all permits and let one more thread wait for a permit.
+	 */
+	static private Thread saturate( final AdaptiveConcurrencyLimit limit ) throws InterruptedException
+	{
+		while ( limit.getInFlight() < limit.getLimit() )
+			limit.acquire();
+		final Thread waiter = new Thread( () -> {
+			try
+			{
+				limit.acquire();
+			}
+			catch ( final InterruptedException e ) {}
+		} );
+		waiter.start();
+		waitFor( () -> limit.getWaiting() == 1 );
+		return waiter;
+	}
+
+	@Test
+	public void testIncrease() throws InterruptedException
+	{
+		final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit( 1, 4, 2 );
+		for ( final int expected : new int[] { 3, 4, 4 } )
+		{
+			final Thread waiter = saturate( limit );
+			limit.release( millis );
+			waiter.join();
+			Assert.assertEquals( expected, limit.getLimit() );
+		}
+	}
+
+	@Test
+	public void testNoIncreaseWithoutWaiters() throws InterruptedException
+	{
+		final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit( 1, 4, 2 );
+		for ( int i = 0; i < 10; ++i )
+		{
+			limit.acquire();
+			limit.acquire();
+			limit.release( millis );
+			limit.release( millis );
+		}
+		Assert.assertEquals( 2, limit.getLimit() );
+		Assert.assertEquals( 0, limit.getInFlight() );
+	}
+
+	@Test
+	public void testDecrease() throws InterruptedException
+	{
+		final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit( 10, 16, 16 );
+		limit.acquire();
+		limit.release( millis );
+		Assert.assertEquals( 16, limit.getLimit() );
+
+		/* the latency grows a hundredfold, the limit shrinks by the backoff factor but not below the minimum */
+		for ( final int expected : new int[] { 14, 12, 10, 10 } )
+		{
+			limit.acquire();
+			limit.release( 100 * millis );
+			Assert.assertEquals( expected, limit.getLimit() );
+		}
+	}
+
+	@Test
+	public void testSample() throws InterruptedException
+	{
+		final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit( 1, 4, 2 );
+		Assert.assertFalse( limit.isHeldByCurrentThread() );
+		limit.acquire();
+		Assert.assertTrue( limit.isHeldByCurrentThread() );
+
+		final boolean[] heldByOther = new boolean[ 1 ];
+		final Thread other = new Thread( () -> heldByOther[ 0 ] = limit.isHeldByCurrentThread() );
+		other.start();
+		other.join();
+		Assert.assertFalse( heldByOther[ 0 ] );
+
+		limit.sample( millis );
+		Assert.assertEquals( 1, limit.getInFlight() );
+		Assert.assertTrue( limit.isHeldByCurrentThread() );
+		Assert.assertEquals( millis, limit.getSmoothedLatency(), 0 );
+
+		limit.release();
+		Assert.assertEquals( 0, limit.getInFlight() );
+		Assert.assertFalse( limit.isHeldByCurrentThread() );
+	}
+
+	@Test
+	public void testFetchersWaitBeforeDequeuing() throws InterruptedException
+	{
+		final CountDownLatch gate = new CountDownLatch( 1 );
+		final CacheArrayLoader< VolatileShortArray > loader = new CacheArrayLoader< VolatileShortArray >()
+		{
+			@Override
+			public int getBytesPerElement()
+			{
+				return 2;
+			}
+
+			@Override
+			public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+			{
+				gate.await();
+				return new VolatileShortArray( dimensions[ 0 ], true );
+			}
+
+			@Override
+			public VolatileShortArray emptyArray( final int[] dimensions )
+			{
+				return new VolatileShortArray( dimensions[ 0 ], false );
+			}
+		};
+
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( 1 << 20, 1, 4 );
+		final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit( 1, 1, 1 );
+		cache.setConcurrencyLimit( limit );
+		final CellCache< VolatileShortArray > cellCache = cache.createCellCache( 0, 0, 0, new CacheHints( LoadingStrategy.VOLATILE, 0, false ), loader );
+
+		for ( int i = 0; i < 8; ++i )
+			cellCache.load( i, new int[] { 16 }, new long[] { 16 * i } );
+
+		/* one fetcher loads, the other requests stay queued */
+		waitFor( () -> cache.getNumLoading() == 1 );
+		Assert.assertEquals( 7, cache.getQueueLength() );
+		Assert.assertEquals( 3, limit.getWaiting() );
+
+		/* so they are dropped with the frame */
+		cache.prepareNextFrame();
+		Assert.assertEquals( 0, cache.getQueueLength() );
+
+		gate.countDown();
+		waitFor( () -> cache.getNumLoading() == 0 && cache.getNumCells() == 1 );
+
+		/* the idle fetchers wait for the permit or, one of them, for requests */
+		waitFor( () -> limit.getInFlight() == 1 && limit.getWaiting() == 3 );
+
+		cache.close();
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reads raw cells from a "slow" local directory through a
+ * {@link CellFileDiskCache} in a second local directory and counts the
+ * reads that reach the slow directory.
+ */
+public class CellFileDiskCacheTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-diskcache-test/";
+
+	final static private String cellFormat = testDirPath + "slow/%1$d/%4$d/%3$d/%2$d.raw";
+
+	final static private int[] cellDimensions = new int[] { 16, 16, 8 };
+
+	final static private int numCells = 8;
+
+	final static private short[][] cells = new short[ numCells ][];
+
+	/**
+	 * Raw reader over the slow directory that counts reads and fails the
+	 * first {@link #numFailures} of them.
+	 */
+	static private class SlowReader extends CellFileRawReader
+	{
+		final AtomicInteger numReads = new AtomicInteger();
+
+		final AtomicInteger numFailures = new AtomicInteger();
+
+		SlowReader()
+		{
+			super( cellFormat, ByteOrder.LITTLE_ENDIAN, 0 );
+		}
+
+		@Override
+		public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+		{
+			numReads.incrementAndGet();
+			if ( numFailures.getAndDecrement() > 0 )
+				throw new IOException( "storage unavailable" );
+			return super.read( level, gridPosition, min, dimensions, storage );
+		}
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileDiskCache test." );
+
+		final Random rnd = new Random( 0 );
+		final SlowReader reader = new SlowReader();
+		for ( int i = 0; i < numCells; ++i )
+		{
+			/* half random, half smooth such that LZ4 has something to compress */
+			cells[ i ] = new short[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+			for ( int j = 0; j < cells[ i ].length; ++j )
+				cells[ i ][ j ] = ( short )( j < cells[ i ].length / 2 ? rnd.nextInt( 0x10000 ) : j / 64 );
+
+			final ByteBuffer buffer = ByteBuffer.allocate( cells[ i ].length * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+			CellFileRawReader.put( cells[ i ], 0, cells[ i ].length, buffer );
+			final File file = new File( reader.getCellPath( 0, gridPosition( i ), min( i ) ) );
+			file.getParentFile().mkdirs();
+			Files.write( file.toPath(), buffer.array() );
+		}
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	@Before
+	public void setUp()
+	{
+		delete( new File( testDirPath + "cache" ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private long[] gridPosition( final int i )
+	{
+		return new long[] { i, 0, 0 };
+	}
+
+	static private long[] min( final int i )
+	{
+		return new long[] { i * cellDimensions[ 0 ], 0, 0 };
+	}
+
+	static private short[] read( final CellFileReader reader, final int i ) throws IOException
+	{
+		return ( short[] )reader.read( 0, gridPosition( i ), min( i ), cellDimensions, new short[ cells[ 0 ].length ] );
+	}
+
+	private void testReadTwice( final boolean compress ) throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, compress ).wrap( slow, cellFormat );
+
+		for ( int i = 0; i < numCells; ++i )
+			Assert.assertArrayEquals( cells[ i ], read( cached, i ) );
+		Assert.assertEquals( numCells, slow.numReads.get() );
+
+		/* cells are written before the first read returns */
+		for ( int i = 0; i < numCells; ++i )
+			Assert.assertArrayEquals( cells[ i ], read( cached, i ) );
+		Assert.assertEquals( numCells, slow.numReads.get() );
+	}
+
+	@Test
+	public void testRaw() throws IOException
+	{
+		testReadTwice( false );
+	}
+
+	@Test
+	public void testLz4() throws IOException
+	{
+		testReadTwice( true );
+	}
+
+	@Test
+	public void testPersistence() throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true ).wrap( slow, cellFormat );
+		for ( int i = 0; i < numCells; ++i )
+			read( cached, i );
+
+		/* a new session finds the cells of the last one */
+		final SlowReader slow2 = new SlowReader();
+		final CellFileReader cached2 = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true ).wrap( slow2, cellFormat );
+		for ( int i = 0; i < numCells; ++i )
+			Assert.assertArrayEquals( cells[ i ], read( cached2, i ) );
+		Assert.assertEquals( 0, slow2.numReads.get() );
+	}
+
+	@Test
+	public void testMissingCell() throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true ).wrap( slow, cellFormat );
+		final long[] gridPosition = new long[] { 100, 0, 0 };
+		final long[] min = new long[] { 1600, 0, 0 };
+		Assert.assertNull( cached.read( 0, gridPosition, min, cellDimensions, new short[ cells[ 0 ].length ] ) );
+		Assert.assertNull( cached.read( 0, gridPosition, min, cellDimensions, new short[ cells[ 0 ].length ] ) );
+		Assert.assertEquals( 1, slow.numReads.get() );
+	}
+
+	@Test
+	public void testMissingCellExpiry() throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true, 0 ).wrap( slow, cellFormat );
+		final long[] gridPosition = new long[] { 100, 0, 0 };
+		final long[] min = new long[] { 1600, 0, 0 };
+		Assert.assertNull( cached.read( 0, gridPosition, min, cellDimensions, new short[ cells[ 0 ].length ] ) );
+		Assert.assertNull( cached.read( 0, gridPosition, min, cellDimensions, new short[ cells[ 0 ].length ] ) );
+		Assert.assertEquals( 2, slow.numReads.get() );
+	}
+
+	static private void writeCell( final int i, final short[] data, final long lastModified ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( data.length * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+		CellFileRawReader.put( data, 0, data.length, buffer );
+		final File file = new File( new SlowReader().getCellPath( 0, gridPosition( i ), min( i ) ) );
+		Files.write( file.toPath(), buffer.array() );
+		file.setLastModified( lastModified );
+	}
+
+	@Test
+	public void testChangedSource() throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true ).wrap( slow, cellFormat );
+		final int i = 50;
+		final long t = System.currentTimeMillis() / 1000 * 1000 - 3600000;
+		final short[] original = cells[ 0 ].clone();
+		final short[] rewritten = cells[ 1 ].clone();
+		try
+		{
+			/* a cell that is missing until it is written */
+			Assert.assertNull( cached.read( 0, gridPosition( i ), min( i ), cellDimensions, new short[ original.length ] ) );
+			writeCell( i, original, t );
+			Assert.assertArrayEquals( original, read( cached, i ) );
+			Assert.assertArrayEquals( original, read( cached, i ) );
+			Assert.assertEquals( 2, slow.numReads.get() );
+
+			/* a cell rewritten in place, e.g. by a new export */
+			writeCell( i, rewritten, t + 1000 );
+			Assert.assertArrayEquals( rewritten, read( cached, i ) );
+			Assert.assertArrayEquals( rewritten, read( cached, i ) );
+			Assert.assertEquals( 3, slow.numReads.get() );
+		}
+		finally
+		{
+			new File( slow.getCellPath( 0, gridPosition( i ), min( i ) ) ).delete();
+		}
+	}
+
+	@Test
+	public void testFailedRead() throws IOException
+	{
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, true ).wrap( slow, cellFormat );
+		slow.numFailures.set( 1 );
+		try
+		{
+			read( cached, 0 );
+			Assert.fail( "failed read returned" );
+		}
+		catch ( final IOException e ) {}
+
+		/* the failure is not remembered as a missing cell */
+		Assert.assertArrayEquals( cells[ 0 ], read( cached, 0 ) );
+		Assert.assertArrayEquals( cells[ 0 ], read( cached, 0 ) );
+		Assert.assertEquals( 2, slow.numReads.get() );
+	}
+
+	@Test
+	public void testIndex() throws IOException, InterruptedException
+	{
+		final CellFileDiskCache diskCache = new CellFileDiskCache( new File( testDirPath + "cache" ), 1L << 30, false );
+		final CellFileReader cached = diskCache.wrap( new SlowReader(), cellFormat );
+		for ( int i = 0; i < numCells; ++i )
+			read( cached, i );
+
+		/* cell i was last used i seconds after cell 0 */
+		final long t = System.currentTimeMillis() - 3600000;
+		try ( final Stream< Path > paths = Files.walk( new File( testDirPath + "cache" ).toPath() ) )
+		{
+			paths.filter( p -> p.toString().endsWith( ".cell" ) ).forEach( p -> {
+				final int i = Integer.parseInt( p.getFileName().toString().split( "\\." )[ 0 ] );
+				p.toFile().setLastModified( t + i * 1000 );
+			} );
+		}
+
+		/* a new session with room for three cells uses cell 7 and indexes the others */
+		final long cellBytes = cells[ 0 ].length * 2 + 32;
+		final CellFileDiskCache diskCache2 = new CellFileDiskCache( new File( testDirPath + "cache" ), 3 * cellBytes + cellBytes / 2, false );
+		final SlowReader slow2 = new SlowReader();
+		final CellFileReader cached2 = diskCache2.wrap( slow2, cellFormat );
+		read( cached2, numCells - 1 );
+		diskCache2.awaitIndex();
+		Assert.assertEquals( 3, diskCache2.getNumFiles() );
+		Assert.assertTrue( diskCache2.getCurrentBytes() <= diskCache2.getMaxBytes() );
+
+		/* the cells used last survived */
+		for ( int i = numCells - 3; i < numCells; ++i )
+			Assert.assertArrayEquals( cells[ i ], read( cached2, i ) );
+		Assert.assertEquals( 0, slow2.numReads.get() );
+		read( cached2, 0 );
+		Assert.assertEquals( 1, slow2.numReads.get() );
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		/* room for about three uncompressed cells */
+		final long cellBytes = cells[ 0 ].length * 2 + 32;
+		final CellFileDiskCache diskCache = new CellFileDiskCache( new File( testDirPath + "cache" ), 3 * cellBytes + cellBytes / 2, false );
+		final SlowReader slow = new SlowReader();
+		final CellFileReader cached = diskCache.wrap( slow, cellFormat );
+
+		for ( int i = 0; i < numCells; ++i )
+			read( cached, i );
+		Assert.assertEquals( 3, diskCache.getNumFiles() );
+		Assert.assertTrue( diskCache.getCurrentBytes() <= diskCache.getMaxBytes() );
+
+		/* the most recently used cells are still cached, the oldest are not */
+		slow.numReads.set( 0 );
+		read( cached, numCells - 1 );
+		Assert.assertEquals( 0, slow.numReads.get() );
+		read( cached, 0 );
+		Assert.assertEquals( 1, slow.numReads.get() );
+	}
+}
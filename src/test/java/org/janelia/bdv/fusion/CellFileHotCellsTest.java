@@ -0,0 +1,161 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import bdv.cache.CacheHints;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Records cells with {@link CellFileHotCells} and saves and loads the
+ * hottest of them.
+ */
+public class CellFileHotCellsTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-hotcells-test/";
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileHotCells test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private long key( final int setup, final int level, final long index )
+	{
+		return ( ( long )setup << 48 ) | ( ( long )level << 40 ) | index;
+	}
+
+	static private long[] saveAndLoad( final CellFileHotCells hotCells, final String name ) throws IOException
+	{
+		final File file = new File( testDirPath + name + ".hotcells" );
+		hotCells.save( file );
+		return CellFileHotCells.load( file );
+	}
+
+	static private long[] sorted( final long[] keys )
+	{
+		final long[] sorted = keys.clone();
+		Arrays.sort( sorted );
+		return sorted;
+	}
+
+	@Test
+	public void testHottestSaved() throws IOException
+	{
+		final CellFileHotCells hotCells = new CellFileHotCells( 8 );
+
+		/* eight cells used over and over while many others are used once */
+		final long[] hot = new long[ 8 ];
+		for ( int i = 0; i < hot.length; ++i )
+			hot[ i ] = key( i % 2, i / 2, 10 + i );
+		for ( int i = 0; i < 2000; ++i )
+		{
+			hotCells.record( 0, 0, 1000 + i );
+			if ( i % 100 == 0 )
+				for ( final long key : hot )
+					hotCells.record( ( int )( key >>> 48 ), ( int )( key >>> 40 ) & 0xff, key & 0xffffffffffL );
+		}
+
+		final long[] keys = saveAndLoad( hotCells, "hottest" );
+		Assert.assertArrayEquals( sorted( hot ), sorted( keys ) );
+
+		/* coarse levels first */
+		for ( int i = 1; i < keys.length; ++i )
+			Assert.assertTrue( ( ( keys[ i - 1 ] >>> 40 ) & 0xff ) >= ( ( keys[ i ] >>> 40 ) & 0xff ) );
+	}
+
+	@Test
+	public void testCooling() throws IOException
+	{
+		final CellFileHotCells hotCells = new CellFileHotCells( 16 );
+
+		/* cells used a lot early in the session */
+		for ( int round = 0; round < 50; ++round )
+			for ( int i = 0; i < 16; ++i )
+				hotCells.record( 0, 0, i );
+
+		/* are replaced by cells used for longer later on */
+		final long[] later = new long[ 16 ];
+		for ( int round = 0; round < 200; ++round )
+			for ( int i = 0; i < 16; ++i )
+			{
+				later[ i ] = key( 1, 0, i );
+				hotCells.record( 1, 0, i );
+			}
+
+		Assert.assertArrayEquals( sorted( later ), sorted( saveAndLoad( hotCells, "cooling" ) ) );
+	}
+
+	@Test
+	public void testBounded()
+	{
+		final CellFileHotCells hotCells = new CellFileHotCells( 1024 );
+		for ( int i = 0; i < 100000; ++i )
+			hotCells.record( i % 3, i % 5, i );
+		Assert.assertTrue( hotCells.size() <= 2 * 1024 );
+		Assert.assertTrue( hotCells.size() > 0 );
+	}
+
+	@Test
+	public void testWrap() throws IOException
+	{
+		final CellFileHotCells hotCells = new CellFileHotCells();
+		final CellCache< VolatileShortArray > cellCache = hotCells.wrap( new CellCache< VolatileShortArray >()
+		{
+			@Override
+			public VolatileCell< VolatileShortArray > get( final long index )
+			{
+				return null;
+			}
+
+			@Override
+			public VolatileCell< VolatileShortArray > load( final long index, final int[] cellDims, final long[] cellMin )
+			{
+				return null;
+			}
+
+			@Override
+			public void setCacheHints( final CacheHints cacheHints ) {}
+		}, 2, 3 );
+
+		cellCache.get( 5 );
+		cellCache.load( 6, new int[] { 16, 16, 16 }, new long[] { 96, 0, 0 } );
+		Assert.assertEquals( 2, hotCells.size() );
+		Assert.assertArrayEquals( new long[] { key( 2, 3, 5 ), key( 2, 3, 6 ) }, saveAndLoad( hotCells, "wrap" ) );
+	}
+}
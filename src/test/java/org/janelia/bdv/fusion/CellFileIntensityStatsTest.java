@@ -0,0 +1,251 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Histograms, percentiles and sidecar files of
+ * {@link CellFileIntensityStats} of raw cell file exports.
+ */
+public class CellFileIntensityStatsTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-stats-test/";
+
+	/* 2 x 2 x 2 cells of 10 x 10 x 10 pixels */
+	final static private long[] dimensions = new long[] { 20, 20, 20 };
+
+	final static private int[] cellDimensions = new int[] { 10, 10, 10 };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileIntensityStats test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private String cellFormat( final String name )
+	{
+		return testDirPath + name + "/%1$d/%4$d/%3$d/%2$d.raw";
+	}
+
+	/**
+	 * Write a cell whose 1000 values are offset + 0..99, each ten times.
+	 */
+	static private void writeCell( final CellFileWriter writer, final long gx, final long gy, final long gz, final int offset ) throws IOException
+	{
+		final short[] data = new short[ 1000 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short )( offset + i % 100 );
+		writer.write( 0, new long[] { gx, gy, gz }, new long[] { gx * 10, gy * 10, gz * 10 }, cellDimensions, data );
+	}
+
+	/**
+	 * Write all cells, values 0..99 in cells with grid x 0 and 100..199 in
+	 * cells with grid x 1.
+	 */
+	static private CellFileRawReader writeCells( final String name ) throws IOException
+	{
+		final CellFileRawWriter writer = new CellFileRawWriter( cellFormat( name ), ByteOrder.BIG_ENDIAN, 0 );
+		for ( long gz = 0; gz < 2; ++gz )
+			for ( long gy = 0; gy < 2; ++gy )
+				for ( long gx = 0; gx < 2; ++gx )
+					writeCell( writer, gx, gy, gz, 100 * ( int )gx );
+		return new CellFileRawReader( cellFormat( name ), ByteOrder.BIG_ENDIAN, 0 );
+	}
+
+	static private CellFileIntensityStats build( final CellFileReader reader ) throws IOException, InterruptedException
+	{
+		return CellFileIntensityStats.build( reader, "GRAY16", 0, new double[] { 1, 1, 1 }, dimensions, cellDimensions, 4 );
+	}
+
+	@Test
+	public void testPercentile()
+	{
+		/* 100 in each bin of width 2 between 0 and 20 */
+		final double[] counts = new double[ 10 ];
+		Arrays.fill( counts, 100 );
+		final CellFileIntensityStats.Histogram histogram = new CellFileIntensityStats.Histogram( 0, 20, counts );
+		Assert.assertEquals( 2, histogram.getBinWidth(), 0 );
+		Assert.assertEquals( 1000, histogram.getTotal(), 0 );
+		Assert.assertEquals( 0, histogram.percentile( 0 ), 0 );
+		Assert.assertEquals( 1, histogram.percentile( 5 ), 1e-9 );
+		Assert.assertEquals( 10, histogram.percentile( 50 ), 1e-9 );
+		Assert.assertEquals( 19.8, histogram.percentile( 99 ), 1e-9 );
+		Assert.assertEquals( 20, histogram.percentile( 100 ), 1e-9 );
+
+		/* out of range percentages are clamped */
+		Assert.assertEquals( 20, histogram.percentile( 200 ), 1e-9 );
+
+		/* empty bins are skipped */
+		final double[] sparse = new double[ 10 ];
+		sparse[ 2 ] = 10;
+		sparse[ 7 ] = 30;
+		final CellFileIntensityStats.Histogram gaps = new CellFileIntensityStats.Histogram( 0, 10, sparse );
+		Assert.assertEquals( 2.5, gaps.percentile( 12.5 ), 1e-9 );
+		Assert.assertEquals( 7, gaps.percentile( 25 + 1e-12 ), 1e-6 );
+		Assert.assertEquals( 7.5, gaps.percentile( 62.5 ), 1e-9 );
+
+		Assert.assertTrue( Double.isNaN( new CellFileIntensityStats.Histogram( 0, 0, new double[ 10 ] ).percentile( 50 ) ) );
+	}
+
+	@Test
+	public void testHistogram() throws IOException, InterruptedException
+	{
+		final CellFileIntensityStats stats = build( writeCells( "histogram" ) );
+		Assert.assertEquals( 8, stats.getNumCells() );
+
+		/* integer values v cover [v, v + 1) */
+		final CellFileIntensityStats.Histogram histogram = stats.getHistogram();
+		Assert.assertEquals( 0, histogram.getMin(), 0 );
+		Assert.assertEquals( 200, histogram.getMax(), 0 );
+		Assert.assertEquals( 8000, histogram.getTotal(), 1e-6 );
+		Assert.assertEquals( 100, histogram.percentile( 50 ), 2 );
+		Assert.assertEquals( 50, histogram.percentile( 25 ), 2 );
+		Assert.assertEquals( 150, histogram.percentile( 75 ), 2 );
+
+		/* a region of the cells with grid x 0 */
+		final CellFileIntensityStats.Histogram left = stats.getHistogram( new long[] { 0, 0, 0 }, new long[] { 9, 19, 19 } );
+		Assert.assertEquals( 0, left.getMin(), 0 );
+		Assert.assertEquals( 100, left.getMax(), 0 );
+		Assert.assertEquals( 4000, left.getTotal(), 1e-6 );
+		Assert.assertEquals( 50, left.percentile( 50 ), 2 );
+
+		/* cells that are cut by the region are weighted by their volume inside it */
+		final CellFileIntensityStats.Histogram cut = stats.getHistogram( new long[] { 5, 0, 0 }, new long[] { 14, 9, 9 } );
+		Assert.assertEquals( 1000, cut.getTotal(), 1e-6 );
+		Assert.assertEquals( 100, cut.percentile( 50 ), 2 );
+
+		/* outside of all cells */
+		Assert.assertTrue( Double.isNaN( stats.getHistogram( new long[] { 30, 30, 30 }, new long[] { 40, 40, 40 } ).percentile( 50 ) ) );
+	}
+
+	@Test
+	public void testMissingCells() throws IOException, InterruptedException
+	{
+		final CellFileRawReader reader = writeCells( "missing" );
+		new File( reader.getCellPath( 0, new long[] { 1, 1, 1 }, new long[] { 10, 10, 10 } ) ).delete();
+		final CellFileIntensityStats stats = build( reader );
+		Assert.assertEquals( 7, stats.getNumCells() );
+		Assert.assertEquals( 7000, stats.getHistogram().getTotal(), 1e-6 );
+	}
+
+	@Test
+	public void testSidecar() throws IOException, InterruptedException
+	{
+		final CellFileRawReader reader = writeCells( "sidecar" );
+		final File json = new File( testDirPath + "sidecar.json" );
+		json.createNewFile();
+		json.setLastModified( System.currentTimeMillis() - 60000 );
+		final File sidecar = new File( testDirPath + "sidecar.json.0.stats" );
+
+		final AtomicInteger numReads = new AtomicInteger();
+		final CellFileReader countingReader = new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return reader.getCellPath( level, gridPosition, min );
+			}
+
+			@Override
+			public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+			{
+				numReads.incrementAndGet();
+				return reader.read( level, gridPosition, min, dimensions, storage );
+			}
+		};
+
+		final double[][] resolutions = new double[][] { { 1, 1, 1 } };
+		final long[][] levelDimensions = new long[][] { dimensions };
+		final int[][] levelCellDimensions = new int[][] { cellDimensions };
+
+		CellFileIntensityStats stats = CellFileIntensityStats.loadOrBuild( sidecar, json, countingReader, "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 8, numReads.get() );
+		Assert.assertTrue( sidecar.isFile() );
+		Assert.assertEquals( 200, stats.getHistogram().getMax(), 0 );
+
+		/* nothing changed, the sidecar is loaded */
+		stats = CellFileIntensityStats.loadOrBuild( sidecar, json, countingReader, "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 8, numReads.get() );
+		Assert.assertEquals( 200, stats.getHistogram().getMax(), 0 );
+
+		/* a rewritten cell invalidates the sidecar although the JSON file did not change */
+		writeCell( new CellFileRawWriter( cellFormat( "sidecar" ), ByteOrder.BIG_ENDIAN, 0 ), 1, 1, 1, 1000 );
+		new File( reader.getCellPath( 0, new long[] { 1, 1, 1 }, new long[] { 10, 10, 10 } ) ).setLastModified( System.currentTimeMillis() + 10000 );
+		stats = CellFileIntensityStats.loadOrBuild( sidecar, json, countingReader, "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 16, numReads.get() );
+		Assert.assertEquals( 1100, stats.getHistogram().getMax(), 0 );
+
+		/* so does a removed cell */
+		new File( reader.getCellPath( 0, new long[] { 1, 1, 1 }, new long[] { 10, 10, 10 } ) ).delete();
+		stats = CellFileIntensityStats.loadOrBuild( sidecar, json, countingReader, "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 24, numReads.get() );
+		Assert.assertEquals( 7, stats.getNumCells() );
+	}
+
+	@Test
+	public void testShardedSidecar() throws IOException, InterruptedException
+	{
+		/* all cells in one shard */
+		final CellFileRawReader raw = writeCells( "sharded-raw" );
+		final String shardFormat = testDirPath + "sharded/%1$d/%4$d/%3$d/%2$d.shard";
+		final long[][] levelDimensions = new long[][] { dimensions };
+		final int[][] levelCellDimensions = new int[][] { cellDimensions };
+		CellFileShardConverter.convert( raw, "GRAY16", levelDimensions, levelCellDimensions, shardFormat, 2, 2 );
+		final CellFileShardReader reader = new CellFileShardReader( shardFormat, 2, levelCellDimensions );
+		final File shard = new File( reader.getShardPath( 0, new long[ 3 ] ) );
+		Assert.assertEquals( shard, CellFileShardReader.getFile( reader.getCellPath( 0, new long[] { 1, 1, 1 }, new long[] { 10, 10, 10 } ) ) );
+
+		final File json = new File( testDirPath + "sharded.json" );
+		json.createNewFile();
+		json.setLastModified( System.currentTimeMillis() - 60000 );
+		final File sidecar = new File( testDirPath + "sharded.json.0.stats" );
+		final double[][] resolutions = new double[][] { { 1, 1, 1 } };
+
+		final long fingerprint = CellFileIntensityStats.fingerprint( reader, 0, dimensions, cellDimensions );
+		CellFileIntensityStats stats = CellFileIntensityStats.loadOrBuild( sidecar, json, reader, "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 200, stats.getHistogram().getMax(), 0 );
+
+		/* a rewritten shard invalidates the sidecar */
+		writeCell( new CellFileRawWriter( cellFormat( "sharded-raw" ), ByteOrder.BIG_ENDIAN, 0 ), 1, 1, 1, 1000 );
+		CellFileShardConverter.convert( raw, "GRAY16", levelDimensions, levelCellDimensions, shardFormat, 2, 2 );
+		shard.setLastModified( System.currentTimeMillis() + 10000 );
+		Assert.assertTrue( CellFileIntensityStats.fingerprint( reader, 0, dimensions, cellDimensions ) != fingerprint );
+		stats = CellFileIntensityStats.loadOrBuild( sidecar, json, new CellFileShardReader( shardFormat, 2, levelCellDimensions ), "GRAY16", resolutions, levelDimensions, levelCellDimensions, 4 );
+		Assert.assertEquals( 1100, stats.getHistogram().getMax(), 0 );
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reads hand written N5 blocks with {@link CellFileN5Reader}.
+ */
+public class CellFileN5ReaderTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-n5-test/";
+
+	final static private String cellFormat = testDirPath + "s%1$d/%2$d/%3$d/%4$d";
+
+	final static private Random rnd = new Random();
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileN5Reader test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private void writeBlock( final String path, final int[] blockDimensions, final byte[] compressed ) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( 4 + 4 * blockDimensions.length );
+		header.putShort( ( short )0 );
+		header.putShort( ( short )blockDimensions.length );
+		for ( final int n : blockDimensions )
+			header.putInt( n );
+
+		final File file = new File( path );
+		file.getParentFile().mkdirs();
+		try ( final OutputStream out = Files.newOutputStream( file.toPath() ) )
+		{
+			out.write( header.array() );
+			out.write( compressed );
+		}
+	}
+
+	static private short[] createData( final int n )
+	{
+		final short[] data = new short[ n ];
+		for ( int i = 0; i < n; ++i )
+			data[ i ] = ( short )rnd.nextInt( 0x10000 );
+		return data;
+	}
+
+	static private byte[] toBytes( final short[] data ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( data.length * 2 );
+		CellFileRawReader.put( data, 0, data.length, buffer );
+		return buffer.array();
+	}
+
+	@Test
+	public void testGzip() throws IOException
+	{
+		final int[] dimensions = new int[] { 5, 4, 3 };
+		final short[] data = createData( 60 );
+
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try ( final GZIPOutputStream out = new GZIPOutputStream( compressed ) )
+		{
+			out.write( toBytes( data ) );
+		}
+
+		final CellFileN5Reader reader = new CellFileN5Reader( cellFormat, "gzip" );
+		final long[] gridPosition = new long[] { 1, 0, 2 };
+		writeBlock( reader.getCellPath( 0, gridPosition, new long[ 3 ] ), dimensions, compressed.toByteArray() );
+
+		final Object cell = reader.read( 0, gridPosition, new long[ 3 ], dimensions, new short[ 60 ] );
+		Assert.assertArrayEquals( data, ( short[] )cell );
+	}
+
+	@Test
+	public void testRawBorder() throws IOException
+	{
+		/* block is larger than the requested cell, only the overlap is copied */
+		final int[] blockDimensions = new int[] { 4, 3, 2 };
+		final int[] dimensions = new int[] { 3, 3, 1 };
+		final short[] data = createData( 24 );
+
+		final CellFileN5Reader reader = new CellFileN5Reader( cellFormat, "raw" );
+		final long[] gridPosition = new long[] { 2, 0, 0 };
+		writeBlock( reader.getCellPath( 1, gridPosition, new long[ 3 ] ), blockDimensions, toBytes( data ) );
+
+		final short[] cell = ( short[] )reader.read( 1, gridPosition, new long[ 3 ], dimensions, new short[ 9 ] );
+		for ( int y = 0; y < 3; ++y )
+			for ( int x = 0; x < 3; ++x )
+				Assert.assertEquals( data[ y * 4 + x ], cell[ y * 3 + x ] );
+	}
+
+	@Test
+	public void testLz4() throws IOException
+	{
+		/* one LZ4 block with an overlapping match followed by the end block */
+		final byte[] block = new byte[] { 0x26, 'a', 'b', 2, 0, 0x50, 'c', 'd', 'e', 'f', 'g' };
+		final byte[] expected = "ababababababcdefg".getBytes( "US-ASCII" );
+
+		final ByteBuffer stream = ByteBuffer.allocate( 2 * 21 + block.length ).order( ByteOrder.LITTLE_ENDIAN );
+		stream.put( "LZ4Block".getBytes( "US-ASCII" ) ).put( ( byte )0x20 ).putInt( block.length ).putInt( expected.length ).putInt( 0 );
+		stream.put( block );
+		stream.put( "LZ4Block".getBytes( "US-ASCII" ) ).put( ( byte )0x10 ).putInt( 0 ).putInt( 0 ).putInt( 0 );
+
+		final CellFileN5Reader reader = new CellFileN5Reader( cellFormat, "lz4" );
+		final long[] gridPosition = new long[] { 0, 0, 0 };
+		final int[] dimensions = new int[] { expected.length, 1, 1 };
+		writeBlock( reader.getCellPath( 0, gridPosition, new long[ 3 ] ), dimensions, stream.array() );
+
+		final Object cell = reader.read( 0, gridPosition, new long[ 3 ], dimensions, new byte[ expected.length ] );
+		Assert.assertArrayEquals( expected, ( byte[] )cell );
+	}
+
+	@Test
+	public void testMissingBlock() throws IOException
+	{
+		final CellFileN5Reader reader = new CellFileN5Reader( cellFormat, "raw" );
+		Assert.assertNull( reader.read( 3, new long[] { 7, 7, 7 }, new long[ 3 ], new int[] { 2, 2, 2 }, new short[ 8 ] ) );
+	}
+
+	static private void writeAttributes( final String path, final String attributes ) throws IOException
+	{
+		final File file = new File( path, "attributes.json" );
+		file.getParentFile().mkdirs();
+		Files.write( file.toPath(), attributes.getBytes( "UTF-8" ) );
+	}
+
+	@Test
+	public void testMultiscaleMetaData() throws IOException
+	{
+		final String group = testDirPath + "multiscale";
+		writeAttributes( group + "/s0", "{\"dimensions\":[64,32,16],\"blockSize\":[16,16,16],\"dataType\":\"uint16\",\"compression\":{\"type\":\"gzip\"}}" );
+		writeAttributes( group + "/s1", "{\"dimensions\":[32,16,8],\"blockSize\":[16,16,8],\"dataType\":\"uint16\",\"compression\":{\"type\":\"gzip\"}}" );
+		final CellFileImageMetaData[] metaDatas = CellFileN5Reader.readMetaData( group );
+		Assert.assertEquals( 1, metaDatas.length );
+		Assert.assertEquals( "GRAY16", metaDatas[ 0 ].getImageType() );
+
+		/* a level that is compressed differently from s0 is rejected by name */
+		writeAttributes( group + "/s2", "{\"dimensions\":[16,8,4],\"blockSize\":[16,8,4],\"dataType\":\"uint16\",\"compression\":{\"type\":\"lz4\"}}" );
+		try
+		{
+			CellFileN5Reader.readMetaData( group );
+			Assert.fail( "a level with another compression was accepted" );
+		}
+		catch ( final IOException e )
+		{
+			Assert.assertTrue( e.getMessage(), e.getMessage().contains( "s2" ) );
+		}
+
+		/* and so is a level with another data type */
+		writeAttributes( group + "/s2", "{\"dimensions\":[16,8,4],\"blockSize\":[16,8,4],\"dataType\":\"uint8\",\"compression\":{\"type\":\"gzip\"}}" );
+		try
+		{
+			CellFileN5Reader.readMetaData( group );
+			Assert.fail( "a level with another data type was accepted" );
+		}
+		catch ( final IOException e )
+		{
+			Assert.assertTrue( e.getMessage(), e.getMessage().contains( "s2" ) );
+		}
+	}
+}
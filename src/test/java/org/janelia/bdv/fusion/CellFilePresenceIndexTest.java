@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Indices of the cells of a sparse export built by
+ * {@link CellFilePresenceIndex}, reused from their sidecar file and rebuilt
+ * when cells were added.
+ */
+public class CellFilePresenceIndexTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-presence-index-test/";
+
+	/* 2 x 2 x 2 cells of 4 x 4 x 4 pixels */
+	final static private long[][] dimensions = new long[][] { { 8, 8, 8 } };
+
+	final static private int[][] cellDimensions = new int[][] { { 4, 4, 4 } };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFilePresenceIndex test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private void setLastModified( final File file, final long time )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				setLastModified( child, time );
+		file.setLastModified( time );
+	}
+
+	static private void writeCell( final String cellFormat, final long... gridPosition ) throws IOException
+	{
+		final File file = new File( String.format( cellFormat, 0, gridPosition[ 0 ], gridPosition[ 1 ], gridPosition[ 2 ] ) );
+		file.getParentFile().mkdirs();
+		Files.write( file.toPath(), new byte[ 64 * 2 ] );
+	}
+
+	@Test
+	public void testContains() throws IOException, InterruptedException
+	{
+		final String cellFormat = testDirPath + "contains/%1$d/%4$d/%3$d/%2$d.raw";
+		writeCell( cellFormat, 0, 0, 0 );
+		writeCell( cellFormat, 1, 0, 1 );
+
+		final CellFilePresenceIndex index = CellFilePresenceIndex.build( new CellFileRawReader( cellFormat, ByteOrder.BIG_ENDIAN, 0 ), dimensions, cellDimensions, 2 );
+		Assert.assertTrue( index.matches( dimensions, cellDimensions ) );
+		Assert.assertFalse( index.matches( dimensions, new int[][] { { 2, 2, 2 } } ) );
+		Assert.assertEquals( 2, index.numCells( 0 ) );
+		for ( long z = 0; z < 2; ++z )
+			for ( long y = 0; y < 2; ++y )
+				for ( long x = 0; x < 2; ++x )
+					Assert.assertEquals(
+							x == 0 && y == 0 && z == 0 || x == 1 && y == 0 && z == 1,
+							index.contains( 0, new long[] { x, y, z } ) );
+
+		/* levels that were not indexed may contain anything */
+		Assert.assertTrue( index.contains( 1, new long[ 3 ] ) );
+	}
+
+	@Test
+	public void testSidecar() throws IOException, InterruptedException
+	{
+		final String cellFormat = testDirPath + "sidecar/%1$d/%4$d/%3$d/%2$d.raw";
+		final CellFileRawReader reader = new CellFileRawReader( cellFormat, ByteOrder.BIG_ENDIAN, 0 );
+		writeCell( cellFormat, 0, 0, 0 );
+		writeCell( cellFormat, 1, 1, 1 );
+
+		final File reference = new File( testDirPath + "sidecar.json" );
+		reference.createNewFile();
+		final File sidecar = new File( testDirPath + "sidecar.json.0.cellindex" );
+		Assert.assertEquals( 2, CellFilePresenceIndex.loadOrBuild( sidecar, reference, reader, dimensions, cellDimensions, 2 ).numCells( 0 ) );
+		Assert.assertTrue( sidecar.isFile() );
+
+		/* a sidecar that is newer than the export is loaded, not rewritten */
+		final long time = System.currentTimeMillis() / 1000 * 1000 - 60000;
+		setLastModified( new File( testDirPath + "sidecar" ), time - 60000 );
+		reference.setLastModified( time - 60000 );
+		sidecar.setLastModified( time );
+		Assert.assertEquals( 2, CellFilePresenceIndex.loadOrBuild( sidecar, reference, reader, dimensions, cellDimensions, 2 ).numCells( 0 ) );
+		Assert.assertEquals( time, sidecar.lastModified() );
+
+		/* a cell added to a directory makes it stale */
+		writeCell( cellFormat, 1, 0, 0 );
+		final CellFilePresenceIndex index = CellFilePresenceIndex.loadOrBuild( sidecar, reference, reader, dimensions, cellDimensions, 2 );
+		Assert.assertEquals( 3, index.numCells( 0 ) );
+		Assert.assertTrue( index.contains( 0, new long[] { 1, 0, 0 } ) );
+		Assert.assertTrue( sidecar.lastModified() != time );
+		Assert.assertEquals( 3, CellFilePresenceIndex.load( sidecar ).numCells( 0 ) );
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Proposes downsampling factors and builds averaged and mode downsampled
+ * levels of raw cell file exports with {@link CellFilePyramidBuilder},
+ * also over the cells of an earlier build.
+ */
+public class CellFilePyramidBuilderTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-pyramid-test/";
+
+	/* 2 x 2 x 2 cells of 4 x 4 x 4 pixels */
+	final static private long[] imageDimensions = new long[] { 8, 8, 8 };
+
+	final static private int[] cellDimensions = new int[] { 4, 4, 4 };
+
+	final static private int[][] factors = new int[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 4, 4, 4 } };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFilePyramidBuilder test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private String cellFormat( final String name )
+	{
+		return testDirPath + name + "/%1$d/%4$d/%3$d/%2$d.raw";
+	}
+
+	/**
+	 * Write the level 0 cells of an image whose pixel value at x, y, z is
+	 * <code>value( x, y, z )</code>.
+	 */
+	static private void writeLevel0( final CellFileWriter writer, final String imageType, final PixelValue value ) throws IOException
+	{
+		for ( long gz = 0; gz < 2; ++gz )
+			for ( long gy = 0; gy < 2; ++gy )
+				for ( long gx = 0; gx < 2; ++gx )
+				{
+					final long[] gridPosition = new long[] { gx, gy, gz };
+					final long[] min = new long[] { gx * 4, gy * 4, gz * 4 };
+					final Object data = CellFileImageLoaderFactory.createStorageArray( imageType, 64 );
+					int i = 0;
+					for ( int z = 0; z < 4; ++z )
+						for ( int y = 0; y < 4; ++y )
+							for ( int x = 0; x < 4; ++x, ++i )
+							{
+								final int v = value.get( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+								if ( data instanceof byte[] )
+									( ( byte[] )data )[ i ] = ( byte )v;
+								else
+									( ( short[] )data )[ i ] = ( short )v;
+							}
+					writer.write( 0, gridPosition, min, cellDimensions, data );
+				}
+	}
+
+	static private interface PixelValue
+	{
+		public int get( long x, long y, long z );
+	}
+
+	static private short[] readShorts( final CellFileReader reader, final int level, final long[] gridPosition, final int[] dimensions ) throws IOException
+	{
+		final long[] min = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			min[ d ] = gridPosition[ d ] * cellDimensions[ d ];
+		return ( short[] )reader.read( level, gridPosition, min, dimensions, new short[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ] );
+	}
+
+	@Test
+	public void testProposeDownsampleFactors()
+	{
+		/* isotropic, until 1000 / 16 fits into a cell of 100 */
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 4, 4, 4 }, { 8, 8, 8 }, { 16, 16, 16 } },
+				CellFilePyramidBuilder.proposeDownsampleFactors( new long[] { 1000, 1000, 1000 }, new int[] { 100, 100, 100 }, new double[] { 1, 1, 1 }, 16 ) );
+
+		/* anisotropic, z is halved once x and y caught up */
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 1 }, { 8, 8, 2 }, { 16, 16, 4 } },
+				CellFilePyramidBuilder.proposeDownsampleFactors( new long[] { 1000, 1000, 250 }, new int[] { 100, 100, 100 }, new double[] { 1, 1, 4 }, 16 ) );
+
+		/* a single section is never halved in z */
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 1 }, { 8, 8, 1 }, { 16, 16, 1 } },
+				CellFilePyramidBuilder.proposeDownsampleFactors( new long[] { 1000, 1000, 1 }, new int[] { 100, 100, 100 }, new double[] { 1, 1, 1 }, 16 ) );
+
+		/* at most maxNumLevels */
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 4, 4, 4 } },
+				CellFilePyramidBuilder.proposeDownsampleFactors( new long[] { 1000, 1000, 1000 }, new int[] { 100, 100, 100 }, new double[] { 1, 1, 1 }, 3 ) );
+
+		/* an image that fits into one cell has level 0 only */
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 1 } },
+				CellFilePyramidBuilder.proposeDownsampleFactors( new long[] { 64, 64, 64 }, new int[] { 64, 64, 64 }, new double[] { 1, 1, 1 }, 16 ) );
+	}
+
+	@Test
+	public void testAverage() throws IOException, InterruptedException
+	{
+		final CellFileRawReader reader = new CellFileRawReader( cellFormat( "average" ), ByteOrder.BIG_ENDIAN, 0 );
+		final CellFileRawWriter writer = new CellFileRawWriter( cellFormat( "average" ), ByteOrder.BIG_ENDIAN, 0 );
+		final PixelValue value = ( x, y, z ) -> ( int )( 1000 * z + 100 * y + 10 * x );
+		writeLevel0( writer, "GRAY16", value );
+
+		CellFilePyramidBuilder.build( reader, writer, "GRAY16", imageDimensions, cellDimensions, factors, CellFilePyramidBuilder.Downsampling.AVERAGE, 2 );
+
+		/* level 1 is one cell of 4 x 4 x 4, the mean of 2 x 2 x 2 blocks */
+		final short[] level1 = readShorts( reader, 1, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 } );
+		int i = 0;
+		for ( int z = 0; z < 4; ++z )
+			for ( int y = 0; y < 4; ++y )
+				for ( int x = 0; x < 4; ++x, ++i )
+					Assert.assertEquals( 1000 * ( 2 * z + 0.5 ) + 100 * ( 2 * y + 0.5 ) + 10 * ( 2 * x + 0.5 ), level1[ i ] & 0xffff, 0.5 );
+
+		/* level 2 from level 1, 2 x 2 x 2 pixels */
+		final short[] level2 = readShorts( reader, 2, new long[] { 0, 0, 0 }, new int[] { 2, 2, 2 } );
+		Assert.assertEquals( 1000 * 1.5 + 100 * 1.5 + 10 * 1.5, level2[ 0 ] & 0xffff, 1 );
+		Assert.assertEquals( 1000 * 5.5 + 100 * 5.5 + 10 * 5.5, level2[ 7 ] & 0xffff, 1 );
+	}
+
+	@Test
+	public void testMode() throws IOException, InterruptedException
+	{
+		final CellFileRawReader reader = new CellFileRawReader( cellFormat( "mode" ), ByteOrder.BIG_ENDIAN, 0 );
+		final CellFileRawWriter writer = new CellFileRawWriter( cellFormat( "mode" ), ByteOrder.BIG_ENDIAN, 0 );
+
+		/* label 200 in 5 of 8 pixels of every block, 7 and 9 in the others, 7 and 9 tie at x = 0 */
+		final PixelValue value = ( x, y, z ) -> {
+			final long k = ( z % 2 ) * 4 + ( y % 2 ) * 2 + x % 2;
+			if ( x < 2 )
+				return k < 4 ? 9 : 7;
+			return k < 5 ? 200 : 7;
+		};
+		writeLevel0( writer, "GRAY8", value );
+
+		CellFilePyramidBuilder.build( reader, writer, "GRAY8", imageDimensions, cellDimensions, factors, CellFilePyramidBuilder.Downsampling.MODE, 2 );
+
+		final byte[] level1 = ( byte[] )reader.read( 1, new long[] { 0, 0, 0 }, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 }, new byte[ 64 ] );
+		int i = 0;
+		for ( int z = 0; z < 4; ++z )
+			for ( int y = 0; y < 4; ++y )
+				for ( int x = 0; x < 4; ++x, ++i )
+					Assert.assertEquals( x == 0 ? 7 : 200, level1[ i ] & 0xff );
+	}
+
+	@Test
+	public void testModeAcrossCells() throws IOException
+	{
+		/* 10 x 8 x 7 pixels in cells of 3 x 3 x 3, blocks of 2 x 2 x 2 straddle cells and the border */
+		final long[] dimensions = new long[] { 10, 8, 7 };
+		final int[] cellSize = new int[] { 3, 3, 3 };
+		final PixelValue value = ( x, y, z ) -> ( int )( ( x * 7 + y * 3 + z * 5 ) % 3 + ( x / 4 ) * 10 );
+		final CellFileReader reader = new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return level + "/" + gridPosition[ 0 ] + "/" + gridPosition[ 1 ] + "/" + gridPosition[ 2 ];
+			}
+
+			@Override
+			public Object read( final int level, final long[] gridPosition, final long[] min, final int[] cellDimensions, final Object storage )
+			{
+				/* one missing cell */
+				if ( gridPosition[ 0 ] == 1 && gridPosition[ 1 ] == 1 && gridPosition[ 2 ] == 1 )
+					return null;
+				int i = 0;
+				for ( int z = 0; z < cellDimensions[ 2 ]; ++z )
+					for ( int y = 0; y < cellDimensions[ 1 ]; ++y )
+						for ( int x = 0; x < cellDimensions[ 0 ]; ++x, ++i )
+							( ( byte[] )storage )[ i ] = ( byte )value.get( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+				return storage;
+			}
+		};
+
+		final int[] size = new int[] { 5, 4, 4 };
+		final byte[] block = ( byte[] )CellFilePyramidBuilder.downsample( reader, "GRAY8", 0, dimensions, cellSize, new int[] { 2, 2, 2 }, CellFilePyramidBuilder.Downsampling.MODE, new long[ 3 ], size );
+		int i = 0;
+		for ( int z = 0; z < size[ 2 ]; ++z )
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+				{
+					/* voxels outside of the image or in the missing cell count as 0, ties go to the smaller value */
+					final int[] counts = new int[ 256 ];
+					for ( long sz = 2 * z; sz < 2 * z + 2; ++sz )
+						for ( long sy = 2 * y; sy < 2 * y + 2; ++sy )
+							for ( long sx = 2 * x; sx < 2 * x + 2; ++sx )
+							{
+								final boolean inside = sx < dimensions[ 0 ] && sy < dimensions[ 1 ] && sz < dimensions[ 2 ];
+								final boolean missing = sx / 3 == 1 && sy / 3 == 1 && sz / 3 == 1;
+								++counts[ inside && !missing ? value.get( sx, sy, sz ) : 0 ];
+							}
+					int mode = 0;
+					for ( int v = 1; v < 256; ++v )
+						if ( counts[ v ] > counts[ mode ] )
+							mode = v;
+					Assert.assertEquals( mode, block[ i ] & 0xff );
+				}
+	}
+
+	@Test
+	public void testRebuild() throws IOException, InterruptedException
+	{
+		final CellFileRawReader reader = new CellFileRawReader( cellFormat( "rebuild" ), ByteOrder.BIG_ENDIAN, 0 );
+		final CellFileRawWriter writer = new CellFileRawWriter( cellFormat( "rebuild" ), ByteOrder.BIG_ENDIAN, 0 );
+
+		/* 16 x 8 x 8 pixels, level 1 is two cells */
+		final long[] dimensions = new long[] { 16, 8, 8 };
+		final int[][] factors = new int[][] { { 1, 1, 1 }, { 2, 2, 2 } };
+		for ( long gx = 2; gx < 4; ++gx )
+			for ( long gz = 0; gz < 2; ++gz )
+				for ( long gy = 0; gy < 2; ++gy )
+					writer.write( 0, new long[] { gx, gy, gz }, new long[] { gx * 4, gy * 4, gz * 4 }, cellDimensions, new short[ 64 ] );
+		writeLevel0( writer, "GRAY16", ( x, y, z ) -> 100 );
+		CellFilePyramidBuilder.build( reader, writer, "GRAY16", dimensions, cellDimensions, factors, CellFilePyramidBuilder.Downsampling.AVERAGE, 2 );
+		Assert.assertEquals( 100, readShorts( reader, 1, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 } )[ 0 ] );
+		Assert.assertNotNull( readShorts( reader, 1, new long[] { 1, 0, 0 }, new int[] { 4, 4, 4 } ) );
+
+		/* new values overwrite the earlier cell */
+		writeLevel0( writer, "GRAY16", ( x, y, z ) -> 300 );
+		CellFilePyramidBuilder.build( reader, writer, "GRAY16", dimensions, cellDimensions, factors, CellFilePyramidBuilder.Downsampling.AVERAGE, 2 );
+		Assert.assertEquals( 300, readShorts( reader, 1, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 } )[ 0 ] );
+
+		/* the source cells of the second level 1 cell are gone, so is the cell */
+		for ( long gx = 2; gx < 4; ++gx )
+			for ( long gz = 0; gz < 2; ++gz )
+				for ( long gy = 0; gy < 2; ++gy )
+					writer.delete( 0, new long[] { gx, gy, gz }, new long[] { gx * 4, gy * 4, gz * 4 } );
+		CellFilePyramidBuilder.build( reader, writer, "GRAY16", dimensions, cellDimensions, factors, CellFilePyramidBuilder.Downsampling.AVERAGE, 2 );
+		Assert.assertEquals( 300, readShorts( reader, 1, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 } )[ 0 ] );
+		Assert.assertNull( readShorts( reader, 1, new long[] { 1, 0, 0 }, new int[] { 4, 4, 4 } ) );
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reads raw cell files of both byte orders, with and without header, and
+ * truncated or missing cells with {@link CellFileRawReader}.
+ */
+public class CellFileRawReaderTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-raw-test/";
+
+	final static private int[] cellDimensions = new int[] { 16, 8, 4 };
+
+	final static private long[] gridPosition = new long[] { 1, 2, 3 };
+
+	final static private long[] min = new long[] { 16, 16, 12 };
+
+	final static private Random rnd = new Random( 0 );
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileRawReader test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private int numEntities()
+	{
+		return cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ];
+	}
+
+	/**
+	 * Write a cell file with a header of random bytes.
+	 *
+	 * @param truncate number of bytes missing at the end
+	 * @return the reader for the cell
+	 */
+	static private CellFileRawReader write( final String name, final Object cell, final ByteOrder order, final int headerLength, final int truncate ) throws IOException
+	{
+		final String cellFormat = testDirPath + name + "/%1$d/%4$d/%3$d/%2$d.raw";
+		final CellFileRawReader reader = new CellFileRawReader( cellFormat, order, headerLength );
+
+		final int numBytes = numEntities() * CellFileRawReader.bytesPerElement( cell );
+		final ByteBuffer buffer = ByteBuffer.allocate( headerLength + numBytes ).order( order );
+		for ( int i = 0; i < headerLength; ++i )
+			buffer.put( ( byte )rnd.nextInt() );
+		CellFileRawReader.put( cell, 0, numEntities(), buffer );
+
+		final File file = new File( reader.getCellPath( 0, gridPosition, min ) );
+		file.getParentFile().mkdirs();
+		final byte[] bytes = new byte[ headerLength + numBytes - truncate ];
+		System.arraycopy( buffer.array(), 0, bytes, 0, bytes.length );
+		Files.write( file.toPath(), bytes );
+
+		return reader;
+	}
+
+	@Test
+	public void testByteOrder() throws IOException
+	{
+		final short[] cell = new short[ numEntities() ];
+		for ( int i = 0; i < cell.length; ++i )
+			cell[ i ] = ( short )rnd.nextInt( 0x10000 );
+
+		for ( final ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN } )
+		{
+			final CellFileRawReader reader = write( "order-" + order, cell, order, 0, 0 );
+			Assert.assertArrayEquals( cell, ( short[] )reader.read( 0, gridPosition, min, cellDimensions, new short[ numEntities() ] ) );
+		}
+	}
+
+	@Test
+	public void testHeader() throws IOException
+	{
+		final float[] cell = new float[ numEntities() ];
+		for ( int i = 0; i < cell.length; ++i )
+			cell[ i ] = rnd.nextFloat();
+
+		for ( final int headerLength : new int[] { 3, 4, 1024 } )
+		{
+			final CellFileRawReader reader = write( "header-" + headerLength, cell, ByteOrder.BIG_ENDIAN, headerLength, 0 );
+			Assert.assertArrayEquals( cell, ( float[] )reader.read( 0, gridPosition, min, cellDimensions, new float[ numEntities() ] ), 0 );
+		}
+	}
+
+	@Test
+	public void testTruncated() throws IOException
+	{
+		final byte[] cell = new byte[ numEntities() ];
+		rnd.nextBytes( cell );
+		final CellFileRawReader reader = write( "truncated", cell, ByteOrder.BIG_ENDIAN, 4, 1 );
+		try
+		{
+			reader.read( 0, gridPosition, min, cellDimensions, new byte[ numEntities() ] );
+			Assert.fail( "truncated cell was read" );
+		}
+		catch ( final EOFException e ) {}
+	}
+
+	@Test
+	public void testMissing() throws IOException
+	{
+		final CellFileRawReader reader = new CellFileRawReader( testDirPath + "missing/%1$d/%4$d/%3$d/%2$d.raw" );
+		Assert.assertNull( reader.read( 0, gridPosition, min, cellDimensions, new short[ numEntities() ] ) );
+	}
+}
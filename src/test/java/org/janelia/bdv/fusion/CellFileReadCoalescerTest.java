@@ -0,0 +1,148 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Concurrent reads of the same cell through readers wrapped by a
+ * {@link CellFileReadCoalescer}, coalesced only for readers of the same
+ * identity.
+ */
+public class CellFileReadCoalescerTest
+{
+	final static private int[] dimensions = new int[] { 4, 4, 2 };
+
+	final static private int numEntities = 32;
+
+	/**
+	 * Reads cells whose values are the value of the reader, after a gate
+	 * opens.
+	 */
+	final static private class GatedReader implements CellFileReader
+	{
+		final AtomicInteger numReads = new AtomicInteger();
+		final CountDownLatch gate;
+		final short value;
+
+		GatedReader( final CountDownLatch gate, final int value )
+		{
+			this.gate = gate;
+			this.value = ( short )value;
+		}
+
+		@Override
+		public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+		{
+			return "/export/" + level + "/" + gridPosition[ 0 ] + ".tif";
+		}
+
+		@Override
+		public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+		{
+			numReads.incrementAndGet();
+			try
+			{
+				gate.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new IOException( e );
+			}
+			final short[] data = ( short[] )storage;
+			for ( int i = 0; i < numEntities; ++i )
+				data[ i ] = value;
+			return data;
+		}
+	}
+
+	/**
+	 * Read cell 0 through each reader on a thread of its own and wait until
+	 * all threads block, in the first read or waiting for it.
+	 */
+	static private Thread[] readConcurrently( final CellFileReader[] readers, final short[][] results, final CountDownLatch gate ) throws InterruptedException
+	{
+		final Thread[] threads = new Thread[ readers.length ];
+		for ( int i = 0; i < readers.length; ++i )
+		{
+			final int r = i;
+			threads[ i ] = new Thread( () -> {
+				try
+				{
+					results[ r ] = ( short[] )readers[ r ].read( 0, new long[] { 0, 0, 0 }, new long[] { 0, 0, 0 }, dimensions, new short[ numEntities ] );
+				}
+				catch ( final IOException e ) {}
+			} );
+			threads[ i ].start();
+		}
+
+		final long deadline = System.currentTimeMillis() + 10000;
+		for ( final Thread thread : threads )
+			while ( thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline )
+				Thread.yield();
+		gate.countDown();
+		for ( final Thread thread : threads )
+			thread.join( 10000 );
+		return threads;
+	}
+
+	@Test
+	public void testConcurrentDuplicateReads() throws InterruptedException
+	{
+		final CountDownLatch gate = new CountDownLatch( 1 );
+		final GatedReader a = new GatedReader( gate, 7 );
+		final GatedReader b = new GatedReader( gate, 7 );
+		final CellFileReadCoalescer coalescer = new CellFileReadCoalescer();
+
+		/* eight channels of two readers that decode the export the same way */
+		final CellFileReader[] readers = new CellFileReader[ 8 ];
+		for ( int i = 0; i < readers.length; ++i )
+			readers[ i ] = coalescer.wrap( i % 2 == 0 ? a : b, "tiff|UnsignedShort" );
+
+		final short[][] results = new short[ readers.length ][];
+		readConcurrently( readers, results, gate );
+
+		Assert.assertEquals( 1, a.numReads.get() + b.numReads.get() );
+		Assert.assertEquals( 8, coalescer.getReads() );
+		Assert.assertEquals( 7, coalescer.getCoalescedReads() );
+		Assert.assertEquals( 0, coalescer.getReadsInFlight() );
+		for ( final short[] result : results )
+		{
+			Assert.assertNotNull( result );
+			for ( final short v : result )
+				Assert.assertEquals( 7, v );
+		}
+	}
+
+	@Test
+	public void testIdentity() throws InterruptedException
+	{
+		final CountDownLatch gate = new CountDownLatch( 1 );
+		final GatedReader a = new GatedReader( gate, 1 );
+		final GatedReader b = new GatedReader( gate, 2 );
+		final CellFileReadCoalescer coalescer = new CellFileReadCoalescer();
+
+		/* the same paths decoded differently, e.g. with another header length */
+		final CellFileReader[] readers = new CellFileReader[] {
+				coalescer.wrap( a ),
+				coalescer.wrap( b ),
+				coalescer.wrap( a ),
+				coalescer.wrap( b ) };
+
+		final short[][] results = new short[ readers.length ][];
+		readConcurrently( readers, results, gate );
+
+		Assert.assertEquals( 1, a.numReads.get() );
+		Assert.assertEquals( 1, b.numReads.get() );
+		Assert.assertEquals( 2, coalescer.getCoalescedReads() );
+		for ( int i = 0; i < results.length; ++i )
+			for ( final short v : results[ i ] )
+				Assert.assertEquals( i % 2 + 1, v );
+	}
+}
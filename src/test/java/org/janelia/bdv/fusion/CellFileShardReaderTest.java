@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Converts raw cell files into shards with {@link CellFileShardConverter}
+ * and reads them back with {@link CellFileShardReader}.
+ */
+public class CellFileShardReaderTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-shard-test/";
+
+	final static private long[][] dimensions = new long[][]{ { 50, 37, 21 }, { 25, 18, 10 } };
+
+	final static private int[][] cellDimensions = new int[][]{ { 8, 8, 4 }, { 8, 8, 4 } };
+
+	final static private int shardSize = 2;
+
+	final static private String cellFormat = testDirPath + "cells/%1$d/%4$d/%3$d/%2$d.raw";
+
+	final static private String shardFormat = testDirPath + "shards/%1$d/%4$d/%3$d/%2$d.shard";
+
+	final static private long[] missingCell = new long[]{ 1, 2, 3 };
+
+	final static private HashMap< String, short[] > cells = new HashMap<>();
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileShardReader test." );
+
+		final Random rnd = new Random( 0 );
+		final CellFileRawReader source = new CellFileRawReader( cellFormat, ByteOrder.LITTLE_ENDIAN, 0 );
+		final long[][] gridDimensions = CellFilePresenceIndex.createGridDimensions( dimensions, cellDimensions );
+		for ( int level = 0; level < dimensions.length; ++level )
+		{
+			final long[] g = gridDimensions[ level ];
+			for ( long z = 0; z < g[ 2 ]; ++z )
+				for ( long y = 0; y < g[ 1 ]; ++y )
+					for ( long x = 0; x < g[ 0 ]; ++x )
+					{
+						final long[] gridPosition = new long[]{ x, y, z };
+						if ( level == 0 && x == missingCell[ 0 ] && y == missingCell[ 1 ] && z == missingCell[ 2 ] )
+							continue;
+
+						final int[] cellSize = cellDimensions( level, gridPosition );
+						final short[] cell = new short[ cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ] ];
+						for ( int i = 0; i < cell.length; ++i )
+							cell[ i ] = ( short )rnd.nextInt( 0x10000 );
+
+						final File file = new File( source.getCellPath( level, gridPosition, min( level, gridPosition ) ) );
+						file.getParentFile().mkdirs();
+						final ByteBuffer buffer = ByteBuffer.allocate( cell.length * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+						CellFileRawReader.put( cell, 0, cell.length, buffer );
+						Files.write( file.toPath(), buffer.array() );
+
+						cells.put( level + " " + x + " " + y + " " + z, cell );
+					}
+		}
+
+		CellFileShardConverter.convert( source, "GRAY16", dimensions, cellDimensions, shardFormat, shardSize, 4 );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private long[] min( final int level, final long[] gridPosition )
+	{
+		final long[] min = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			min[ d ] = gridPosition[ d ] * cellDimensions[ level ][ d ];
+		return min;
+	}
+
+	static private int[] cellDimensions( final int level, final long[] gridPosition )
+	{
+		final int[] cellSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			cellSize[ d ] = ( int )Math.min( cellDimensions[ level ][ d ], dimensions[ level ][ d ] - gridPosition[ d ] * cellDimensions[ level ][ d ] );
+		return cellSize;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final CellFileShardReader reader = new CellFileShardReader( shardFormat, shardSize, cellDimensions, 3 );
+		final long[][] gridDimensions = CellFilePresenceIndex.createGridDimensions( dimensions, cellDimensions );
+		for ( int level = 0; level < dimensions.length; ++level )
+		{
+			final long[] g = gridDimensions[ level ];
+			for ( long z = 0; z < g[ 2 ]; ++z )
+				for ( long y = 0; y < g[ 1 ]; ++y )
+					for ( long x = 0; x < g[ 0 ]; ++x )
+					{
+						final long[] gridPosition = new long[]{ x, y, z };
+						final int[] cellSize = cellDimensions( level, gridPosition );
+						final short[] storage = new short[ cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ] ];
+						final Object data = reader.read( level, gridPosition, min( level, gridPosition ), cellSize, storage );
+
+						final short[] expected = cells.get( level + " " + x + " " + y + " " + z );
+						if ( expected == null )
+							Assert.assertNull( data );
+						else
+							Assert.assertArrayEquals( expected, ( short[] )data );
+					}
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testMissingShard() throws IOException
+	{
+		final CellFileShardReader reader = new CellFileShardReader( shardFormat, shardSize, cellDimensions );
+		final long[] gridPosition = new long[]{ 100, 100, 100 };
+		Assert.assertNull( reader.read( 0, gridPosition, min( 0, gridPosition ), cellDimensions[ 0 ], new short[ 256 ] ) );
+		reader.close();
+	}
+
+	static private List< long[] > levelZeroCells()
+	{
+		final ArrayList< long[] > positions = new ArrayList<>();
+		final long[] g = CellFilePresenceIndex.createGridDimensions( dimensions, cellDimensions )[ 0 ];
+		for ( long z = 0; z < g[ 2 ]; ++z )
+			for ( long y = 0; y < g[ 1 ]; ++y )
+				for ( long x = 0; x < g[ 0 ]; ++x )
+					positions.add( new long[]{ x, y, z } );
+		return positions;
+	}
+
+	static private void readAndCompare( final CellFileShardReader reader, final long[] gridPosition ) throws IOException
+	{
+		final int[] cellSize = cellDimensions( 0, gridPosition );
+		final short[] storage = new short[ cellSize[ 0 ] * cellSize[ 1 ] * cellSize[ 2 ] ];
+		final Object data = reader.read( 0, gridPosition, min( 0, gridPosition ), cellSize, storage );
+		final short[] expected = cells.get( "0 " + gridPosition[ 0 ] + " " + gridPosition[ 1 ] + " " + gridPosition[ 2 ] );
+		if ( expected == null )
+			Assert.assertNull( data );
+		else
+			Assert.assertArrayEquals( expected, ( short[] )data );
+	}
+
+	/**
+	 * Readers of different shards evict each other's shard all the time
+	 * while others are still reading from it.
+	 */
+	@Test
+	public void testConcurrentEviction() throws Exception
+	{
+		final CellFileShardReader reader = new CellFileShardReader( shardFormat, shardSize, cellDimensions, 1 );
+		final int numThreads = 8;
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final ArrayList< Future< Void > > futures = new ArrayList<>();
+			for ( int t = 0; t < numThreads; ++t )
+			{
+				final long seed = t;
+				futures.add( exec.submit( () -> {
+					final List< long[] > positions = levelZeroCells();
+					for ( int round = 0; round < 10; ++round )
+					{
+						Collections.shuffle( positions, new Random( seed * 10 + round ) );
+						for ( final long[] gridPosition : positions )
+							readAndCompare( reader, gridPosition );
+					}
+					return null;
+				} ) );
+			}
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		finally
+		{
+			exec.shutdownNow();
+			reader.close();
+		}
+	}
+
+	/**
+	 * Interrupting one reader closes the channel of its shard, the other
+	 * readers of that shard must reopen it instead of failing.
+	 */
+	@Test
+	public void testInterruptedReader() throws Exception
+	{
+		final CellFileShardReader reader = new CellFileShardReader( shardFormat, shardSize, cellDimensions, 4 );
+		final List< long[] > positions = levelZeroCells();
+		final AtomicBoolean done = new AtomicBoolean( false );
+
+		final Thread victim = new Thread( () -> {
+			while ( !done.get() )
+			{
+				for ( final long[] gridPosition : positions )
+				{
+					try
+					{
+						readAndCompare( reader, gridPosition );
+					}
+					catch ( final InterruptedIOException e )
+					{
+						Thread.interrupted();
+					}
+					catch ( final IOException e )
+					{
+						throw new RuntimeException( e );
+					}
+				}
+			}
+		} );
+		victim.start();
+
+		final ExecutorService exec = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final ArrayList< Future< Void > > futures = new ArrayList<>();
+			for ( int t = 0; t < 4; ++t )
+				futures.add( exec.submit( () -> {
+					for ( int round = 0; round < 20; ++round )
+						for ( final long[] gridPosition : positions )
+							readAndCompare( reader, gridPosition );
+					return null;
+				} ) );
+			for ( final Future< Void > future : futures )
+			{
+				while ( !future.isDone() )
+				{
+					victim.interrupt();
+					Thread.sleep( 1 );
+				}
+				future.get();
+			}
+		}
+		finally
+		{
+			done.set( true );
+			victim.join( TimeUnit.SECONDS.toMillis( 10 ) );
+			exec.shutdownNow();
+			reader.close();
+		}
+	}
+}
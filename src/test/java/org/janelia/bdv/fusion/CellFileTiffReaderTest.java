@@ -0,0 +1,456 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Compares {@link CellFileTiffReader} against TIFF files written by ImageJ
+ * and against hand-encoded LZW, Deflate and predictor fixtures.
+ */
+public class CellFileTiffReaderTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-test/";
+
+	final static private int[] fileDimensions = new int[]{ 20, 13, 3 };
+
+	final static private int[] cellDimensions = new int[]{ 16, 16, 4 };
+
+	final static private Random rnd = new Random();
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CellFileTiffReader test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		final File[] files = new File( testDirPath ).listFiles();
+		if ( files != null )
+			for ( final File file : files )
+				file.delete();
+		new File( testDirPath ).delete();
+	}
+
+	static private ImageStack createStack( final int bitDepth )
+	{
+		final ImageStack stack = ImageStack.create( fileDimensions[ 0 ], fileDimensions[ 1 ], fileDimensions[ 2 ], bitDepth );
+		for ( int z = 1; z <= stack.getSize(); ++z )
+			for ( int i = 0; i < fileDimensions[ 0 ] * fileDimensions[ 1 ]; ++i )
+				stack.getProcessor( z ).setf( i, rnd.nextInt( 255 ) );
+		return stack;
+	}
+
+	static private ImageStack saveAndLoad( final int bitDepth, final String name, final Object cell ) throws IOException
+	{
+		final ImageStack stack = createStack( bitDepth );
+		IJ.saveAsTiff( new ImagePlus( name, stack ), testDirPath + name );
+
+		Assert.assertTrue( CellFileTiffReader.decode( testDirPath + name, cell, cellDimensions ) );
+
+		return stack;
+	}
+
+	static private float expected( final ImageStack stack, final int x, final int y, final int z )
+	{
+		if ( x < fileDimensions[ 0 ] && y < fileDimensions[ 1 ] && z < fileDimensions[ 2 ] )
+			return stack.getProcessor( z + 1 ).getf( x, y );
+		else
+			return 0;
+	}
+
+	@Test
+	public void testGray8() throws IOException
+	{
+		final byte[] cell = new byte[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		final ImageStack stack = saveAndLoad( 8, "gray8.tif", cell );
+
+		for ( int z = 0, i = 0; z < cellDimensions[ 2 ]; ++z )
+			for ( int y = 0; y < cellDimensions[ 1 ]; ++y )
+				for ( int x = 0; x < cellDimensions[ 0 ]; ++x, ++i )
+					Assert.assertEquals( expected( stack, x, y, z ), cell[ i ] & 0xff, 0 );
+	}
+
+	@Test
+	public void testGray16() throws IOException
+	{
+		final short[] cell = new short[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		final ImageStack stack = saveAndLoad( 16, "gray16.tif", cell );
+
+		for ( int z = 0, i = 0; z < cellDimensions[ 2 ]; ++z )
+			for ( int y = 0; y < cellDimensions[ 1 ]; ++y )
+				for ( int x = 0; x < cellDimensions[ 0 ]; ++x, ++i )
+					Assert.assertEquals( expected( stack, x, y, z ), cell[ i ] & 0xffff, 0 );
+	}
+
+	@Test
+	public void testGray32() throws IOException
+	{
+		final float[] cell = new float[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		final ImageStack stack = saveAndLoad( 32, "gray32.tif", cell );
+
+		for ( int z = 0, i = 0; z < cellDimensions[ 2 ]; ++z )
+			for ( int y = 0; y < cellDimensions[ 1 ]; ++y )
+				for ( int x = 0; x < cellDimensions[ 0 ]; ++x, ++i )
+					Assert.assertEquals( expected( stack, x, y, z ), cell[ i ], 0 );
+	}
+
+	@Test
+	public void testTypeMismatch() throws IOException
+	{
+		final byte[] cell = new byte[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+		saveAndLoad( 16, "gray16.tif", new short[ cell.length ] );
+
+		Assert.assertFalse( CellFileTiffReader.decode( testDirPath + "gray16.tif", cell, cellDimensions ) );
+	}
+
+	final static private int NONE = 1, LZW = 5, DEFLATE = 8;
+
+	/**
+	 * Random values of a fixture, one int per sample, pages of
+	 * <code>fileDimensions[ 0 ] * fileDimensions[ 1 ]</code>.  They hardly
+	 * compress, such that LZW codes grow beyond 9 bits in long strips.
+	 */
+	static private int[][] createValues( final int bitsPerSample )
+	{
+		final int max = bitsPerSample == 8 ? 0x100 : 0x10000;
+		final int[][] values = new int[ fileDimensions[ 2 ] ][ fileDimensions[ 0 ] * fileDimensions[ 1 ] ];
+		for ( final int[] page : values )
+			for ( int i = 0; i < page.length; ++i )
+				page[ i ] = rnd.nextInt( max );
+		return values;
+	}
+
+	static private void putSample( final ByteBuffer buffer, final int bitsPerSample, final boolean isFloat, final int value )
+	{
+		if ( bitsPerSample == 8 )
+			buffer.put( ( byte )value );
+		else if ( bitsPerSample == 16 )
+			buffer.putShort( ( short )value );
+		else if ( isFloat )
+			buffer.putFloat( value );
+		else
+			buffer.putInt( value );
+	}
+
+	/**
+	 * Write a strip organized TIFF with the given encoding.
+	 *
+	 * @param tiled adds a TileWidth tag, which the reader must refuse
+	 */
+	static private void writeTiff(
+			final String name,
+			final ByteOrder order,
+			final int bitsPerSample,
+			final boolean isFloat,
+			final int compression,
+			final int predictor,
+			final int rowsPerStrip,
+			final boolean tiled,
+			final int[][] values ) throws IOException
+	{
+		final int width = fileDimensions[ 0 ];
+		final int height = fileDimensions[ 1 ];
+		final int bytesPerSample = bitsPerSample / 8;
+		final int numStrips = ( height + rowsPerStrip - 1 ) / rowsPerStrip;
+
+		final ByteBuffer file = ByteBuffer.allocate( 1 << 20 ).order( order );
+		file.put( order == ByteOrder.LITTLE_ENDIAN ? ( byte )'I' : ( byte )'M' );
+		file.put( order == ByteOrder.LITTLE_ENDIAN ? ( byte )'I' : ( byte )'M' );
+		file.putShort( ( short )42 );
+		final int firstIfdPointer = file.position();
+		file.putInt( 0 );
+
+		int ifdPointer = firstIfdPointer;
+		for ( final int[] page : values )
+		{
+			final long[] offsets = new long[ numStrips ];
+			final long[] byteCounts = new long[ numStrips ];
+			for ( int s = 0; s < numStrips; ++s )
+			{
+				final int y0 = s * rowsPerStrip;
+				final int rows = Math.min( rowsPerStrip, height - y0 );
+				final ByteBuffer strip = ByteBuffer.allocate( rows * width * bytesPerSample ).order( order );
+				for ( int y = y0; y < y0 + rows; ++y )
+					for ( int x = 0; x < width; ++x )
+					{
+						final int i = y * width + x;
+						final int value = predictor == 2 && x > 0 ? page[ i ] - page[ i - 1 ] : page[ i ];
+						putSample( strip, bitsPerSample, isFloat, value );
+					}
+
+				final byte[] encoded;
+				if ( compression == LZW )
+					encoded = encodeLzw( strip.array() );
+				else if ( compression == DEFLATE )
+					encoded = deflate( strip.array() );
+				else
+					encoded = strip.array();
+
+				offsets[ s ] = file.position();
+				byteCounts[ s ] = encoded.length;
+				file.put( encoded );
+			}
+
+			final int offsetsPointer = file.position();
+			for ( final long offset : offsets )
+				file.putInt( ( int )offset );
+			final int byteCountsPointer = file.position();
+			for ( final long byteCount : byteCounts )
+				file.putInt( ( int )byteCount );
+
+			final ArrayList< int[] > entries = new ArrayList<>();
+			entries.add( new int[] { 256, 3, 1, width } );
+			entries.add( new int[] { 257, 3, 1, height } );
+			entries.add( new int[] { 258, 3, 1, bitsPerSample } );
+			entries.add( new int[] { 259, 3, 1, compression } );
+			entries.add( new int[] { 262, 3, 1, 1 } );
+			entries.add( new int[] { 273, 4, numStrips, numStrips == 1 ? ( int )offsets[ 0 ] : offsetsPointer } );
+			entries.add( new int[] { 277, 3, 1, 1 } );
+			entries.add( new int[] { 278, 3, 1, rowsPerStrip } );
+			entries.add( new int[] { 279, 4, numStrips, numStrips == 1 ? ( int )byteCounts[ 0 ] : byteCountsPointer } );
+			if ( predictor != 1 )
+				entries.add( new int[] { 317, 3, 1, predictor } );
+			if ( tiled )
+				entries.add( new int[] { 322, 3, 1, width } );
+			entries.add( new int[] { 339, 3, 1, isFloat ? 3 : 1 } );
+
+			final int ifdOffset = file.position();
+			file.putInt( ifdPointer, ifdOffset );
+			file.putShort( ( short )entries.size() );
+			for ( final int[] entry : entries )
+			{
+				file.putShort( ( short )entry[ 0 ] );
+				file.putShort( ( short )entry[ 1 ] );
+				file.putInt( entry[ 2 ] );
+				if ( entry[ 1 ] == 3 )
+				{
+					file.putShort( ( short )entry[ 3 ] );
+					file.putShort( ( short )0 );
+				}
+				else
+					file.putInt( entry[ 3 ] );
+			}
+			ifdPointer = file.position();
+			file.putInt( 0 );
+		}
+
+		final byte[] bytes = new byte[ file.position() ];
+		file.rewind();
+		file.get( bytes );
+		Files.write( new File( testDirPath + name ).toPath(), bytes );
+	}
+
+	static private byte[] deflate( final byte[] data )
+	{
+		final Deflater deflater = new Deflater();
+		deflater.setInput( data );
+		deflater.finish();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 1024 ];
+		while ( !deflater.finished() )
+			out.write( buffer, 0, deflater.deflate( buffer ) );
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * TIFF flavored LZW encoder (MSB first, early change) as in libtiff.
+	 */
+	static private byte[] encodeLzw( final byte[] data )
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final int[] bits = new int[ 2 ]; // buffer, count
+		final Map< Integer, Integer > table = new HashMap<>();
+
+		int nextCode = 258;
+		putCode( out, bits, 256, 9 );
+		int w = data[ 0 ] & 0xff;
+		for ( int i = 1; i < data.length; ++i )
+		{
+			final int k = data[ i ] & 0xff;
+			final Integer code = table.get( ( w << 8 ) | k );
+			if ( code != null )
+			{
+				w = code;
+				continue;
+			}
+			putCode( out, bits, w, codeLength( nextCode ) );
+			table.put( ( w << 8 ) | k, nextCode++ );
+			if ( nextCode == 4093 )
+			{
+				putCode( out, bits, 256, codeLength( nextCode ) );
+				table.clear();
+				nextCode = 258;
+			}
+			w = k;
+		}
+		putCode( out, bits, w, codeLength( nextCode ) );
+		putCode( out, bits, 257, codeLength( nextCode + 1 ) );
+		if ( bits[ 1 ] > 0 )
+			out.write( bits[ 0 ] << ( 8 - bits[ 1 ] ) );
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param nextCode of the encoder before the code is written
+	 */
+	static private int codeLength( final int nextCode )
+	{
+		return nextCode >= 2048 ? 12 : nextCode >= 1024 ? 11 : nextCode >= 512 ? 10 : 9;
+	}
+
+	static private void putCode( final ByteArrayOutputStream out, final int[] bits, final int code, final int length )
+	{
+		for ( int b = length - 1; b >= 0; --b )
+		{
+			bits[ 0 ] = ( bits[ 0 ] << 1 ) | ( ( code >>> b ) & 1 );
+			if ( ++bits[ 1 ] == 8 )
+			{
+				out.write( bits[ 0 ] & 0xff );
+				bits[ 0 ] = 0;
+				bits[ 1 ] = 0;
+			}
+		}
+	}
+
+	static private void assertDecoded( final int[][] values, final Object cell )
+	{
+		for ( int z = 0, i = 0; z < cellDimensions[ 2 ]; ++z )
+			for ( int y = 0; y < cellDimensions[ 1 ]; ++y )
+				for ( int x = 0; x < cellDimensions[ 0 ]; ++x, ++i )
+				{
+					final float expected = x < fileDimensions[ 0 ] && y < fileDimensions[ 1 ] && z < fileDimensions[ 2 ] ?
+							values[ z ][ y * fileDimensions[ 0 ] + x ] : 0;
+					final float actual;
+					if ( cell instanceof byte[] )
+						actual = ( ( byte[] )cell )[ i ] & 0xff;
+					else if ( cell instanceof short[] )
+						actual = ( ( short[] )cell )[ i ] & 0xffff;
+					else
+						actual = ( ( float[] )cell )[ i ];
+					Assert.assertEquals( expected, actual, 0 );
+				}
+	}
+
+	static private int cellSize()
+	{
+		return cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ];
+	}
+
+	@Test
+	public void testLzwStrips() throws IOException
+	{
+		/* one strip per page is long enough for 10 bit codes */
+		for ( final int rowsPerStrip : new int[] { 4, fileDimensions[ 1 ] } )
+		{
+			final int[][] values = createValues( 16 );
+			writeTiff( "lzw16.tif", ByteOrder.LITTLE_ENDIAN, 16, false, LZW, 1, rowsPerStrip, false, values );
+			final short[] cell = new short[ cellSize() ];
+			Assert.assertTrue( CellFileTiffReader.decode( testDirPath + "lzw16.tif", cell, cellDimensions ) );
+			assertDecoded( values, cell );
+		}
+	}
+
+	@Test
+	public void testLzwPredictor() throws IOException
+	{
+		for ( final int bitsPerSample : new int[] { 8, 16 } )
+		{
+			final int[][] values = createValues( bitsPerSample );
+			writeTiff( "lzwp.tif", ByteOrder.BIG_ENDIAN, bitsPerSample, false, LZW, 2, 5, false, values );
+			final Object cell = bitsPerSample == 8 ? new byte[ cellSize() ] : new short[ cellSize() ];
+			Assert.assertTrue( CellFileTiffReader.decode( testDirPath + "lzwp.tif", cell, cellDimensions ) );
+			assertDecoded( values, cell );
+		}
+	}
+
+	@Test
+	public void testDeflatePredictor() throws IOException
+	{
+		for ( final ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN } )
+		{
+			final int[][] values = createValues( 16 );
+			writeTiff( "deflate16.tif", order, 16, false, DEFLATE, 2, fileDimensions[ 1 ], false, values );
+			final short[] cell = new short[ cellSize() ];
+			Assert.assertTrue( CellFileTiffReader.decode( testDirPath + "deflate16.tif", cell, cellDimensions ) );
+			assertDecoded( values, cell );
+		}
+	}
+
+	@Test
+	public void testDeflateFloat() throws IOException
+	{
+		final int[][] values = createValues( 16 );
+		writeTiff( "deflate32.tif", ByteOrder.BIG_ENDIAN, 32, true, DEFLATE, 1, 3, false, values );
+		final float[] cell = new float[ cellSize() ];
+		Assert.assertTrue( CellFileTiffReader.decode( testDirPath + "deflate32.tif", cell, cellDimensions ) );
+		assertDecoded( values, cell );
+	}
+
+	@Test
+	public void testUncompressedStrips() throws IOException
+	{
+		final int[][] values = createValues( 8 );
+		writeTiff( "strips8.tif", ByteOrder.LITTLE_ENDIAN, 8, false, NONE, 1, 2, false, values );
+		final byte[] cell = new byte[ cellSize() ];
+		Assert.assertTrue( CellFileTiffReader.decode( testDirPath + "strips8.tif", cell, cellDimensions ) );
+		assertDecoded( values, cell );
+	}
+
+	/**
+	 * Layouts the decoder does not handle are left to ImageJ.
+	 */
+	@Test
+	public void testUnsupported() throws IOException
+	{
+		final int[][] values = createValues( 16 );
+
+		/* predictor without compression is undefined */
+		writeTiff( "nonep.tif", ByteOrder.LITTLE_ENDIAN, 16, false, NONE, 2, 4, false, values );
+		Assert.assertFalse( CellFileTiffReader.decode( testDirPath + "nonep.tif", new short[ cellSize() ], cellDimensions ) );
+
+		/* horizontal differencing of floats */
+		writeTiff( "floatp2.tif", ByteOrder.LITTLE_ENDIAN, 32, true, DEFLATE, 2, 4, false, values );
+		Assert.assertFalse( CellFileTiffReader.decode( testDirPath + "floatp2.tif", new float[ cellSize() ], cellDimensions ) );
+
+		/* floating point predictor */
+		writeTiff( "floatp3.tif", ByteOrder.LITTLE_ENDIAN, 32, true, DEFLATE, 3, 4, false, values );
+		Assert.assertFalse( CellFileTiffReader.decode( testDirPath + "floatp3.tif", new float[ cellSize() ], cellDimensions ) );
+
+		/* tiles */
+		writeTiff( "tiled.tif", ByteOrder.LITTLE_ENDIAN, 16, false, LZW, 1, 4, true, values );
+		Assert.assertFalse( CellFileTiffReader.decode( testDirPath + "tiled.tif", new short[ cellSize() ], cellDimensions ) );
+	}
+}
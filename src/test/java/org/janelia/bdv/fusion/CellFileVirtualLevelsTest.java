@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+
+/**
+ * Levels that {@link CellFileVirtualLevels} inserts and appends, and
+ * virtual cells downsampled from finer cells that are read in parallel.
+ */
+public class CellFileVirtualLevelsTest
+{
+	static private CellFileImageMetaData metaData( final long[] dimensions, final int cellSize, final int... diskFactors )
+	{
+		final TreeMap< Integer, int[] > factors = new TreeMap<>();
+		final TreeMap< Integer, int[] > cells = new TreeMap<>();
+		for ( int level = 0; level < diskFactors.length; ++level )
+		{
+			factors.put( level, new int[] { diskFactors[ level ], diskFactors[ level ], diskFactors[ level ] } );
+			cells.put( level, new int[] { cellSize, cellSize, cellSize } );
+		}
+		return new CellFileImageMetaData(
+				"/export/%1$d/%4$d/%3$d/%2$d.raw",
+				"GRAY16",
+				dimensions,
+				factors,
+				cells,
+				new double[][] { { 1, 0, 0, 0 }, { 0, 1, 0, 0 }, { 0, 0, 1, 0 } },
+				new FinalVoxelDimensions( "um", 1, 1, 1 ) );
+	}
+
+	/**
+	 * Reads level 0 cells whose pixel value at x, y, z is
+	 * 2 * (x + 16 y + 256 z), waiting until <code>parallel</code> reads
+	 * run at the same time.
+	 */
+	final static private class Level0Reader implements CellFileReader
+	{
+		final CountDownLatch parallel;
+		final CellFileCancellation.Token token;
+
+		Level0Reader( final int parallel, final CellFileCancellation.Token token )
+		{
+			this.parallel = new CountDownLatch( parallel );
+			this.token = token;
+		}
+
+		@Override
+		public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+		{
+			return level + "/" + gridPosition[ 0 ] + "/" + gridPosition[ 1 ] + "/" + gridPosition[ 2 ];
+		}
+
+		@Override
+		public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+		{
+			if ( CellFileCancellation.get() != token )
+				throw new IOException( "read without the token of the virtual cell" );
+			parallel.countDown();
+			try
+			{
+				if ( !parallel.await( 10, TimeUnit.SECONDS ) )
+					throw new IOException( "finer cells were not read in parallel" );
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new IOException( e );
+			}
+			final short[] data = ( short[] )storage;
+			int i = 0;
+			for ( int z = 0; z < dimensions[ 2 ]; ++z )
+				for ( int y = 0; y < dimensions[ 1 ]; ++y )
+					for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+						data[ i ] = ( short )( 2 * ( min[ 0 ] + x + 16 * ( min[ 1 ] + y ) + 256 * ( min[ 2 ] + z ) ) );
+			return data;
+		}
+	}
+
+	static private int[] factors( final CellFileVirtualLevels levels )
+	{
+		final int[] factors = new int[ levels.getNumLevels() ];
+		for ( int level = 0; level < factors.length; ++level )
+			factors[ level ] = levels.getDownsampleFactors()[ level ][ 0 ];
+		return factors;
+	}
+
+	@Test
+	public void testAppendedLevels()
+	{
+		/* levels are appended while a virtual cell covers at most 64 cells of level 0 */
+		final CellFileVirtualLevels large = new CellFileVirtualLevels(
+				new Level0Reader( 1, null ),
+				metaData( new long[] { 1024, 1024, 1024 }, 64, 1 ),
+				16,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertArrayEquals( new int[] { 1, 2, 4 }, factors( large ) );
+		Assert.assertFalse( large.isVirtual( 0 ) );
+		Assert.assertTrue( large.isVirtual( 1 ) );
+		Assert.assertTrue( large.isVirtual( 2 ) );
+		Assert.assertArrayEquals( new long[] { 256, 256, 256 }, large.getDimensions()[ 2 ] );
+		Assert.assertArrayEquals( new int[] { 64, 64, 64 }, large.getCellDimensions()[ 2 ] );
+
+		/* or until the image fits into one cell */
+		final CellFileVirtualLevels small = new CellFileVirtualLevels(
+				new Level0Reader( 1, null ),
+				metaData( new long[] { 128, 128, 128 }, 64, 1 ),
+				16,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertArrayEquals( new int[] { 1, 2 }, factors( small ) );
+
+		/* or until maxNumLevels */
+		final CellFileVirtualLevels limited = new CellFileVirtualLevels(
+				new Level0Reader( 1, null ),
+				metaData( new long[] { 1024, 1024, 1024 }, 64, 1 ),
+				2,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertArrayEquals( new int[] { 1, 2 }, factors( limited ) );
+	}
+
+	@Test
+	public void testInsertedLevels()
+	{
+		/* levels 2 and 4 fill the gap to level 8 on disk, 16 is appended to it */
+		final CellFileVirtualLevels levels = new CellFileVirtualLevels(
+				new Level0Reader( 1, null ),
+				metaData( new long[] { 1024, 1024, 1024 }, 64, 1, 8 ),
+				16,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertArrayEquals( new int[] { 1, 2, 4, 8, 16 }, factors( levels ) );
+		final boolean[] virtual = new boolean[ levels.getNumLevels() ];
+		for ( int level = 0; level < virtual.length; ++level )
+			virtual[ level ] = levels.isVirtual( level );
+		Assert.assertTrue( Arrays.equals( new boolean[] { false, true, true, false, true }, virtual ) );
+		Assert.assertEquals( "1/0/0/0", levels.getCellPath( 3, new long[] { 0, 0, 0 }, new long[] { 0, 0, 0 } ) );
+
+		/* the gap is filled only as far as a virtual cell covers at most 64 cells of level 0 */
+		final CellFileVirtualLevels wide = new CellFileVirtualLevels(
+				new Level0Reader( 1, null ),
+				metaData( new long[] { 4096, 4096, 4096 }, 64, 1, 32 ),
+				16,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertArrayEquals( new int[] { 1, 2, 4, 32, 64 }, factors( wide ) );
+	}
+
+	@Test
+	public void testDownsampledValues() throws IOException
+	{
+		/* 16^3 pixels in 8 cells of 8^3, level 1 is one cell of 8^3 */
+		final CellFileCancellation.Token token = new CellFileCancellation.Token();
+		final CellFileVirtualLevels levels = new CellFileVirtualLevels(
+				new Level0Reader( 8, token ),
+				metaData( new long[] { 16, 16, 16 }, 8, 1 ),
+				16,
+				CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertEquals( 2, levels.getNumLevels() );
+
+		final short[] cell;
+		CellFileCancellation.set( token );
+		try
+		{
+			cell = ( short[] )levels.read( 1, new long[] { 0, 0, 0 }, new long[] { 0, 0, 0 }, new int[] { 8, 8, 8 }, new short[ 512 ] );
+		}
+		finally
+		{
+			CellFileCancellation.set( null );
+		}
+
+		/* the mean of each 2^3 block */
+		int i = 0;
+		for ( int z = 0; z < 8; ++z )
+			for ( int y = 0; y < 8; ++y )
+				for ( int x = 0; x < 8; ++x, ++i )
+					Assert.assertEquals( 2 * ( 2 * x + 0.5 + 16 * ( 2 * y + 0.5 ) + 256 * ( 2 * z + 0.5 ) ), cell[ i ], 0 );
+	}
+}
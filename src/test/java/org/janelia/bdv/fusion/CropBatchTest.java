@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Crop lists read by {@link CropBatch#readCrops(String)} and the order in
+ * which {@link CropBatch} extracts crops that share cells.
+ */
+public class CropBatchTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-crop-batch-test/";
+
+	/* 8 x 8 x 8 cells of 16 x 16 x 16 pixels */
+	final static private long[][] dimensions = new long[][] { { 128, 128, 128 } };
+
+	final static private int[][] cellDimensions = new int[][] { { 16, 16, 16 } };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CropBatch test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private String writeCsv( final String name, final String... lines ) throws IOException
+	{
+		final String path = testDirPath + name + ".csv";
+		try ( final Writer writer = new FileWriter( path ) )
+		{
+			for ( final String line : lines )
+				writer.write( line + "\n" );
+		}
+		return path;
+	}
+
+	/**
+	 * A single channel crop of 8 x 8 x 8 pixels at min.
+	 */
+	static private CropBatch.Crop crop( final int line, final long x, final long y, final long z )
+	{
+		final CropBatch.Crop crop = new CropBatch.Crop( line, new double[ 3 ], new int[] { 8, 8, 8 }, 0 );
+		crop.mins = new long[][] { { x, y, z } };
+		return crop;
+	}
+
+	static private int[] lines( final List< CropBatch.Crop > crops )
+	{
+		final int[] lines = new int[ crops.size() ];
+		for ( int i = 0; i < lines.length; ++i )
+			lines[ i ] = crops.get( i ).line;
+		return lines;
+	}
+
+	@Test
+	public void testReadCrops() throws IOException
+	{
+		final String path = writeCsv(
+				"crops",
+				"x,y,z,width,height,depth,level",
+				"10.5, 20, 30, 64, 32, 16, 0",
+				"",
+				"# a comment",
+				"-1;2;3;4;5;6;1",
+				"7\t8\t9\t10\t11\t12\t2",
+				"1,2,3" );
+
+		final List< CropBatch.Crop > crops = CropBatch.readCrops( path );
+		Assert.assertArrayEquals( new int[] { 2, 5, 6 }, lines( crops ) );
+
+		Assert.assertArrayEquals( new double[] { 10.5, 20, 30 }, crops.get( 0 ).center, 0 );
+		Assert.assertArrayEquals( new int[] { 64, 32, 16 }, crops.get( 0 ).size );
+		Assert.assertEquals( 0, crops.get( 0 ).level );
+
+		Assert.assertArrayEquals( new double[] { -1, 2, 3 }, crops.get( 1 ).center, 0 );
+		Assert.assertEquals( 1, crops.get( 1 ).level );
+
+		Assert.assertArrayEquals( new int[] { 10, 11, 12 }, crops.get( 2 ).size );
+		Assert.assertEquals( 2, crops.get( 2 ).level );
+
+		/* a malformed number is reported with its line */
+		try
+		{
+			CropBatch.readCrops( writeCsv( "malformed", "1,2,3,4.5,5,6,0" ) );
+			Assert.fail( "a size that is not an integer was read" );
+		}
+		catch ( final IOException e )
+		{
+			Assert.assertTrue( e.getMessage(), e.getMessage().contains( "malformed.csv:1: " ) );
+		}
+	}
+
+	@Test
+	public void testSchedule()
+	{
+		final List< CellFileUnsignedShortImageLoader > imgLoaders = Collections.singletonList(
+				new CellFileUnsignedShortImageLoader(
+						new CellFileRawReader( testDirPath + "cells/%1$d/%4$d/%3$d/%2$d.raw", ByteOrder.BIG_ENDIAN, 0 ),
+						dimensions,
+						cellDimensions,
+						new int[][] { { 1, 1, 1 } },
+						0,
+						new TwoQueueCellFileCache( 1 << 20, 1, 0 ) ) );
+
+		/* 1 and 4 share cell (0, 1, 0), 4 and 2 share cell (1, 0, 0), 3 and 5 are alone */
+		final ArrayList< CropBatch.Crop > crops = new ArrayList<>( Arrays.asList(
+				crop( 1, 8, 20, 0 ),
+				crop( 2, 20, 4, 4 ),
+				crop( 3, 100, 100, 100 ),
+				crop( 4, 12, 12, 0 ),
+				crop( 5, 40, 0, 0 ) ) );
+
+		/* groups along the Z-order curve of their first crop, crops of a group along the curve as well */
+		Assert.assertArrayEquals( new int[] { 4, 2, 1, 5, 3 }, lines( CropBatch.schedule( crops, imgLoaders ) ) );
+
+		/* the order does not depend on the order of the list */
+		Collections.reverse( crops );
+		Assert.assertArrayEquals( new int[] { 4, 2, 1, 5, 3 }, lines( CropBatch.schedule( crops, imgLoaders ) ) );
+
+		/* crops outside of the image are kept */
+		crops.add( crop( 6, -100, -100, -100 ) );
+		Assert.assertEquals( 6, CropBatch.schedule( crops, imgLoaders ).size() );
+	}
+}
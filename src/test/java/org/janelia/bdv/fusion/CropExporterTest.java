@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+
+/**
+ * Exports by {@link CropExporter} that read cells without the cache of the
+ * loader: cells missing from the presence index are not read and virtual
+ * cells are computed from finer cells that bypass the cache as well.
+ */
+public class CropExporterTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-crop-exporter-test/";
+
+	/* 2 x 2 x 2 cells of 4 x 4 x 4 pixels */
+	final static private long[][] dimensions = new long[][] { { 8, 8, 8 } };
+
+	final static private int[][] cellDimensions = new int[][] { { 4, 4, 4 } };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for CropExporter test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private short value( final long x, final long y, final long z )
+	{
+		return ( short )( x + 16 * y + 256 * z );
+	}
+
+	/**
+	 * Counts the cells read by a reader.
+	 */
+	final static private class CountingReader implements CellFileReader
+	{
+		final AtomicInteger numReads = new AtomicInteger();
+		final CellFileReader reader;
+
+		CountingReader( final CellFileReader reader )
+		{
+			this.reader = reader;
+		}
+
+		@Override
+		public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+		{
+			return reader.getCellPath( level, gridPosition, min );
+		}
+
+		@Override
+		public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+		{
+			numReads.incrementAndGet();
+			return reader.read( level, gridPosition, min, dimensions, storage );
+		}
+	}
+
+	/**
+	 * Collects the blocks of a box in one array.
+	 */
+	final static private class ArrayWriter implements CellFileWriter
+	{
+		final int[] size;
+		final short[] data;
+
+		ArrayWriter( final int[] size )
+		{
+			this.size = size;
+			data = new short[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+		}
+
+		@Override
+		public synchronized void write( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object block )
+		{
+			int i = 0;
+			for ( int z = 0; z < dimensions[ 2 ]; ++z )
+				for ( int y = 0; y < dimensions[ 1 ]; ++y )
+					for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+						data[ ( int )( ( ( min[ 2 ] + z ) * size[ 1 ] + min[ 1 ] + y ) * size[ 0 ] + min[ 0 ] + x ) ] = ( ( short[] )block )[ i ];
+		}
+
+		@Override
+		public void delete( final int level, final long[] gridPosition, final long[] min ) {}
+	}
+
+	static private void export( final AbstractCellFileImageLoader< ?, ? > imgLoader, final int level, final ArrayWriter writer ) throws IOException, InterruptedException
+	{
+		CropExporter.export( imgLoader, "GRAY16", level, new long[ 3 ], writer.size, cellDimensions[ 0 ], writer, 2, new CellFileCancellation.Token(), null );
+	}
+
+	@Test
+	public void testPresenceIndex() throws IOException, InterruptedException
+	{
+		/* three of eight cells exist */
+		final String cellFormat = testDirPath + "sparse/%1$d/%4$d/%3$d/%2$d.raw";
+		final CellFileRawWriter rawWriter = new CellFileRawWriter( cellFormat, ByteOrder.BIG_ENDIAN, 0 );
+		final long[][] gridPositions = new long[][] { { 0, 0, 0 }, { 1, 0, 0 }, { 1, 1, 1 } };
+		for ( final long[] gridPosition : gridPositions )
+		{
+			final long[] min = new long[] { gridPosition[ 0 ] * 4, gridPosition[ 1 ] * 4, gridPosition[ 2 ] * 4 };
+			final short[] data = new short[ 64 ];
+			int i = 0;
+			for ( int z = 0; z < 4; ++z )
+				for ( int y = 0; y < 4; ++y )
+					for ( int x = 0; x < 4; ++x, ++i )
+						data[ i ] = value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+			rawWriter.write( 0, gridPosition, min, cellDimensions[ 0 ], data );
+		}
+
+		final CellFileRawReader rawReader = new CellFileRawReader( cellFormat, ByteOrder.BIG_ENDIAN, 0 );
+		final CountingReader reader = new CountingReader( rawReader );
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( 1 << 20, 1, 0 );
+		final CellFileUnsignedShortImageLoader imgLoader = new CellFileUnsignedShortImageLoader( reader, dimensions, cellDimensions, new int[][] { { 1, 1, 1 } }, 0, cache );
+		imgLoader.getArrayLoader().setPresenceIndex( CellFilePresenceIndex.build( rawReader, dimensions, cellDimensions, 2 ) );
+
+		final ArrayWriter writer = new ArrayWriter( new int[] { 8, 8, 8 } );
+		export( imgLoader, 0, writer );
+
+		/* missing cells are not looked up and are zero */
+		Assert.assertEquals( 3, reader.numReads.get() );
+		Assert.assertEquals( 0, cache.getNumCells() );
+		int i = 0;
+		for ( int z = 0; z < 8; ++z )
+			for ( int y = 0; y < 8; ++y )
+				for ( int x = 0; x < 8; ++x, ++i )
+				{
+					final boolean exists = z < 4 && y < 4 || x >= 4 && y >= 4 && z >= 4;
+					Assert.assertEquals( exists ? value( x, y, z ) : 0, writer.data[ i ] );
+				}
+	}
+
+	@Test
+	public void testVirtualLevels() throws IOException, InterruptedException
+	{
+		final TreeMap< Integer, int[] > factors = new TreeMap<>();
+		factors.put( 0, new int[] { 1, 1, 1 } );
+		final TreeMap< Integer, int[] > cells = new TreeMap<>();
+		cells.put( 0, cellDimensions[ 0 ] );
+		final CellFileImageMetaData metaData = new CellFileImageMetaData(
+				"/export/%1$d/%4$d/%3$d/%2$d.raw",
+				"GRAY16",
+				dimensions[ 0 ],
+				factors,
+				cells,
+				new double[][] { { 1, 0, 0, 0 }, { 0, 1, 0, 0 }, { 0, 0, 1, 0 } },
+				new FinalVoxelDimensions( "um", 1, 1, 1 ) );
+
+		/* level 0 in memory, level 1 is one virtual cell of 4 x 4 x 4 */
+		final CountingReader reader = new CountingReader( new CellFileReader()
+		{
+			@Override
+			public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+			{
+				return level + "/" + gridPosition[ 0 ] + "/" + gridPosition[ 1 ] + "/" + gridPosition[ 2 ];
+			}
+
+			@Override
+			public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage )
+			{
+				final short[] data = ( short[] )storage;
+				int i = 0;
+				for ( int z = 0; z < dimensions[ 2 ]; ++z )
+					for ( int y = 0; y < dimensions[ 1 ]; ++y )
+						for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+							data[ i ] = value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+				return data;
+			}
+		} );
+		final CellFileVirtualLevels levels = new CellFileVirtualLevels( reader, metaData, 16, CellFilePyramidBuilder.Downsampling.AVERAGE );
+		Assert.assertEquals( 2, levels.getNumLevels() );
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( 1 << 20, 2, 0 );
+		final AbstractCellFileImageLoader< ?, ? > imgLoader = CellFileImageLoaderFactory.createImageLoader( metaData, 0, cache, levels );
+
+		final ArrayWriter writer = new ArrayWriter( new int[] { 4, 4, 4 } );
+		export( imgLoader, 1, writer );
+
+		/* the finer cells were read once each without the cache */
+		Assert.assertEquals( 8, reader.numReads.get() );
+		Assert.assertEquals( 0, cache.getNumCells() );
+		int i = 0;
+		for ( int z = 0; z < 4; ++z )
+			for ( int y = 0; y < 4; ++y )
+				for ( int x = 0; x < 4; ++x, ++i )
+					Assert.assertEquals( 2 * x + 0.5 + 16 * ( 2 * y + 0.5 ) + 256 * ( 2 * z + 0.5 ), writer.data[ i ], 0.5 );
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Boxes copied by {@link CropMaterializer} through the cache of a loader,
+ * channels of different image types converted for one stack, and crops
+ * that are cancelled while cells are being loaded.
+ */
+public class CropMaterializerTest
+{
+	/* 4 x 4 x 4 cells of 4 x 4 x 4 pixels */
+	final static private long[][] dimensions = new long[][] { { 16, 16, 16 } };
+
+	final static private int[][] cellDimensions = new int[][] { { 4, 4, 4 } };
+
+	/**
+	 * Reads 8 or 16-bit cells whose pixel value at x, y, z is
+	 * x + 16 y + 256 z (modulo 256 for 8-bit), after a gate opens.
+	 */
+	final static private class GatedReader implements CellFileReader
+	{
+		final AtomicInteger numReads = new AtomicInteger();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final Set< Thread > threads = Collections.newSetFromMap( new ConcurrentHashMap<>() );
+		final CountDownLatch started;
+		final CountDownLatch gate;
+
+		GatedReader( final int started, final CountDownLatch gate )
+		{
+			this.started = new CountDownLatch( started );
+			this.gate = gate;
+		}
+
+		@Override
+		public String getCellPath( final int level, final long[] gridPosition, final long[] min )
+		{
+			return level + "/" + gridPosition[ 0 ] + "/" + gridPosition[ 1 ] + "/" + gridPosition[ 2 ];
+		}
+
+		@Override
+		public Object read( final int level, final long[] gridPosition, final long[] min, final int[] dimensions, final Object storage ) throws IOException
+		{
+			numReads.incrementAndGet();
+			threads.add( Thread.currentThread() );
+			started.countDown();
+			try
+			{
+				gate.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted.set( true );
+				throw new IOException( e );
+			}
+			int i = 0;
+			for ( int z = 0; z < dimensions[ 2 ]; ++z )
+				for ( int y = 0; y < dimensions[ 1 ]; ++y )
+					for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+					{
+						final long v = min[ 0 ] + x + 16 * ( min[ 1 ] + y ) + 256 * ( min[ 2 ] + z );
+						if ( storage instanceof byte[] )
+							( ( byte[] )storage )[ i ] = ( byte )v;
+						else
+							( ( short[] )storage )[ i ] = ( short )v;
+					}
+			return storage;
+		}
+	}
+
+	static private CellFileUnsignedShortImageLoader createImageLoader( final CellFileReader reader )
+	{
+		return new CellFileUnsignedShortImageLoader(
+				reader,
+				dimensions,
+				cellDimensions,
+				new int[][] { { 1, 1, 1 } },
+				0,
+				new TwoQueueCellFileCache( 1 << 20, 1, 0 ) );
+	}
+
+	@Test
+	public void testMaterialize() throws IOException, InterruptedException
+	{
+		final GatedReader reader = new GatedReader( 0, new CountDownLatch( 0 ) );
+
+		/* a box that reaches out of the image */
+		final long[] min = new long[] { 2, 3, 14 };
+		final int[] size = new int[] { 6, 5, 4 };
+		final Object[] slices = CropMaterializer.materialize(
+				createImageLoader( reader ),
+				"GRAY16",
+				0,
+				min,
+				size,
+				4,
+				new CellFileCancellation.Token(),
+				null );
+
+		Assert.assertEquals( 4, slices.length );
+		Assert.assertEquals( 4, reader.numReads.get() );
+		for ( int z = 0; z < size[ 2 ]; ++z )
+		{
+			final short[] slice = ( short[] )slices[ z ];
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x )
+				{
+					final long iz = min[ 2 ] + z;
+					final int expected = iz < 16 ? ( int )( min[ 0 ] + x + 16 * ( min[ 1 ] + y ) + 256 * iz ) : 0;
+					Assert.assertEquals( expected, slice[ y * size[ 0 ] + x ] );
+				}
+		}
+	}
+
+	@Test
+	public void testMixedImageTypes() throws IOException, InterruptedException
+	{
+		Assert.assertEquals( "GRAY8", CropMaterializer.commonImageType( "GRAY8", "GRAY8" ) );
+		Assert.assertEquals( "GRAY16", CropMaterializer.commonImageType( "GRAY8", "GRAY16" ) );
+		Assert.assertEquals( "GRAY32", CropMaterializer.commonImageType( "GRAY16", "GRAY32", "GRAY8" ) );
+
+		/* an 8-bit and a 16-bit channel */
+		final GatedReader reader = new GatedReader( 0, new CountDownLatch( 0 ) );
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( 1 << 20, 1, 0 );
+		final List< AbstractCellFileImageLoader< ?, ? > > imgLoaders = Arrays.asList(
+				new CellFileUnsignedByteImageLoader( reader, dimensions, cellDimensions, new int[][] { { 1, 1, 1 } }, 0, cache ),
+				new CellFileUnsignedShortImageLoader( reader, dimensions, cellDimensions, new int[][] { { 1, 1, 1 } }, 1, cache ) );
+		final String[] imageTypes = new String[] { "GRAY8", "GRAY16" };
+		final int[] size = new int[] { 8, 8, 2 };
+		final Object[] slices = CropMaterializer.materialize( imgLoaders, imageTypes, 0, new long[][] { { 4, 4, 4 }, { 4, 4, 4 } }, size, 2, new CellFileCancellation.Token(), null );
+		Assert.assertTrue( slices[ 0 ] instanceof byte[] );
+		Assert.assertTrue( slices[ 1 ] instanceof short[] );
+
+		/* one type for one stack, the 8-bit voxels keep their unsigned values */
+		CropMaterializer.convertSlices( slices, CropMaterializer.commonImageType( imageTypes ) );
+		for ( int z = 0; z < size[ 2 ]; ++z )
+			for ( int c = 0; c < 2; ++c )
+			{
+				final short[] slice = ( short[] )slices[ z * 2 + c ];
+				for ( int y = 0; y < size[ 1 ]; ++y )
+					for ( int x = 0; x < size[ 0 ]; ++x )
+					{
+						final int v = 4 + x + 16 * ( 4 + y ) + 256 * ( 4 + z );
+						Assert.assertEquals( c == 0 ? v & 0xff : v, slice[ y * size[ 0 ] + x ] & 0xffff );
+					}
+			}
+
+		/* to float */
+		final Object[] floats = new Object[] { new byte[] { ( byte )200 }, new short[] { ( short )60000 } };
+		CropMaterializer.convertSlices( floats, "GRAY32" );
+		Assert.assertEquals( 200, ( ( float[] )floats[ 0 ] )[ 0 ], 0 );
+		Assert.assertEquals( 60000, ( ( float[] )floats[ 1 ] )[ 0 ], 0 );
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException
+	{
+		/* two of 64 cells are being loaded when the crop is cancelled */
+		final CountDownLatch gate = new CountDownLatch( 1 );
+		final GatedReader reader = new GatedReader( 2, gate );
+		final CellFileUnsignedShortImageLoader imgLoader = createImageLoader( reader );
+		final CellFileCancellation.Token token = new CellFileCancellation.Token();
+		final Throwable[] thrown = new Throwable[ 1 ];
+		final Thread crop = new Thread( () -> {
+			try
+			{
+				CropMaterializer.materialize( imgLoader, "GRAY16", 0, new long[ 3 ], new int[] { 16, 16, 16 }, 2, token, null );
+			}
+			catch ( final Throwable t )
+			{
+				thrown[ 0 ] = t;
+			}
+		} );
+		crop.start();
+
+		Assert.assertTrue( reader.started.await( 10, TimeUnit.SECONDS ) );
+		token.cancel();
+
+		/* the crop waits for the loads that are running */
+		crop.join( 500 );
+		Assert.assertTrue( crop.isAlive() );
+
+		gate.countDown();
+		crop.join( 10000 );
+		Assert.assertFalse( crop.isAlive() );
+		Assert.assertTrue( thrown[ 0 ] instanceof InterruptedException );
+
+		/* loads were not interrupted, no other cell was read and the pool is gone */
+		Assert.assertFalse( reader.interrupted.get() );
+		Assert.assertEquals( 2, reader.numReads.get() );
+		for ( final Thread thread : reader.threads )
+		{
+			thread.join( 10000 );
+			Assert.assertFalse( thread.isAlive() );
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Blocks written into chunked HDF5 datasets by {@link H5CellWriter},
+ * several datasets in one file, read back in z, y, x order.
+ */
+public class H5CellWriterTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-h5-writer-test/";
+
+	/* 3 x 3 x 2 blocks of 4 x 4 x 4 pixels, cut at the far borders */
+	final static private long[] dimensions = new long[] { 10, 9, 7 };
+
+	final static private int[] blockDimensions = new int[] { 4, 4, 4 };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for H5CellWriter test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private int value( final long x, final long y, final long z )
+	{
+		return ( int )( x + 10 * y + 90 * z ) % 251;
+	}
+
+	static private void writeBlocks( final H5CellWriter writer, final String imageType )
+	{
+		for ( long gz = 0; gz < 2; ++gz )
+			for ( long gy = 0; gy < 3; ++gy )
+				for ( long gx = 0; gx < 3; ++gx )
+				{
+					final long[] min = new long[] { gx * blockDimensions[ 0 ], gy * blockDimensions[ 1 ], gz * blockDimensions[ 2 ] };
+					final int[] size = new int[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+						size[ d ] = ( int )Math.min( blockDimensions[ d ], dimensions[ d ] - min[ d ] );
+					final Object data = CellFileImageLoaderFactory.createStorageArray( imageType, size[ 0 ] * size[ 1 ] * size[ 2 ] );
+					int i = 0;
+					for ( int z = 0; z < size[ 2 ]; ++z )
+						for ( int y = 0; y < size[ 1 ]; ++y )
+							for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+							{
+								final int v = value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+								if ( data instanceof byte[] )
+									( ( byte[] )data )[ i ] = ( byte )v;
+								else if ( data instanceof short[] )
+									( ( short[] )data )[ i ] = ( short )( 250 * v );
+								else
+									( ( float[] )data )[ i ] = v + 0.5f;
+							}
+					writer.write( 0, new long[] { gx, gy, gz }, min, size, data );
+				}
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		final File file = new File( testDirPath + "roundtrip.h5" );
+		final String[] imageTypes = new String[] { "GRAY8", "GRAY16", "GRAY32" };
+		final IHDF5Writer h5Writer = HDF5Factory.open( file );
+		try
+		{
+			for ( int c = 0; c < imageTypes.length; ++c )
+				writeBlocks( new H5CellWriter( h5Writer, "/channel" + c, imageTypes[ c ], dimensions, blockDimensions ), imageTypes[ c ] );
+
+			/* an existing dataset is replaced */
+			writeBlocks( new H5CellWriter( h5Writer, "/channel0", imageTypes[ 0 ], dimensions, blockDimensions ), imageTypes[ 0 ] );
+		}
+		finally
+		{
+			h5Writer.close();
+		}
+
+		final IHDF5Reader h5Reader = HDF5Factory.openForReading( file );
+		try
+		{
+			Assert.assertArrayEquals( new int[] { 7, 9, 10 }, h5Reader.uint8().readMDArray( "/channel0" ).dimensions() );
+			final byte[] bytes = h5Reader.uint8().readMDArray( "/channel0" ).getAsFlatArray();
+			final short[] shorts = h5Reader.uint16().readMDArray( "/channel1" ).getAsFlatArray();
+			final float[] floats = h5Reader.float32().readMDArray( "/channel2" ).getAsFlatArray();
+			int i = 0;
+			for ( int z = 0; z < dimensions[ 2 ]; ++z )
+				for ( int y = 0; y < dimensions[ 1 ]; ++y )
+					for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+					{
+						final int v = value( x, y, z );
+						Assert.assertEquals( v, bytes[ i ] & 0xff );
+						Assert.assertEquals( 250 * v, shorts[ i ] & 0xffff );
+						Assert.assertEquals( v + 0.5f, floats[ i ], 0 );
+					}
+		}
+		finally
+		{
+			h5Reader.close();
+		}
+	}
+}
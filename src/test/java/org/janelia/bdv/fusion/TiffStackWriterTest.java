@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Multi-page TIFF files streamed by {@link TiffStackWriter} in blocks that
+ * are cut at the borders of the image, read back by
+ * {@link CellFileTiffReader}.
+ */
+public class TiffStackWriterTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bdv-fusion-tiff-stack-test/";
+
+	final static private int width = 13;
+
+	final static private int height = 10;
+
+	final static private int depth = 7;
+
+	/* blocks of 5 x 4 x 3 pixels */
+	final static private int[] blockDimensions = new int[] { 5, 4, 3 };
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		if ( !( testDir.exists() && testDir.isDirectory() ) )
+			throw new IOException( "Could not create test directory for TiffStackWriter test." );
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@AfterClass
+	public static void rampDownAfterClass() throws Exception
+	{
+		delete( new File( testDirPath ) );
+	}
+
+	static private void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+
+	static private int value( final long x, final long y, final long z )
+	{
+		return ( int )( x + 13 * y + 130 * z ) % 251;
+	}
+
+	/**
+	 * Write all blocks in reverse order from several threads.
+	 */
+	static private void writeBlocks( final TiffStackWriter writer, final String imageType ) throws Exception
+	{
+		/* min and width of every block */
+		final ArrayList< long[] > mins = new ArrayList<>();
+		for ( long z = 0; z < depth; z += blockDimensions[ 2 ] )
+			for ( long y = 0; y < height; y += blockDimensions[ 1 ] )
+				for ( long x = 0; x < width; x += blockDimensions[ 0 ] )
+					mins.add( new long[] { x, y, z, Math.min( blockDimensions[ 0 ], width - x ) } );
+
+		/* and one block of full width rows over the first rows of the last slice */
+		mins.add( new long[] { 0, 0, depth - 1, width } );
+		Collections.reverse( mins );
+
+		final ExecutorService exec = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final ArrayList< Future< Void > > futures = new ArrayList<>();
+			for ( final long[] min : mins )
+			{
+				futures.add( exec.submit( () -> {
+					final int[] size = new int[] {
+							( int )min[ 3 ],
+							( int )Math.min( blockDimensions[ 1 ], height - min[ 1 ] ),
+							( int )Math.min( blockDimensions[ 2 ], depth - min[ 2 ] ) };
+					final Object data = CellFileImageLoaderFactory.createStorageArray( imageType, size[ 0 ] * size[ 1 ] * size[ 2 ] );
+					int i = 0;
+					for ( int z = 0; z < size[ 2 ]; ++z )
+						for ( int y = 0; y < size[ 1 ]; ++y )
+							for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+							{
+								final int v = value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z );
+								if ( data instanceof byte[] )
+									( ( byte[] )data )[ i ] = ( byte )v;
+								else if ( data instanceof short[] )
+									( ( short[] )data )[ i ] = ( short )( 250 * v );
+								else
+									( ( float[] )data )[ i ] = v + 0.5f;
+							}
+					writer.write( 0, new long[ 3 ], min, size, data );
+					return null;
+				} ) );
+			}
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	static private void testRoundTrip( final String imageType ) throws Exception
+	{
+		final String path = testDirPath + imageType + ".tif";
+		try ( final TiffStackWriter writer = new TiffStackWriter( path, imageType, width, height, depth ) )
+		{
+			writeBlocks( writer, imageType );
+			Assert.assertFalse( new File( path ).exists() );
+			writer.finish();
+		}
+		Assert.assertTrue( new File( path ).isFile() );
+		Assert.assertFalse( new File( path + ".tmp" ).exists() );
+
+		final Object storage = CellFileImageLoaderFactory.createStorageArray( imageType, width * height * depth );
+		final Object data = new CellFileTiffReader( path ).read( 0, new long[ 3 ], new long[ 3 ], new int[] { width, height, depth }, storage );
+		int i = 0;
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x, ++i )
+				{
+					final int v = value( x, y, z );
+					if ( data instanceof byte[] )
+						Assert.assertEquals( v, ( ( byte[] )data )[ i ] & 0xff );
+					else if ( data instanceof short[] )
+						Assert.assertEquals( 250 * v, ( ( short[] )data )[ i ] & 0xffff );
+					else
+						Assert.assertEquals( v + 0.5f, ( ( float[] )data )[ i ], 0 );
+				}
+	}
+
+	@Test
+	public void testGray8() throws Exception
+	{
+		testRoundTrip( "GRAY8" );
+	}
+
+	@Test
+	public void testGray16() throws Exception
+	{
+		testRoundTrip( "GRAY16" );
+	}
+
+	@Test
+	public void testGray32() throws Exception
+	{
+		testRoundTrip( "GRAY32" );
+	}
+
+	@Test
+	public void testClose() throws IOException
+	{
+		final String path = testDirPath + "closed.tif";
+		try ( final TiffStackWriter writer = new TiffStackWriter( path, "GRAY8", width, height, depth ) )
+		{
+			/* blocks must be inside of the image */
+			try
+			{
+				writer.write( 0, new long[ 3 ], new long[] { 1, 0, 0 }, new int[] { width, 1, 1 }, new byte[ width ] );
+				Assert.fail( "a block that reaches out of the image was written" );
+			}
+			catch ( final IllegalArgumentException e ) {}
+		}
+
+		/* an unfinished file is removed */
+		Assert.assertFalse( new File( path ).exists() );
+		Assert.assertFalse( new File( path + ".tmp" ).exists() );
+	}
+}
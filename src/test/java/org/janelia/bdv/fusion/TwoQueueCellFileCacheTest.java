@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package org.janelia.bdv.fusion;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.cache.CacheHints;
+import bdv.cache.LoadingStrategy;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Admission and eviction of {@link TwoQueueCellFileCache}: scan
+ * resistance, second chances in Am, shared data that counts once, the
+ * order of fetches after reprioritizing, blocking loads that ignore
+ * cancellation and fetcher threads that stop on
+ * {@link TwoQueueCellFileCache#close()}.
+ */
+public class TwoQueueCellFileCacheTest
+{
+	final static private int cellSize = 512;
+
+	/* 1024 bytes per cell */
+	final static private long cellBytes = 2 * cellSize;
+
+	/* 8 cells, 2 of them in A1in */
+	final static private long maxBytes = 8 * cellBytes;
+
+	final static private class Loader implements CacheArrayLoader< VolatileShortArray >
+	{
+		final HashMap< Long, Integer > loads = new HashMap<>();
+		final ArrayList< Long > order = new ArrayList<>();
+		final VolatileShortArray zero = new VolatileShortArray( cellSize, true );
+		boolean shared = false;
+		CountDownLatch gate = new CountDownLatch( 0 );
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return 2;
+		}
+
+		@Override
+		public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+		{
+			gate.await();
+			try
+			{
+				CellFileCancellation.check();
+			}
+			catch ( final InterruptedIOException e )
+			{
+				throw new InterruptedException( e.getMessage() );
+			}
+			synchronized ( this )
+			{
+				loads.merge( min[ 0 ] / cellSize, 1, Integer::sum );
+				order.add( min[ 0 ] / cellSize );
+				return shared ? zero : new VolatileShortArray( dimensions[ 0 ], true );
+			}
+		}
+
+		@Override
+		public VolatileShortArray emptyArray( final int[] dimensions )
+		{
+			return new VolatileShortArray( dimensions[ 0 ], false );
+		}
+
+		synchronized int getLoads( final long index )
+		{
+			return loads.getOrDefault( index, 0 );
+		}
+	}
+
+	static private CellCache< VolatileShortArray > createCellCache( final TwoQueueCellFileCache cache, final Loader loader, final LoadingStrategy strategy )
+	{
+		return cache.createCellCache( 0, 0, 0, new CacheHints( strategy, 0, false ), loader );
+	}
+
+	static private void load( final CellCache< VolatileShortArray > cellCache, final long... indices )
+	{
+		for ( final long index : indices )
+			cellCache.load( index, new int[] { cellSize }, new long[] { index * cellSize } );
+	}
+
+	static private long[] range( final long from, final long to )
+	{
+		final long[] indices = new long[ ( int )( to - from ) ];
+		for ( int i = 0; i < indices.length; ++i )
+			indices[ i ] = from + i;
+		return indices;
+	}
+
+	/**
+	 * Move cells to Am by loading them, flushing them from A1in into
+	 * A1out and loading them again.
+	 */
+	static private void promote( final CellCache< VolatileShortArray > cellCache, final long flushFrom, final long... indices )
+	{
+		load( cellCache, indices );
+		load( cellCache, range( flushFrom, flushFrom + 8 ) );
+		load( cellCache, indices );
+	}
+
+	@Test
+	public void testScanResistance()
+	{
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 0 );
+		final Loader loader = new Loader();
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.BLOCKING );
+
+		promote( cellCache, 100, range( 0, 4 ) );
+
+		/* cells used once only cycle through A1in */
+		load( cellCache, range( 200, 300 ) );
+
+		for ( long i = 0; i < 4; ++i )
+		{
+			Assert.assertNotNull( cellCache.get( i ) );
+			Assert.assertEquals( 2, loader.getLoads( i ) );
+		}
+		Assert.assertNull( cellCache.get( 200 ) );
+		Assert.assertNotNull( cellCache.get( 299 ) );
+		Assert.assertEquals( 8, cache.getNumCells() );
+		Assert.assertEquals( maxBytes, cache.getCurrentBytes() );
+
+		/* cached cells are not loaded again */
+		load( cellCache, range( 0, 4 ) );
+		for ( long i = 0; i < 4; ++i )
+			Assert.assertEquals( 2, loader.getLoads( i ) );
+	}
+
+	@Test
+	public void testSecondChance()
+	{
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 0 );
+		final Loader loader = new Loader();
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.BLOCKING );
+
+		/* Am holds 0..5, A1in two cells of the flush */
+		promote( cellCache, 100, range( 0, 6 ) );
+
+		/* use 0..2 */
+		for ( long i = 0; i < 3; ++i )
+			Assert.assertNotNull( cellCache.get( i ) );
+
+		/* two more cells enter Am and evict the oldest unused cells of Am, 3 and 4 */
+		promote( cellCache, 200, 10, 11 );
+
+		for ( final long i : new long[] { 0, 1, 2, 5, 10, 11 } )
+			Assert.assertNotNull( "cell " + i, cellCache.get( i ) );
+		for ( final long i : new long[] { 3, 4 } )
+			Assert.assertNull( "cell " + i, cellCache.get( i ) );
+		Assert.assertTrue( cache.getCurrentBytes() <= maxBytes );
+	}
+
+	@Test
+	public void testSharedData()
+	{
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 0 );
+		final Loader loader = new Loader();
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.BLOCKING );
+
+		/* a hundred cells that share one array fit into the budget of eight */
+		loader.shared = true;
+		load( cellCache, range( 0, 100 ) );
+		Assert.assertEquals( 100, cache.getNumCells() );
+		Assert.assertEquals( cellBytes, cache.getCurrentBytes() );
+
+		/* cells with data of their own evict the shared cells, the shared array counts until its last cell is gone */
+		loader.shared = false;
+		load( cellCache, range( 100, 120 ) );
+		Assert.assertTrue( cache.getCurrentBytes() <= maxBytes );
+		Assert.assertEquals( 8, cache.getNumCells() );
+		Assert.assertEquals( maxBytes, cache.getCurrentBytes() );
+
+		cache.clearCache();
+		Assert.assertEquals( 0, cache.getNumCells() );
+		Assert.assertEquals( 0, cache.getCurrentBytes() );
+	}
+
+	@Test
+	public void testReprioritize() throws InterruptedException
+	{
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 1 );
+		final double[] distances = new double[] { 0, 1, 2, 3, 4 };
+		cache.setPrioritizer( ( setup, level, cellMin, cellDims ) -> distances[ ( int )( cellMin[ 0 ] / cellSize ) ] );
+		final Loader loader = new Loader();
+		loader.gate = new CountDownLatch( 1 );
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.VOLATILE );
+
+		/* the fetcher waits in the load of cell 0 while the others are queued */
+		load( cellCache, 0 );
+		final long deadline = System.currentTimeMillis() + 10000;
+		while ( cache.getNumLoading() == 0 && System.currentTimeMillis() < deadline )
+			Thread.yield();
+		load( cellCache, 1, 2, 3, 4 );
+
+		/* the view moved: cell 4 is closest now and cell 2 left the screen */
+		distances[ 1 ] = 3;
+		distances[ 2 ] = Double.POSITIVE_INFINITY;
+		distances[ 3 ] = 2;
+		distances[ 4 ] = 1;
+		cache.reprioritize();
+
+		loader.gate.countDown();
+		while ( cache.getNumCells() < 5 && System.currentTimeMillis() < deadline )
+			Thread.yield();
+		cache.close();
+		synchronized ( loader )
+		{
+			Assert.assertEquals( Arrays.asList( 0L, 4L, 3L, 1L, 2L ), loader.order );
+		}
+	}
+
+	@Test
+	public void testBlockingNotCancelled()
+	{
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 0 );
+		final Loader loader = new Loader();
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.BLOCKING );
+
+		final CellFileCancellation.Token token = new CellFileCancellation.Token();
+		token.cancel();
+		CellFileCancellation.set( token );
+		try
+		{
+			Assert.assertTrue( cellCache.load( 0, new int[] { cellSize }, new long[] { 0 } ).getData().isValid() );
+			Assert.assertFalse( Thread.interrupted() );
+			Assert.assertSame( token, CellFileCancellation.get() );
+			Assert.assertTrue( CellFileCancellation.isCancelled() );
+		}
+		finally
+		{
+			CellFileCancellation.set( null );
+		}
+	}
+
+	@Test
+	public void testClose() throws InterruptedException
+	{
+		final Set< Thread > before = Thread.getAllStackTraces().keySet();
+		final TwoQueueCellFileCache cache = new TwoQueueCellFileCache( maxBytes, 1, 3 );
+		final ArrayList< Thread > fetchers = new ArrayList<>();
+		for ( final Thread thread : Thread.getAllStackTraces().keySet() )
+			if ( !before.contains( thread ) && thread.getName().startsWith( "cell-fetcher-" ) )
+				fetchers.add( thread );
+		Assert.assertEquals( 3, fetchers.size() );
+
+		/* fetchers load requested cells */
+		final Loader loader = new Loader();
+		final CellCache< VolatileShortArray > cellCache = createCellCache( cache, loader, LoadingStrategy.VOLATILE );
+		Assert.assertFalse( cellCache.load( 0, new int[] { cellSize }, new long[] { 0 } ).getData().isValid() );
+		final long deadline = System.currentTimeMillis() + 10000;
+		while ( cache.getNumCells() == 0 && System.currentTimeMillis() < deadline )
+			Thread.yield();
+		Assert.assertTrue( cellCache.get( 0 ).getData().isValid() );
+
+		cache.close();
+		for ( final Thread fetcher : fetchers )
+		{
+			fetcher.join( 10000 );
+			Assert.assertFalse( fetcher.isAlive() );
+		}
+	}
+}